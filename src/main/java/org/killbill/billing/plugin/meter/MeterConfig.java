@@ -121,4 +121,179 @@ public interface MeterConfig {
     @Description("Should data be spooled on disk before it is written in the database in case we crash?")
     @Default("true")
     boolean storeSamplesLocallyTemporary();
+
+    @Config("org.killbill.billing.plugin.meter.timelines.queryFetchSize")
+    @Description("Number of timeline chunk rows fetched per round-trip when streaming query results (MySQL requires useCursorFetch=true to honor it)")
+    @Default("1000")
+    int getQueryFetchSize();
+
+    @Config("org.killbill.billing.plugin.meter.timelines.compressionThreshold")
+    @Description("Size in bytes past which the times and samples of a timeline chunk are Deflate-compressed before being stored (0 to disable)")
+    @Default("0")
+    int getCompressionThreshold();
+
+    @Config("org.killbill.billing.plugin.meter.timelines.skipIndexInterval")
+    @Description("Number of samples between two entries of the skip index of aggregated timeline chunks, used to seek in time range scans (0 to disable)")
+    @Default("0")
+    int getSkipIndexInterval();
+
+    @Config("org.killbill.billing.plugin.meter.timelines.sampleEncoding")
+    @Description("Encoding of the samples of aggregated timeline chunks; either opcodes and repeat counts (default) or XOR and delta-of-delta bit streams (gorilla)")
+    @Default("default")
+    String getSampleEncoding();
+
+    @Config("org.killbill.billing.plugin.meter.timelines.chunkCacheMaxBytes")
+    @Description("Max size in bytes of the cached timeline chunks read from the database (0 to disable the cache)")
+    @Default("33554432")
+    long getChunkCacheMaxBytes();
+
+    @Config("org.killbill.billing.plugin.meter.timelines.usageCacheMaxBytes")
+    @Description("Max size in bytes of the cached usage query results over closed time ranges (0 to disable the cache)")
+    @Default("67108864")
+    long getUsageCacheMaxBytes();
+
+    @Config("org.killbill.billing.plugin.meter.timelines.usageCacheExpiration")
+    @Description("How long to keep cached usage query results, mainly to bound the effect of late samples")
+    @Default("24h")
+    TimeSpan getUsageCacheExpiration();
+
+    @Config("org.killbill.billing.plugin.meter.timelines.partitioningEnabled")
+    @Description("If true, partition the timeline_chunks table by start time (MySQL only) and drop expired partitions")
+    @Default("false")
+    boolean getPartitioningEnabled();
+
+    @Config("org.killbill.billing.plugin.meter.timelines.partitionLength")
+    @Description("Time range covered by each timeline_chunks partition")
+    @Default("7d")
+    TimeSpan getPartitionLength();
+
+    @Config("org.killbill.billing.plugin.meter.timelines.partitionsAhead")
+    @Description("Number of future timeline_chunks partitions to create ahead of time")
+    @Default("4")
+    int getPartitionsAhead();
+
+    @Config("org.killbill.billing.plugin.meter.timelines.partitionRetention")
+    @Description("How long to keep timeline_chunks partitions once they are over (0s to keep them forever)")
+    @Default("0s")
+    TimeSpan getPartitionRetention();
+
+    @Config("org.killbill.billing.plugin.meter.timelines.partitionMaintenanceInterval")
+    @Description("How often to create upcoming partitions and drop expired ones")
+    @Default("1h")
+    TimeSpan getPartitionMaintenanceInterval();
+
+    @Config("org.killbill.billing.plugin.meter.timelines.retentionPolicy")
+    @Description("How long to keep timeline chunks, as comma-separated category:aggregationLevel:retention rules (* for any category, forever to keep them), e.g. *:0:7d,*:1:90d,JVM:0:1d. Empty to keep everything")
+    @Default("")
+    String getRetentionPolicy();
+
+    @Config("org.killbill.billing.plugin.meter.timelines.retentionInterval")
+    @Description("How often to delete the timeline chunks past their retention")
+    @Default("1h")
+    TimeSpan getRetentionInterval();
+
+    @Config("org.killbill.billing.plugin.meter.timelines.retentionBatchSize")
+    @Description("Size of the record_id ranges of timeline chunks considered by each retention delete statement")
+    @Default("10000")
+    int getRetentionBatchSize();
+
+    @Config("org.killbill.billing.plugin.meter.timelines.retentionBatchDelay")
+    @Description("Pause between two retention delete batches, to limit the load on the database")
+    @Default("100ms")
+    TimeSpan getRetentionBatchDelay();
+
+    @Config("org.killbill.billing.plugin.meter.timelines.counterTickLength")
+    @Description("If not 0s, sum the increments of counter metrics into a single sample per tick of this length, recorded at the start of the tick (or at the last sample of the category, if later)")
+    @Default("0s")
+    TimeSpan getCounterTickLength();
+
+    @Config("org.killbill.billing.plugin.meter.timelines.tenantMaxPendingChunks")
+    @Description("The number of TimelineChunks a single tenant can have waiting for the background writer; above that, the tenant's chunks are written by its own threads. 0 means no limit")
+    @Default("5000")
+    int getTenantMaxPendingChunks();
+
+    @Config("org.killbill.billing.plugin.meter.timelines.tenantMaxConcurrentRecords")
+    @Description("The number of threads a single tenant can have recording samples at the same time; other threads of that tenant wait. 0 means no limit")
+    @Default("0")
+    int getTenantMaxConcurrentRecords();
+
+    @Config("org.killbill.billing.plugin.meter.timelines.clusterEnabled")
+    @Description("If true, each source is owned by a single node of the cluster (registered in the meter_nodes table), and samples received by other nodes are forwarded to it")
+    @Default("false")
+    boolean getClusterEnabled();
+
+    @Config("org.killbill.billing.plugin.meter.timelines.clusterNodeId")
+    @Description("Unique id of this node in the cluster; a random id is generated at startup if empty")
+    @Default("")
+    String getClusterNodeId();
+
+    @Config("org.killbill.billing.plugin.meter.timelines.clusterNodeAddress")
+    @Description("Base URL of the meter endpoints of this node, used by the other nodes to forward samples to it, e.g. http://10.0.0.1:8080/1.0/kb/plugins/meter")
+    @Default("http://127.0.0.1:8080/1.0/kb/plugins/meter")
+    String getClusterNodeAddress();
+
+    @Config("org.killbill.billing.plugin.meter.timelines.clusterSecret")
+    @Description("Shared secret authenticating the samples forwarded between nodes; forwarded samples are rejected if it doesn't match. Required in cluster mode")
+    @Default("")
+    String getClusterSecret();
+
+    @Config("org.killbill.billing.plugin.meter.timelines.clusterHeartbeatInterval")
+    @Description("How often each node records its heartbeat and refreshes the list of live nodes")
+    @Default("5s")
+    TimeSpan getClusterHeartbeatInterval();
+
+    @Config("org.killbill.billing.plugin.meter.timelines.clusterNodeTimeout")
+    @Description("Nodes without a heartbeat for that long are considered dead, and their sources are reassigned")
+    @Default("30s")
+    TimeSpan getClusterNodeTimeout();
+
+    @Config("org.killbill.billing.plugin.meter.timelines.clusterForwardInterval")
+    @Description("How often the samples queued for other nodes are forwarded, in batches")
+    @Default("100ms")
+    TimeSpan getClusterForwardInterval();
+
+    @Config("org.killbill.billing.plugin.meter.timelines.clusterForwardQueueSize")
+    @Description("The maximum number of samples queued for another node; further samples for that node are dropped")
+    @Default("100000")
+    int getClusterForwardQueueSize();
+
+    @Config("org.killbill.billing.plugin.meter.timelines.aggregationLeasesEnabled")
+    @Description("If true, the sources are split into shards, and each node of the cluster only aggregates the shards it holds a lease on (see the aggregation_leases table)")
+    @Default("false")
+    boolean getAggregationLeasesEnabled();
+
+    @Config("org.killbill.billing.plugin.meter.timelines.aggregationShards")
+    @Description("The number of aggregation shards (by source record id); it must be the same on all nodes")
+    @Default("64")
+    int getAggregationShards();
+
+    @Config("org.killbill.billing.plugin.meter.timelines.aggregationLeaseDuration")
+    @Description("How long an aggregation lease lasts; leases are renewed three times per duration, and taken over by other nodes once expired")
+    @Default("10m")
+    TimeSpan getAggregationLeaseDuration();
+
+    @Config("org.killbill.billing.plugin.meter.timelines.chunkMinLength")
+    @Description("Chunks aren't closed early (see chunkMaxSampleCount and chunkMaxByteCount) before covering at least that long (1 second minimum)")
+    @Default("0s")
+    TimeSpan getChunkMinLength();
+
+    @Config("org.killbill.billing.plugin.meter.timelines.chunkMaxLength")
+    @Description("How long chunks with fewer than chunkMinSampleCount samples can be kept open past the timeline length. 0s (or anything shorter than timelineLength) to never extend them")
+    @Default("0s")
+    TimeSpan getChunkMaxLength();
+
+    @Config("org.killbill.billing.plugin.meter.timelines.chunkMinSampleCount")
+    @Description("Chunks with fewer samples are kept open past the timeline length, up to chunkMaxLength. 0 to disable")
+    @Default("0")
+    int getChunkMinSampleCount();
+
+    @Config("org.killbill.billing.plugin.meter.timelines.chunkMaxSampleCount")
+    @Description("Chunks are closed before the end of the timeline length once they reach that many samples. 0 means no limit")
+    @Default("0")
+    int getChunkMaxSampleCount();
+
+    @Config("org.killbill.billing.plugin.meter.timelines.chunkMaxByteCount")
+    @Description("Chunks are closed before the end of the timeline length once their encoded samples (all metrics of the category) reach that size. 0 means no limit")
+    @Default("0")
+    int getChunkMaxByteCount();
 }
@@ -19,42 +19,113 @@ package org.killbill.billing.plugin.meter;
 
 import javax.inject.Inject;
 
+import org.killbill.billing.plugin.meter.monitoring.MeterMetricsExporter;
 import org.killbill.billing.plugin.meter.timeline.BackgroundDBChunkWriter;
+import org.killbill.billing.plugin.meter.timeline.CounterPreAggregator;
 import org.killbill.billing.plugin.meter.timeline.TimelineEventHandler;
+import org.killbill.billing.plugin.meter.timeline.aggregator.AggregationLeaseManager;
 import org.killbill.billing.plugin.meter.timeline.aggregator.TimelineAggregator;
+import org.killbill.billing.plugin.meter.timeline.cluster.ClusterMembership;
+import org.killbill.billing.plugin.meter.timeline.cluster.SampleForwarder;
+import org.killbill.billing.plugin.meter.timeline.partitions.TimelinePartitionManager;
+import org.killbill.billing.plugin.meter.timeline.retention.TimelineRetentionManager;
 
 public class MeterService {
 
     private final BackgroundDBChunkWriter backgroundDBChunkWriter;
     private final TimelineEventHandler timelineEventHandler;
+    private final CounterPreAggregator counterPreAggregator;
     private final TimelineAggregator timelineAggregator;
+    private final AggregationLeaseManager aggregationLeaseManager;
+    private final TimelinePartitionManager partitionManager;
+    private final TimelineRetentionManager retentionManager;
+    private final ClusterMembership clusterMembership;
+    private final SampleForwarder sampleForwarder;
+    private final MeterMetricsExporter metricsExporter;
     private final MeterConfig config;
 
     @Inject
-    public MeterService(final BackgroundDBChunkWriter backgroundDBChunkWriter, final TimelineEventHandler timelineEventHandler, final TimelineAggregator timelineAggregator, final MeterConfig config) {
+    public MeterService(final BackgroundDBChunkWriter backgroundDBChunkWriter, final TimelineEventHandler timelineEventHandler,
+                        final CounterPreAggregator counterPreAggregator, final TimelineAggregator timelineAggregator,
+                        final AggregationLeaseManager aggregationLeaseManager,
+                        final TimelinePartitionManager partitionManager, final TimelineRetentionManager retentionManager,
+                        final ClusterMembership clusterMembership, final SampleForwarder sampleForwarder,
+                        final MeterMetricsExporter metricsExporter, final MeterConfig config) {
         this.backgroundDBChunkWriter = backgroundDBChunkWriter;
         this.timelineEventHandler = timelineEventHandler;
+        this.counterPreAggregator = counterPreAggregator;
         this.timelineAggregator = timelineAggregator;
+        this.aggregationLeaseManager = aggregationLeaseManager;
+        this.partitionManager = partitionManager;
+        this.retentionManager = retentionManager;
+        this.clusterMembership = clusterMembership;
+        this.sampleForwarder = sampleForwarder;
+        this.metricsExporter = metricsExporter;
         this.config = config;
     }
 
     public void start() {
         // Replay any log files that might not have been committed in the db-- should only occur if we crashed previously
         timelineEventHandler.replay(config.getSpoolDir(), new MeterCallContext());
+        // Join the cluster, if enabled (the aggregation leases are balanced across the live nodes too)
+        if (clusterMembership.isEnabled() || aggregationLeaseManager.isEnabled()) {
+            clusterMembership.runHeartbeatThread();
+        }
+        // Start forwarding the samples of the sources owned by other nodes, if enabled
+        if (sampleForwarder.isEnabled()) {
+            sampleForwarder.runForwardThread();
+        }
+        // Start the aggregation lease thread, if enabled
+        if (aggregationLeaseManager.isEnabled()) {
+            aggregationLeaseManager.runLeaseThread();
+        }
         // Start the aggregation thread, if enabled
         if (config.getTimelineAggregationEnabled()) {
             timelineAggregator.runAggregationThread();
         }
+        // Start the partition maintenance thread, if enabled
+        if (config.getPartitioningEnabled()) {
+            partitionManager.runPartitionThread();
+        }
+        // Start the retention thread, if a retention policy is configured
+        if (retentionManager.isEnabled()) {
+            retentionManager.runRetentionThread();
+        }
+        // Start the thread recording the pre-aggregated counters, if enabled
+        if (counterPreAggregator.isEnabled()) {
+            counterPreAggregator.runRecordThread();
+        }
         // Start the backgroundDBChunkWriter thread
         backgroundDBChunkWriter.runBackgroundWriteThread();
         // Start the purger thread to delete old log files
         timelineEventHandler.startPurgeThread();
-
+        // Expose counters and latencies over JMX
+        metricsExporter.register();
     }
 
     public void stop() {
+        metricsExporter.unregister();
         // Stop the aggregation thread
         timelineAggregator.stopAggregationThread();
+        // Hand our aggregation shards over to the other nodes
+        if (aggregationLeaseManager.isEnabled()) {
+            aggregationLeaseManager.stopLeaseThread();
+        }
+        // Stop the partition maintenance thread
+        partitionManager.stopPartitionThread();
+        // Stop the retention thread
+        retentionManager.stopRetentionThread();
+        // Forward the queued samples and leave the cluster
+        if (sampleForwarder.isEnabled()) {
+            sampleForwarder.stopForwardThread();
+        }
+        if (clusterMembership.isEnabled() || aggregationLeaseManager.isEnabled()) {
+            clusterMembership.stopHeartbeatThread();
+        }
+        // Record the pending pre-aggregated counters
+        if (counterPreAggregator.isEnabled()) {
+            counterPreAggregator.stopRecordThread();
+        }
         // . Depending on shutdown mode, commit in memory timeline accumulators
         // . Will flush current direct buffer
         // . Will stop the backgroundDBChunkWriter thread
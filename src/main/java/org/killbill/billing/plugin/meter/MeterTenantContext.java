@@ -35,6 +35,6 @@ public class MeterTenantContext implements TenantContext {
 
     @Override
     public UUID getTenantId() {
-        return null;
+        return tenantId;
     }
 }
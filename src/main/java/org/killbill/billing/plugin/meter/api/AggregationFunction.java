@@ -0,0 +1,59 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.api;
+
+/**
+ * Function applied to the samples of each time bucket, see TimeAggregationMode.
+ * <p/>
+ * Percentiles are estimated in a single pass, with a relative error of 1% (see QuantileSketch).
+ */
+public enum AggregationFunction {
+    SUM,
+    MIN,
+    MAX,
+    COUNT,
+    AVG,
+    LAST,
+    P50(0.50),
+    P75(0.75),
+    P90(0.90),
+    P95(0.95),
+    P99(0.99),
+    P999(0.999);
+
+    private final double quantile;
+
+    AggregationFunction() {
+        this(Double.NaN);
+    }
+
+    AggregationFunction(final double quantile) {
+        this.quantile = quantile;
+    }
+
+    public boolean isPercentile() {
+        return !Double.isNaN(quantile);
+    }
+
+    /**
+     * @return quantile (between 0 and 1) for percentiles, NaN otherwise
+     */
+    public double getQuantile() {
+        return quantile;
+    }
+}
@@ -19,5 +19,7 @@ package org.killbill.billing.plugin.meter.api;
 
 public enum DecimationMode {
     PEAK_PICK,
-    AVERAGE
+    AVERAGE,
+    // Largest-Triangle-Three-Buckets: keeps the sample of each time bucket contributing the most to the shape of the curve
+    LTTB
 }
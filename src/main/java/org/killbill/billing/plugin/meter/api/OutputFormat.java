@@ -0,0 +1,61 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.api;
+
+/**
+ * Encoding and layout of the samples returned by the usage APIs.
+ * <p/>
+ * The row layout writes one object per chunk, with the samples as a CSV string: {"sourceName", "eventCategory",
+ * "metric", "samples": "t1,v1,t2,v2,..."}. Times are Unix seconds.
+ * <p/>
+ * The columnar layout avoids formatting numbers as strings, and writes one object per series (source and metric):
+ * {"sourceName", "eventCategory", "metric", "times": [t1, t2 - t1, t3 - t2, ...], "values": [v1, v2, v3, ...]}. The first time is in Unix seconds, subsequent ones are deltas in seconds with the previous
+ * sample. Values are doubles (NaN for non-numeric samples).
+ * <p/>
+ * Both layouts can be encoded as Json or Smile (binary Json).
+ */
+public enum OutputFormat {
+    JSON(false, false),
+    SMILE(false, true),
+    COLUMNAR_JSON(true, false),
+    COLUMNAR_SMILE(true, true);
+
+    private final boolean columnar;
+    private final boolean smile;
+
+    OutputFormat(final boolean columnar, final boolean smile) {
+        this.columnar = columnar;
+        this.smile = smile;
+    }
+
+    public static OutputFormat fromLayoutAndEncoding(final boolean columnar, final boolean smile) {
+        if (columnar) {
+            return smile ? COLUMNAR_SMILE : COLUMNAR_JSON;
+        } else {
+            return smile ? SMILE : JSON;
+        }
+    }
+
+    public boolean isColumnar() {
+        return columnar;
+    }
+
+    public boolean isSmile() {
+        return smile;
+    }
+}
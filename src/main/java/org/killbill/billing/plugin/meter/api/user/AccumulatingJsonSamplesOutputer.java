@@ -18,63 +18,74 @@
 package org.killbill.billing.plugin.meter.api.user;
 
 import java.io.IOException;
-import java.util.Collection;
 
+import org.joda.time.DateTimeZone;
+import org.killbill.billing.plugin.meter.api.AggregationFunction;
+import org.killbill.billing.plugin.meter.api.OutputFormat;
 import org.killbill.billing.plugin.meter.api.TimeAggregationMode;
 import org.killbill.billing.plugin.meter.timeline.TimelineEventHandler;
 import org.killbill.billing.plugin.meter.timeline.categories.CategoryRecordIdAndMetric;
 import org.killbill.billing.plugin.meter.timeline.chunks.TimelineChunk;
 import org.killbill.billing.plugin.meter.timeline.consumer.AccumulatorSampleConsumer;
-import org.killbill.billing.plugin.meter.timeline.consumer.CSVConsumer;
-import org.killbill.billing.plugin.meter.timeline.consumer.CSVSampleProcessor;
-import org.killbill.billing.plugin.meter.timeline.metrics.SamplesForMetricAndSource;
+import org.killbill.billing.plugin.meter.timeline.consumer.TimeRangeSampleProcessor;
 import org.killbill.billing.plugin.meter.timeline.persistent.TimelineDao;
 import org.killbill.billing.util.callcontext.TenantContext;
 
 import com.fasterxml.jackson.core.JsonGenerator;
-import com.google.common.base.Strings;
 
 public class AccumulatingJsonSamplesOutputer extends JsonSamplesOutputer {
 
-    private final AccumulatorSampleConsumer accumulatorSampleConsumer;
+    private final TimeAggregationMode timeAggregationMode;
+    private final AggregationFunction aggregationFunction;
+    private final DateTimeZone timeZone;
 
-    private String lastSource;
-    private String lastEventCategory;
-    private String lastMetric;
+    // State for the current (source, metric) series
+    private TimeRangeSampleProcessor sampleProcessor;
+    private AccumulatorSampleConsumer accumulatorSampleConsumer;
+    private String source;
+    private String eventCategory;
+    private String metric;
 
     public AccumulatingJsonSamplesOutputer(final TimeAggregationMode timeAggregationMode, final TimelineEventHandler timelineEventHandler,
                                            final TimelineDao timelineDao, final TenantContext context) {
-        super(timelineEventHandler, timelineDao, context);
-        this.accumulatorSampleConsumer = new AccumulatorSampleConsumer(timeAggregationMode, new CSVSampleProcessor());
+        this(OutputFormat.JSON, timeAggregationMode, AggregationFunction.SUM, DateTimeZone.UTC, timelineEventHandler, timelineDao, context);
     }
 
-    @Override
-    protected void writeJsonForChunks(final JsonGenerator generator, final Collection<? extends TimelineChunk> chunksForSourceAndMetric) throws IOException {
-        for (final TimelineChunk chunk : chunksForSourceAndMetric) {
-            final String source = timelineDao.getSource(chunk.getSourceId(), context);
-            final CategoryRecordIdAndMetric categoryIdAndMetric = timelineDao.getCategoryIdAndMetric(chunk.getMetricId(), context);
-            final String eventCategory = timelineDao.getEventCategory(categoryIdAndMetric.getEventCategoryId(), context);
-            final String metric = categoryIdAndMetric.getMetric();
-
-            final String samples = CSVConsumer.getSamplesAsCSV(sampleCoder, chunk, accumulatorSampleConsumer);
+    public AccumulatingJsonSamplesOutputer(final OutputFormat outputFormat, final TimeAggregationMode timeAggregationMode, final AggregationFunction aggregationFunction,
+                                           final DateTimeZone timeZone, final TimelineEventHandler timelineEventHandler, final TimelineDao timelineDao,
+                                           final TenantContext context) {
+        super(outputFormat, timelineEventHandler, timelineDao, context);
+        this.timeAggregationMode = timeAggregationMode;
+        this.aggregationFunction = aggregationFunction;
+        this.timeZone = timeZone;
+    }
 
-            // Don't write out empty samples
-            if (!Strings.isNullOrEmpty(samples)) {
-                generator.writeObject(new SamplesForMetricAndSource(source, eventCategory, metric, samples));
-            }
+    @Override
+    protected void startSeries(final JsonGenerator generator, final int sourceId, final int metricId) throws IOException {
+        final CategoryRecordIdAndMetric categoryIdAndMetric = timelineDao.getCategoryIdAndMetric(metricId, context);
+        source = timelineDao.getSource(sourceId, context);
+        eventCategory = timelineDao.getEventCategory(categoryIdAndMetric.getEventCategoryId(), context);
+        metric = categoryIdAndMetric.getMetric();
+        // Buckets never span two series
+        sampleProcessor = createSampleProcessor();
+        accumulatorSampleConsumer = new AccumulatorSampleConsumer(timeAggregationMode, aggregationFunction, timeZone, samplesStartTime, samplesEndTime, sampleProcessor);
+    }
 
-            lastSource = source;
-            lastEventCategory = eventCategory;
-            lastMetric = metric;
+    @Override
+    protected void writeJsonForChunk(final JsonGenerator generator, final TimelineChunk chunk) throws IOException {
+        sampleCoder.scan(chunk, accumulatorSampleConsumer);
+        // Only complete buckets are written, the last one is kept open for the next chunk of the series.
+        // The columnar layout writes a single object per series, in endSeries()
+        if (!outputFormat.isColumnar()) {
+            writeSamples(generator, source, eventCategory, metric, sampleProcessor);
         }
     }
 
     @Override
-    protected void writeRemainingData(final JsonGenerator generator) throws IOException {
-        final String samples = accumulatorSampleConsumer.flush();
-        // Don't write out empty samples
-        if (!Strings.isNullOrEmpty(samples)) {
-            generator.writeObject(new SamplesForMetricAndSource(lastSource, lastEventCategory, lastMetric, samples));
-        }
+    protected void endSeries(final JsonGenerator generator) throws IOException {
+        accumulatorSampleConsumer.flushAccumulators();
+        writeSamples(generator, source, eventCategory, metric, sampleProcessor);
+        accumulatorSampleConsumer = null;
+        sampleProcessor = null;
     }
 }
@@ -18,7 +18,6 @@
 package org.killbill.billing.plugin.meter.api.user;
 
 import java.io.IOException;
-import java.util.Collection;
 
 import org.killbill.billing.plugin.meter.timeline.TimelineEventHandler;
 import org.killbill.billing.plugin.meter.timeline.categories.CategoryRecordIdAndMetric;
@@ -51,21 +50,19 @@ public class DebugJsonSamplesOutputer extends JsonSamplesOutputer {
     }
 
     @Override
-    protected void writeJsonForChunks(final JsonGenerator generator, final Collection<? extends TimelineChunk> chunksForSourceAndMetric) throws IOException {
-        for (final TimelineChunk chunk : chunksForSourceAndMetric) {
-            if (withBinaryData) {
-                writer.writeValue(generator, new TimelineChunkDecoded(chunk, sampleCoder));
-            } else {
-                final String source = timelineDao.getSource(chunk.getSourceId(), context);
-                final CategoryRecordIdAndMetric categoryIdAndMetric = timelineDao.getCategoryIdAndMetric(chunk.getMetricId(), context);
-                final String category = timelineDao.getEventCategory(categoryIdAndMetric.getEventCategoryId(), context);
-                final String metric = categoryIdAndMetric.getMetric();
-                final String samples = CSVConsumer.getSamplesAsCSV(sampleCoder, chunk);
+    protected void writeJsonForChunk(final JsonGenerator generator, final TimelineChunk chunk) throws IOException {
+        if (withBinaryData) {
+            writer.writeValue(generator, new TimelineChunkDecoded(chunk, sampleCoder));
+        } else {
+            final String source = timelineDao.getSource(chunk.getSourceId(), context);
+            final CategoryRecordIdAndMetric categoryIdAndMetric = timelineDao.getCategoryIdAndMetric(chunk.getMetricId(), context);
+            final String category = timelineDao.getEventCategory(categoryIdAndMetric.getEventCategoryId(), context);
+            final String metric = categoryIdAndMetric.getMetric();
+            final String samples = CSVConsumer.getSamplesAsCSV(sampleCoder, chunk);
 
-                // Don't write out empty samples
-                if (!Strings.isNullOrEmpty(samples)) {
-                    generator.writeObject(new SamplesForMetricAndSource(source, category, metric, samples));
-                }
+            // Don't write out empty samples
+            if (!Strings.isNullOrEmpty(samples)) {
+                generator.writeObject(new SamplesForMetricAndSource(source, category, metric, samples));
             }
         }
     }
@@ -19,91 +19,116 @@ package org.killbill.billing.plugin.meter.api.user;
 
 import java.io.IOException;
 import java.io.OutputStream;
-import java.util.Collection;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import javax.annotation.Nullable;
 
 import org.joda.time.DateTime;
 import org.killbill.billing.plugin.meter.api.DecimationMode;
+import org.killbill.billing.plugin.meter.api.OutputFormat;
 import org.killbill.billing.plugin.meter.timeline.TimelineEventHandler;
 import org.killbill.billing.plugin.meter.timeline.categories.CategoryRecordIdAndMetric;
 import org.killbill.billing.plugin.meter.timeline.chunks.TimelineChunk;
-import org.killbill.billing.plugin.meter.timeline.consumer.CSVConsumer;
-import org.killbill.billing.plugin.meter.timeline.consumer.CSVSampleProcessor;
 import org.killbill.billing.plugin.meter.timeline.consumer.TimeRangeSampleProcessor;
 import org.killbill.billing.plugin.meter.timeline.consumer.filter.DecimatingSampleFilter;
-import org.killbill.billing.plugin.meter.timeline.metrics.SamplesForMetricAndSource;
+import org.killbill.billing.plugin.meter.timeline.consumer.filter.LargestTriangleThreeBucketsFilter;
 import org.killbill.billing.plugin.meter.timeline.persistent.TimelineDao;
 import org.killbill.billing.util.callcontext.TenantContext;
 import org.skife.config.TimeSpan;
 
 import com.fasterxml.jackson.core.JsonGenerator;
-import com.google.common.base.Strings;
 
 public class DecimatingJsonSamplesOutputer extends JsonSamplesOutputer {
 
+    private static final TimeSpan DEFAULT_POLLING_INTERVAL = new TimeSpan("1s");
+
     private final Integer outputCount;
     private final DecimationMode decimationMode;
 
-    private Map<Integer, Map<Integer, DecimatingSampleFilter>> filters;
+    // State for the current (source, metric) series
+    private DateTime startTime;
+    private DateTime endTime;
+    private TimeRangeSampleProcessor sampleProcessor;
+    private TimeRangeSampleProcessor filter;
+    private String source;
+    private String eventCategory;
+    private String metric;
 
     public DecimatingJsonSamplesOutputer(final DecimationMode decimationMode, @Nullable final Integer outputCount,
                                          final TimelineEventHandler timelineEventHandler, final TimelineDao timelineDao, final TenantContext context) {
-        super(timelineEventHandler, timelineDao, context);
+        this(OutputFormat.JSON, decimationMode, outputCount, timelineEventHandler, timelineDao, context);
+    }
+
+    public DecimatingJsonSamplesOutputer(final OutputFormat outputFormat, final DecimationMode decimationMode, @Nullable final Integer outputCount,
+                                         final TimelineEventHandler timelineEventHandler, final TimelineDao timelineDao, final TenantContext context) {
+        super(outputFormat, timelineEventHandler, timelineDao, context);
         this.outputCount = outputCount;
         this.decimationMode = decimationMode;
     }
 
     @Override
     protected void output(final OutputStream output, final List<Integer> sourceIds, final List<Integer> metricIds, final DateTime startTime, final DateTime endTime) throws IOException {
-        // Create the decimating filters
-        filters = createDecimatingSampleFilters(sourceIds, metricIds, decimationMode, startTime, endTime, outputCount);
+        this.startTime = startTime;
+        this.endTime = endTime;
 
         super.output(output, sourceIds, metricIds, startTime, endTime);
     }
 
     @Override
-    protected void writeJsonForChunks(final JsonGenerator generator, final Collection<? extends TimelineChunk> chunksForSourceAndMetric) throws IOException {
-        for (final TimelineChunk chunk : chunksForSourceAndMetric) {
-            final String source = timelineDao.getSource(chunk.getSourceId(), context);
-            final CategoryRecordIdAndMetric categoryIdAndMetric = timelineDao.getCategoryIdAndMetric(chunk.getMetricId(), context);
-            final String eventCategory = timelineDao.getEventCategory(categoryIdAndMetric.getEventCategoryId(), context);
-            final String metric = categoryIdAndMetric.getMetric();
-            final TimeRangeSampleProcessor filter = filters.get(chunk.getSourceId()).get(chunk.getMetricId());
-
-            final String samples = filter == null ? CSVConsumer.getSamplesAsCSV(sampleCoder, chunk) : CSVConsumer.getSamplesAsCSV(sampleCoder, chunk, filter);
-
-            // Don't write out empty samples
-            if (!Strings.isNullOrEmpty(samples)) {
-                generator.writeObject(new SamplesForMetricAndSource(source, eventCategory, metric, samples));
-            }
+    protected void startSeries(final JsonGenerator generator, final int sourceId, final int metricId) throws IOException {
+        final CategoryRecordIdAndMetric categoryIdAndMetric = timelineDao.getCategoryIdAndMetric(metricId, context);
+        source = timelineDao.getSource(sourceId, context);
+        eventCategory = timelineDao.getEventCategory(categoryIdAndMetric.getEventCategoryId(), context);
+        metric = categoryIdAndMetric.getMetric();
+        sampleProcessor = createSampleProcessor();
+        // The filter is created on the first chunk of the series, see createDecimatingSampleFilter
+        filter = null;
+    }
+
+    @Override
+    protected void writeJsonForChunk(final JsonGenerator generator, final TimelineChunk chunk) throws IOException {
+        if (outputCount == null) {
+            sampleCoder.scan(chunk, sampleProcessor);
+            writeSamples(generator, source, eventCategory, metric, sampleProcessor);
+            return;
         }
+
+        // The decimated series is small (at most outputCount samples): it is written at once, in endSeries
+        if (filter == null) {
+            filter = createDecimatingSampleFilter(outputCount, decimationMode, startTime, endTime, chunk, sampleProcessor);
+        }
+        sampleCoder.scan(chunk, filter);
     }
 
-    private Map<Integer, Map<Integer, DecimatingSampleFilter>> createDecimatingSampleFilters(final List<Integer> sourceIds, final List<Integer> metricIds, final DecimationMode decimationMode,
-                                                                                             final DateTime startTime, final DateTime endTime, final Integer outputCount) {
-        final Map<Integer, Map<Integer, DecimatingSampleFilter>> filters = new HashMap<Integer, Map<Integer, DecimatingSampleFilter>>();
-        for (final Integer sourceId : sourceIds) {
-            filters.put(sourceId, new HashMap<Integer, DecimatingSampleFilter>());
-            for (final Integer metric : metricIds) {
-                filters.get(sourceId).put(metric, createDecimatingSampleFilter(outputCount, decimationMode, startTime, endTime));
-            }
+    @Override
+    protected void endSeries(final JsonGenerator generator) throws IOException {
+        if (filter instanceof LargestTriangleThreeBucketsFilter) {
+            ((LargestTriangleThreeBucketsFilter) filter).flush();
+        }
+        if (filter != null) {
+            writeSamples(generator, source, eventCategory, metric, sampleProcessor);
         }
-        return filters;
+        filter = null;
+        sampleProcessor = null;
     }
 
-    private DecimatingSampleFilter createDecimatingSampleFilter(final Integer outputCount, final DecimationMode decimationMode, final DateTime startTime, final DateTime endTime) {
-        final DecimatingSampleFilter rangeSampleProcessor;
-        if (outputCount == null) {
-            rangeSampleProcessor = null;
+    private TimeRangeSampleProcessor createDecimatingSampleFilter(final int outputCount, final DecimationMode decimationMode, final DateTime startTime, final DateTime endTime,
+                                                                  final TimelineChunk firstChunk, final TimeRangeSampleProcessor sampleProcessor) {
+        if (decimationMode == DecimationMode.LTTB) {
+            return new LargestTriangleThreeBucketsFilter(startTime, endTime, outputCount, sampleProcessor);
         } else {
-            // TODO Fix the polling interval
-            rangeSampleProcessor = new DecimatingSampleFilter(startTime, endTime, outputCount, new TimeSpan("1s"), decimationMode, new CSVSampleProcessor());
+            // The filter is sized lazily, on the first sample of the series, assuming no gaps
+            return new DecimatingSampleFilter(startTime, endTime, outputCount, getPollingInterval(firstChunk), decimationMode, sampleProcessor);
         }
+    }
 
-        return rangeSampleProcessor;
+    // Estimate the polling interval of the series from the sampling density of its first chunk
+    private TimeSpan getPollingInterval(final TimelineChunk chunk) {
+        final long chunkMillis = (chunk.getEndTimeSeconds() - chunk.getStartTimeSeconds()) * 1000L;
+        if (chunk.getSampleCount() <= 1 || chunkMillis <= 0) {
+            return DEFAULT_POLLING_INTERVAL;
+        }
+        return new TimeSpan(Math.max(1, chunkMillis / (chunk.getSampleCount() - 1)), TimeUnit.MILLISECONDS);
     }
 }
@@ -18,39 +18,61 @@
 package org.killbill.billing.plugin.meter.api.user;
 
 import java.io.IOException;
-import java.util.Collection;
 
+import org.killbill.billing.plugin.meter.api.OutputFormat;
 import org.killbill.billing.plugin.meter.timeline.TimelineEventHandler;
 import org.killbill.billing.plugin.meter.timeline.categories.CategoryRecordIdAndMetric;
 import org.killbill.billing.plugin.meter.timeline.chunks.TimelineChunk;
-import org.killbill.billing.plugin.meter.timeline.consumer.CSVConsumer;
-import org.killbill.billing.plugin.meter.timeline.metrics.SamplesForMetricAndSource;
+import org.killbill.billing.plugin.meter.timeline.consumer.TimeRangeSampleProcessor;
 import org.killbill.billing.plugin.meter.timeline.persistent.TimelineDao;
 import org.killbill.billing.util.callcontext.TenantContext;
 
 import com.fasterxml.jackson.core.JsonGenerator;
-import com.google.common.base.Strings;
 
 public class DefaultJsonSamplesOutputer extends JsonSamplesOutputer {
 
+    // State for the current (source, metric) series
+    private String source;
+    private String eventCategory;
+    private String metric;
+    private TimeRangeSampleProcessor seriesSampleProcessor;
+
     public DefaultJsonSamplesOutputer(final TimelineEventHandler timelineEventHandler, final TimelineDao timelineDao, final TenantContext context) {
-        super(timelineEventHandler, timelineDao, context);
+        this(OutputFormat.JSON, timelineEventHandler, timelineDao, context);
+    }
+
+    public DefaultJsonSamplesOutputer(final OutputFormat outputFormat, final TimelineEventHandler timelineEventHandler, final TimelineDao timelineDao, final TenantContext context) {
+        super(outputFormat, timelineEventHandler, timelineDao, context);
+    }
+
+    @Override
+    protected void startSeries(final JsonGenerator generator, final int sourceId, final int metricId) throws IOException {
+        final CategoryRecordIdAndMetric categoryIdAndMetric = timelineDao.getCategoryIdAndMetric(metricId, context);
+        source = timelineDao.getSource(sourceId, context);
+        eventCategory = timelineDao.getEventCategory(categoryIdAndMetric.getEventCategoryId(), context);
+        metric = categoryIdAndMetric.getMetric();
+        // The columnar layout writes a single object per series
+        seriesSampleProcessor = outputFormat.isColumnar() ? createSampleProcessor() : null;
+    }
+
+    @Override
+    protected void writeJsonForChunk(final JsonGenerator generator, final TimelineChunk chunk) throws IOException {
+        if (seriesSampleProcessor != null) {
+            sampleCoder.scan(chunk, seriesSampleProcessor);
+            return;
+        }
+
+        // Samples are streamed from the decoder to the processor
+        final TimeRangeSampleProcessor sampleProcessor = createSampleProcessor();
+        sampleCoder.scan(chunk, sampleProcessor);
+        writeSamples(generator, source, eventCategory, metric, sampleProcessor);
     }
 
     @Override
-    protected void writeJsonForChunks(final JsonGenerator generator, final Collection<? extends TimelineChunk> chunksForSourceAndMetric) throws IOException {
-        for (final TimelineChunk chunk : chunksForSourceAndMetric) {
-            final String source = timelineDao.getSource(chunk.getSourceId(), context);
-            final CategoryRecordIdAndMetric categoryIdAndMetric = timelineDao.getCategoryIdAndMetric(chunk.getMetricId(), context);
-            final String eventCategory = timelineDao.getEventCategory(categoryIdAndMetric.getEventCategoryId(), context);
-            final String metric = categoryIdAndMetric.getMetric();
-
-            final String samples = CSVConsumer.getSamplesAsCSV(sampleCoder, chunk);
-
-            // Don't write out empty samples
-            if (!Strings.isNullOrEmpty(samples)) {
-                generator.writeObject(new SamplesForMetricAndSource(source, eventCategory, metric, samples));
-            }
+    protected void endSeries(final JsonGenerator generator) throws IOException {
+        if (seriesSampleProcessor != null) {
+            writeSamples(generator, source, eventCategory, metric, seriesSampleProcessor);
+            seriesSampleProcessor = null;
         }
     }
 }
@@ -17,22 +17,40 @@
 
 package org.killbill.billing.plugin.meter.api.user;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 import javax.annotation.Nullable;
 import javax.inject.Inject;
 
 import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.killbill.billing.plugin.meter.api.AggregationFunction;
 import org.killbill.billing.plugin.meter.api.DecimationMode;
+import org.killbill.billing.plugin.meter.api.OutputFormat;
 import org.killbill.billing.plugin.meter.api.TimeAggregationMode;
+import org.killbill.billing.plugin.meter.monitoring.MeterMetrics;
+import org.killbill.billing.plugin.meter.timeline.CounterPreAggregator;
 import org.killbill.billing.plugin.meter.timeline.TimelineEventHandler;
+import org.killbill.billing.plugin.meter.timeline.cluster.ForwardedSamples;
+import org.killbill.billing.plugin.meter.timeline.cluster.SampleForwarder;
 import org.killbill.billing.plugin.meter.timeline.persistent.TimelineDao;
 import org.killbill.billing.util.callcontext.CallContext;
 import org.killbill.billing.util.callcontext.TenantContext;
+import org.killbill.clock.Clock;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableMap.Builder;
@@ -42,64 +60,269 @@ public class DefaultMeterUserApi implements MeterUserApi {
     private static final String AGGREGATE_METRIC_NAME = "__AGGREGATE__";
 
     private final TimelineEventHandler timelineEventHandler;
+    private final CounterPreAggregator counterPreAggregator;
     private final TimelineDao timelineDao;
+    private final MeterMetrics metrics;
+    private final UsageResultCache usageResultCache;
+    private final SampleForwarder sampleForwarder;
+    private final Clock clock;
 
     @Inject
     public DefaultMeterUserApi(final TimelineEventHandler timelineEventHandler,
-                               final TimelineDao timelineDao) {
+                               final CounterPreAggregator counterPreAggregator,
+                               final TimelineDao timelineDao,
+                               final MeterMetrics metrics,
+                               final UsageResultCache usageResultCache,
+                               final SampleForwarder sampleForwarder,
+                               final Clock clock) {
         this.timelineEventHandler = timelineEventHandler;
+        this.counterPreAggregator = counterPreAggregator;
         this.timelineDao = timelineDao;
+        this.metrics = metrics;
+        this.usageResultCache = usageResultCache;
+        this.sampleForwarder = sampleForwarder;
+        this.clock = clock;
     }
 
     @Override
     public void getUsage(final OutputStream outputStream, final TimeAggregationMode timeAggregationMode,
                          final String source, final Collection<String> categories,
                          final DateTime fromTimestamp, final DateTime toTimestamp, final TenantContext context) throws IOException {
-        final ImmutableMap.Builder<String, Collection<String>> metricsPerCategory = new Builder<String, Collection<String>>();
-        for (final String category : categories) {
-            metricsPerCategory.put(category, ImmutableList.<String>of(AGGREGATE_METRIC_NAME));
-        }
-
-        getUsage(outputStream, timeAggregationMode, source, metricsPerCategory.build(), fromTimestamp, toTimestamp, context);
+        getUsage(outputStream, timeAggregationMode, source, toAggregateMetricsPerCategory(categories), fromTimestamp, toTimestamp, context);
     }
 
     @Override
     public void getUsage(final OutputStream outputStream, final TimeAggregationMode timeAggregationMode,
                          final String source, final Map<String, Collection<String>> metricsPerCategory,
                          final DateTime fromTimestamp, final DateTime toTimestamp, final TenantContext context) throws IOException {
-        final JsonSamplesOutputer outputerJson = new AccumulatingJsonSamplesOutputer(timeAggregationMode, timelineEventHandler, timelineDao, context);
-        outputerJson.output(outputStream, ImmutableList.<String>of(source), metricsPerCategory, fromTimestamp, toTimestamp);
+        getUsage(outputStream, OutputFormat.JSON, timeAggregationMode, AggregationFunction.SUM, DateTimeZone.UTC, ImmutableList.<String>of(source),
+                 ImmutableList.<String>of(), metricsPerCategory, fromTimestamp, toTimestamp, context);
     }
 
     @Override
     public void getUsage(final OutputStream outputStream, final DecimationMode decimationMode, @Nullable final Integer outputCount,
                          final String source, final Map<String, Collection<String>> metricsPerCategory,
                          final DateTime fromTimestamp, final DateTime toTimestamp, final TenantContext context) throws IOException {
-        final JsonSamplesOutputer outputerJson = new DecimatingJsonSamplesOutputer(decimationMode, outputCount, timelineEventHandler, timelineDao, context);
-        outputerJson.output(outputStream, ImmutableList.<String>of(source), metricsPerCategory, fromTimestamp, toTimestamp);
+        getUsage(outputStream, OutputFormat.JSON, decimationMode, outputCount, ImmutableList.<String>of(source), ImmutableList.<String>of(),
+                 metricsPerCategory, fromTimestamp, toTimestamp, context);
     }
 
     @Override
     public void getUsage(final OutputStream outputStream, final String source, final Collection<String> categories,
                          final DateTime fromTimestamp, final DateTime toTimestamp, final TenantContext context) throws IOException {
+        getUsage(outputStream, source, toAggregateMetricsPerCategory(categories), fromTimestamp, toTimestamp, context);
+    }
+
+    @Override
+    public void getUsage(final OutputStream outputStream, final String source, final Map<String, Collection<String>> metricsPerCategory,
+                         final DateTime fromTimestamp, final DateTime toTimestamp, final TenantContext context) throws IOException {
+        getUsage(outputStream, OutputFormat.JSON, null, AggregationFunction.SUM, DateTimeZone.UTC, ImmutableList.<String>of(source),
+                 ImmutableList.<String>of(), metricsPerCategory, fromTimestamp, toTimestamp, context);
+    }
+
+    @Override
+    public void getUsage(final OutputStream outputStream, final OutputFormat outputFormat, @Nullable final TimeAggregationMode timeAggregationMode,
+                         final AggregationFunction aggregationFunction, final DateTimeZone timeZone, final List<String> sources, final Collection<String> categories, final Map<String, Collection<String>> metricsPerCategory,
+                         final DateTime fromTimestamp, final DateTime toTimestamp, final TenantContext context) throws IOException {
+        final Map<String, Collection<String>> allMetricsPerCategory = withAggregateMetrics(categories, metricsPerCategory);
+
+        metrics.getQueries().increment();
+        final long startNanos = System.nanoTime();
+        try {
+            if (usageResultCache.isEnabled()) {
+                outputWithCache(outputStream, outputFormat, timeAggregationMode, aggregationFunction, timeZone, sources, allMetricsPerCategory,
+                                fromTimestamp, toTimestamp, context);
+            } else {
+                createOutputer(outputFormat, timeAggregationMode, aggregationFunction, timeZone, context)
+                        .output(outputStream, sources, allMetricsPerCategory, fromTimestamp, toTimestamp);
+            }
+        } finally {
+            metrics.getQueryLatency().recordSince(startNanos);
+        }
+    }
+
+    @Override
+    public void getUsage(final OutputStream outputStream, final OutputFormat outputFormat, final DecimationMode decimationMode, @Nullable final Integer outputCount,
+                         final List<String> sources, final Collection<String> categories, final Map<String, Collection<String>> metricsPerCategory,
+                         final DateTime fromTimestamp, final DateTime toTimestamp, final TenantContext context) throws IOException {
+        // Not cached: the decimation buckets depend on the queried range, which usually slides with the current time
+        final JsonSamplesOutputer outputerJson = new DecimatingJsonSamplesOutputer(outputFormat, decimationMode, outputCount, timelineEventHandler, timelineDao, context);
+        output(outputerJson, outputStream, sources, withAggregateMetrics(categories, metricsPerCategory), fromTimestamp, toTimestamp);
+    }
+
+    // Split the query into a closed part, served from the cache, and a live part, recomputed
+    private void outputWithCache(final OutputStream outputStream, final OutputFormat outputFormat, @Nullable final TimeAggregationMode timeAggregationMode,
+                                 final AggregationFunction aggregationFunction, final DateTimeZone timeZone, final List<String> sources,
+                                 final Map<String, Collection<String>> metricsPerCategory, @Nullable final DateTime fromTimestamp,
+                                 @Nullable final DateTime toTimestamp, final TenantContext context) throws IOException {
+        final DateTime closedRangeEnd = usageResultCache.getClosedRangeEnd(timeAggregationMode, timeZone, clock.getUTCNow());
+        if (fromTimestamp != null && !fromTimestamp.isBefore(closedRangeEnd)) {
+            // Live data only
+            createOutputer(outputFormat, timeAggregationMode, aggregationFunction, timeZone, context)
+                    .output(outputStream, sources, metricsPerCategory, fromTimestamp, toTimestamp);
+            return;
+        }
+
+        if (toTimestamp != null && toTimestamp.isBefore(closedRangeEnd)) {
+            // Closed data only: cache the whole result, while streaming it
+            final UsageResultCache.Key key = new UsageResultCache.Key(context.getTenantId(), outputFormat, timeAggregationMode, aggregationFunction, timeZone,
+                                                                      sources, metricsPerCategory, fromTimestamp, toTimestamp, null);
+            final byte[] cachedResult = usageResultCache.getIfPresent(key);
+            if (cachedResult != null) {
+                outputStream.write(cachedResult);
+                outputStream.flush();
+                return;
+            }
+
+            final UsageResultCache.CachingOutputStream cachingOutputStream = usageResultCache.createCachingOutputStream(outputStream);
+            createOutputer(outputFormat, timeAggregationMode, aggregationFunction, timeZone, context)
+                    .output(cachingOutputStream, sources, metricsPerCategory, fromTimestamp, toTimestamp);
+            final byte[] result = cachingOutputStream.getBytes();
+            if (result != null) {
+                usageResultCache.put(key, result);
+            }
+            return;
+        }
+
+        // Samples (or buckets, as the closed range end is aligned on a bucket boundary) are split at the closed range end
+        final DateTime closedSamplesEndTime = closedRangeEnd.minusMillis(1);
+        final UsageResultCache.Key key = new UsageResultCache.Key(context.getTenantId(), outputFormat, timeAggregationMode, aggregationFunction, timeZone,
+                                                                  sources, metricsPerCategory, fromTimestamp, closedSamplesEndTime, closedSamplesEndTime);
+        byte[] closedResult = usageResultCache.getIfPresent(key);
+        if (closedResult == null) {
+            final UsageResultCache.CachingOutputStream buffer = usageResultCache.createCachingOutputStream(null);
+            final JsonSamplesOutputer closedOutputer = createOutputer(outputFormat, timeAggregationMode, aggregationFunction, timeZone, context);
+            closedOutputer.setSamplesTimeRange(null, closedSamplesEndTime);
+            try {
+                closedOutputer.output(buffer, sources, metricsPerCategory, fromTimestamp, closedSamplesEndTime);
+            } catch (UsageResultCache.ResultTooLargeException e) {
+                // Not worth splitting the query
+                createOutputer(outputFormat, timeAggregationMode, aggregationFunction, timeZone, context)
+                        .output(outputStream, sources, metricsPerCategory, fromTimestamp, toTimestamp);
+                return;
+            }
+            closedResult = buffer.getBytes();
+            usageResultCache.put(key, closedResult);
+        }
+
+        // The live part is short, buffer it to write each series once, with both its closed and live samples
+        final JsonSamplesOutputer liveOutputer = createOutputer(outputFormat, timeAggregationMode, aggregationFunction, timeZone, context);
+        liveOutputer.setSamplesTimeRange(closedRangeEnd, null);
+        final ByteArrayOutputStream liveResult = new ByteArrayOutputStream();
+        liveOutputer.output(liveResult, sources, metricsPerCategory, closedRangeEnd, toTimestamp);
+
+        final ObjectMapper objectMapper = JsonSamplesOutputer.getObjectMapper(outputFormat);
+        final Map<List<String>, ObjectNode> series = new LinkedHashMap<List<String>, ObjectNode>();
+        mergeSeries(objectMapper.readTree(closedResult), outputFormat, series);
+        mergeSeries(objectMapper.readTree(liveResult.toByteArray()), outputFormat, series);
+
+        final JsonGenerator generator = objectMapper.getJsonFactory().createJsonGenerator(outputStream);
+        generator.writeStartArray();
+        for (final ObjectNode oneSeries : series.values()) {
+            objectMapper.writeTree(generator, oneSeries);
+        }
+        generator.writeEndArray();
+
+        generator.flush();
+        generator.close();
+    }
+
+    // Merge the objects of a usage result into the series, keyed by source, category and metric (objects are in time order)
+    private void mergeSeries(final JsonNode result, final OutputFormat outputFormat, final Map<List<String>, ObjectNode> series) throws IOException {
+        if (!result.isArray()) {
+            throw new IOException("Invalid usage result");
+        }
+
+        for (final JsonNode node : result) {
+            final List<String> key = ImmutableList.<String>of(node.get("sourceName").asText(), node.get("eventCategory").asText(), node.get("metric").asText());
+            final ObjectNode previous = series.get(key);
+            if (previous == null) {
+                series.put(key, (ObjectNode) node);
+            } else if (outputFormat.isColumnar()) {
+                // Times are delta-encoded, the first time of each object being absolute
+                final ArrayNode times = (ArrayNode) previous.get("times");
+                int lastTime = 0;
+                for (final JsonNode time : times) {
+                    lastTime += time.asInt();
+                }
+                boolean first = true;
+                for (final JsonNode time : node.get("times")) {
+                    times.add(first ? time.asInt() - lastTime : time.asInt());
+                    first = false;
+                }
+                ((ArrayNode) previous.get("values")).addAll((ArrayNode) node.get("values"));
+            } else {
+                previous.put("samples", previous.get("samples").asText() + "," + node.get("samples").asText());
+            }
+        }
+    }
+
+    private JsonSamplesOutputer createOutputer(final OutputFormat outputFormat, @Nullable final TimeAggregationMode timeAggregationMode,
+                                               final AggregationFunction aggregationFunction, final DateTimeZone timeZone, final TenantContext context) {
+        if (timeAggregationMode == null) {
+            return new DefaultJsonSamplesOutputer(outputFormat, timelineEventHandler, timelineDao, context);
+        } else {
+            return new AccumulatingJsonSamplesOutputer(outputFormat, timeAggregationMode, aggregationFunction, timeZone, timelineEventHandler, timelineDao, context);
+        }
+    }
+
+    @Override
+    public void exportTimelineChunks(final OutputStream outputStream, final List<String> sources, final Map<String, Collection<String>> metricsPerCategory,
+                                     final DateTime fromTimestamp, final DateTime toTimestamp, final TenantContext context) throws IOException {
+        final TimelineChunksExporter exporter = new TimelineChunksExporter(timelineEventHandler, timelineDao, context);
+        metrics.getQueries().increment();
+        final long startNanos = System.nanoTime();
+        try {
+            exporter.export(outputStream, sources, metricsPerCategory, fromTimestamp, toTimestamp);
+        } finally {
+            metrics.getQueryLatency().recordSince(startNanos);
+        }
+    }
+
+    private Map<String, Collection<String>> withAggregateMetrics(final Collection<String> categories, final Map<String, Collection<String>> metricsPerCategory) {
+        final Map<String, Collection<String>> allMetricsPerCategory = new HashMap<String, Collection<String>>();
+        for (final Map.Entry<String, Collection<String>> entry : metricsPerCategory.entrySet()) {
+            allMetricsPerCategory.put(entry.getKey(), new ArrayList<String>(entry.getValue()));
+        }
+        for (final String category : categories) {
+            if (allMetricsPerCategory.get(category) == null) {
+                allMetricsPerCategory.put(category, new ArrayList<String>());
+            }
+            allMetricsPerCategory.get(category).add(AGGREGATE_METRIC_NAME);
+        }
+        return allMetricsPerCategory;
+    }
+
+    private Map<String, Collection<String>> toAggregateMetricsPerCategory(final Collection<String> categories) {
         final ImmutableMap.Builder<String, Collection<String>> metricsPerCategory = new Builder<String, Collection<String>>();
         for (final String category : categories) {
             metricsPerCategory.put(category, ImmutableList.<String>of(AGGREGATE_METRIC_NAME));
         }
-
-        getUsage(outputStream, source, metricsPerCategory.build(), fromTimestamp, toTimestamp, context);
+        return metricsPerCategory.build();
     }
 
-    @Override
-    public void getUsage(final OutputStream outputStream, final String source, final Map<String, Collection<String>> metricsPerCategory,
-                         final DateTime fromTimestamp, final DateTime toTimestamp, final TenantContext context) throws IOException {
-        final JsonSamplesOutputer outputerJson = new DefaultJsonSamplesOutputer(timelineEventHandler, timelineDao, context);
-        outputerJson.output(outputStream, ImmutableList.<String>of(source), metricsPerCategory, fromTimestamp, toTimestamp);
+    private void output(final JsonSamplesOutputer outputerJson, final OutputStream outputStream, final List<String> sources,
+                        final Map<String, Collection<String>> metricsPerCategory, final DateTime fromTimestamp, final DateTime toTimestamp) throws IOException {
+        metrics.getQueries().increment();
+        final long startNanos = System.nanoTime();
+        try {
+            outputerJson.output(outputStream, sources, metricsPerCategory, fromTimestamp, toTimestamp);
+        } finally {
+            metrics.getQueryLatency().recordSince(startNanos);
+        }
     }
 
     @Override
     public void incrementUsage(final String source, final String categoryName, final String metricName,
                                final DateTime timestamp, final CallContext context) {
+        if (sampleForwarder.isRemote(context.getTenantId(), source)) {
+            forwardIncrements(source, categoryName, ImmutableList.<String>of(metricName), timestamp, context);
+            return;
+        }
+        if (counterPreAggregator.isEnabled()) {
+            counterPreAggregator.increment(source, categoryName, ImmutableList.<String>of(metricName), timestamp, context);
+            return;
+        }
         recordUsage(source,
                     ImmutableMap.<String, Map<String, Object>>of(categoryName, ImmutableMap.<String, Object>of(metricName, (short) 1)),
                     timestamp,
@@ -109,6 +332,14 @@ public class DefaultMeterUserApi implements MeterUserApi {
     @Override
     public void incrementUsageAndAggregate(final String source, final String categoryName, final String metricName,
                                            final DateTime timestamp, final CallContext context) {
+        if (sampleForwarder.isRemote(context.getTenantId(), source)) {
+            forwardIncrements(source, categoryName, ImmutableList.<String>of(metricName, AGGREGATE_METRIC_NAME), timestamp, context);
+            return;
+        }
+        if (counterPreAggregator.isEnabled()) {
+            counterPreAggregator.increment(source, categoryName, ImmutableList.<String>of(metricName, AGGREGATE_METRIC_NAME), timestamp, context);
+            return;
+        }
         recordUsage(source,
                     ImmutableMap.<String, Map<String, Object>>of(categoryName, ImmutableMap.<String, Object>of(metricName, (short) 1, AGGREGATE_METRIC_NAME, (short) 1)),
                     timestamp,
@@ -118,8 +349,22 @@ public class DefaultMeterUserApi implements MeterUserApi {
     @Override
     public void recordUsage(final String source, final Map<String, Map<String, Object>> samplesForCategoriesAndMetrics,
                             final DateTime timestamp, final CallContext context) {
+        if (sampleForwarder.isRemote(context.getTenantId(), source)) {
+            for (final String category : samplesForCategoriesAndMetrics.keySet()) {
+                sampleForwarder.forward(new ForwardedSamples(context.getTenantId(), context.getUserName(), source, category, timestamp.getMillis(),
+                                                             samplesForCategoriesAndMetrics.get(category), null));
+            }
+            return;
+        }
         for (final String category : samplesForCategoriesAndMetrics.keySet()) {
             timelineEventHandler.record(source, category, timestamp, samplesForCategoriesAndMetrics.get(category), context);
         }
     }
+
+    // Another node of the cluster owns that source: let it pre-aggregate the increments, if enabled
+    private void forwardIncrements(final String source, final String categoryName, final List<String> metricNames,
+                                   final DateTime timestamp, final CallContext context) {
+        sampleForwarder.forward(new ForwardedSamples(context.getTenantId(), context.getUserName(), source, categoryName, timestamp.getMillis(),
+                                                     null, metricNames));
+    }
 }
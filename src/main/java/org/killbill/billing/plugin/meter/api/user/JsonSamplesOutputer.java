@@ -24,63 +24,98 @@ import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.atomic.AtomicReference;
 
 import javax.annotation.Nullable;
 
 import org.joda.time.DateTime;
+import org.killbill.billing.plugin.meter.api.OutputFormat;
 import org.killbill.billing.plugin.meter.timeline.TimelineEventHandler;
 import org.killbill.billing.plugin.meter.timeline.chunks.TimelineChunk;
 import org.killbill.billing.plugin.meter.timeline.codec.DefaultSampleCoder;
 import org.killbill.billing.plugin.meter.timeline.codec.SampleCoder;
-import org.killbill.billing.plugin.meter.timeline.consumer.TimelineChunkConsumer;
+import org.killbill.billing.plugin.meter.timeline.consumer.CSVSampleProcessor;
+import org.killbill.billing.plugin.meter.timeline.consumer.ColumnarSampleProcessor;
+import org.killbill.billing.plugin.meter.timeline.consumer.MergingTimelineChunkConsumer;
+import org.killbill.billing.plugin.meter.timeline.consumer.TimeRangeSampleProcessor;
+import org.killbill.billing.plugin.meter.timeline.consumer.TimelineSeriesConsumer;
+import org.killbill.billing.plugin.meter.timeline.metrics.SamplesForMetricAndSource;
 import org.killbill.billing.plugin.meter.timeline.persistent.TimelineDao;
 import org.killbill.billing.util.callcontext.TenantContext;
 
 import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.google.common.base.Strings;
 
 public abstract class JsonSamplesOutputer {
 
     protected static final ObjectMapper objectMapper = new ObjectMapper();
+    protected static final ObjectMapper smileObjectMapper = new ObjectMapper(new SmileFactory());
 
     protected final TimelineEventHandler timelineEventHandler;
     protected final TimelineDao timelineDao;
     protected final SampleCoder sampleCoder;
     protected final TenantContext context;
+    protected final OutputFormat outputFormat;
+
+    // Optional time range (inclusive) of the samples to output, see setSamplesTimeRange
+    protected DateTime samplesStartTime;
+    protected DateTime samplesEndTime;
 
     public JsonSamplesOutputer(final TimelineEventHandler timelineEventHandler, final TimelineDao timelineDao, final TenantContext context) {
+        this(OutputFormat.JSON, timelineEventHandler, timelineDao, context);
+    }
+
+    public JsonSamplesOutputer(final OutputFormat outputFormat, final TimelineEventHandler timelineEventHandler, final TimelineDao timelineDao, final TenantContext context) {
+        this.outputFormat = outputFormat;
         this.timelineEventHandler = timelineEventHandler;
         this.timelineDao = timelineDao;
         this.sampleCoder = new DefaultSampleCoder();
         this.context = context;
     }
 
-    protected abstract void writeJsonForChunks(final JsonGenerator generator, final Collection<? extends TimelineChunk> chunksForSourceAndMetric) throws IOException;
+    /**
+     * Called before the first chunk of each (source, metric) series. Chunks of a series are always written
+     * in time order, between a startSeries and an endSeries call.
+     */
+    protected void startSeries(final JsonGenerator generator, final int sourceId, final int metricId) throws IOException {
+        // No-op
+    }
+
+    protected abstract void writeJsonForChunk(final JsonGenerator generator, final TimelineChunk chunk) throws IOException;
+
+    protected void endSeries(final JsonGenerator generator) throws IOException {
+        // No-op
+    }
+
+    /**
+     * Only output the samples in a given time range. By default, all samples of the chunks overlapping
+     * the queried time range are output.
+     *
+     * @param startTime earliest sample time to output (inclusive), null for no lower bound
+     * @param endTime   latest sample time to output (inclusive), null for no upper bound
+     */
+    void setSamplesTimeRange(@Nullable final DateTime startTime, @Nullable final DateTime endTime) {
+        this.samplesStartTime = startTime;
+        this.samplesEndTime = endTime;
+    }
 
     public void output(final OutputStream output, final List<String> sources, final Map<String, Collection<String>> metricsPerCategory,
                        final DateTime startTime, final DateTime endTime) throws IOException {
         // Retrieve the source and metric ids
-        final List<Integer> sourceIds = translateSourcesToSourceIds(sources);
-        final List<Integer> metricIds = translateCategoriesAndMetricNamesToMetricIds(metricsPerCategory);
+        final List<Integer> sourceIds = translateSourcesToSourceIds(timelineDao, sources, context);
+        final List<Integer> metricIds = translateCategoriesAndMetricNamesToMetricIds(timelineDao, metricsPerCategory, context);
         output(output, sourceIds, metricIds, startTime, endTime);
     }
 
     protected void output(final OutputStream output, final List<Integer> sourceIds, final List<Integer> metricIds,
                           final DateTime startTime, final DateTime endTime) throws IOException {
-        // Setup Jackson
-        final JsonGenerator generator = objectMapper.getJsonFactory().createJsonGenerator(output);
+        final JsonGenerator generator = createGenerator(output);
 
         generator.writeStartArray();
 
-        // First, return all data stored in the database
-        writeJsonForStoredChunks(generator, sourceIds, metricIds, startTime, endTime);
-
-        // Now return all data in memory
-        writeJsonForInMemoryChunks(generator, sourceIds, metricIds, startTime, endTime);
-
-        // Allow implementers to flush their buffers
-        writeRemainingData(generator);
+        // Stream all data stored in the database, merging the in-memory data for each series along the way
+        writeJsonForStoredAndInMemoryChunks(generator, sourceIds, metricIds, startTime, endTime);
 
         generator.writeEndArray();
 
@@ -88,11 +123,48 @@ public abstract class JsonSamplesOutputer {
         generator.close();
     }
 
-    protected void writeRemainingData(final JsonGenerator generator) throws IOException {
-        // No-op
+    private JsonGenerator createGenerator(final OutputStream output) throws IOException {
+        return getObjectMapper(outputFormat).getJsonFactory().createJsonGenerator(output);
+    }
+
+    static ObjectMapper getObjectMapper(final OutputFormat outputFormat) {
+        return outputFormat.isSmile() ? smileObjectMapper : objectMapper;
+    }
+
+    /**
+     * @return the sample processor terminating the decoding pipeline, for the requested layout
+     */
+    protected TimeRangeSampleProcessor createSampleProcessor() {
+        return outputFormat.isColumnar() ? new ColumnarSampleProcessor(samplesStartTime, samplesEndTime) : new CSVSampleProcessor(samplesStartTime, samplesEndTime);
     }
 
-    private List<Integer> translateSourcesToSourceIds(final List<String> sources) {
+    /**
+     * Write (and reset) the samples accumulated by a processor created by createSampleProcessor()
+     */
+    protected void writeSamples(final JsonGenerator generator, final String source, final String eventCategory, final String metric,
+                                final TimeRangeSampleProcessor sampleProcessor) throws IOException {
+        if (sampleProcessor instanceof ColumnarSampleProcessor) {
+            final ColumnarSampleProcessor columnarSampleProcessor = (ColumnarSampleProcessor) sampleProcessor;
+            // Don't write out empty samples
+            if (columnarSampleProcessor.getSampleCount() > 0) {
+                generator.writeStartObject();
+                generator.writeStringField("sourceName", source);
+                generator.writeStringField("eventCategory", eventCategory);
+                generator.writeStringField("metric", metric);
+                columnarSampleProcessor.writeColumns(generator);
+                generator.writeEndObject();
+            }
+        } else {
+            // This will flush (clear) the sample processor
+            final String samples = sampleProcessor.toString();
+            // Don't write out empty samples
+            if (!Strings.isNullOrEmpty(samples)) {
+                generator.writeObject(new SamplesForMetricAndSource(source, eventCategory, metric, samples));
+            }
+        }
+    }
+
+    static List<Integer> translateSourcesToSourceIds(final TimelineDao timelineDao, final List<String> sources, final TenantContext context) {
         final List<Integer> hostIds = new ArrayList<Integer>(sources.size());
         for (final String source : sources) {
             final Integer sourceId = timelineDao.getSourceId(source, context);
@@ -107,7 +179,8 @@ public abstract class JsonSamplesOutputer {
         return hostIds;
     }
 
-    private List<Integer> translateCategoriesAndMetricNamesToMetricIds(final Map<String, Collection<String>> metricsPerCategory) {
+    static List<Integer> translateCategoriesAndMetricNamesToMetricIds(final TimelineDao timelineDao, final Map<String, Collection<String>> metricsPerCategory,
+                                                                      final TenantContext context) {
         final List<Integer> metricIds = new ArrayList<Integer>(metricsPerCategory.keySet().size());
         for (final String category : metricsPerCategory.keySet()) {
             final Integer categoryId = timelineDao.getEventCategoryId(category, context);
@@ -130,52 +203,38 @@ public abstract class JsonSamplesOutputer {
         return metricIds;
     }
 
-    private void writeJsonForStoredChunks(final JsonGenerator generator, final List<Integer> hostIdsList, final List<Integer> sampleKindIdsList,
-                                          final DateTime startTime, final DateTime endTime) throws IOException {
-        final AtomicReference<Integer> lastHostId = new AtomicReference<Integer>(null);
-        final AtomicReference<Integer> lastSampleKindId = new AtomicReference<Integer>(null);
-        final List<TimelineChunk> chunksForHostAndSampleKind = new ArrayList<TimelineChunk>();
-
-        timelineDao.getSamplesBySourceIdsAndMetricIds(hostIdsList, sampleKindIdsList, startTime, endTime, new TimelineChunkConsumer() {
+    private void writeJsonForStoredAndInMemoryChunks(final JsonGenerator generator, final List<Integer> sourceIds, final List<Integer> metricIds,
+                                                     @Nullable final DateTime startTime, @Nullable final DateTime endTime) throws IOException {
+        final TimelineSeriesConsumer seriesConsumer = new TimelineSeriesConsumer() {
             @Override
-            public void processTimelineChunk(final TimelineChunk chunks) {
-                final Integer previousHostId = lastHostId.get();
-                final Integer previousSampleKindId = lastSampleKindId.get();
-                final Integer currentHostId = chunks.getSourceId();
-                final Integer currentSampleKindId = chunks.getMetricId();
-
-                chunksForHostAndSampleKind.add(chunks);
-                if (previousHostId != null && (!previousHostId.equals(currentHostId) || !previousSampleKindId.equals(currentSampleKindId))) {
-                    try {
-                        writeJsonForChunks(generator, chunksForHostAndSampleKind);
-                    } catch (IOException e) {
-                        throw new RuntimeException(e);
-                    }
-                    chunksForHostAndSampleKind.clear();
-                }
-
-                lastHostId.set(currentHostId);
-                lastSampleKindId.set(currentSampleKindId);
+            public void startSeries(final int sourceId, final int metricId) throws IOException {
+                JsonSamplesOutputer.this.startSeries(generator, sourceId, metricId);
             }
-        }, context);
 
-        if (chunksForHostAndSampleKind.size() > 0) {
-            writeJsonForChunks(generator, chunksForHostAndSampleKind);
-            chunksForHostAndSampleKind.clear();
-        }
-    }
+            @Override
+            public void processTimelineChunk(final TimelineChunk chunk) throws IOException {
+                writeJsonForChunk(generator, chunk);
+            }
 
-    private void writeJsonForInMemoryChunks(final JsonGenerator generator, final List<Integer> hostIdsList, final List<Integer> sampleKindIdsList,
-                                            @Nullable final DateTime startTime, @Nullable final DateTime endTime) throws IOException {
+            @Override
+            public void endSeries() throws IOException {
+                JsonSamplesOutputer.this.endSeries(generator);
+            }
+        };
 
-        for (final Integer hostId : hostIdsList) {
-            final Collection<? extends TimelineChunk> inMemorySamples;
-            try {
-                inMemorySamples = timelineEventHandler.getInMemoryTimelineChunks(hostId, sampleKindIdsList, startTime, endTime, context);
-            } catch (ExecutionException e) {
-                throw new IOException(e);
+        final MergingTimelineChunkConsumer consumer = new MergingTimelineChunkConsumer(sourceIds, seriesConsumer) {
+            @Override
+            protected Collection<? extends TimelineChunk> getInMemoryTimelineChunks(final int sourceId) throws IOException {
+                try {
+                    return timelineEventHandler.getInMemoryTimelineChunks(sourceId, metricIds, startTime, endTime, context);
+                } catch (ExecutionException e) {
+                    throw new IOException(e);
+                }
             }
-            writeJsonForChunks(generator, inMemorySamples);
-        }
+        };
+
+        // Single cursor over all sources and metrics, ordered by source, metric and start time
+        timelineDao.getSamplesBySourceIdsAndMetricIds(sourceIds, metricIds, startTime, endTime, consumer, context);
+        consumer.finish();
     }
 }
@@ -20,12 +20,16 @@ package org.killbill.billing.plugin.meter.api.user;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 
 import javax.annotation.Nullable;
 
 import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.killbill.billing.plugin.meter.api.AggregationFunction;
 import org.killbill.billing.plugin.meter.api.DecimationMode;
+import org.killbill.billing.plugin.meter.api.OutputFormat;
 import org.killbill.billing.plugin.meter.api.TimeAggregationMode;
 import org.killbill.billing.util.callcontext.CallContext;
 import org.killbill.billing.util.callcontext.TenantContext;
@@ -113,6 +117,67 @@ public interface MeterUserApi {
     void getUsage(OutputStream outputStream, String source, Map<String, Collection<String>> metricsPerCategory,
                   DateTime fromTimestamp, DateTime toTimestamp, TenantContext context) throws IOException;
 
+    /**
+     * Get usage data for several sources at once, as Json or Smile (see OutputFormat for the supported layouts).
+     * <p/>
+     * All series are streamed from a single database cursor, ordered by source and metric, with in-memory
+     * data merged per series: memory usage doesn't depend on the size of the result.
+     *
+     * @param outputStream        stream to write the data to
+     * @param outputFormat        encoding and layout of the samples
+     * @param timeAggregationMode granularity of the accumulator, null to return raw samples
+     * @param aggregationFunction function applied to the samples of each bucket (ignored for raw samples)
+     * @param timeZone            time zone for the boundaries of the accumulator buckets (e.g. local days or months)
+     * @param sources             sources
+     * @param categories          categories to return the aggregates for
+     * @param metricsPerCategory  mapping of metrics per category
+     * @param fromTimestamp       earliest timestamp to consider (inclusive)
+     * @param toTimestamp         latest timestamp to consider (inclusive)
+     * @param context             call context
+     * @throws IOException generic I/O exception
+     */
+    void getUsage(OutputStream outputStream, OutputFormat outputFormat, @Nullable TimeAggregationMode timeAggregationMode,
+                  AggregationFunction aggregationFunction, DateTimeZone timeZone,
+                  List<String> sources, Collection<String> categories, Map<String, Collection<String>> metricsPerCategory,
+                  DateTime fromTimestamp, DateTime toTimestamp, TenantContext context) throws IOException;
+
+    /**
+     * Get raw usage data for several sources at once, using a decimating filter to bound the number of samples per series.
+     * <p/>
+     * Use this to draw charts over long time ranges: at most outputCount samples are returned for each (source, metric) series.
+     *
+     * @param outputStream       stream to write the data to
+     * @param outputFormat       encoding and layout of the samples
+     * @param decimationMode     decimation mode for the decimating filter
+     * @param outputCount        number of data points the decimating filter should output per series, null to return all samples
+     * @param sources            sources
+     * @param categories         categories to return the aggregates for
+     * @param metricsPerCategory mapping of metrics per category
+     * @param fromTimestamp      earliest timestamp to consider (inclusive)
+     * @param toTimestamp        latest timestamp to consider (inclusive)
+     * @param context            call context
+     * @throws IOException generic I/O exception
+     */
+    void getUsage(OutputStream outputStream, OutputFormat outputFormat, DecimationMode decimationMode, @Nullable Integer outputCount,
+                  List<String> sources, Collection<String> categories, Map<String, Collection<String>> metricsPerCategory,
+                  DateTime fromTimestamp, DateTime toTimestamp, TenantContext context) throws IOException;
+
+    /**
+     * Export the raw (encoded) timeline chunks, without decoding them server side.
+     * <p/>
+     * See TimelineChunksFrameWriter for the binary format and TimelineChunksFrameReader for a decoder.
+     *
+     * @param outputStream       stream to write the data to
+     * @param sources            sources
+     * @param metricsPerCategory mapping of metrics per category
+     * @param fromTimestamp      earliest timestamp to consider (inclusive)
+     * @param toTimestamp        latest timestamp to consider (inclusive)
+     * @param context            call context
+     * @throws IOException generic I/O exception
+     */
+    void exportTimelineChunks(OutputStream outputStream, List<String> sources, Map<String, Collection<String>> metricsPerCategory,
+                              DateTime fromTimestamp, DateTime toTimestamp, TenantContext context) throws IOException;
+
     /**
      * Shortcut API to record a usage value of "1" for a given category and metric.
      *
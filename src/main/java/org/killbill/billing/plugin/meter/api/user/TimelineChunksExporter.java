@@ -0,0 +1,94 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.api.user;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+
+import javax.annotation.Nullable;
+
+import org.joda.time.DateTime;
+import org.killbill.billing.plugin.meter.timeline.TimelineEventHandler;
+import org.killbill.billing.plugin.meter.timeline.chunks.TimelineChunk;
+import org.killbill.billing.plugin.meter.timeline.chunks.TimelineChunksFrameWriter;
+import org.killbill.billing.plugin.meter.timeline.consumer.MergingTimelineChunkConsumer;
+import org.killbill.billing.plugin.meter.timeline.consumer.TimelineSeriesConsumer;
+import org.killbill.billing.plugin.meter.timeline.persistent.TimelineDao;
+import org.killbill.billing.util.callcontext.TenantContext;
+
+/**
+ * Streams the stored (and in-memory) chunks as is, without decoding them, using TimelineChunksFrameWriter
+ */
+public class TimelineChunksExporter {
+
+    private final TimelineEventHandler timelineEventHandler;
+    private final TimelineDao timelineDao;
+    private final TenantContext context;
+
+    public TimelineChunksExporter(final TimelineEventHandler timelineEventHandler, final TimelineDao timelineDao, final TenantContext context) {
+        this.timelineEventHandler = timelineEventHandler;
+        this.timelineDao = timelineDao;
+        this.context = context;
+    }
+
+    public void export(final OutputStream output, final List<String> sources, final Map<String, Collection<String>> metricsPerCategory,
+                       @Nullable final DateTime startTime, @Nullable final DateTime endTime) throws IOException {
+        final List<Integer> sourceIds = JsonSamplesOutputer.translateSourcesToSourceIds(timelineDao, sources, context);
+        final List<Integer> metricIds = JsonSamplesOutputer.translateCategoriesAndMetricNamesToMetricIds(timelineDao, metricsPerCategory, context);
+
+        final TimelineChunksFrameWriter writer = new TimelineChunksFrameWriter(new BufferedOutputStream(output));
+        writer.writeHeader();
+
+        final TimelineSeriesConsumer seriesConsumer = new TimelineSeriesConsumer() {
+            @Override
+            public void startSeries(final int sourceId, final int metricId) throws IOException {
+                // No-op
+            }
+
+            @Override
+            public void processTimelineChunk(final TimelineChunk chunk) throws IOException {
+                writer.writeChunk(chunk);
+            }
+
+            @Override
+            public void endSeries() throws IOException {
+                // No-op
+            }
+        };
+
+        final MergingTimelineChunkConsumer consumer = new MergingTimelineChunkConsumer(sourceIds, seriesConsumer) {
+            @Override
+            protected Collection<? extends TimelineChunk> getInMemoryTimelineChunks(final int sourceId) throws IOException {
+                try {
+                    return timelineEventHandler.getInMemoryTimelineChunks(sourceId, metricIds, startTime, endTime, context);
+                } catch (ExecutionException e) {
+                    throw new IOException(e);
+                }
+            }
+        };
+        timelineDao.getSamplesBySourceIdsAndMetricIds(sourceIds, metricIds, startTime, endTime, consumer, context);
+        consumer.finish();
+
+        writer.writeTrailer();
+    }
+}
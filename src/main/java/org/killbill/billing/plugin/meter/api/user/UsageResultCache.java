@@ -0,0 +1,330 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.api.user;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.killbill.billing.plugin.meter.MeterConfig;
+import org.killbill.billing.plugin.meter.api.AggregationFunction;
+import org.killbill.billing.plugin.meter.api.OutputFormat;
+import org.killbill.billing.plugin.meter.api.TimeAggregationMode;
+import org.killbill.billing.plugin.meter.timeline.ChunkLengthPolicy;
+import org.killbill.billing.plugin.meter.timeline.consumer.EpochTimeBuckets;
+
+import com.google.common.base.Objects;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.Weigher;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+/**
+ * Bounded cache of usage query results (encoded Json or Smile documents) over closed time ranges.
+ * <p/>
+ * Samples older than the closed range end (see getClosedRangeEnd) have all been flushed to the database and
+ * don't change anymore: the aggregator only rewrites them into equivalent chunks. Results over these ranges can
+ * be reused until they expire, to bound the effect of samples recorded late (with timestamps in the past).
+ * <p/>
+ * The cache is weighted by the size in bytes of the results. Results bigger than a sixteenth of the
+ * cache size are never cached.
+ */
+@Singleton
+public class UsageResultCache {
+
+    // Rough size of a key and of the cache entry
+    private static final int ENTRY_OVERHEAD_BYTES = 256;
+
+    private final Cache<Key, byte[]> cache;
+    private final long maxEntryBytes;
+    private final long liveDataDelayMillis;
+    private final AtomicLong weightBytes = new AtomicLong();
+
+    @Inject
+    public UsageResultCache(final MeterConfig config) {
+        this.maxEntryBytes = config.getUsageCacheMaxBytes() / 16;
+        // Pre-aggregated counter samples are recorded at the latest a tick length after their timestamp (the start of their tick).
+        // In-memory samples are flushed at the latest a max chunk length (the timeline length, unless chunks can be extended)
+        // after the start of their chunk, and written to the database by the background writer at the latest a check interval
+        // after the max delay
+        this.liveDataDelayMillis = config.getCounterTickLength().getMillis() +
+                                   ChunkLengthPolicy.fromConfig(config, config.getTimelineLength().getMillis()).getMaxLengthMillis() +
+                                   config.getBackgroundWriteMaxDelay().getMillis() +
+                                   config.getBackgroundWriteCheckInterval().getMillis();
+
+        if (config.getUsageCacheMaxBytes() <= 0) {
+            this.cache = null;
+        } else {
+            this.cache = CacheBuilder.newBuilder()
+                                     .maximumWeight(config.getUsageCacheMaxBytes())
+                                     .weigher(new Weigher<Key, byte[]>() {
+                                         @Override
+                                         public int weigh(final Key key, final byte[] value) {
+                                             return value.length + ENTRY_OVERHEAD_BYTES;
+                                         }
+                                     })
+                                     .removalListener(new RemovalListener<Key, byte[]>() {
+                                         @Override
+                                         public void onRemoval(final RemovalNotification<Key, byte[]> notification) {
+                                             weightBytes.addAndGet(-(notification.getValue().length + ENTRY_OVERHEAD_BYTES));
+                                         }
+                                     })
+                                     .expireAfterWrite(config.getUsageCacheExpiration().getMillis(), TimeUnit.MILLISECONDS)
+                                     .recordStats()
+                                     .build();
+        }
+    }
+
+    public boolean isEnabled() {
+        return cache != null;
+    }
+
+    /**
+     * Compute the end of the closed range: all samples strictly before it are stored in the database.
+     * <p/>
+     * The end is aligned on a bucket boundary (at least an hour), so that no bucket spans both the closed
+     * and the live ranges and so that the same closed range (and cached result) is used for a while.
+     *
+     * @param timeAggregationMode granularity of the query buckets, null for raw samples
+     * @param timeZone            time zone of the query buckets
+     * @param now                 current time
+     * @return end (exclusive) of the closed range
+     */
+    public DateTime getClosedRangeEnd(@Nullable final TimeAggregationMode timeAggregationMode, final DateTimeZone timeZone, final DateTime now) {
+        return getBucketStart(timeAggregationMode, timeZone, new DateTime(now.getMillis() - liveDataDelayMillis, DateTimeZone.UTC));
+    }
+
+    /**
+     * Align a time on the boundaries used for the closed ranges, e.g. to make a default query start stable
+     * (and its result cacheable) for a while.
+     *
+     * @param timeAggregationMode granularity of the query buckets, null for raw samples
+     * @param timeZone            time zone of the query buckets
+     * @param time                time to align
+     * @return start of the bucket (at least an hour) containing time
+     */
+    public static DateTime getBucketStart(@Nullable final TimeAggregationMode timeAggregationMode, final DateTimeZone timeZone, final DateTime time) {
+        final TimeAggregationMode alignment = timeAggregationMode == null || timeAggregationMode.compareTo(TimeAggregationMode.HOURS) < 0 ?
+                                              TimeAggregationMode.HOURS : timeAggregationMode;
+        final long epochSeconds = time.getMillis() / 1000L;
+        return new DateTime(EpochTimeBuckets.forZone(timeZone).bucketStart(alignment, epochSeconds) * 1000L, DateTimeZone.UTC);
+    }
+
+    @Nullable
+    public byte[] getIfPresent(final Key key) {
+        return cache == null ? null : cache.getIfPresent(key);
+    }
+
+    public void put(final Key key, final byte[] result) {
+        if (cache == null || result.length > maxEntryBytes) {
+            return;
+        }
+        weightBytes.addAndGet(result.length + ENTRY_OVERHEAD_BYTES);
+        cache.put(key, result);
+    }
+
+    /**
+     * @param delegate stream to write through, null to only buffer the bytes
+     * @return a stream buffering what is written to the delegate, up to the max size of a cache entry
+     */
+    public CachingOutputStream createCachingOutputStream(@Nullable final OutputStream delegate) {
+        return new CachingOutputStream(delegate, maxEntryBytes);
+    }
+
+    public void invalidateAll() {
+        if (cache != null) {
+            cache.invalidateAll();
+        }
+    }
+
+    public Map<String, Object> getStats() {
+        final Map<String, Object> stats = new LinkedHashMap<String, Object>();
+        final CacheStats cacheStats = cache == null ? new CacheStats(0, 0, 0, 0, 0, 0) : cache.stats();
+        stats.put("enabled", isEnabled());
+        stats.put("hitCount", cacheStats.hitCount());
+        stats.put("missCount", cacheStats.missCount());
+        stats.put("hitRate", cacheStats.hitRate());
+        stats.put("evictionCount", cacheStats.evictionCount());
+        stats.put("entries", cache == null ? 0L : cache.size());
+        stats.put("weightBytes", weightBytes.get());
+        return stats;
+    }
+
+    /**
+     * Identifies a query result. Categories and metrics are normalized, as they don't affect the output order.
+     */
+    public static final class Key {
+
+        private final UUID tenantId;
+        private final OutputFormat outputFormat;
+        private final TimeAggregationMode timeAggregationMode;
+        private final AggregationFunction aggregationFunction;
+        private final DateTimeZone timeZone;
+        private final List<String> sources;
+        private final SortedMap<String, List<String>> metricsPerCategory;
+        private final DateTime fromTimestamp;
+        private final DateTime toTimestamp;
+        private final DateTime samplesEndTime;
+
+        public Key(@Nullable final UUID tenantId, final OutputFormat outputFormat, @Nullable final TimeAggregationMode timeAggregationMode,
+                   final AggregationFunction aggregationFunction, final DateTimeZone timeZone, final List<String> sources,
+                   final Map<String, Collection<String>> metricsPerCategory, @Nullable final DateTime fromTimestamp,
+                   @Nullable final DateTime toTimestamp, @Nullable final DateTime samplesEndTime) {
+            this.tenantId = tenantId;
+            this.outputFormat = outputFormat;
+            this.timeAggregationMode = timeAggregationMode;
+            this.aggregationFunction = aggregationFunction;
+            this.timeZone = timeZone;
+            this.sources = new ArrayList<String>(sources);
+            this.metricsPerCategory = new TreeMap<String, List<String>>();
+            for (final Map.Entry<String, Collection<String>> entry : metricsPerCategory.entrySet()) {
+                final List<String> metrics = new ArrayList<String>(entry.getValue());
+                Collections.sort(metrics);
+                this.metricsPerCategory.put(entry.getKey(), metrics);
+            }
+            // Compare instants, whatever their chronology
+            this.fromTimestamp = fromTimestamp == null ? null : fromTimestamp.toDateTime(DateTimeZone.UTC);
+            this.toTimestamp = toTimestamp == null ? null : toTimestamp.toDateTime(DateTimeZone.UTC);
+            this.samplesEndTime = samplesEndTime == null ? null : samplesEndTime.toDateTime(DateTimeZone.UTC);
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+
+            final Key key = (Key) o;
+            return Objects.equal(tenantId, key.tenantId) &&
+                   outputFormat == key.outputFormat &&
+                   timeAggregationMode == key.timeAggregationMode &&
+                   aggregationFunction == key.aggregationFunction &&
+                   Objects.equal(timeZone, key.timeZone) &&
+                   Objects.equal(sources, key.sources) &&
+                   Objects.equal(metricsPerCategory, key.metricsPerCategory) &&
+                   Objects.equal(fromTimestamp, key.fromTimestamp) &&
+                   Objects.equal(toTimestamp, key.toTimestamp) &&
+                   Objects.equal(samplesEndTime, key.samplesEndTime);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(tenantId, outputFormat, timeAggregationMode, aggregationFunction, timeZone, sources, metricsPerCategory,
+                                    fromTimestamp, toTimestamp, samplesEndTime);
+        }
+    }
+
+    /**
+     * Writes through to a delegate stream, while keeping a copy of the bytes written as long as they fit in a cache entry.
+     * Without delegate, the bytes are only buffered and ResultTooLargeException is thrown when they don't fit.
+     */
+    public static final class CachingOutputStream extends OutputStream {
+
+        private final OutputStream delegate;
+        private final long maxBytes;
+        private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+        private CachingOutputStream(@Nullable final OutputStream delegate, final long maxBytes) {
+            this.delegate = delegate;
+            this.maxBytes = maxBytes;
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            if (delegate != null) {
+                delegate.write(b);
+            }
+            if (buffer != null) {
+                buffer.write(b);
+                checkSize();
+            }
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            if (delegate != null) {
+                delegate.write(b, off, len);
+            }
+            if (buffer != null) {
+                buffer.write(b, off, len);
+                checkSize();
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (delegate != null) {
+                delegate.flush();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (delegate != null) {
+                delegate.close();
+            }
+        }
+
+        /**
+         * @return all bytes written, null if they didn't fit
+         */
+        @Nullable
+        public byte[] getBytes() {
+            return buffer == null ? null : buffer.toByteArray();
+        }
+
+        private void checkSize() throws ResultTooLargeException {
+            if (buffer.size() > maxBytes) {
+                // Too big to be cached
+                buffer = null;
+                if (delegate == null) {
+                    throw new ResultTooLargeException();
+                }
+            }
+        }
+    }
+
+    public static final class ResultTooLargeException extends IOException {
+
+        private ResultTooLargeException() {
+            super("Usage result too large to be cached");
+        }
+    }
+}
@@ -19,6 +19,8 @@ package org.killbill.billing.plugin.meter.glue;
 
 import javax.inject.Provider;
 
+import org.killbill.billing.plugin.meter.MeterConfig;
+import org.killbill.billing.plugin.meter.timeline.chunks.TimelineChunkCache;
 import org.killbill.billing.plugin.meter.timeline.persistent.CachingTimelineDao;
 import org.killbill.billing.plugin.meter.timeline.persistent.DefaultTimelineDao;
 import org.killbill.billing.plugin.meter.timeline.persistent.TimelineDao;
@@ -29,15 +31,19 @@ import com.google.inject.Inject;
 public class CachingDefaultTimelineDaoProvider implements Provider<TimelineDao> {
 
     private final IDBI dbi;
+    private final MeterConfig config;
+    private final TimelineChunkCache chunkCache;
 
     @Inject
-    public CachingDefaultTimelineDaoProvider(final IDBI dbi) {
+    public CachingDefaultTimelineDaoProvider(final IDBI dbi, final MeterConfig config, final TimelineChunkCache chunkCache) {
         this.dbi = dbi;
+        this.config = config;
+        this.chunkCache = chunkCache;
     }
 
     @Override
     public TimelineDao get() {
-        final TimelineDao delegate = new DefaultTimelineDao(dbi);
+        final TimelineDao delegate = new DefaultTimelineDao(dbi, config.getQueryFetchSize(), chunkCache, config.getCompressionThreshold());
 
         return new CachingTimelineDao(delegate);
     }
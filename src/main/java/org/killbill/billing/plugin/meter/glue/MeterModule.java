@@ -25,13 +25,26 @@ import org.killbill.billing.plugin.meter.MeterConfig;
 import org.killbill.billing.plugin.meter.MeterService;
 import org.killbill.billing.plugin.meter.api.user.DefaultMeterUserApi;
 import org.killbill.billing.plugin.meter.api.user.MeterUserApi;
+import org.killbill.billing.plugin.meter.api.user.UsageResultCache;
+import org.killbill.billing.plugin.meter.monitoring.MeterMetrics;
+import org.killbill.billing.plugin.meter.monitoring.MeterMetricsExporter;
+import org.killbill.billing.plugin.meter.timeline.CounterPreAggregator;
 import org.killbill.billing.plugin.meter.timeline.TimelineEventHandler;
+import org.killbill.billing.plugin.meter.timeline.aggregator.AggregationLeaseManager;
+import org.killbill.billing.plugin.meter.timeline.chunks.TimelineChunkCache;
+import org.killbill.billing.plugin.meter.timeline.cluster.ClusterMembership;
+import org.killbill.billing.plugin.meter.timeline.cluster.SampleForwarder;
 import org.killbill.billing.plugin.meter.timeline.codec.DefaultSampleCoder;
+import org.killbill.billing.plugin.meter.timeline.codec.GorillaSampleCoder;
 import org.killbill.billing.plugin.meter.timeline.codec.SampleCoder;
+import org.killbill.billing.plugin.meter.timeline.partitions.TimelinePartitionManager;
 import org.killbill.billing.plugin.meter.timeline.persistent.FileBackedBuffer;
 import org.killbill.billing.plugin.meter.timeline.persistent.TimelineDao;
+import org.killbill.billing.plugin.meter.timeline.retention.TimelineRetentionManager;
 import org.killbill.billing.plugin.meter.timeline.times.DefaultTimelineCoder;
 import org.killbill.billing.plugin.meter.timeline.times.TimelineCoder;
+import org.killbill.clock.Clock;
+import org.killbill.clock.DefaultClock;
 import org.killbill.commons.jdbi.argument.DateTimeArgumentFactory;
 import org.killbill.commons.jdbi.argument.DateTimeZoneArgumentFactory;
 import org.killbill.commons.jdbi.argument.UUIDArgumentFactory;
@@ -65,9 +78,17 @@ public class MeterModule extends AbstractModule {
         return config;
     }
 
+    protected void installClock() {
+        bind(Clock.class).to(DefaultClock.class).asEagerSingleton();
+    }
+
     protected void configureDao() {
         bind(IDBI.class).toInstance(getDBI());
+        bind(TimelineChunkCache.class).asEagerSingleton();
         bind(TimelineDao.class).toProvider(CachingDefaultTimelineDaoProvider.class).asEagerSingleton();
+        bind(TimelinePartitionManager.class).asEagerSingleton();
+        bind(TimelineRetentionManager.class).asEagerSingleton();
+        bind(AggregationLeaseManager.class).asEagerSingleton();
     }
 
     @VisibleForTesting
@@ -79,9 +100,13 @@ public class MeterModule extends AbstractModule {
         return dbi;
     }
 
-    protected void configureTimelineObjects() {
+    protected void configureTimelineObjects(final MeterConfig config) {
         bind(TimelineCoder.class).to(DefaultTimelineCoder.class).asEagerSingleton();
-        bind(SampleCoder.class).to(DefaultSampleCoder.class).asEagerSingleton();
+        if ("gorilla".equals(config.getSampleEncoding())) {
+            bind(SampleCoder.class).to(GorillaSampleCoder.class).asEagerSingleton();
+        } else {
+            bind(SampleCoder.class).to(DefaultSampleCoder.class).asEagerSingleton();
+        }
     }
 
     protected void configureFileBackedBuffer(final MeterConfig config) {
@@ -96,6 +121,7 @@ public class MeterModule extends AbstractModule {
     }
 
     protected void installMeterUserApi() {
+        bind(UsageResultCache.class).asEagerSingleton();
         bind(MeterUserApi.class).to(DefaultMeterUserApi.class).asEagerSingleton();
     }
 
@@ -104,19 +130,29 @@ public class MeterModule extends AbstractModule {
         bind(MeterService.class).asEagerSingleton();
     }
 
+    protected void installMetrics() {
+        bind(MeterMetrics.class).asEagerSingleton();
+        bind(MeterMetricsExporter.class).asEagerSingleton();
+    }
+
     protected void installTimelineEventHandler() {
         bind(TimelineEventHandler.class).asEagerSingleton();
+        bind(CounterPreAggregator.class).asEagerSingleton();
+        bind(ClusterMembership.class).asEagerSingleton();
+        bind(SampleForwarder.class).asEagerSingleton();
     }
 
     @Override
     protected void configure() {
         final MeterConfig config = installConfig();
 
+        installClock();
+        installMetrics();
         installMeterService();
         installTimelineEventHandler();
         configureFileBackedBuffer(config);
         configureDao();
-        configureTimelineObjects();
+        configureTimelineObjects(config);
 
         installMeterUserApi();
     }
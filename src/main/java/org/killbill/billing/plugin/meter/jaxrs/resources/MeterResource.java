@@ -18,7 +18,9 @@
 package org.killbill.billing.plugin.meter.jaxrs.resources;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
@@ -26,6 +28,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 
+import javax.annotation.Nullable;
 import javax.servlet.ServletRequest;
 import javax.servlet.http.HttpServletRequest;
 import javax.ws.rs.Consumes;
@@ -38,17 +41,27 @@ import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
 import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.StreamingOutput;
 
 import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
 import org.joda.time.format.DateTimeFormatter;
 import org.joda.time.format.ISODateTimeFormat;
 import org.killbill.billing.plugin.meter.MeterCallContext;
+import org.killbill.billing.plugin.meter.MeterConfig;
 import org.killbill.billing.plugin.meter.MeterTenantContext;
+import org.killbill.billing.plugin.meter.api.AggregationFunction;
+import org.killbill.billing.plugin.meter.api.DecimationMode;
+import org.killbill.billing.plugin.meter.api.OutputFormat;
 import org.killbill.billing.plugin.meter.api.TimeAggregationMode;
 import org.killbill.billing.plugin.meter.api.user.MeterUserApi;
+import org.killbill.billing.plugin.meter.api.user.UsageResultCache;
+import org.killbill.billing.plugin.meter.monitoring.MeterMetricsExporter;
+import org.killbill.billing.plugin.meter.timeline.cluster.ForwardedSamples;
+import org.killbill.billing.plugin.meter.timeline.cluster.SampleForwarder;
 import org.killbill.billing.tenant.api.Tenant;
 import org.killbill.billing.util.callcontext.CallContext;
 import org.killbill.billing.util.callcontext.CallOrigin;
@@ -56,8 +69,14 @@ import org.killbill.billing.util.callcontext.TenantContext;
 import org.killbill.billing.util.callcontext.UserType;
 import org.killbill.clock.Clock;
 
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Charsets;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 
@@ -66,6 +85,11 @@ import com.google.inject.Singleton;
 public class MeterResource {
 
     public static final String METER_PATH = "/1.0/kb/plugins/meter";
+    public static final String METRICS = "metrics";
+    public static final String EXPORT = "export";
+    public static final String APPLICATION_SMILE = "application/x-jackson-smile";
+    public static final MediaType APPLICATION_SMILE_TYPE = new MediaType("application", "x-jackson-smile");
+    public static final String LAYOUT_COLUMNAR = "columnar";
 
     private static final String HDR_CREATED_BY = "X-Killbill-CreatedBy";
     private static final String HDR_REASON = "X-Killbill-Reason";
@@ -74,72 +98,280 @@ public class MeterResource {
     private static final String QUERY_METER_WITH_CATEGORY_AGGREGATE = "withCategoryAggregate";
     private static final String QUERY_METER_TIME_AGGREGATION_MODE = "timeAggregationMode";
     private static final String QUERY_METER_TIMESTAMP = "timestamp";
+    private static final String QUERY_METER_SOURCE = "source";
     private static final String QUERY_METER_FROM = "from";
     private static final String QUERY_METER_TO = "to";
     private static final String QUERY_METER_CATEGORY = "category";
     private static final String QUERY_METER_CATEGORY_AND_METRIC = "category_and_metric";
+    private static final String QUERY_METER_LAYOUT = "layout";
+    private static final String QUERY_METER_TIME_ZONE = "tz";
+    private static final String QUERY_METER_AGGREGATION_FUNCTION = "aggregationFunction";
+    private static final String QUERY_METER_OUTPUT_COUNT = "outputCount";
+    private static final String QUERY_METER_DECIMATION_MODE = "decimationMode";
+
+    private static final ObjectMapper objectMapper = new ObjectMapper();
 
     private final DateTimeFormatter DATE_TIME_FORMATTER = ISODateTimeFormat.dateTimeParser();
 
     private final MeterUserApi meterApi;
+    private final MeterMetricsExporter metricsExporter;
+    private final SampleForwarder sampleForwarder;
+    private final MeterConfig config;
     private final Clock clock;
 
     @Inject
     public MeterResource(final MeterUserApi meterApi,
+                         final MeterMetricsExporter metricsExporter,
+                         final SampleForwarder sampleForwarder,
+                         final MeterConfig config,
                          final Clock clock) {
         this.meterApi = meterApi;
+        this.metricsExporter = metricsExporter;
+        this.sampleForwarder = sampleForwarder;
+        this.config = config;
         this.clock = clock;
     }
 
     @GET
-    @Path("/{source:" + STRING_PATTERN + "}")
+    @Path("/" + METRICS)
     @Produces(MediaType.APPLICATION_JSON)
-    public StreamingOutput getUsage(@PathParam("source") final String source,
-                                    // Aggregates per category
-                                    @QueryParam(QUERY_METER_CATEGORY) final List<String> categories,
-                                    // Format: category,metric
-                                    @QueryParam(QUERY_METER_CATEGORY_AND_METRIC) final List<String> categoriesAndMetrics,
-                                    @QueryParam(QUERY_METER_FROM) final String fromTimestampString,
-                                    @QueryParam(QUERY_METER_TO) final String toTimestampString,
-                                    @QueryParam(QUERY_METER_TIME_AGGREGATION_MODE) @DefaultValue("") final String timeAggregationModeString,
-                                    @javax.ws.rs.core.Context final HttpServletRequest request) {
+    public StreamingOutput getMetrics() {
+        return new StreamingOutput() {
+            @Override
+            public void write(final OutputStream output) throws IOException, WebApplicationException {
+                objectMapper.writeValue(output, metricsExporter.snapshot());
+            }
+        };
+    }
+
+    @GET
+    @Path("/{source:" + STRING_PATTERN + "}")
+    @Produces({MediaType.APPLICATION_JSON, APPLICATION_SMILE})
+    public Response getUsage(@PathParam("source") final String source,
+                             // Aggregates per category
+                             @QueryParam(QUERY_METER_CATEGORY) final List<String> categories,
+                             // Format: category,metric
+                             @QueryParam(QUERY_METER_CATEGORY_AND_METRIC) final List<String> categoriesAndMetrics,
+                             @QueryParam(QUERY_METER_FROM) final String fromTimestampString,
+                             @QueryParam(QUERY_METER_TO) final String toTimestampString,
+                             @QueryParam(QUERY_METER_TIME_AGGREGATION_MODE) @DefaultValue("") final String timeAggregationModeString,
+                             @QueryParam(QUERY_METER_LAYOUT) @DefaultValue("") final String layout,
+                             // Time zone id (e.g. America/Los_Angeles) for the time aggregation buckets, UTC by default
+                             @QueryParam(QUERY_METER_TIME_ZONE) @DefaultValue("") final String timeZoneString,
+                             // Function applied to the samples of each time bucket (e.g. MAX or P95), SUM by default
+                             @QueryParam(QUERY_METER_AGGREGATION_FUNCTION) @DefaultValue("") final String aggregationFunctionString,
+                             // Maximum number of samples per series, for raw samples only (e.g. to draw a chart)
+                             @QueryParam(QUERY_METER_OUTPUT_COUNT) @DefaultValue("") final String outputCountString,
+                             // Decimation mode when outputCount is set (LTTB, PEAK_PICK or AVERAGE), LTTB by default
+                             @QueryParam(QUERY_METER_DECIMATION_MODE) @DefaultValue("") final String decimationModeString,
+                             @javax.ws.rs.core.Context final HttpHeaders headers,
+                             @javax.ws.rs.core.Context final HttpServletRequest request) {
         final TenantContext tenantContext = createContext(request);
+        final TimeAggregationMode timeAggregationMode = Strings.isNullOrEmpty(timeAggregationModeString) ? null : TimeAggregationMode.valueOf(timeAggregationModeString);
+        final DateTimeZone timeZone = parseTimeZone(timeZoneString);
+        final DateTime fromTimestamp = parseFromTimestamp(fromTimestampString, timeAggregationMode, timeZone);
+        final DateTime toTimestamp = parseToTimestamp(toTimestampString);
 
-        final DateTime fromTimestamp;
-        if (fromTimestampString != null) {
-            fromTimestamp = DATE_TIME_FORMATTER.parseDateTime(fromTimestampString);
+        // Same path as the multi-source query, so that all parameters (time zone, layout, etc.) are honored
+        final List<String> categoriesToAggregate;
+        final Map<String, Collection<String>> metricsPerCategory;
+        if (categories != null && categories.size() > 0) {
+            categoriesToAggregate = categories;
+            metricsPerCategory = ImmutableMap.<String, Collection<String>>of();
         } else {
-            fromTimestamp = clock.getUTCNow().minusMonths(3);
+            categoriesToAggregate = ImmutableList.<String>of();
+            metricsPerCategory = retrieveMetricsPerCategory(categoriesAndMetrics);
         }
-        final DateTime toTimestamp;
-        if (toTimestampString != null) {
-            toTimestamp = DATE_TIME_FORMATTER.parseDateTime(toTimestampString);
-        } else {
-            toTimestamp = clock.getUTCNow();
+        return buildUsageResponse(getOutputFormat(headers, layout), timeAggregationMode, parseAggregationFunction(aggregationFunctionString), timeZone,
+                                  parseOutputCount(outputCountString), parseDecimationMode(decimationModeString), ImmutableList.<String>of(source),
+                                  categoriesToAggregate, metricsPerCategory, fromTimestamp, toTimestamp, tenantContext);
+    }
+
+    @GET
+    @Produces({MediaType.APPLICATION_JSON, APPLICATION_SMILE})
+    public Response getUsageForSources(@QueryParam(QUERY_METER_SOURCE) final List<String> sources,
+                                       // Aggregates per category
+                                       @QueryParam(QUERY_METER_CATEGORY) final List<String> categories,
+                                       // Format: category,metric
+                                       @QueryParam(QUERY_METER_CATEGORY_AND_METRIC) final List<String> categoriesAndMetrics,
+                                       @QueryParam(QUERY_METER_FROM) final String fromTimestampString,
+                                       @QueryParam(QUERY_METER_TO) final String toTimestampString,
+                                       @QueryParam(QUERY_METER_TIME_AGGREGATION_MODE) @DefaultValue("") final String timeAggregationModeString,
+                                       @QueryParam(QUERY_METER_LAYOUT) @DefaultValue("") final String layout,
+                                       // Time zone id (e.g. America/Los_Angeles) for the time aggregation buckets, UTC by default
+                                       @QueryParam(QUERY_METER_TIME_ZONE) @DefaultValue("") final String timeZoneString,
+                                       // Function applied to the samples of each time bucket (e.g. MAX or P95), SUM by default
+                                       @QueryParam(QUERY_METER_AGGREGATION_FUNCTION) @DefaultValue("") final String aggregationFunctionString,
+                                       // Maximum number of samples per series, for raw samples only (e.g. to draw a chart)
+                                       @QueryParam(QUERY_METER_OUTPUT_COUNT) @DefaultValue("") final String outputCountString,
+                                       // Decimation mode when outputCount is set (LTTB, PEAK_PICK or AVERAGE), LTTB by default
+                                       @QueryParam(QUERY_METER_DECIMATION_MODE) @DefaultValue("") final String decimationModeString,
+                                       @javax.ws.rs.core.Context final HttpHeaders headers,
+                                       @javax.ws.rs.core.Context final HttpServletRequest request) {
+        if (sources == null || sources.isEmpty()) {
+            throw new WebApplicationException(Response.Status.BAD_REQUEST);
         }
 
+        final TenantContext tenantContext = createContext(request);
+        final TimeAggregationMode timeAggregationMode = Strings.isNullOrEmpty(timeAggregationModeString) ? null : TimeAggregationMode.valueOf(timeAggregationModeString);
+        final DateTimeZone timeZone = parseTimeZone(timeZoneString);
+        final DateTime fromTimestamp = parseFromTimestamp(fromTimestampString, timeAggregationMode, timeZone);
+        final DateTime toTimestamp = parseToTimestamp(toTimestampString);
+        final List<String> categoriesToAggregate = categories == null ? ImmutableList.<String>of() : categories;
+        final Map<String, Collection<String>> metricsPerCategory = retrieveMetricsPerCategory(categoriesAndMetrics == null ? ImmutableList.<String>of() : categoriesAndMetrics);
+
+        return buildUsageResponse(getOutputFormat(headers, layout), timeAggregationMode, parseAggregationFunction(aggregationFunctionString),
+                                  timeZone, parseOutputCount(outputCountString), parseDecimationMode(decimationModeString),
+                                  sources, categoriesToAggregate, metricsPerCategory, fromTimestamp, toTimestamp, tenantContext);
+    }
+
+    @GET
+    @Path("/" + EXPORT)
+    @Produces(MediaType.APPLICATION_OCTET_STREAM)
+    public StreamingOutput exportTimelineChunks(@QueryParam(QUERY_METER_SOURCE) final List<String> sources,
+                                                // Format: category,metric
+                                                @QueryParam(QUERY_METER_CATEGORY_AND_METRIC) final List<String> categoriesAndMetrics,
+                                                @QueryParam(QUERY_METER_FROM) final String fromTimestampString,
+                                                @QueryParam(QUERY_METER_TO) final String toTimestampString,
+                                                @javax.ws.rs.core.Context final HttpServletRequest request) {
+        if (sources == null || sources.isEmpty()) {
+            throw new WebApplicationException(Response.Status.BAD_REQUEST);
+        }
+
+        final TenantContext tenantContext = createContext(request);
+        final DateTime fromTimestamp = parseFromTimestamp(fromTimestampString, null, DateTimeZone.UTC);
+        final DateTime toTimestamp = parseToTimestamp(toTimestampString);
+        final Map<String, Collection<String>> metricsPerCategory = retrieveMetricsPerCategory(categoriesAndMetrics == null ? ImmutableList.<String>of() : categoriesAndMetrics);
+
         return new StreamingOutput() {
             @Override
             public void write(final OutputStream output) throws IOException, WebApplicationException {
-                // Look at aggregates per category?
-                if (categories != null && categories.size() > 0) {
-                    if (Strings.isNullOrEmpty(timeAggregationModeString)) {
-                        meterApi.getUsage(output, source, categories, fromTimestamp, toTimestamp, tenantContext);
-                    } else {
-                        final TimeAggregationMode timeAggregationMode = TimeAggregationMode.valueOf(timeAggregationModeString);
-                        meterApi.getUsage(output, timeAggregationMode, source, categories, fromTimestamp, toTimestamp, tenantContext);
-                    }
+                meterApi.exportTimelineChunks(output, sources, metricsPerCategory, fromTimestamp, toTimestamp, tenantContext);
+            }
+        };
+    }
+
+    private Response buildUsageResponse(final OutputFormat outputFormat, @Nullable final TimeAggregationMode timeAggregationMode,
+                                        final AggregationFunction aggregationFunction, final DateTimeZone timeZone,
+                                        @Nullable final Integer outputCount, final DecimationMode decimationMode, final List<String> sources,
+                                        final List<String> categories, final Map<String, Collection<String>> metricsPerCategory,
+                                        final DateTime fromTimestamp, final DateTime toTimestamp, final TenantContext tenantContext) {
+        if (outputCount != null && timeAggregationMode != null) {
+            // Decimation only applies to raw samples
+            throw new WebApplicationException(Response.Status.BAD_REQUEST);
+        }
+
+        final StreamingOutput streamingOutput = new StreamingOutput() {
+            @Override
+            public void write(final OutputStream output) throws IOException, WebApplicationException {
+                if (outputCount != null) {
+                    meterApi.getUsage(output, outputFormat, decimationMode, outputCount, sources, categories, metricsPerCategory, fromTimestamp, toTimestamp, tenantContext);
                 } else {
-                    final Map<String, Collection<String>> metricsPerCategory = retrieveMetricsPerCategory(categoriesAndMetrics);
-                    if (Strings.isNullOrEmpty(timeAggregationModeString)) {
-                        meterApi.getUsage(output, source, metricsPerCategory, fromTimestamp, toTimestamp, tenantContext);
-                    } else {
-                        final TimeAggregationMode timeAggregationMode = TimeAggregationMode.valueOf(timeAggregationModeString);
-                        meterApi.getUsage(output, timeAggregationMode, source, metricsPerCategory, fromTimestamp, toTimestamp, tenantContext);
-                    }
+                    meterApi.getUsage(output, outputFormat, timeAggregationMode, aggregationFunction, timeZone, sources, categories, metricsPerCategory, fromTimestamp, toTimestamp, tenantContext);
                 }
             }
         };
+        return Response.ok(streamingOutput, outputFormat.isSmile() ? APPLICATION_SMILE_TYPE : MediaType.APPLICATION_JSON_TYPE).build();
+    }
+
+    private OutputFormat getOutputFormat(final HttpHeaders headers, final String layout) {
+        return getOutputFormat(headers.getAcceptableMediaTypes(), layout);
+    }
+
+    // Smile if explicitly preferred over Json by the client (Accept header), Json otherwise
+    @VisibleForTesting
+    static OutputFormat getOutputFormat(final List<MediaType> acceptableMediaTypes, final String layout) {
+        boolean smile = false;
+        for (final MediaType mediaType : acceptableMediaTypes) {
+            if (APPLICATION_SMILE_TYPE.getType().equals(mediaType.getType()) && APPLICATION_SMILE_TYPE.getSubtype().equals(mediaType.getSubtype())) {
+                smile = true;
+                break;
+            } else if (mediaType.isCompatible(MediaType.APPLICATION_JSON_TYPE)) {
+                break;
+            }
+        }
+
+        final boolean columnar;
+        if (Strings.isNullOrEmpty(layout)) {
+            columnar = false;
+        } else if (LAYOUT_COLUMNAR.equals(layout)) {
+            columnar = true;
+        } else {
+            throw new WebApplicationException(Response.Status.BAD_REQUEST);
+        }
+
+        return OutputFormat.fromLayoutAndEncoding(columnar, smile);
+    }
+
+    private AggregationFunction parseAggregationFunction(final String aggregationFunctionString) {
+        if (Strings.isNullOrEmpty(aggregationFunctionString)) {
+            return AggregationFunction.SUM;
+        }
+
+        try {
+            return AggregationFunction.valueOf(aggregationFunctionString.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new WebApplicationException(Response.Status.BAD_REQUEST);
+        }
+    }
+
+    @Nullable
+    private Integer parseOutputCount(final String outputCountString) {
+        if (Strings.isNullOrEmpty(outputCountString)) {
+            return null;
+        }
+
+        final int outputCount;
+        try {
+            outputCount = Integer.parseInt(outputCountString);
+        } catch (NumberFormatException e) {
+            throw new WebApplicationException(Response.Status.BAD_REQUEST);
+        }
+        if (outputCount <= 0) {
+            throw new WebApplicationException(Response.Status.BAD_REQUEST);
+        }
+        return outputCount;
+    }
+
+    private DecimationMode parseDecimationMode(final String decimationModeString) {
+        if (Strings.isNullOrEmpty(decimationModeString)) {
+            return DecimationMode.LTTB;
+        }
+
+        try {
+            return DecimationMode.valueOf(decimationModeString.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new WebApplicationException(Response.Status.BAD_REQUEST);
+        }
+    }
+
+    private DateTimeZone parseTimeZone(final String timeZoneString) {
+        if (Strings.isNullOrEmpty(timeZoneString)) {
+            return DateTimeZone.UTC;
+        }
+
+        try {
+            return DateTimeZone.forID(timeZoneString);
+        } catch (IllegalArgumentException e) {
+            throw new WebApplicationException(Response.Status.BAD_REQUEST);
+        }
+    }
+
+    private DateTime parseFromTimestamp(final String fromTimestampString, @Nullable final TimeAggregationMode timeAggregationMode, final DateTimeZone timeZone) {
+        if (fromTimestampString != null) {
+            return DATE_TIME_FORMATTER.parseDateTime(fromTimestampString);
+        } else {
+            // Aligned on a bucket boundary, for the result of the query to be cacheable
+            return UsageResultCache.getBucketStart(timeAggregationMode, timeZone, clock.getUTCNow().minusMonths(3));
+        }
+    }
+
+    private DateTime parseToTimestamp(final String toTimestampString) {
+        if (toTimestampString != null) {
+            return DATE_TIME_FORMATTER.parseDateTime(toTimestampString);
+        } else {
+            return clock.getUTCNow();
+        }
     }
 
     private Map<String, Collection<String>> retrieveMetricsPerCategory(final List<String> categoriesAndMetrics) {
@@ -195,6 +427,27 @@ public class MeterResource {
         return Response.ok().build();
     }
 
+    // Internal endpoint, for the samples forwarded by the other nodes of the cluster
+    @POST
+    @Path("/" + SampleForwarder.CLUSTER_SAMPLES)
+    @Consumes(MediaType.APPLICATION_JSON)
+    public Response recordForwardedSamples(@HeaderParam(SampleForwarder.HDR_CLUSTER_SECRET) final String secret,
+                                           final InputStream input) throws IOException {
+        if (!sampleForwarder.isEnabled()) {
+            throw new WebApplicationException(Response.Status.NOT_FOUND);
+        }
+        // Without a configured secret, anybody could record samples for any tenant. Constant time comparison otherwise
+        if (Strings.isNullOrEmpty(config.getClusterSecret()) ||
+            !MessageDigest.isEqual(config.getClusterSecret().getBytes(Charsets.UTF_8), Strings.nullToEmpty(secret).getBytes(Charsets.UTF_8))) {
+            throw new WebApplicationException(Response.Status.FORBIDDEN);
+        }
+
+        final List<ForwardedSamples> forwardedSamples = objectMapper.readValue(input, new TypeReference<List<ForwardedSamples>>() {});
+        sampleForwarder.recordForwardedSamples(forwardedSamples);
+
+        return Response.ok().build();
+    }
+
     private CallContext createContext(final String createdBy, final String reason, final String comment, final ServletRequest request)
             throws IllegalArgumentException {
         try {
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.monitoring;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.google.inject.Singleton;
+
+/**
+ * Registry of the latency histograms and counters maintained on the hot paths of the plugin.
+ * <p/>
+ * Components get their instruments once (typically at construction time) and record into
+ * them directly: no lookups or allocations happen while recording.
+ */
+@Singleton
+public class MeterMetrics {
+
+    public static final String RECORD = "record";
+    public static final String ACCUMULATOR_LOCK_WAIT = "accumulatorLockWait";
+    public static final String CHUNK_FLUSH = "chunkFlush";
+    public static final String DB_WRITE = "dbWrite";
+    public static final String SPOOL_APPEND = "spoolAppend";
+    public static final String QUERY = "query";
+
+    private final Map<String, LatencyHistogram> histograms = new LinkedHashMap<String, LatencyHistogram>();
+    private final Map<String, StripedCounter> counters = new LinkedHashMap<String, StripedCounter>();
+
+    private final LatencyHistogram recordLatency = makeHistogram(RECORD);
+    private final LatencyHistogram accumulatorLockWait = makeHistogram(ACCUMULATOR_LOCK_WAIT);
+    private final LatencyHistogram chunkFlush = makeHistogram(CHUNK_FLUSH);
+    private final LatencyHistogram dbWrite = makeHistogram(DB_WRITE);
+    private final LatencyHistogram spoolAppend = makeHistogram(SPOOL_APPEND);
+    private final LatencyHistogram queryLatency = makeHistogram(QUERY);
+
+    private final StripedCounter samplesRecorded = makeCounter("samplesRecorded");
+    private final StripedCounter chunksFlushed = makeCounter("chunksFlushed");
+    private final StripedCounter chunksWrittenToDb = makeCounter("chunksWrittenToDb");
+    private final StripedCounter queries = makeCounter("queries");
+
+    private LatencyHistogram makeHistogram(final String name) {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        histograms.put(name, histogram);
+        return histogram;
+    }
+
+    private StripedCounter makeCounter(final String name) {
+        final StripedCounter counter = new StripedCounter();
+        counters.put(name, counter);
+        return counter;
+    }
+
+    public Map<String, LatencyHistogram> getHistograms() {
+        return Collections.unmodifiableMap(histograms);
+    }
+
+    public Map<String, StripedCounter> getCounters() {
+        return Collections.unmodifiableMap(counters);
+    }
+
+    public LatencyHistogram getRecordLatency() {
+        return recordLatency;
+    }
+
+    public LatencyHistogram getAccumulatorLockWait() {
+        return accumulatorLockWait;
+    }
+
+    public LatencyHistogram getChunkFlush() {
+        return chunkFlush;
+    }
+
+    public LatencyHistogram getDbWrite() {
+        return dbWrite;
+    }
+
+    public LatencyHistogram getSpoolAppend() {
+        return spoolAppend;
+    }
+
+    public LatencyHistogram getQueryLatency() {
+        return queryLatency;
+    }
+
+    public StripedCounter getSamplesRecorded() {
+        return samplesRecorded;
+    }
+
+    public StripedCounter getChunksFlushed() {
+        return chunksFlushed;
+    }
+
+    public StripedCounter getChunksWrittenToDb() {
+        return chunksWrittenToDb;
+    }
+
+    public StripedCounter getQueries() {
+        return queries;
+    }
+}
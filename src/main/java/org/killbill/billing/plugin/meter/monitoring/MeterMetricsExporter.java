@@ -0,0 +1,273 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.monitoring;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanException;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+import org.killbill.billing.plugin.meter.api.user.UsageResultCache;
+import org.killbill.billing.plugin.meter.timeline.BackgroundDBChunkWriter;
+import org.killbill.billing.plugin.meter.timeline.TimelineEventHandler;
+import org.killbill.billing.plugin.meter.timeline.aggregator.AggregationLeaseManager;
+import org.killbill.billing.plugin.meter.timeline.aggregator.TimelineAggregator;
+import org.killbill.billing.plugin.meter.timeline.chunks.TimelineChunkCache;
+import org.killbill.billing.plugin.meter.timeline.cluster.ClusterMembership;
+import org.killbill.billing.plugin.meter.timeline.cluster.SampleForwarder;
+import org.killbill.billing.plugin.meter.timeline.partitions.TimelinePartitionManager;
+import org.killbill.billing.plugin.meter.timeline.persistent.FileBackedBuffer;
+import org.killbill.billing.plugin.meter.timeline.retention.TimelineRetentionManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+/**
+ * Exposes the plugin counters and latency histograms, both as a JSON-friendly snapshot
+ * (see the metrics endpoint in MeterResource) and as a JMX MBean. Each JMX attribute is
+ * named group.metric, e.g. latencies.record.p99Micros or timelineEventHandler.handledEventCount.
+ */
+@Singleton
+public class MeterMetricsExporter implements DynamicMBean {
+
+    public static final String OBJECT_NAME = "org.killbill.billing.plugin.meter:name=MeterMetrics";
+
+    private static final Logger log = LoggerFactory.getLogger(MeterMetricsExporter.class);
+
+    private final MeterMetrics metrics;
+    private final TimelineEventHandler timelineEventHandler;
+    private final BackgroundDBChunkWriter backgroundWriter;
+    private final TimelineAggregator timelineAggregator;
+    private final AggregationLeaseManager aggregationLeaseManager;
+    private final TimelinePartitionManager partitionManager;
+    private final TimelineRetentionManager retentionManager;
+    private final FileBackedBuffer backingBuffer;
+    private final UsageResultCache usageResultCache;
+    private final TimelineChunkCache chunkCache;
+    private final ClusterMembership clusterMembership;
+    private final SampleForwarder sampleForwarder;
+
+    @Inject
+    public MeterMetricsExporter(final MeterMetrics metrics, final TimelineEventHandler timelineEventHandler,
+                                final BackgroundDBChunkWriter backgroundWriter, final TimelineAggregator timelineAggregator,
+                                final AggregationLeaseManager aggregationLeaseManager,
+                                final TimelinePartitionManager partitionManager, final TimelineRetentionManager retentionManager,
+                                final FileBackedBuffer backingBuffer, final UsageResultCache usageResultCache,
+                                final TimelineChunkCache chunkCache, final ClusterMembership clusterMembership,
+                                final SampleForwarder sampleForwarder) {
+        this.metrics = metrics;
+        this.timelineEventHandler = timelineEventHandler;
+        this.backgroundWriter = backgroundWriter;
+        this.timelineAggregator = timelineAggregator;
+        this.aggregationLeaseManager = aggregationLeaseManager;
+        this.partitionManager = partitionManager;
+        this.retentionManager = retentionManager;
+        this.backingBuffer = backingBuffer;
+        this.usageResultCache = usageResultCache;
+        this.chunkCache = chunkCache;
+        this.clusterMembership = clusterMembership;
+        this.sampleForwarder = sampleForwarder;
+    }
+
+    public Map<String, Map<String, Object>> snapshot() {
+        final Map<String, Map<String, Object>> snapshot = new LinkedHashMap<String, Map<String, Object>>();
+
+        final Map<String, Object> latencies = new LinkedHashMap<String, Object>();
+        for (final Map.Entry<String, LatencyHistogram> entry : metrics.getHistograms().entrySet()) {
+            latencies.put(entry.getKey(), entry.getValue().toMap());
+        }
+        snapshot.put("latencies", latencies);
+
+        final Map<String, Object> counters = new LinkedHashMap<String, Object>();
+        for (final Map.Entry<String, StripedCounter> entry : metrics.getCounters().entrySet()) {
+            counters.put(entry.getKey(), entry.getValue().get());
+        }
+        snapshot.put("counters", counters);
+
+        final Map<String, Object> handler = new LinkedHashMap<String, Object>();
+        handler.put("eventsDiscarded", timelineEventHandler.getEventsDiscarded());
+        handler.put("sourceEventAccumulatorCount", timelineEventHandler.getSourceEventAccumulatorCount());
+        handler.put("eventsReceivedAfterShuttingDown", timelineEventHandler.getEventsReceivedAfterShuttingDown());
+        handler.put("eventsThrottled", timelineEventHandler.getEventsThrottled());
+        handler.put("handledEventCount", timelineEventHandler.getHandledEventCount());
+        handler.put("addedSourceEventAccumulatorMapCount", timelineEventHandler.getAddedSourceEventAccumulatorMapCount());
+        handler.put("addedSourceEventAccumulatorCount", timelineEventHandler.getAddedSourceEventAccumulatorCount());
+        handler.put("getInMemoryChunksCallCount", timelineEventHandler.getGetInMemoryChunksCallCount());
+        handler.put("accumulatorDeepCopyCount", timelineEventHandler.getAccumulatorDeepCopyCount());
+        handler.put("inMemoryChunksReturnedCount", timelineEventHandler.getInMemoryChunksReturnedCount());
+        handler.put("replayCount", timelineEventHandler.getReplayCount());
+        handler.put("replaySamplesFoundCount", timelineEventHandler.getReplaySamplesFoundCount());
+        handler.put("replaySamplesOutsideTimeRangeCount", timelineEventHandler.getReplaySamplesOutsideTimeRangeCount());
+        handler.put("replaySamplesProcessedCount", timelineEventHandler.getReplaySamplesProcessedCount());
+        handler.put("forceCommitCallCount", timelineEventHandler.getForceCommitCallCount());
+        handler.put("purgedAccumsBecauseSourceNotUpdated", timelineEventHandler.getPurgedAccumsBecauseSourceNotUpdated());
+        handler.put("purgedAccumsBecauseCategoryNotUpdated", timelineEventHandler.getPurgedAccumsBecauseCategoryNotUpdated());
+        snapshot.put("timelineEventHandler", handler);
+
+        final Map<String, Object> writer = new LinkedHashMap<String, Object>();
+        writer.put("maybePerformBackgroundWritesCount", backgroundWriter.getMaybePerformBackgroundWritesCount());
+        writer.put("backgroundWritesCount", backgroundWriter.getBackgroundWritesCount());
+        writer.put("pendingChunkMapsAdded", backgroundWriter.getPendingChunkMapsAdded());
+        writer.put("pendingChunksAdded", backgroundWriter.getPendingChunksAdded());
+        writer.put("pendingChunkMapsWritten", backgroundWriter.getPendingChunkMapsWritten());
+        writer.put("pendingChunksWritten", backgroundWriter.getPendingChunksWritten());
+        writer.put("pendingChunkMapsMarkedConsumed", backgroundWriter.getPendingChunkMapsMarkedConsumed());
+        writer.put("foregroundChunkMapsWritten", backgroundWriter.getForegroundChunkMapsWritten());
+        writer.put("foregroundChunksWritten", backgroundWriter.getForegroundChunksWritten());
+        writer.put("tenantThrottledChunkMapsWritten", backgroundWriter.getTenantThrottledChunkMapsWritten());
+        snapshot.put("backgroundDBChunkWriter", writer);
+
+        final Map<String, Object> aggregator = new LinkedHashMap<String, Object>();
+        aggregator.put("aggregationRuns", timelineAggregator.getAggregationRuns());
+        aggregator.put("foundNothingRuns", timelineAggregator.getFoundNothingRuns());
+        aggregator.put("noLeaseRuns", timelineAggregator.getNoLeaseRuns());
+        aggregator.put("leaseLostRuns", timelineAggregator.getLeaseLostRuns());
+        aggregator.putAll(timelineAggregator.getAggregatorCounters());
+        snapshot.put("timelineAggregator", aggregator);
+
+        final Map<String, Object> leases = new LinkedHashMap<String, Object>(aggregationLeaseManager.getLeaseCounters());
+        snapshot.put("aggregationLeaseManager", leases);
+
+        final Map<String, Object> partitions = new LinkedHashMap<String, Object>(partitionManager.getPartitionCounters());
+        snapshot.put("timelinePartitionManager", partitions);
+
+        final Map<String, Object> retention = new LinkedHashMap<String, Object>(retentionManager.getRetentionCounters());
+        snapshot.put("timelineRetentionManager", retention);
+
+        final Map<String, Object> buffer = new LinkedHashMap<String, Object>();
+        buffer.put("bytesOnDisk", backingBuffer.getBytesOnDisk());
+        buffer.put("bytesInMemory", backingBuffer.getBytesInMemory());
+        buffer.put("inMemoryAvailableSpace", backingBuffer.getInMemoryAvailableSpace());
+        snapshot.put("fileBackedBuffer", buffer);
+
+        snapshot.put("usageResultCache", usageResultCache.getStats());
+        snapshot.put("timelineChunkCache", chunkCache.getStats());
+        snapshot.put("clusterMembership", new LinkedHashMap<String, Object>(clusterMembership.getClusterCounters()));
+        snapshot.put("sampleForwarder", new LinkedHashMap<String, Object>(sampleForwarder.getForwarderCounters()));
+
+        return snapshot;
+    }
+
+    public void register() {
+        final MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+        try {
+            final ObjectName objectName = new ObjectName(OBJECT_NAME);
+            // The bundle may have been restarted without a clean shutdown
+            if (mBeanServer.isRegistered(objectName)) {
+                mBeanServer.unregisterMBean(objectName);
+            }
+            mBeanServer.registerMBean(this, objectName);
+        } catch (JMException e) {
+            log.warn("Unable to register the meter metrics MBean", e);
+        }
+    }
+
+    public void unregister() {
+        final MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+        try {
+            final ObjectName objectName = new ObjectName(OBJECT_NAME);
+            if (mBeanServer.isRegistered(objectName)) {
+                mBeanServer.unregisterMBean(objectName);
+            }
+        } catch (JMException e) {
+            log.warn("Unable to unregister the meter metrics MBean", e);
+        }
+    }
+
+    @Override
+    public Object getAttribute(final String attribute) throws AttributeNotFoundException, MBeanException, ReflectionException {
+        final Object value = flatten(snapshot()).get(attribute);
+        if (value == null) {
+            throw new AttributeNotFoundException(attribute);
+        }
+        return value;
+    }
+
+    @Override
+    public void setAttribute(final Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Meter metrics are read-only: " + attribute.getName());
+    }
+
+    @Override
+    public AttributeList getAttributes(final String[] attributes) {
+        final Map<String, Object> values = flatten(snapshot());
+        final AttributeList attributeList = new AttributeList();
+        for (final String attribute : attributes) {
+            final Object value = values.get(attribute);
+            if (value != null) {
+                attributeList.add(new Attribute(attribute, value));
+            }
+        }
+        return attributeList;
+    }
+
+    @Override
+    public AttributeList setAttributes(final AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(final String actionName, final Object[] params, final String[] signature) throws MBeanException, ReflectionException {
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        final List<MBeanAttributeInfo> attributeInfos = new ArrayList<MBeanAttributeInfo>();
+        for (final Map.Entry<String, Object> entry : flatten(snapshot()).entrySet()) {
+            attributeInfos.add(new MBeanAttributeInfo(entry.getKey(), entry.getValue().getClass().getName(), entry.getKey(), true, false, false));
+        }
+        return new MBeanInfo(MeterMetricsExporter.class.getName(),
+                             "Kill Bill meter plugin counters and latencies",
+                             attributeInfos.toArray(new MBeanAttributeInfo[attributeInfos.size()]),
+                             null,
+                             new MBeanOperationInfo[0],
+                             null);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> flatten(final Map<String, ? extends Object> values) {
+        final Map<String, Object> flattened = new LinkedHashMap<String, Object>();
+        for (final Map.Entry<String, ? extends Object> entry : values.entrySet()) {
+            if (entry.getValue() instanceof Map) {
+                for (final Map.Entry<String, Object> nested : flatten((Map<String, Object>) entry.getValue()).entrySet()) {
+                    flattened.put(entry.getKey() + "." + nested.getKey(), nested.getValue());
+                }
+            } else {
+                flattened.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return flattened;
+    }
+}
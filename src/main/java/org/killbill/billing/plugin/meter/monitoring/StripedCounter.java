@@ -0,0 +1,62 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.monitoring;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Low-overhead counter for hot paths. Increments are spread over a small number of
+ * padded cells, selected by thread id, so that concurrent writers don't contend on
+ * the same cache line. Reads sum all the cells and are therefore only approximately
+ * consistent while writes are in flight.
+ */
+public class StripedCounter {
+
+    // Spread the cells 8 longs (64 bytes) apart to avoid false sharing
+    private static final int PADDING = 8;
+    private static final int STRIPES = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors()) * 2 - 1) * 2;
+
+    private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+    public void increment() {
+        add(1L);
+    }
+
+    public void add(final long delta) {
+        cells.addAndGet(cellIndex(), delta);
+    }
+
+    public long get() {
+        long sum = 0;
+        for (int i = 0; i < STRIPES; i++) {
+            sum += cells.get(i * PADDING);
+        }
+        return sum;
+    }
+
+    public void reset() {
+        for (int i = 0; i < STRIPES; i++) {
+            cells.set(i * PADDING, 0L);
+        }
+    }
+
+    private static int cellIndex() {
+        final long threadId = Thread.currentThread().getId();
+        return ((int) (threadId ^ (threadId >>> 32)) & (STRIPES - 1)) * PADDING;
+    }
+}
@@ -18,7 +18,10 @@
 package org.killbill.billing.plugin.meter.timeline;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.UUID;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
@@ -31,6 +34,7 @@ import javax.annotation.Nullable;
 import org.joda.time.DateTime;
 import org.killbill.billing.plugin.meter.MeterCallContext;
 import org.killbill.billing.plugin.meter.MeterConfig;
+import org.killbill.billing.plugin.meter.monitoring.MeterMetrics;
 import org.killbill.billing.plugin.meter.timeline.chunks.TimelineChunk;
 import org.killbill.billing.plugin.meter.timeline.persistent.TimelineDao;
 import org.slf4j.Logger;
@@ -49,6 +53,10 @@ import com.google.inject.Singleton;
  * chunks if there are at least config.getBackgroundWriteBatchSize()
  * TimelineChunks to be written, or if the time since the last write exceeds
  * config.getBackgroundWriteMaxDelay().
+ * <p/>
+ * Each tenant can have at most config.getTenantMaxPendingChunks() TimelineChunks
+ * waiting in the queue: chunks beyond that quota are written right away, by the thread
+ * of the tenant which queued them.
  */
 @Singleton
 public class BackgroundDBChunkWriter {
@@ -58,10 +66,13 @@ public class BackgroundDBChunkWriter {
     private final TimelineDao timelineDAO;
     private final MeterConfig config;
     private final boolean performForegroundWrites;
+    private final MeterMetrics metrics;
 
     private final AtomicInteger pendingChunkCount = new AtomicInteger();
     private final AtomicBoolean shuttingDown = new AtomicBoolean();
     private List<PendingChunkMap> pendingChunks = new ArrayList<PendingChunkMap>();
+    // Number of chunks in pendingChunks for each tenant (null for the internal tenant)
+    private final Map<UUID, Integer> tenantPendingChunkCounts = new HashMap<UUID, Integer>();
     private DateTime lastWriteTime = new DateTime();
     private final AtomicBoolean doingWritesNow = new AtomicBoolean();
     private final ScheduledExecutorService backgroundWriteThread = Executors.newSingleThreadScheduledExecutor();
@@ -75,37 +86,65 @@ public class BackgroundDBChunkWriter {
     private final AtomicLong pendingChunkMapsMarkedConsumed = new AtomicLong();
     private final AtomicLong foregroundChunkMapsWritten = new AtomicLong();
     private final AtomicLong foregroundChunksWritten = new AtomicLong();
+    private final AtomicLong tenantThrottledChunkMapsWritten = new AtomicLong();
 
     @Inject
-    public BackgroundDBChunkWriter(final TimelineDao timelineDAO, final MeterConfig config) {
-        this(timelineDAO, config, config.getPerformForegroundWrites());
+    public BackgroundDBChunkWriter(final TimelineDao timelineDAO, final MeterConfig config, final MeterMetrics metrics) {
+        this(timelineDAO, config, config.getPerformForegroundWrites(), metrics);
     }
 
     public BackgroundDBChunkWriter(final TimelineDao timelineDAO, @Nullable final MeterConfig config,
-                                   final boolean performForegroundWrites) {
+                                   final boolean performForegroundWrites, final MeterMetrics metrics) {
         this.timelineDAO = timelineDAO;
         this.config = config;
         this.performForegroundWrites = performForegroundWrites;
+        this.metrics = metrics;
     }
 
-    public synchronized void addPendingChunkMap(final PendingChunkMap chunkMap) {
+    public void addPendingChunkMap(final PendingChunkMap chunkMap) {
         if (shuttingDown.get()) {
             log.error("In addPendingChunkMap(), but finishBackgroundWritingAndExit is true!");
-        } else {
-            if (performForegroundWrites) {
+            return;
+        }
+
+        if (performForegroundWrites) {
+            synchronized (this) {
                 foregroundChunkMapsWritten.incrementAndGet();
-                final List<TimelineChunk> chunksToWrite = new ArrayList<TimelineChunk>(chunkMap.getChunkMap().values());
-                foregroundChunksWritten.addAndGet(chunksToWrite.size());
-                timelineDAO.bulkInsertTimelineChunks(chunksToWrite, new MeterCallContext());
-                chunkMap.getAccumulator().markPendingChunkMapConsumed(chunkMap.getPendingChunkMapId());
-            } else {
+                foregroundChunksWritten.addAndGet(chunkMap.getChunkCount());
+                writeChunkMap(chunkMap);
+            }
+            return;
+        }
+
+        final int chunkCount = chunkMap.getChunkCount();
+        final UUID tenantId = chunkMap.getAccumulator().getTenantId();
+        synchronized (this) {
+            final Integer tenantPendingCount = tenantPendingChunkCounts.get(tenantId);
+            final int tenantCount = (tenantPendingCount == null ? 0 : tenantPendingCount) + chunkCount;
+            if (!isOverTenantQuota(tenantCount)) {
                 pendingChunkMapsAdded.incrementAndGet();
-                final int chunkCount = chunkMap.getChunkCount();
                 pendingChunksAdded.addAndGet(chunkCount);
                 pendingChunks.add(chunkMap);
                 pendingChunkCount.addAndGet(chunkCount);
+                tenantPendingChunkCounts.put(tenantId, tenantCount);
+                return;
             }
         }
+
+        // The tenant is over its quota: make its own thread pay for the write, outside of the lock,
+        // instead of growing the shared queue (and delaying the writes of the other tenants)
+        tenantThrottledChunkMapsWritten.incrementAndGet();
+        writeChunkMap(chunkMap);
+    }
+
+    private boolean isOverTenantQuota(final int tenantPendingCount) {
+        return config != null && config.getTenantMaxPendingChunks() > 0 && tenantPendingCount > config.getTenantMaxPendingChunks();
+    }
+
+    private void writeChunkMap(final PendingChunkMap chunkMap) {
+        final List<TimelineChunk> chunksToWrite = new ArrayList<TimelineChunk>(chunkMap.getChunkMap().values());
+        writeChunks(chunksToWrite, chunkMap.getAccumulator().getTenantId());
+        chunkMap.getAccumulator().markPendingChunkMapConsumed(chunkMap.getPendingChunkMapId());
     }
 
     private void performBackgroundWrites() {
@@ -115,20 +154,37 @@ public class BackgroundDBChunkWriter {
             chunkMapsToWrite = pendingChunks;
             pendingChunks = new ArrayList<PendingChunkMap>();
             pendingChunkCount.set(0);
+            tenantPendingChunkCounts.clear();
         }
-        final List<TimelineChunk> chunks = new ArrayList<TimelineChunk>();
+        // Chunks are written in the context of their tenant, one batch per tenant
+        final Map<UUID, List<TimelineChunk>> chunksByTenant = new HashMap<UUID, List<TimelineChunk>>();
         for (final PendingChunkMap map : chunkMapsToWrite) {
             pendingChunkMapsWritten.incrementAndGet();
             pendingChunksWritten.addAndGet(map.getChunkMap().size());
+            final UUID tenantId = map.getAccumulator().getTenantId();
+            List<TimelineChunk> chunks = chunksByTenant.get(tenantId);
+            if (chunks == null) {
+                chunks = new ArrayList<TimelineChunk>();
+                chunksByTenant.put(tenantId, chunks);
+            }
             chunks.addAll(map.getChunkMap().values());
         }
-        timelineDAO.bulkInsertTimelineChunks(chunks, new MeterCallContext());
+        for (final Map.Entry<UUID, List<TimelineChunk>> entry : chunksByTenant.entrySet()) {
+            writeChunks(entry.getValue(), entry.getKey());
+        }
         for (final PendingChunkMap map : chunkMapsToWrite) {
             pendingChunkMapsMarkedConsumed.incrementAndGet();
             map.getAccumulator().markPendingChunkMapConsumed(map.getPendingChunkMapId());
         }
     }
 
+    private void writeChunks(final List<TimelineChunk> chunks, @Nullable final UUID tenantId) {
+        final long startNanos = System.nanoTime();
+        timelineDAO.bulkInsertTimelineChunks(chunks, new MeterCallContext(tenantId));
+        metrics.getDbWrite().recordSince(startNanos);
+        metrics.getChunksWrittenToDb().add(chunks.size());
+    }
+
     private void maybePerformBackgroundWrites() {
         // If already running background writes, just return
         maybePerformBackgroundWritesCount.incrementAndGet();
@@ -217,4 +273,8 @@ public class BackgroundDBChunkWriter {
     public long getForegroundChunksWritten() {
         return foregroundChunksWritten.get();
     }
+
+    public long getTenantThrottledChunkMapsWritten() {
+        return tenantThrottledChunkMapsWritten.get();
+    }
 }
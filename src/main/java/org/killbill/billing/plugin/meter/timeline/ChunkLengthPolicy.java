@@ -0,0 +1,104 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.timeline;
+
+import org.killbill.billing.plugin.meter.MeterConfig;
+
+/**
+ * Decides when a TimelineSourceEventAccumulator closes its current chunk.
+ * <p/>
+ * By default, a chunk covers targetLengthMillis (config.getTimelineLength()). On top of that:
+ * <ul>
+ * <li>a chunk is closed early, once it is at least minLengthMillis long, when it reaches
+ * maxSampleCount samples or maxByteCount bytes of encoded samples (sum over its metrics).
+ * This bounds the memory held by the accumulators of fast sources. minLengthMillis is at least
+ * one second: chunk start times are stored in seconds, and two chunks of the same source and metric
+ * starting in the same second would collide on timeline_chunks' unique index.</li>
+ * <li>a chunk with fewer than minSampleCount samples is extended past its target length,
+ * up to maxLengthMillis. This avoids a row per sample for slow sources.</li>
+ * </ul>
+ * Limits set to 0 are disabled, which gives fixed length chunks.
+ */
+public class ChunkLengthPolicy {
+
+    private static final long MIN_EARLY_CLOSE_LENGTH_MILLIS = 1000L;
+
+    private final long targetLengthMillis;
+    private final long minLengthMillis;
+    private final long maxLengthMillis;
+    private final int minSampleCount;
+    private final int maxSampleCount;
+    private final int maxByteCount;
+
+    public ChunkLengthPolicy(final long targetLengthMillis, final long minLengthMillis, final long maxLengthMillis,
+                             final int minSampleCount, final int maxSampleCount, final int maxByteCount) {
+        this.targetLengthMillis = targetLengthMillis;
+        this.minLengthMillis = Math.max(MIN_EARLY_CLOSE_LENGTH_MILLIS, minLengthMillis);
+        // Never shorter than the target length
+        this.maxLengthMillis = Math.max(targetLengthMillis, maxLengthMillis);
+        this.minSampleCount = minSampleCount;
+        this.maxSampleCount = maxSampleCount;
+        this.maxByteCount = maxByteCount;
+    }
+
+    public static ChunkLengthPolicy fixedLength(final long targetLengthMillis) {
+        return new ChunkLengthPolicy(targetLengthMillis, 0, 0, 0, 0, 0);
+    }
+
+    public static ChunkLengthPolicy fromConfig(final MeterConfig config, final long targetLengthMillis) {
+        return new ChunkLengthPolicy(targetLengthMillis, config.getChunkMinLength().getMillis(), config.getChunkMaxLength().getMillis(),
+                                     config.getChunkMinSampleCount(), config.getChunkMaxSampleCount(), config.getChunkMaxByteCount());
+    }
+
+    public long getTargetLengthMillis() {
+        return targetLengthMillis;
+    }
+
+    /**
+     * @return the longest time an accumulator may hold a chunk
+     */
+    public long getMaxLengthMillis() {
+        return maxLengthMillis;
+    }
+
+    public boolean hasMaxByteCount() {
+        return maxByteCount > 0;
+    }
+
+    /**
+     * @param sampleCount  number of samples in the chunk
+     * @param byteCount    size of the encoded samples of the chunk (ignored if !hasMaxByteCount())
+     * @param lengthMillis time between the first and the last sample of the chunk
+     * @return true if the chunk should be closed now, before reaching its end time
+     */
+    public boolean isFull(final int sampleCount, final int byteCount, final long lengthMillis) {
+        if (lengthMillis < minLengthMillis) {
+            return false;
+        }
+        return (maxSampleCount > 0 && sampleCount >= maxSampleCount) || (maxByteCount > 0 && byteCount >= maxByteCount);
+    }
+
+    /**
+     * @param sampleCount  number of samples in the chunk
+     * @param lengthMillis time between the first sample of the chunk and the new sample
+     * @return true if the chunk, past its end time, should still be kept open
+     */
+    public boolean shouldExtend(final int sampleCount, final long lengthMillis) {
+        return sampleCount < minSampleCount && lengthMillis < maxLengthMillis;
+    }
+}
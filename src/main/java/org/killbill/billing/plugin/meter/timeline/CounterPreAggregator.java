@@ -0,0 +1,293 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.timeline;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import javax.annotation.Nullable;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.killbill.billing.plugin.meter.MeterConfig;
+import org.killbill.billing.util.callcontext.CallContext;
+import org.killbill.clock.Clock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Objects;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+/**
+ * This class sums the increments of counter metrics (see MeterUserApi#incrementUsage()) per tenant, source,
+ * category and tick of config.getCounterTickLength(), and records a single sample per metric at the start
+ * of each tick, instead of one sample per increment.
+ * <p/>
+ * Ticks are recorded once over, by a thread scheduled every tick.  As the accumulators ignore samples older
+ * than the ones they already have, late increments, whose tick was already recorded, are added to the oldest
+ * tick not recorded yet, and the ticks are stamped no earlier than the last sample of their accumulator (see
+ * TimelineEventHandler#recordPreAggregated()), e.g. when MeterUserApi#recordUsage() is used for the same category:
+ * totals stay exact.
+ * <p/>
+ * The pending ticks are only kept in memory, they are neither spooled nor replayed: they are recorded on shutdown
+ * (see stopRecordThread()), but the increments of up to config.getCounterTickLength() are lost if the JVM crashes.
+ */
+@Singleton
+public class CounterPreAggregator {
+
+    private static final Logger log = LoggerFactory.getLogger(CounterPreAggregator.class);
+
+    private static final Comparator<Map.Entry<TickKey, Tick>> TICK_START_COMPARATOR = new Comparator<Map.Entry<TickKey, Tick>>() {
+        @Override
+        public int compare(final Map.Entry<TickKey, Tick> o1, final Map.Entry<TickKey, Tick> o2) {
+            return Long.valueOf(o1.getKey().tickStartMillis).compareTo(o2.getKey().tickStartMillis);
+        }
+    };
+
+    private final TimelineEventHandler timelineEventHandler;
+    private final long tickMillis;
+    private final Clock clock;
+
+    private final ConcurrentMap<TickKey, Tick> ticks = new ConcurrentHashMap<TickKey, Tick>();
+    // Increments share the read lock, recordTicks() takes the write lock to remove the ticks to record
+    private final ReadWriteLock ticksLock = new ReentrantReadWriteLock();
+    // Start of the oldest tick not recorded yet (guarded by ticksLock)
+    private long openTicksStartMillis = Long.MIN_VALUE;
+
+    private final ScheduledExecutorService recordThread = Executors.newSingleThreadScheduledExecutor();
+
+    private final AtomicLong incrementsAggregated = new AtomicLong();
+    private final AtomicLong lateIncrements = new AtomicLong();
+    private final AtomicLong ticksRecorded = new AtomicLong();
+
+    @Inject
+    public CounterPreAggregator(final TimelineEventHandler timelineEventHandler, final MeterConfig config, final Clock clock) {
+        this(timelineEventHandler, config.getCounterTickLength().getMillis(), clock);
+    }
+
+    public CounterPreAggregator(final TimelineEventHandler timelineEventHandler, final long tickMillis, final Clock clock) {
+        this.timelineEventHandler = timelineEventHandler;
+        this.tickMillis = tickMillis;
+        this.clock = clock;
+    }
+
+    public boolean isEnabled() {
+        return tickMillis > 0;
+    }
+
+    /**
+     * Add 1 to each metric
+     *
+     * @param sourceName   the source name
+     * @param categoryName the category name
+     * @param metricNames  the metrics to increment
+     * @param timestamp    time of the increment
+     * @param context      the call context, the one of the first increment of the tick is used to record it
+     */
+    public void increment(final String sourceName, final String categoryName, final Collection<String> metricNames,
+                          final DateTime timestamp, final CallContext context) {
+        ticksLock.readLock().lock();
+        try {
+            long tickStartMillis = getTickStartMillis(timestamp.getMillis());
+            if (tickStartMillis < openTicksStartMillis) {
+                lateIncrements.incrementAndGet();
+                tickStartMillis = openTicksStartMillis;
+            }
+
+            final TickKey key = new TickKey(context.getTenantId(), sourceName, categoryName, tickStartMillis);
+            Tick tick = ticks.get(key);
+            if (tick == null) {
+                final Tick newTick = new Tick(context);
+                tick = ticks.putIfAbsent(key, newTick);
+                if (tick == null) {
+                    tick = newTick;
+                }
+            }
+            for (final String metricName : metricNames) {
+                tick.increment(metricName);
+            }
+            incrementsAggregated.incrementAndGet();
+        } finally {
+            ticksLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Record the ticks over at the given time
+     *
+     * @param now the current time
+     */
+    public void recordTicks(final DateTime now) {
+        recordTicksStartingBefore(getTickStartMillis(now.getMillis()));
+    }
+
+    /**
+     * Record all ticks, including the current one, e.g. on shutdown
+     */
+    public void recordAllTicks() {
+        recordTicksStartingBefore(Long.MAX_VALUE);
+    }
+
+    private synchronized void recordTicksStartingBefore(final long millis) {
+        final List<Map.Entry<TickKey, Tick>> ticksToRecord = new ArrayList<Map.Entry<TickKey, Tick>>();
+        ticksLock.writeLock().lock();
+        try {
+            openTicksStartMillis = Math.max(openTicksStartMillis, millis);
+            final Iterator<Map.Entry<TickKey, Tick>> iterator = ticks.entrySet().iterator();
+            while (iterator.hasNext()) {
+                final Map.Entry<TickKey, Tick> entry = iterator.next();
+                if (entry.getKey().tickStartMillis < openTicksStartMillis) {
+                    ticksToRecord.add(entry);
+                    iterator.remove();
+                }
+            }
+        } finally {
+            ticksLock.writeLock().unlock();
+        }
+
+        // The accumulators expect increasing times
+        Collections.sort(ticksToRecord, TICK_START_COMPARATOR);
+        for (final Map.Entry<TickKey, Tick> entry : ticksToRecord) {
+            final TickKey key = entry.getKey();
+            try {
+                timelineEventHandler.recordPreAggregated(key.sourceName, key.categoryName, new DateTime(key.tickStartMillis, DateTimeZone.UTC),
+                                                         entry.getValue().getSums(), entry.getValue().context);
+                ticksRecorded.incrementAndGet();
+            } catch (RuntimeException e) {
+                log.warn(String.format("Unable to record the counters of source %s and category %s", key.sourceName, key.categoryName), e);
+            }
+        }
+    }
+
+    private long getTickStartMillis(final long millis) {
+        final long remainder = millis % tickMillis;
+        return remainder < 0 ? millis - remainder - tickMillis : millis - remainder;
+    }
+
+    public void runRecordThread() {
+        recordThread.scheduleWithFixedDelay(new Runnable() {
+                                                @Override
+                                                public void run() {
+                                                    recordTicks(clock.getUTCNow());
+                                                }
+                                            },
+                                            tickMillis,
+                                            tickMillis,
+                                            TimeUnit.MILLISECONDS
+                                           );
+    }
+
+    public void stopRecordThread() {
+        recordThread.shutdown();
+        recordAllTicks();
+    }
+
+    public long getIncrementsAggregated() {
+        return incrementsAggregated.get();
+    }
+
+    public long getLateIncrements() {
+        return lateIncrements.get();
+    }
+
+    public long getTicksRecorded() {
+        return ticksRecorded.get();
+    }
+
+    private static final class TickKey {
+
+        private final UUID tenantId;
+        private final String sourceName;
+        private final String categoryName;
+        private final long tickStartMillis;
+
+        private TickKey(@Nullable final UUID tenantId, final String sourceName, final String categoryName, final long tickStartMillis) {
+            this.tenantId = tenantId;
+            this.sourceName = sourceName;
+            this.categoryName = categoryName;
+            this.tickStartMillis = tickStartMillis;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+
+            final TickKey other = (TickKey) o;
+            return tickStartMillis == other.tickStartMillis &&
+                   Objects.equal(tenantId, other.tenantId) &&
+                   sourceName.equals(other.sourceName) &&
+                   categoryName.equals(other.categoryName);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(tenantId, sourceName, categoryName, tickStartMillis);
+        }
+    }
+
+    private static final class Tick {
+
+        private final CallContext context;
+        private final ConcurrentMap<String, AtomicLong> sums = new ConcurrentHashMap<String, AtomicLong>();
+
+        private Tick(final CallContext context) {
+            this.context = context;
+        }
+
+        private void increment(final String metricName) {
+            AtomicLong sum = sums.get(metricName);
+            if (sum == null) {
+                final AtomicLong newSum = new AtomicLong();
+                sum = sums.putIfAbsent(metricName, newSum);
+                if (sum == null) {
+                    sum = newSum;
+                }
+            }
+            sum.incrementAndGet();
+        }
+
+        private Map<String, Object> getSums() {
+            final Map<String, Object> values = new HashMap<String, Object>();
+            for (final Map.Entry<String, AtomicLong> entry : sums.entrySet()) {
+                values.put(entry.getKey(), entry.getValue().get());
+            }
+            return values;
+        }
+    }
+}
@@ -26,10 +26,13 @@ import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
@@ -38,6 +41,8 @@ import javax.annotation.Nullable;
 
 import org.joda.time.DateTime;
 import org.killbill.billing.plugin.meter.MeterConfig;
+import org.killbill.billing.plugin.meter.MeterTenantContext;
+import org.killbill.billing.plugin.meter.monitoring.MeterMetrics;
 import org.killbill.billing.plugin.meter.timeline.chunks.TimelineChunk;
 import org.killbill.billing.plugin.meter.timeline.codec.SampleCoder;
 import org.killbill.billing.plugin.meter.timeline.persistent.FileBackedBuffer;
@@ -55,55 +60,56 @@ import org.slf4j.LoggerFactory;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Function;
+import com.google.common.base.Objects;
 import com.google.common.collect.ImmutableList;
 import com.google.inject.Inject;
 
 public class TimelineEventHandler {
 
     private static final Logger log = LoggerFactory.getLogger(TimelineEventHandler.class);
+    // Key for the contexts without a tenant
+    private static final UUID NO_TENANT = new UUID(0L, 0L);
+
     private final ScheduledExecutorService purgeThread = Executors.newSingleThreadScheduledExecutor();
-    private static final Comparator<TimelineChunk> CHUNK_COMPARATOR = new Comparator<TimelineChunk>() {
+
+    /**
+     * Orders chunks by source id, metric id and start time, i.e. the order in which the database returns them
+     */
+    public static final Comparator<TimelineChunk> CHUNK_COMPARATOR = new Comparator<TimelineChunk>() {
 
         @Override
         public int compare(final TimelineChunk o1, final TimelineChunk o2) {
-            final int hostDiff = o1.getSourceId() - o1.getSourceId();
-            if (hostDiff < 0) {
-                return -1;
-            } else if (hostDiff > 0) {
-                return 1;
+            if (o1.getSourceId() != o2.getSourceId()) {
+                return o1.getSourceId() < o2.getSourceId() ? -1 : 1;
+            } else if (o1.getMetricId() != o2.getMetricId()) {
+                return o1.getMetricId() < o2.getMetricId() ? -1 : 1;
             } else {
-                final int metricIdDiff = o1.getMetricId() - o2.getMetricId();
-                if (metricIdDiff < 0) {
-                    return -1;
-                } else if (metricIdDiff > 0) {
-                    return 1;
-                } else {
-                    final long startTimeDiff = o1.getStartTime().getMillis() - o2.getStartTime().getMillis();
-                    if (startTimeDiff < 0) {
-                        return -1;
-                    } else if (startTimeDiff > 0) {
-                        return 1;
-                    } else {
-                        return 0;
-                    }
-                }
+                final int startTime1 = o1.getStartTimeSeconds();
+                final int startTime2 = o2.getStartTimeSeconds();
+                return startTime1 < startTime2 ? -1 : (startTime1 == startTime2 ? 0 : 1);
             }
         }
     };
 
     // A TimelineSourceEventAccumulator records attributes for a specific host and event type.
-    // This cache maps sourceId -> categoryId -> accumulator
+    // This cache maps sourceId -> categoryId -> accumulator. Sources and categories are created per
+    // tenant, so their ids (and the accumulators) are never shared between tenants.
     //
     // TODO: There are still timing windows in the use of accumulators.  Enumerate them and
     // either fix them or prove they are benign
     private final Map<Integer, SourceAccumulatorsAndUpdateDate> accumulators = new ConcurrentHashMap<Integer, SourceAccumulatorsAndUpdateDate>();
 
+    // Bounds the number of threads recording samples for each tenant (see MeterConfig#getTenantMaxConcurrentRecords)
+    private final ConcurrentMap<UUID, Semaphore> tenantRecordPermits = new ConcurrentHashMap<UUID, Semaphore>();
+
     private final MeterConfig config;
     private final TimelineDao timelineDAO;
     private final TimelineCoder timelineCoder;
     private final SampleCoder sampleCoder;
     private final BackgroundDBChunkWriter backgroundWriter;
     private final FileBackedBuffer backingBuffer;
+    private final MeterMetrics metrics;
+    private final ChunkLengthPolicy chunkLengthPolicy;
 
     private final ShutdownSaveMode shutdownSaveMode;
     private final AtomicBoolean shuttingDown = new AtomicBoolean();
@@ -111,6 +117,7 @@ public class TimelineEventHandler {
 
     private final AtomicLong eventsDiscarded = new AtomicLong(0L);
     private final AtomicLong eventsReceivedAfterShuttingDown = new AtomicLong();
+    private final AtomicLong eventsThrottled = new AtomicLong();
     private final AtomicLong handledEventCount = new AtomicLong();
     private final AtomicLong addedSourceEventAccumulatorMapCount = new AtomicLong();
     private final AtomicLong addedSourceEventAccumulatorCount = new AtomicLong();
@@ -126,13 +133,15 @@ public class TimelineEventHandler {
     private final AtomicLong purgedAccumsBecauseCategoryNotUpdated = new AtomicLong();
 
     @Inject
-    public TimelineEventHandler(final MeterConfig config, final TimelineDao timelineDAO, final TimelineCoder timelineCoder, final SampleCoder sampleCoder, final BackgroundDBChunkWriter backgroundWriter, final FileBackedBuffer fileBackedBuffer) {
+    public TimelineEventHandler(final MeterConfig config, final TimelineDao timelineDAO, final TimelineCoder timelineCoder, final SampleCoder sampleCoder, final BackgroundDBChunkWriter backgroundWriter, final FileBackedBuffer fileBackedBuffer, final MeterMetrics metrics) {
         this.config = config;
         this.timelineDAO = timelineDAO;
         this.timelineCoder = timelineCoder;
         this.sampleCoder = sampleCoder;
         this.backgroundWriter = backgroundWriter;
         this.backingBuffer = fileBackedBuffer;
+        this.metrics = metrics;
+        this.chunkLengthPolicy = ChunkLengthPolicy.fromConfig(config, config.getTimelineLength().getMillis());
         this.shutdownSaveMode = ShutdownSaveMode.fromString(config.getShutdownSaveMode());
     }
 
@@ -208,10 +217,38 @@ public class TimelineEventHandler {
      */
     public void record(final String sourceName, final String eventType, final DateTime eventTimestamp,
                        final Map<String, Object> samples, final CallContext context) {
+        record(sourceName, eventType, eventTimestamp, samples, false, context);
+    }
+
+    /**
+     * Same as record(), for samples aggregated over a period ending before the time they are recorded (e.g. the ticks
+     * of the CounterPreAggregator): they are stamped no earlier than the end time of the accumulator, instead of being
+     * ignored when samples of the same source and category were recorded since eventTimestamp.
+     *
+     * @param sourceName     name of the source
+     * @param eventType      event category
+     * @param eventTimestamp start of the aggregation period
+     * @param samples        samples to record
+     * @param context        the call context
+     */
+    public void recordPreAggregated(final String sourceName, final String eventType, final DateTime eventTimestamp,
+                                    final Map<String, Object> samples, final CallContext context) {
+        record(sourceName, eventType, eventTimestamp, samples, true, context);
+    }
+
+    private void record(final String sourceName, final String eventType, final DateTime eventTimestamp,
+                        final Map<String, Object> samples, final boolean notBeforeEndTime, final CallContext context) {
         if (shuttingDown.get()) {
             eventsReceivedAfterShuttingDown.incrementAndGet();
             return;
         }
+        final long startNanos = System.nanoTime();
+        final Semaphore recordPermits = getTenantRecordPermits(context.getTenantId());
+        if (recordPermits != null && !recordPermits.tryAcquire()) {
+            // The tenant already has as many threads recording as it is allowed: wait for one of them
+            eventsThrottled.incrementAndGet();
+            recordPermits.acquireUninterruptibly();
+        }
         try {
             handledEventCount.incrementAndGet();
 
@@ -227,23 +264,68 @@ public class TimelineEventHandler {
                 return;
             }
 
-            final SourceSamplesForTimestamp sourceSamples = new SourceSamplesForTimestamp(sourceId, eventType, eventTimestamp, scalarSamples);
-            if (!replaying.get() && config.storeSamplesLocallyTemporary()) {
-                // Start by saving locally the samples
-                backingBuffer.append(sourceSamples);
+            if (notBeforeEndTime) {
+                final int categoryId = timelineDAO.getEventCategoryId(eventType, context);
+                final TimelineSourceEventAccumulator accumulator = getOrAddSourceEventAccumulator(sourceId, categoryId, context.getTenantId(), eventTimestamp);
+                // Keep the accumulator monitor until the samples are added, so that no later sample gets in between
+                synchronized (accumulator) {
+                    final DateTime endTime = accumulator.getEndTime();
+                    final DateTime timestamp = endTime != null && eventTimestamp.isBefore(endTime) ? endTime : eventTimestamp;
+                    spoolAndProcessSamples(new SourceSamplesForTimestamp(sourceId, eventType, timestamp, scalarSamples, context.getTenantId()), context);
+                }
+            } else {
+                spoolAndProcessSamples(new SourceSamplesForTimestamp(sourceId, eventType, eventTimestamp, scalarSamples, context.getTenantId()), context);
             }
-            // Then add them to the in-memory accumulator
-            processSamples(sourceSamples, context);
+            metrics.getSamplesRecorded().add(scalarSamples.size());
         } catch (Exception e) {
             throw new RuntimeException(e);
+        } finally {
+            if (recordPermits != null) {
+                recordPermits.release();
+            }
+            metrics.getRecordLatency().recordSince(startNanos);
+        }
+    }
+
+    private void spoolAndProcessSamples(final SourceSamplesForTimestamp sourceSamples, final CallContext context) throws ExecutionException, IOException {
+        if (!replaying.get() && config.storeSamplesLocallyTemporary()) {
+            // Start by saving locally the samples
+            final long spoolStartNanos = System.nanoTime();
+            backingBuffer.append(sourceSamples);
+            metrics.getSpoolAppend().recordSince(spoolStartNanos);
         }
+        // Then add them to the in-memory accumulator
+        processSamples(sourceSamples, context);
     }
 
-    public TimelineSourceEventAccumulator getOrAddSourceEventAccumulator(final int sourceId, final int categoryId, final DateTime firstSampleTime) {
-        return this.getOrAddSourceEventAccumulator(sourceId, categoryId, firstSampleTime, (int) config.getTimelineLength().getMillis());
+    private Semaphore getTenantRecordPermits(@Nullable final UUID tenantId) {
+        final int maxConcurrentRecords = config.getTenantMaxConcurrentRecords();
+        if (maxConcurrentRecords <= 0) {
+            return null;
+        }
+        final UUID tenantKey = tenantId == null ? NO_TENANT : tenantId;
+        Semaphore permits = tenantRecordPermits.get(tenantKey);
+        if (permits == null) {
+            permits = new Semaphore(maxConcurrentRecords);
+            final Semaphore existingPermits = tenantRecordPermits.putIfAbsent(tenantKey, permits);
+            if (existingPermits != null) {
+                permits = existingPermits;
+            }
+        }
+        return permits;
     }
 
-    public synchronized TimelineSourceEventAccumulator getOrAddSourceEventAccumulator(final int sourceId, final int categoryId, final DateTime firstSampleTime, final int timelineLengthMillis) {
+    public TimelineSourceEventAccumulator getOrAddSourceEventAccumulator(final int sourceId, final int categoryId, @Nullable final UUID tenantId, final DateTime firstSampleTime) {
+        return this.getOrAddSourceEventAccumulator(sourceId, categoryId, tenantId, firstSampleTime, chunkLengthPolicy);
+    }
+
+    public TimelineSourceEventAccumulator getOrAddSourceEventAccumulator(final int sourceId, final int categoryId, @Nullable final UUID tenantId,
+                                                                         final DateTime firstSampleTime, final int timelineLengthMillis) {
+        return this.getOrAddSourceEventAccumulator(sourceId, categoryId, tenantId, firstSampleTime, ChunkLengthPolicy.fromConfig(config, timelineLengthMillis));
+    }
+
+    private synchronized TimelineSourceEventAccumulator getOrAddSourceEventAccumulator(final int sourceId, final int categoryId, @Nullable final UUID tenantId,
+                                                                                       final DateTime firstSampleTime, final ChunkLengthPolicy accumulatorChunkLengthPolicy) {
         SourceAccumulatorsAndUpdateDate sourceAccumulatorsAndUpdateDate = accumulators.get(sourceId);
         if (sourceAccumulatorsAndUpdateDate == null) {
             addedSourceEventAccumulatorMapCount.incrementAndGet();
@@ -255,7 +337,7 @@ public class TimelineEventHandler {
         TimelineSourceEventAccumulator accumulator = hostCategoryAccumulators.get(categoryId);
         if (accumulator == null) {
             addedSourceEventAccumulatorCount.incrementAndGet();
-            accumulator = new TimelineSourceEventAccumulator(timelineDAO, timelineCoder, sampleCoder, backgroundWriter, sourceId, categoryId, firstSampleTime, timelineLengthMillis);
+            accumulator = new TimelineSourceEventAccumulator(timelineDAO, timelineCoder, sampleCoder, backgroundWriter, sourceId, categoryId, tenantId, firstSampleTime, accumulatorChunkLengthPolicy, metrics);
             hostCategoryAccumulators.put(categoryId, accumulator);
             log.debug("Created new Timeline for sourceId [{}] and category [{}]", sourceId, categoryId);
         }
@@ -268,8 +350,13 @@ public class TimelineEventHandler {
         final String category = hostSamples.getCategory();
         final int categoryId = timelineDAO.getEventCategoryId(category, context);
         final DateTime timestamp = hostSamples.getTimestamp();
-        final TimelineSourceEventAccumulator accumulator = getOrAddSourceEventAccumulator(sourceId, categoryId, timestamp);
-        accumulator.addSourceSamples(hostSamples);
+        final TimelineSourceEventAccumulator accumulator = getOrAddSourceEventAccumulator(sourceId, categoryId, hostSamples.getTenantId(), timestamp);
+        // Take the accumulator monitor here (addSourceSamples re-enters it) to measure contention
+        final long lockRequestedNanos = System.nanoTime();
+        synchronized (accumulator) {
+            metrics.getAccumulatorLockWait().recordSince(lockRequestedNanos);
+            accumulator.addSourceSamples(hostSamples);
+        }
     }
 
     public Collection<? extends TimelineChunk> getInMemoryTimelineChunks(final Integer sourceId, @Nullable final DateTime filterStartTime,
@@ -295,6 +382,11 @@ public class TimelineEventHandler {
         // Now, filter each accumulator for this host
         final List<TimelineChunk> samplesBySourceName = new ArrayList<TimelineChunk>();
         for (final TimelineSourceEventAccumulator accumulator : sourceAccumulatorsAndDate.getCategoryAccumulators().values()) {
+            // Never return the samples of another tenant
+            if (!Objects.equal(accumulator.getTenantId(), context.getTenantId())) {
+                continue;
+            }
+
             // Check if the time filters apply
             if ((filterStartTime != null && accumulator.getEndTime().isBefore(filterStartTime)) || (filterEndTime != null && accumulator.getStartTime().isAfter(filterEndTime))) {
                 // Nope - ignore this accumulator
@@ -354,9 +446,10 @@ public class TimelineEventHandler {
                         replaySamplesFoundCount.incrementAndGet();
                         boolean useSamples = true;
                         try {
+                            final TenantContext samplesContext = hostSamples.getTenantId() == null ? context : new MeterTenantContext(hostSamples.getTenantId());
                             final int sourceId = hostSamples.getSourceId();
                             final String category = hostSamples.getCategory();
-                            final int categoryId = timelineDAO.getEventCategoryId(category, context);
+                            final int categoryId = timelineDAO.getEventCategoryId(category, samplesContext);
                             // If startTimes is non-null and the samples come from before the first time for
                             // the given host and event category, ignore the samples
                             if (startTimes != null) {
@@ -371,7 +464,7 @@ public class TimelineEventHandler {
                             }
                             if (useSamples) {
                                 replaySamplesProcessedCount.incrementAndGet();
-                                processSamples(hostSamples, context);
+                                processSamples(hostSamples, samplesContext);
                             }
                         } catch (Exception e) {
                             log.warn("Got exception replaying sample, data potentially lost! {}", hostSamples.toString());
@@ -437,7 +530,8 @@ public class TimelineEventHandler {
     }
 
     private synchronized void purgeFilesAndAccumulators() {
-        this.purgeFilesAndAccumulators(new DateTime().minus(config.getTimelineLength().getMillis()), new DateTime().minus(2 * config.getTimelineLength().getMillis()));
+        // Chunks may be extended past the timeline length: keep their accumulators, and the files to replay them
+        this.purgeFilesAndAccumulators(new DateTime().minus(chunkLengthPolicy.getMaxLengthMillis()), new DateTime().minus(2 * chunkLengthPolicy.getMaxLengthMillis()));
     }
 
     // TODO: We have a bad interaction between startTimes and purging: If the system is down
@@ -511,6 +605,10 @@ public class TimelineEventHandler {
         return eventsReceivedAfterShuttingDown.get();
     }
 
+    public long getEventsThrottled() {
+        return eventsThrottled.get();
+    }
+
     public long getHandledEventCount() {
         return handledEventCount.get();
     }
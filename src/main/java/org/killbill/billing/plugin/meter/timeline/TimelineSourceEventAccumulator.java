@@ -24,11 +24,15 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
 
+import javax.annotation.Nullable;
+
 import org.joda.time.DateTime;
 import org.joda.time.format.DateTimeFormatter;
 import org.joda.time.format.ISODateTimeFormat;
+import org.killbill.billing.plugin.meter.monitoring.MeterMetrics;
 import org.killbill.billing.plugin.meter.timeline.chunks.TimelineChunk;
 import org.killbill.billing.plugin.meter.timeline.codec.SampleCoder;
 import org.killbill.billing.plugin.meter.timeline.codec.TimelineChunkAccumulator;
@@ -51,9 +55,9 @@ import org.slf4j.LoggerFactory;
  * <p/>
  * All subordinate timelines contain the same number of samples.
  * <p/>
- * When enough samples have accumulated, typically one hour's worth,
- * in-memory samples are made into TimelineChunks, one chunk for each metricId
- * maintained by the accumulator.
+ * When enough samples have accumulated, typically one hour's worth (see ChunkLengthPolicy
+ * for the exceptions), in-memory samples are made into TimelineChunks, one chunk for each
+ * metricId maintained by the accumulator.
  * <p/>
  * These new chunks are organized as PendingChunkMaps, kept in a local list and also
  * handed off to a PendingChunkMapConsumer to written to the db by a background process.  At some
@@ -77,17 +81,21 @@ public class TimelineSourceEventAccumulator {
     private long pendingChunkMapIdCounter = 1;
 
     private final BackgroundDBChunkWriter backgroundWriter;
+    private final MeterMetrics metrics;
     private final TimelineCoder timelineCoder;
     private final SampleCoder sampleCoder;
-    private final Integer timelineLengthMillis;
+    private final ChunkLengthPolicy chunkLengthPolicy;
     private final int sourceId;
     private final int eventCategoryId;
+    private final UUID tenantId;
     // This is the time when we want to end the chunk.  Setting the value randomly
     // when the TimelineSourceEventAccumulator  is created provides a mechanism to
     // distribute the db writes
     private DateTime chunkEndTime = null;
     private DateTime startTime = null;
     private DateTime endTime = null;
+    // Set when the last chunk was closed early: the next sample starts a new chunk
+    private boolean startNewChunk = false;
     private DateTime latestSampleAddTime;
     private long sampleSequenceNumber = 0;
     private int sampleCount = 0;
@@ -104,15 +112,26 @@ public class TimelineSourceEventAccumulator {
 
     public TimelineSourceEventAccumulator(final TimelineDao dao, final TimelineCoder timelineCoder, final SampleCoder sampleCoder,
                                           final BackgroundDBChunkWriter backgroundWriter, final int sourceId, final int eventCategoryId,
-                                          final DateTime firstSampleTime, final Integer timelineLengthMillis) {
-        this.timelineLengthMillis = timelineLengthMillis;
+                                          @Nullable final UUID tenantId, final DateTime firstSampleTime, final Integer timelineLengthMillis,
+                                          final MeterMetrics metrics) {
+        this(dao, timelineCoder, sampleCoder, backgroundWriter, sourceId, eventCategoryId, tenantId, firstSampleTime,
+             timelineLengthMillis == null ? null : ChunkLengthPolicy.fixedLength(timelineLengthMillis), metrics);
+    }
+
+    public TimelineSourceEventAccumulator(final TimelineDao dao, final TimelineCoder timelineCoder, final SampleCoder sampleCoder,
+                                          final BackgroundDBChunkWriter backgroundWriter, final int sourceId, final int eventCategoryId,
+                                          @Nullable final UUID tenantId, final DateTime firstSampleTime, @Nullable final ChunkLengthPolicy chunkLengthPolicy,
+                                          final MeterMetrics metrics) {
+        this.chunkLengthPolicy = chunkLengthPolicy;
         this.backgroundWriter = backgroundWriter;
+        this.metrics = metrics;
         this.timelineCoder = timelineCoder;
         this.sampleCoder = sampleCoder;
         this.sourceId = sourceId;
         this.eventCategoryId = eventCategoryId;
+        this.tenantId = tenantId;
         // Set the end-of-chunk time by tossing a random number, to evenly distribute the db writeback load.
-        this.chunkEndTime = timelineLengthMillis != null ? firstSampleTime.plusMillis(rand.nextInt(timelineLengthMillis)) : null;
+        this.chunkEndTime = chunkLengthPolicy != null ? firstSampleTime.plusMillis(rand.nextInt(getTargetLengthMillis())) : null;
     }
 
     /*
@@ -122,7 +141,12 @@ public class TimelineSourceEventAccumulator {
      */
     public TimelineSourceEventAccumulator(final TimelineDao timelineDAO, final TimelineCoder timelineCoder, final SampleCoder sampleCoder,
                                           final Integer sourceId, final int eventTypeId, final DateTime firstSampleTime) {
-        this(timelineDAO, timelineCoder, sampleCoder, new BackgroundDBChunkWriter(timelineDAO, null, true), sourceId, eventTypeId, firstSampleTime, Integer.MAX_VALUE);
+        this(timelineDAO, timelineCoder, sampleCoder, new MeterMetrics(), sourceId, eventTypeId, firstSampleTime);
+    }
+
+    private TimelineSourceEventAccumulator(final TimelineDao timelineDAO, final TimelineCoder timelineCoder, final SampleCoder sampleCoder,
+                                           final MeterMetrics metrics, final Integer sourceId, final int eventTypeId, final DateTime firstSampleTime) {
+        this(timelineDAO, timelineCoder, sampleCoder, new BackgroundDBChunkWriter(timelineDAO, null, true, metrics), sourceId, eventTypeId, null, firstSampleTime, Integer.MAX_VALUE, metrics);
     }
 
     @SuppressWarnings("unchecked")
@@ -130,14 +154,16 @@ public class TimelineSourceEventAccumulator {
     public synchronized void addSourceSamples(final SourceSamplesForTimestamp samples) {
         final DateTime timestamp = samples.getTimestamp();
 
-        if (chunkEndTime != null && chunkEndTime.isBefore(timestamp)) {
+        if (chunkEndTime != null && chunkEndTime.isBefore(timestamp) &&
+            (startTime == null || startNewChunk || !chunkLengthPolicy.shouldExtend(sampleCount, timestamp.getMillis() - startTime.getMillis()))) {
             extractAndQueueTimelineChunks();
             startTime = timestamp;
-            chunkEndTime = timestamp.plusMillis(timelineLengthMillis);
+            chunkEndTime = timestamp.plusMillis(getTargetLengthMillis());
         }
 
-        if (startTime == null) {
+        if (startTime == null || startNewChunk) {
             startTime = timestamp;
+            startNewChunk = false;
         }
         if (endTime == null) {
             endTime = timestamp;
@@ -167,8 +193,19 @@ public class TimelineSourceEventAccumulator {
                 }
                 timelines.put(metricId, timeline);
             }
-            final ScalarSample compressedSample = sampleCoder.compressSample(sample);
-            timeline.addSample(compressedSample);
+            // Most samples are integers or doubles: compress and encode them without intermediate ScalarSample
+            switch (sample.getOpcode()) {
+                case INT:
+                case LONG:
+                    timeline.addLong(((Number) sample.getSampleValue()).longValue());
+                    break;
+                case DOUBLE:
+                    timeline.addDouble((Double) sample.getSampleValue());
+                    break;
+                default:
+                    timeline.addSample(sampleCoder.compressSample(sample));
+                    break;
+            }
         }
         for (final Map.Entry<Integer, SampleSequenceNumber> entry : metricIdCounters.entrySet()) {
             final SampleSequenceNumber counter = entry.getValue();
@@ -187,6 +224,27 @@ public class TimelineSourceEventAccumulator {
         if (checkEveryAccess) {
             checkSampleCounts(sampleCount);
         }
+
+        if (chunkLengthPolicy != null && chunkLengthPolicy.isFull(sampleCount, getEncodedByteCount(), endTime.getMillis() - startTime.getMillis())) {
+            extractAndQueueTimelineChunks();
+            startNewChunk = true;
+            chunkEndTime = endTime.plusMillis(getTargetLengthMillis());
+        }
+    }
+
+    private int getTargetLengthMillis() {
+        return (int) Math.min(Integer.MAX_VALUE, chunkLengthPolicy.getTargetLengthMillis());
+    }
+
+    private int getEncodedByteCount() {
+        if (!chunkLengthPolicy.hasMaxByteCount()) {
+            return 0;
+        }
+        int byteCount = 0;
+        for (final TimelineChunkAccumulator timeline : timelines.values()) {
+            byteCount += timeline.getEncodedByteCount();
+        }
+        return byteCount;
     }
 
     private void addPlaceholders(final TimelineChunkAccumulator timeline, int countToAdd) {
@@ -207,6 +265,7 @@ public class TimelineSourceEventAccumulator {
      */
     public synchronized void extractAndQueueTimelineChunks() {
         if (times.size() > 0) {
+            final long startNanos = System.nanoTime();
             final Map<Integer, TimelineChunk> chunkMap = new HashMap<Integer, TimelineChunk>();
             final byte[] timeBytes = timelineCoder.compressDateTimes(times);
             for (final Map.Entry<Integer, TimelineChunkAccumulator> entry : timelines.entrySet()) {
@@ -221,19 +280,21 @@ public class TimelineSourceEventAccumulator {
             final PendingChunkMap newChunkMap = new PendingChunkMap(this, counter, chunkMap);
             pendingChunkMaps.add(newChunkMap);
             backgroundWriter.addPendingChunkMap(newChunkMap);
+            metrics.getChunksFlushed().add(chunkMap.size());
+            metrics.getChunkFlush().recordSince(startNanos);
         }
     }
 
     public synchronized void markPendingChunkMapConsumed(final long pendingChunkMapId) {
-        final PendingChunkMap pendingChunkMap = pendingChunkMaps.size() > 0 ? pendingChunkMaps.get(0) : null;
-        if (pendingChunkMap == null) {
-            log.error("In TimelineSourceEventAccumulator.markPendingChunkMapConsumed(), could not find the map for {}", pendingChunkMapId);
-        } else if (pendingChunkMapId != pendingChunkMap.getPendingChunkMapId()) {
-            log.error("In TimelineSourceEventAccumulator.markPendingChunkMapConsumed(), the next map has id {}, but we're consuming id {}",
-                      pendingChunkMap.getPendingChunkMapId(), pendingChunkMapId);
-        } else {
-            pendingChunkMaps.remove(0);
+        // Maps are usually consumed in order, but the BackgroundDBChunkWriter writes the maps of a tenant
+        // over its quota right away, while its older maps are still queued
+        for (int i = 0; i < pendingChunkMaps.size(); i++) {
+            if (pendingChunkMaps.get(i).getPendingChunkMapId() == pendingChunkMapId) {
+                pendingChunkMaps.remove(i);
+                return;
+            }
         }
+        log.error("In TimelineSourceEventAccumulator.markPendingChunkMapConsumed(), could not find the map for {}", pendingChunkMapId);
     }
 
     public synchronized Collection<TimelineChunk> getInMemoryTimelineChunks(final List<Integer> metricIds) throws IOException {
@@ -300,6 +361,11 @@ public class TimelineSourceEventAccumulator {
         return eventCategoryId;
     }
 
+    @Nullable
+    public UUID getTenantId() {
+        return tenantId;
+    }
+
     public DateTime getStartTime() {
         return startTime;
     }
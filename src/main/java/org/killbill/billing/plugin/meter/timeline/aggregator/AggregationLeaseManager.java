@@ -0,0 +1,283 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.timeline.aggregator;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.joda.time.DateTime;
+import org.killbill.billing.plugin.meter.MeterConfig;
+import org.killbill.billing.plugin.meter.timeline.cluster.ClusterMembership;
+import org.killbill.billing.plugin.meter.timeline.util.DateTimeUtils;
+import org.killbill.clock.Clock;
+import org.skife.jdbi.v2.IDBI;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+/**
+ * When config.getAggregationLeasesEnabled() is true, this class splits the aggregation work between
+ * the nodes of the cluster: sources are split into config.getAggregationShards() shards (by source
+ * record id), and a node only aggregates the shards it holds a lease on, in the aggregation_leases table.
+ * <p/>
+ * A thread renews the leases three times per config.getAggregationLeaseDuration(). On each renewal, the
+ * node also rebalances its share: it releases the shards above its fair share (the shard count divided by
+ * the number of live nodes, see ClusterMembership), or takes free and expired shards up to it. The leases of
+ * a dead node expire, and are taken over by the surviving nodes.
+ * <p/>
+ * The leases are only considered held for two thirds of their duration after their last renewal,
+ * to leave the aggregator some time to notice a lost lease before another node takes it over.
+ */
+@Singleton
+public class AggregationLeaseManager {
+
+    private static final Logger log = LoggerFactory.getLogger(AggregationLeaseManager.class);
+
+    private final MeterConfig config;
+    private final ClusterMembership membership;
+    private final AggregationLeaseSqlDao leaseSqlDao;
+    private final Clock clock;
+
+    private final ScheduledExecutorService leaseThread = Executors.newSingleThreadScheduledExecutor();
+
+    private final Map<String, AtomicLong> leaseCounters = new LinkedHashMap<String, AtomicLong>();
+
+    private final AtomicLong renewals = makeCounter("renewals");
+    private final AtomicLong renewalFailures = makeCounter("renewalFailures");
+    private final AtomicLong leasesAcquired = makeCounter("leasesAcquired");
+    private final AtomicLong leasesReleased = makeCounter("leasesReleased");
+    private final AtomicLong leasesLost = makeCounter("leasesLost");
+
+    private volatile Set<Integer> ownedShards = ImmutableSet.<Integer>of();
+    private volatile long leasesValidUntilMillis = 0;
+
+    @Inject
+    public AggregationLeaseManager(final IDBI dbi, final MeterConfig config, final ClusterMembership membership, final Clock clock) {
+        this.config = config;
+        this.membership = membership;
+        this.leaseSqlDao = dbi.onDemand(AggregationLeaseSqlDao.class);
+        this.clock = clock;
+    }
+
+    public boolean isEnabled() {
+        return config.getAggregationLeasesEnabled();
+    }
+
+    public int getShardCount() {
+        return config.getAggregationShards();
+    }
+
+    /**
+     * @return the shards this node should aggregate, empty if it doesn't hold any valid lease
+     */
+    public List<Integer> getOwnedShards() {
+        if (clock.getUTCNow().getMillis() >= leasesValidUntilMillis) {
+            return ImmutableList.<Integer>of();
+        }
+        return ImmutableList.<Integer>copyOf(ownedShards);
+    }
+
+    public boolean holdsLeases(final Collection<Integer> shards) {
+        return clock.getUTCNow().getMillis() < leasesValidUntilMillis && ownedShards.containsAll(shards);
+    }
+
+    public void renewLeases() {
+        renewLeases(clock.getUTCNow());
+    }
+
+    public void renewLeases(final DateTime now) {
+        renewals.incrementAndGet();
+        final long startMillis = now.getMillis();
+        final String nodeId = membership.getNodeId();
+        final int shardCount = config.getAggregationShards();
+        try {
+            final int nowSeconds = DateTimeUtils.unixSeconds(now);
+            final int leaseExpiration = nowSeconds + (int) (config.getAggregationLeaseDuration().getMillis() / 1000);
+
+            // Current holder of each shard, null if free or expired
+            final Map<Integer, String> holders = new HashMap<Integer, String>();
+            for (final Map<String, Object> row : leaseSqlDao.getLeases()) {
+                final int shard = ((Number) row.get("shard")).intValue();
+                final int expiration = ((Number) row.get("lease_expiration")).intValue();
+                holders.put(shard, expiration >= nowSeconds ? (String) row.get("node_id") : null);
+            }
+            for (int shard = 0; shard < shardCount; shard++) {
+                if (!holders.containsKey(shard)) {
+                    addLease(shard);
+                    holders.put(shard, null);
+                }
+            }
+
+            final Set<Integer> heldShards = new TreeSet<Integer>();
+            for (final Map.Entry<Integer, String> entry : holders.entrySet()) {
+                if (nodeId.equals(entry.getValue()) && entry.getKey() < shardCount) {
+                    heldShards.add(entry.getKey());
+                }
+            }
+
+            final int targetShardCount = getTargetShardCount(shardCount, membership.getLiveNodeCount());
+            for (final Integer shard : getShardsToRelease(heldShards, targetShardCount)) {
+                leaseSqlDao.releaseLease(shard, nodeId);
+                heldShards.remove(shard);
+                // Stop aggregating it right away, even if the renewal fails below
+                ownedShards = ImmutableSet.<Integer>copyOf(Sets.difference(ownedShards, ImmutableSet.<Integer>of(shard)));
+                leasesReleased.incrementAndGet();
+            }
+
+            final Set<Integer> renewedShards = new TreeSet<Integer>();
+            for (final Integer shard : heldShards) {
+                if (leaseSqlDao.acquireLease(shard, nodeId, nowSeconds, leaseExpiration) == 1) {
+                    renewedShards.add(shard);
+                } else {
+                    leasesLost.incrementAndGet();
+                }
+            }
+            for (final Integer shard : getShardsToAcquire(shardCount, nodeId, holders, targetShardCount - renewedShards.size())) {
+                if (leaseSqlDao.acquireLease(shard, nodeId, nowSeconds, leaseExpiration) == 1) {
+                    renewedShards.add(shard);
+                    leasesAcquired.incrementAndGet();
+                }
+            }
+
+            if (!renewedShards.equals(ownedShards)) {
+                log.info("Node {} now aggregates shards {}", nodeId, renewedShards);
+            }
+            ownedShards = ImmutableSet.<Integer>copyOf(renewedShards);
+            leasesValidUntilMillis = startMillis + 2 * config.getAggregationLeaseDuration().getMillis() / 3;
+        } catch (RuntimeException e) {
+            // The current leases stay valid until they time out
+            renewalFailures.incrementAndGet();
+            log.warn("Unable to renew the aggregation leases of node " + nodeId, e);
+        }
+    }
+
+    private void addLease(final int shard) {
+        try {
+            leaseSqlDao.addLease(shard);
+        } catch (RuntimeException e) {
+            // Most likely added by another node at the same time
+            log.debug("Unable to add aggregation lease for shard {}", shard, e);
+        }
+    }
+
+    @VisibleForTesting
+    static int getTargetShardCount(final int shardCount, final int liveNodeCount) {
+        return (shardCount + liveNodeCount - 1) / liveNodeCount;
+    }
+
+    /**
+     * @return the shards held above the target count
+     */
+    @VisibleForTesting
+    static List<Integer> getShardsToRelease(final Set<Integer> heldShards, final int targetShardCount) {
+        final List<Integer> shardsToRelease = new ArrayList<Integer>();
+        int kept = 0;
+        for (final Integer shard : heldShards) {
+            if (kept < targetShardCount) {
+                kept++;
+            } else {
+                shardsToRelease.add(shard);
+            }
+        }
+        return shardsToRelease;
+    }
+
+    /**
+     * @return up to count free shards, starting at an offset depending on the node, to limit the contention between nodes
+     */
+    @VisibleForTesting
+    static List<Integer> getShardsToAcquire(final int shardCount, final String nodeId, final Map<Integer, String> holders, final int count) {
+        final List<Integer> shardsToAcquire = new ArrayList<Integer>();
+        final int offset = (nodeId.hashCode() & Integer.MAX_VALUE) % shardCount;
+        for (int i = 0; i < shardCount && shardsToAcquire.size() < count; i++) {
+            final int shard = (offset + i) % shardCount;
+            if (holders.get(shard) == null) {
+                shardsToAcquire.add(shard);
+            }
+        }
+        return shardsToAcquire;
+    }
+
+    public void runLeaseThread() {
+        final long renewalIntervalMillis = config.getAggregationLeaseDuration().getMillis() / 3;
+        leaseThread.scheduleWithFixedDelay(new Runnable() {
+                                               @Override
+                                               public void run() {
+                                                   renewLeases();
+                                               }
+                                           },
+                                           0,
+                                           renewalIntervalMillis,
+                                           TimeUnit.MILLISECONDS
+                                          );
+    }
+
+    public void stopLeaseThread() {
+        leaseThread.shutdown();
+        try {
+            leaseThread.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        // Let the other nodes take our shards over right away
+        final String nodeId = membership.getNodeId();
+        final Set<Integer> shards = ownedShards;
+        ownedShards = ImmutableSet.<Integer>of();
+        leasesValidUntilMillis = 0;
+        for (final Integer shard : shards) {
+            try {
+                leaseSqlDao.releaseLease(shard, nodeId);
+                leasesReleased.incrementAndGet();
+            } catch (RuntimeException e) {
+                log.warn("Unable to release the aggregation lease of shard " + shard, e);
+            }
+        }
+    }
+
+    private AtomicLong makeCounter(final String counterName) {
+        final AtomicLong counter = new AtomicLong();
+        leaseCounters.put(counterName, counter);
+        return counter;
+    }
+
+    public Map<String, Long> getLeaseCounters() {
+        final Map<String, Long> counterValues = new LinkedHashMap<String, Long>();
+        for (final Map.Entry<String, AtomicLong> entry : leaseCounters.entrySet()) {
+            counterValues.put(entry.getKey(), entry.getValue().get());
+        }
+        counterValues.put("ownedShards", (long) ownedShards.size());
+        return counterValues;
+    }
+}
@@ -18,6 +18,7 @@
 package org.killbill.billing.plugin.meter.timeline.aggregator;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -28,12 +29,19 @@ import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 
+import javax.annotation.Nullable;
+
 import org.joda.time.DateTime;
+import org.killbill.billing.plugin.meter.MeterCallContext;
 import org.killbill.billing.plugin.meter.MeterConfig;
+import org.killbill.billing.plugin.meter.monitoring.MeterMetrics;
 import org.killbill.billing.plugin.meter.timeline.MeterInternalCallContext;
 import org.killbill.billing.plugin.meter.timeline.MeterInternalTenantContext;
+import org.killbill.billing.plugin.meter.timeline.chunks.TimeBytesAndSampleBytes;
 import org.killbill.billing.plugin.meter.timeline.chunks.TimelineChunk;
+import org.killbill.billing.plugin.meter.timeline.chunks.TimelineChunkCache;
 import org.killbill.billing.plugin.meter.timeline.chunks.TimelineChunkMapper;
+import org.killbill.billing.plugin.meter.timeline.chunks.TimelineSkipIndex;
 import org.killbill.billing.plugin.meter.timeline.codec.SampleCoder;
 import org.killbill.billing.plugin.meter.timeline.consumer.TimelineChunkConsumer;
 import org.killbill.billing.plugin.meter.timeline.persistent.TimelineDao;
@@ -53,6 +61,10 @@ import com.google.inject.Inject;
  * This class runs a thread that periodically looks for unaggregated timelines.
  * When it finds them, it combines them intelligently as if they were originally
  * a single sequence of times.
+ * <p/>
+ * When aggregation leases are enabled (see AggregationLeaseManager), only the sources
+ * of the shards leased by this node are aggregated, and the writes of a run are abandoned
+ * as soon as one of its leases is lost.
  */
 public class TimelineAggregator {
 
@@ -65,6 +77,9 @@ public class TimelineAggregator {
     private final MeterConfig config;
     private final TimelineAggregatorSqlDao aggregatorSqlDao;
     private final TimelineChunkMapper timelineChunkMapper;
+    private final MeterMetrics metrics;
+    private final TimelineChunkCache chunkCache;
+    private final AggregationLeaseManager leaseManager;
 
     private final ScheduledExecutorService aggregatorThread = Executors.newSingleThreadScheduledExecutor();
 
@@ -74,6 +89,8 @@ public class TimelineAggregator {
 
     private final AtomicLong aggregationRuns = new AtomicLong();
     private final AtomicLong foundNothingRuns = new AtomicLong();
+    private final AtomicLong noLeaseRuns = new AtomicLong();
+    private final AtomicLong leaseLostRuns = new AtomicLong();
     private final AtomicLong aggregatesCreated = makeCounter("aggsCreated");
     private final AtomicLong timelineChunksConsidered = makeCounter("chunksConsidered");
     private final AtomicLong timelineChunkBatchesProcessed = makeCounter("batchesProcessed");
@@ -89,17 +106,31 @@ public class TimelineAggregator {
     // These lists support batching of aggregated chunk writes and updates or deletes of the chunks aggregated
     private final List<TimelineChunk> chunksToWrite = new ArrayList<TimelineChunk>();
     private final List<Long> chunkIdsToInvalidateOrDelete = new ArrayList<Long>();
+    // Tenant of the chunks being aggregated: each tenant's chunks are aggregated (and written) separately
+    private long aggregatedTenantRecordId = MeterInternalTenantContext.INTERNAL_TENANT_RECORD_ID;
+    // Shards aggregated by the current run, null for all sources
+    private List<Integer> aggregatedShards = null;
+    private boolean leaseLost = false;
+
+    public TimelineAggregator(final IDBI dbi, final TimelineDao timelineDao, final TimelineCoder timelineCoder,
+                              final SampleCoder sampleCoder, final MeterConfig config, final MeterMetrics metrics) {
+        this(dbi, timelineDao, timelineCoder, sampleCoder, config, metrics, new TimelineChunkCache(0), null);
+    }
 
     @Inject
     public TimelineAggregator(final IDBI dbi, final TimelineDao timelineDao, final TimelineCoder timelineCoder,
-                              final SampleCoder sampleCoder, final MeterConfig config) {
+                              final SampleCoder sampleCoder, final MeterConfig config, final MeterMetrics metrics,
+                              final TimelineChunkCache chunkCache, @Nullable final AggregationLeaseManager leaseManager) {
         this.dbi = dbi;
+        this.chunkCache = chunkCache;
+        this.leaseManager = leaseManager;
         this.timelineDao = timelineDao;
         this.timelineCoder = timelineCoder;
         this.sampleCoder = sampleCoder;
         this.config = config;
         this.aggregatorSqlDao = dbi.onDemand(TimelineAggregatorSqlDao.class);
         this.timelineChunkMapper = new TimelineChunkMapper();
+        this.metrics = metrics;
     }
 
     private int aggregateTimelineCandidates(final List<TimelineChunk> timelineChunkCandidates, final int aggregationLevel, final int chunksToAggregate) {
@@ -146,27 +177,29 @@ public class TimelineAggregator {
         final int sourceId = firstTimesChunk.getSourceId();
         final DateTime startTime = firstTimesChunk.getStartTime();
         final DateTime endTime = lastTimesChunk.getEndTime();
-        final List<byte[]> timeParts = new ArrayList<byte[]>(chunkCount);
+        final List<ByteBuffer> timeParts = new ArrayList<ByteBuffer>(chunkCount);
         try {
-            final List<byte[]> sampleParts = new ArrayList<byte[]>(chunkCount);
+            final List<ByteBuffer> sampleParts = new ArrayList<ByteBuffer>(chunkCount);
             final List<Long> timelineChunkIds = new ArrayList<Long>(chunkCount);
             int sampleCount = 0;
             for (final TimelineChunk timelineChunk : timelineChunks) {
-                timeParts.add(timelineChunk.getTimeBytesAndSampleBytes().getTimeBytes());
-                sampleParts.add(timelineChunk.getTimeBytesAndSampleBytes().getSampleBytes());
+                timeParts.add(timelineChunk.getTimeBytesAndSampleBytes().getTimeBuffer());
+                sampleParts.add(timelineChunk.getTimeBytesAndSampleBytes().getSampleBuffer());
                 sampleCount += timelineChunk.getSampleCount();
                 timelineChunkIds.add(timelineChunk.getChunkId());
             }
-            final byte[] combinedTimeBytes = timelineCoder.combineTimelines(timeParts, sampleCount);
-            final byte[] combinedSampleBytes = sampleCoder.combineSampleBytes(sampleParts);
+            final byte[] combinedTimeBytes = timelineCoder.combineTimeBuffers(timeParts, sampleCount);
+            final byte[] combinedSampleBytes = sampleCoder.combineSampleBuffers(sampleParts);
             final int timeBytesLength = combinedTimeBytes.length;
             final int totalSize = 4 + timeBytesLength + combinedSampleBytes.length;
             log.debug("For sourceId {}, aggregationLevel {}, aggregating {} timelines ({} bytes, {} samples): {}",
                       new Object[]{firstTimesChunk.getSourceId(), firstTimesChunk.getAggregationLevel(), timelineChunks.size(), totalSize, sampleCount});
             timelineChunksBytesCreated.addAndGet(totalSize);
             final int totalSampleCount = sampleCount;
-            final TimelineChunk chunk = new TimelineChunk(0, sourceId, firstTimesChunk.getMetricId(), startTime, endTime,
-                                                          combinedTimeBytes, combinedSampleBytes, totalSampleCount, aggregationLevel + 1, false, false);
+            final TimelineSkipIndex skipIndex = buildSkipIndex(combinedTimeBytes, combinedSampleBytes, totalSampleCount);
+            final TimelineChunk chunk = new TimelineChunk(0, sourceId, firstTimesChunk.getMetricId(), firstTimesChunk.getStartTimeSeconds(), lastTimesChunk.getEndTimeSeconds(),
+                                                          new TimeBytesAndSampleBytes(combinedTimeBytes, combinedSampleBytes), totalSampleCount, aggregationLevel + 1,
+                                                          false, false, skipIndex);
             chunksToWrite.add(chunk);
             chunkIdsToInvalidateOrDelete.addAll(timelineChunkIds);
             timelineChunksQueuedForCreation.incrementAndGet();
@@ -180,12 +213,42 @@ public class TimelineAggregator {
         }
     }
 
+    private TimelineSkipIndex buildSkipIndex(final byte[] times, final byte[] samples, final int sampleCount) throws IOException {
+        final int skipIndexInterval = config.getSkipIndexInterval();
+        // Not worth it if there would be a single entry
+        if (skipIndexInterval <= 0 || sampleCount < 2 * skipIndexInterval) {
+            return null;
+        }
+        final TimelineSkipIndex skipIndex = sampleCoder.buildSkipIndex(samples, times, sampleCount, skipIndexInterval);
+        return skipIndex.getEntryCount() == 0 ? null : skipIndex;
+    }
+
+    /**
+     * @return true if the leases on the shards of the current run were lost: another node may be aggregating
+     *         these sources by now, stop here, it will redo our work
+     */
+    private boolean checkLeaseLost() {
+        if (!leaseLost && aggregatedShards != null && !leaseManager.holdsLeases(aggregatedShards)) {
+            log.warn("Aggregation lease lost, abandoning the current aggregation run");
+            leaseLostRuns.incrementAndGet();
+            leaseLost = true;
+        }
+        return leaseLost;
+    }
+
     private void performWrites() {
-        final MeterInternalCallContext context = new MeterInternalCallContext();
+        if (checkLeaseLost()) {
+            chunksToWrite.clear();
+            chunkIdsToInvalidateOrDelete.clear();
+            return;
+        }
+
+        final MeterInternalCallContext context = new MeterInternalCallContext(new MeterCallContext(), 0L, aggregatedTenantRecordId);
 
         // This is the atomic operation: bulk insert the new aggregated TimelineChunk objects, and delete
         // or invalidate the ones that were aggregated.  This should be very fast.
         final long startWriteTime = System.currentTimeMillis();
+        final long startWriteNanos = System.nanoTime();
         aggregatorSqlDao.begin();
         timelineDao.bulkInsertTimelineChunks(chunksToWrite, context);
         if (config.getDeleteAggregatedChunks()) {
@@ -194,7 +257,11 @@ public class TimelineAggregator {
             aggregatorSqlDao.makeTimelineChunksInvalid(chunkIdsToInvalidateOrDelete, context);
         }
         aggregatorSqlDao.commit();
+        // The chunks aggregated won't be returned by queries anymore
+        chunkCache.invalidate(chunkIdsToInvalidateOrDelete);
         msWritingDb.addAndGet(System.currentTimeMillis() - startWriteTime);
+        metrics.getDbWrite().recordSince(startWriteNanos);
+        metrics.getChunksWrittenToDb().add(chunksToWrite.size());
 
         timelineChunksWritten.addAndGet(chunksToWrite.size());
         timelineChunksInvalidatedOrDeleted.addAndGet(chunkIdsToInvalidateOrDelete.size());
@@ -225,13 +292,34 @@ public class TimelineAggregator {
         }
 
         aggregationRuns.incrementAndGet();
+        leaseLost = false;
+        if (leaseManager != null && leaseManager.isEnabled()) {
+            aggregatedShards = leaseManager.getOwnedShards();
+            if (aggregatedShards.isEmpty()) {
+                log.debug("No aggregation lease held, nothing to aggregate");
+                noLeaseRuns.incrementAndGet();
+                isAggregating.set(false);
+                return;
+            }
+        } else {
+            aggregatedShards = null;
+        }
+
+        // The tenants are looked up once per run, not per level: the ones added since are aggregated by the next run
+        final List<Long> tenantRecordIds = new ArrayList<Long>();
+        tenantRecordIds.add(MeterInternalTenantContext.INTERNAL_TENANT_RECORD_ID);
+        tenantRecordIds.addAll(aggregatorSqlDao.getTenantRecordIds());
+
         final String[] chunkCountsToAggregate = config.getChunksToAggregate().split(",");
         for (int aggregationLevel = 0; aggregationLevel < config.getMaxAggregationLevel(); aggregationLevel++) {
             final long startingAggregatesCreated = aggregatesCreated.get();
             final Map<String, Long> initialCounters = captureAggregatorCounters();
             final int chunkCountIndex = aggregationLevel >= chunkCountsToAggregate.length ? chunkCountsToAggregate.length - 1 : aggregationLevel;
             final int chunksToAggregate = Integer.parseInt(chunkCountsToAggregate[chunkCountIndex]);
-            streamingAggregateLevel(aggregationLevel, chunksToAggregate);
+            streamingAggregateLevel(aggregationLevel, chunksToAggregate, tenantRecordIds);
+            if (leaseLost) {
+                break;
+            }
             final Map<String, Long> counterDeltas = subtractFromAggregatorCounters(initialCounters);
             final long netAggregatesCreated = aggregatesCreated.get() - startingAggregatesCreated;
             if (netAggregatesCreated == 0) {
@@ -260,7 +348,18 @@ public class TimelineAggregator {
         isAggregating.set(false);
     }
 
-    private void streamingAggregateLevel(final int aggregationLevel, final int chunksToAggregate) {
+    private void streamingAggregateLevel(final int aggregationLevel, final int chunksToAggregate, final List<Long> tenantRecordIds) {
+        for (final Long tenantRecordId : tenantRecordIds) {
+            // Don't start a pass over the candidates without a valid lease
+            if (checkLeaseLost()) {
+                return;
+            }
+            aggregatedTenantRecordId = tenantRecordId;
+            streamingAggregateLevel(aggregationLevel, chunksToAggregate, tenantRecordId);
+        }
+    }
+
+    private void streamingAggregateLevel(final int aggregationLevel, final int chunksToAggregate, final long tenantRecordId) {
         final List<TimelineChunk> sourceTimelineCandidates = new ArrayList<TimelineChunk>();
         final TimelineChunkConsumer aggregationConsumer = new TimelineChunkConsumer() {
 
@@ -269,6 +368,9 @@ public class TimelineAggregator {
 
             @Override
             public void processTimelineChunk(final TimelineChunk candidate) {
+                if (leaseLost) {
+                    return;
+                }
                 timelineChunksConsidered.incrementAndGet();
                 final int sourceId = candidate.getSourceId();
                 final int metricId = candidate.getMetricId();
@@ -297,7 +399,11 @@ public class TimelineAggregator {
                     final Query<Map<String, Object>> query = handle.createQuery("getStreamingAggregationCandidates")
                                                                    .setFetchSize(Integer.MIN_VALUE)
                                                                    .bind("aggregationLevel", aggregationLevel)
-                                                                   .bind("tenantRecordId", MeterInternalTenantContext.INTERNAL_TENANT_RECORD_ID);
+                                                                   .bind("tenantRecordId", tenantRecordId);
+                    if (aggregatedShards != null) {
+                        query.bind("shardCount", leaseManager.getShardCount())
+                             .define("shards", aggregatedShards);
+                    }
                     query.setStatementLocator(new StringTemplate3StatementLocator(TimelineAggregatorSqlDao.class));
                     ResultIterator<TimelineChunk> iterator = null;
                     try {
@@ -377,6 +483,14 @@ public class TimelineAggregator {
         return foundNothingRuns.get();
     }
 
+    public long getNoLeaseRuns() {
+        return noLeaseRuns.get();
+    }
+
+    public long getLeaseLostRuns() {
+        return leaseLostRuns.get();
+    }
+
     public long getTimelineChunksConsidered() {
         return timelineChunksConsidered.get();
     }
@@ -417,6 +531,10 @@ public class TimelineAggregator {
         return msWritingDb.get();
     }
 
+    public Map<String, Long> getAggregatorCounters() {
+        return captureAggregatorCounters();
+    }
+
     public void initiateAggregation() {
         log.info("Starting user-initiated aggregation");
         Executors.newSingleThreadExecutor().execute(new Runnable() {
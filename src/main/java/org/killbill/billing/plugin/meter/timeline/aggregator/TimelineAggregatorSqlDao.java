@@ -22,14 +22,21 @@ import java.util.List;
 import org.killbill.billing.plugin.meter.timeline.MeterInternalCallContext;
 import org.skife.jdbi.v2.sqlobject.Bind;
 import org.skife.jdbi.v2.sqlobject.BindBean;
+import org.skife.jdbi.v2.sqlobject.SqlQuery;
 import org.skife.jdbi.v2.sqlobject.SqlUpdate;
+import org.skife.jdbi.v2.sqlobject.customizers.Mapper;
 import org.skife.jdbi.v2.sqlobject.mixins.Transactional;
 import org.skife.jdbi.v2.sqlobject.stringtemplate.UseStringTemplate3StatementLocator;
 import org.skife.jdbi.v2.unstable.BindIn;
+import org.skife.jdbi.v2.util.LongMapper;
 
 @UseStringTemplate3StatementLocator()
 public interface TimelineAggregatorSqlDao extends Transactional<TimelineAggregatorSqlDao> {
 
+    @SqlQuery
+    @Mapper(LongMapper.class)
+    List<Long> getTenantRecordIds();
+
     @SqlUpdate
     void makeTimelineChunkValid(@Bind("chunkId") final long chunkId,
                                 @BindBean final MeterInternalCallContext context);
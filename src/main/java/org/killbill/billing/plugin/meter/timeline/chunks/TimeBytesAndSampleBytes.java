@@ -17,47 +17,114 @@
 
 package org.killbill.billing.plugin.meter.timeline.chunks;
 
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.annotation.JsonView;
 
 /**
  * POJO containing a series of bytes and associated time points
+ * <p/>
+ * Both series may be views over a single backing array (see fromTimesAndSamples), e.g. the timesAndSamples
+ * read from the database: the views don't copy anything, getTimeBytes() and getSampleBytes() do.
  */
 public class TimeBytesAndSampleBytes {
 
-    @JsonProperty
-    @JsonView(TimelineChunksViews.Compact.class)
     private final byte[] timeBytes;
-    @JsonProperty
-    @JsonView(TimelineChunksViews.Compact.class)
+    private final int timeBytesOffset;
+    private final int timeBytesLength;
     private final byte[] sampleBytes;
+    private final int sampleBytesOffset;
+    private final int sampleBytesLength;
+
+    /**
+     * @param timesAndSamples combined times and samples (see TimesAndSamplesCoder), not copied
+     * @return the views over the times and samples
+     */
+    public static TimeBytesAndSampleBytes fromTimesAndSamples(final byte[] timesAndSamples) {
+        if (timesAndSamples.length < 4) {
+            throw new IllegalStateException(String.format("Invalid timesAndSamples of %d bytes", timesAndSamples.length));
+        }
+        final int timeByteCount = ((timesAndSamples[0] & 0xFF) << 24) | ((timesAndSamples[1] & 0xFF) << 16) |
+                                  ((timesAndSamples[2] & 0xFF) << 8) | (timesAndSamples[3] & 0xFF);
+        if (timeByteCount < 0 || 4 + timeByteCount > timesAndSamples.length) {
+            throw new IllegalStateException(String.format("Invalid timeByteCount %d for timesAndSamples of %d bytes", timeByteCount, timesAndSamples.length));
+        }
+        return new TimeBytesAndSampleBytes(timesAndSamples, 4, timeByteCount, timesAndSamples, 4 + timeByteCount, timesAndSamples.length - 4 - timeByteCount);
+    }
 
     public TimeBytesAndSampleBytes(final byte[] timeBytes, final byte[] sampleBytes) {
+        this(timeBytes, 0, timeBytes.length, sampleBytes, 0, sampleBytes.length);
+    }
+
+    public TimeBytesAndSampleBytes(final byte[] timeBytes, final int timeBytesOffset, final int timeBytesLength,
+                                   final byte[] sampleBytes, final int sampleBytesOffset, final int sampleBytesLength) {
         this.timeBytes = timeBytes;
+        this.timeBytesOffset = timeBytesOffset;
+        this.timeBytesLength = timeBytesLength;
         this.sampleBytes = sampleBytes;
+        this.sampleBytesOffset = sampleBytesOffset;
+        this.sampleBytesLength = sampleBytesLength;
     }
 
+    @JsonProperty
+    @JsonView(TimelineChunksViews.Compact.class)
     public byte[] getTimeBytes() {
-        return timeBytes;
+        return copyOf(timeBytes, timeBytesOffset, timeBytesLength);
     }
 
+    @JsonProperty
+    @JsonView(TimelineChunksViews.Compact.class)
     public byte[] getSampleBytes() {
-        return sampleBytes;
+        return copyOf(sampleBytes, sampleBytesOffset, sampleBytesLength);
+    }
+
+    /**
+     * @return a view over the time bytes
+     */
+    @JsonIgnore
+    public ByteBuffer getTimeBuffer() {
+        return ByteBuffer.wrap(timeBytes, timeBytesOffset, timeBytesLength).slice();
+    }
+
+    /**
+     * @return a view over the sample bytes
+     */
+    @JsonIgnore
+    public ByteBuffer getSampleBuffer() {
+        return ByteBuffer.wrap(sampleBytes, sampleBytesOffset, sampleBytesLength).slice();
+    }
+
+    @JsonIgnore
+    public int getTimeBytesLength() {
+        return timeBytesLength;
+    }
+
+    @JsonIgnore
+    public int getSampleBytesLength() {
+        return sampleBytesLength;
+    }
+
+    private static byte[] copyOf(final byte[] bytes, final int offset, final int length) {
+        if (offset == 0 && length == bytes.length) {
+            return bytes;
+        }
+        return Arrays.copyOfRange(bytes, offset, offset + length);
     }
 
     @Override
     public String toString() {
         final StringBuilder sb = new StringBuilder();
         sb.append("TimeBytesAndSampleBytes");
-        sb.append("{timeBytes=").append(timeBytes == null ? "null" : "");
-        for (int i = 0; timeBytes != null && i < timeBytes.length; ++i) {
-            sb.append(i == 0 ? "" : ", ").append(timeBytes[i]);
+        sb.append("{timeBytes=");
+        for (int i = 0; i < timeBytesLength; ++i) {
+            sb.append(i == 0 ? "" : ", ").append(timeBytes[timeBytesOffset + i]);
         }
-        sb.append(", sampleBytes=").append(sampleBytes == null ? "null" : "");
-        for (int i = 0; sampleBytes != null && i < sampleBytes.length; ++i) {
-            sb.append(i == 0 ? "" : ", ").append(sampleBytes[i]);
+        sb.append(", sampleBytes=");
+        for (int i = 0; i < sampleBytesLength; ++i) {
+            sb.append(i == 0 ? "" : ", ").append(sampleBytes[sampleBytesOffset + i]);
         }
         sb.append('}');
         return sb.toString();
@@ -74,10 +141,10 @@ public class TimeBytesAndSampleBytes {
 
         final TimeBytesAndSampleBytes that = (TimeBytesAndSampleBytes) o;
 
-        if (!Arrays.equals(sampleBytes, that.sampleBytes)) {
+        if (!getSampleBuffer().equals(that.getSampleBuffer())) {
             return false;
         }
-        if (!Arrays.equals(timeBytes, that.timeBytes)) {
+        if (!getTimeBuffer().equals(that.getTimeBuffer())) {
             return false;
         }
 
@@ -86,8 +153,8 @@ public class TimeBytesAndSampleBytes {
 
     @Override
     public int hashCode() {
-        int result = timeBytes != null ? Arrays.hashCode(timeBytes) : 0;
-        result = 31 * result + (sampleBytes != null ? Arrays.hashCode(sampleBytes) : 0);
+        int result = getTimeBuffer().hashCode();
+        result = 31 * result + getSampleBuffer().hashCode();
         return result;
     }
 }
@@ -17,8 +17,12 @@
 
 package org.killbill.billing.plugin.meter.timeline.chunks;
 
+import javax.annotation.Nullable;
+
 import org.joda.time.DateTime;
+import org.killbill.billing.plugin.meter.timeline.util.DateTimeUtils;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.annotation.JsonView;
 
@@ -26,6 +30,12 @@ import com.fasterxml.jackson.annotation.JsonView;
  * Instances of this class represent timeline sequences read from the database
  * for a single source and single metric.  The samples are held in a byte
  * array.
+ * <p/>
+ * Chunks read from the database only hold the start and end times as unix seconds,
+ * the DateTime instances are created on first use.
+ * <p/>
+ * Large aggregated chunks may also carry a TimelineSkipIndex.  It is derived from the times and
+ * samples, hence not part of equals() and hashCode().
  */
 public class TimelineChunk {
 
@@ -38,12 +48,10 @@ public class TimelineChunk {
     @JsonProperty
     @JsonView(TimelineChunksViews.Base.class)
     private final int metricId;
-    @JsonProperty
-    @JsonView(TimelineChunksViews.Compact.class)
-    private final DateTime startTime;
-    @JsonProperty
-    @JsonView(TimelineChunksViews.Compact.class)
-    private final DateTime endTime;
+    private final int startTimeSeconds;
+    private final int endTimeSeconds;
+    private DateTime startTime;
+    private DateTime endTime;
     @JsonProperty
     @JsonView(TimelineChunksViews.Compact.class)
     private final TimeBytesAndSampleBytes timeBytesAndSampleBytes;
@@ -59,6 +67,7 @@ public class TimelineChunk {
     @JsonProperty
     @JsonView(TimelineChunksViews.Compact.class)
     private final boolean dontAggregate;
+    private final TimelineSkipIndex skipIndex;
 
     public TimelineChunk(final long chunkId, final int sourceId, final int metricId, final DateTime startTime, final DateTime endTime,
                          final byte[] times, final byte[] samples, final int sampleCount) {
@@ -73,21 +82,38 @@ public class TimelineChunk {
 
     public TimelineChunk(final long chunkId, final int sourceId, final int metricId, final DateTime startTime, final DateTime endTime,
                          final TimeBytesAndSampleBytes timeBytesAndSampleBytes, final int sampleCount, final int aggregationLevel, final boolean notValid, final boolean dontAggregate) {
+        this(chunkId, sourceId, metricId, DateTimeUtils.unixSeconds(startTime), DateTimeUtils.unixSeconds(endTime), timeBytesAndSampleBytes, sampleCount,
+             aggregationLevel, notValid, dontAggregate);
+        this.startTime = startTime;
+        this.endTime = endTime;
+    }
+
+    public TimelineChunk(final long chunkId, final int sourceId, final int metricId, final int startTimeSeconds, final int endTimeSeconds,
+                         final TimeBytesAndSampleBytes timeBytesAndSampleBytes, final int sampleCount, final int aggregationLevel, final boolean notValid, final boolean dontAggregate) {
+        this(chunkId, sourceId, metricId, startTimeSeconds, endTimeSeconds, timeBytesAndSampleBytes, sampleCount, aggregationLevel, notValid, dontAggregate, null);
+    }
+
+    public TimelineChunk(final long chunkId, final int sourceId, final int metricId, final int startTimeSeconds, final int endTimeSeconds,
+                         final TimeBytesAndSampleBytes timeBytesAndSampleBytes, final int sampleCount, final int aggregationLevel, final boolean notValid, final boolean dontAggregate,
+                         @Nullable final TimelineSkipIndex skipIndex) {
         this.chunkId = chunkId;
         this.sourceId = sourceId;
         this.metricId = metricId;
-        this.startTime = startTime;
-        this.endTime = endTime;
+        this.startTimeSeconds = startTimeSeconds;
+        this.endTimeSeconds = endTimeSeconds;
         this.timeBytesAndSampleBytes = timeBytesAndSampleBytes;
         this.sampleCount = sampleCount;
         this.aggregationLevel = aggregationLevel;
         this.notValid = notValid;
         this.dontAggregate = dontAggregate;
+        this.skipIndex = skipIndex;
     }
 
     public TimelineChunk(final long chunkId, final TimelineChunk other) {
-        this(chunkId, other.getSourceId(), other.getMetricId(), other.getStartTime(), other.getEndTime(), other.getTimeBytesAndSampleBytes(),
-             other.getSampleCount(), other.getAggregationLevel(), other.getNotValid(), other.getDontAggregate());
+        this(chunkId, other.getSourceId(), other.getMetricId(), other.getStartTimeSeconds(), other.getEndTimeSeconds(), other.getTimeBytesAndSampleBytes(),
+             other.getSampleCount(), other.getAggregationLevel(), other.getNotValid(), other.getDontAggregate(), other.getSkipIndex());
+        this.startTime = other.startTime;
+        this.endTime = other.endTime;
     }
 
     public long getChunkId() {
@@ -102,14 +128,35 @@ public class TimelineChunk {
         return metricId;
     }
 
+    // Racy but harmless: DateTime instances are immutable
+    @JsonProperty
+    @JsonView(TimelineChunksViews.Compact.class)
     public DateTime getStartTime() {
+        if (startTime == null) {
+            startTime = DateTimeUtils.dateTimeFromUnixSeconds(startTimeSeconds);
+        }
         return startTime;
     }
 
+    @JsonProperty
+    @JsonView(TimelineChunksViews.Compact.class)
     public DateTime getEndTime() {
+        if (endTime == null) {
+            endTime = DateTimeUtils.dateTimeFromUnixSeconds(endTimeSeconds);
+        }
         return endTime;
     }
 
+    @JsonIgnore
+    public int getStartTimeSeconds() {
+        return startTimeSeconds;
+    }
+
+    @JsonIgnore
+    public int getEndTimeSeconds() {
+        return endTimeSeconds;
+    }
+
     public TimeBytesAndSampleBytes getTimeBytesAndSampleBytes() {
         return timeBytesAndSampleBytes;
     }
@@ -130,6 +177,12 @@ public class TimelineChunk {
         return dontAggregate;
     }
 
+    @JsonIgnore
+    @Nullable
+    public TimelineSkipIndex getSkipIndex() {
+        return skipIndex;
+    }
+
     @Override
     public String toString() {
         final StringBuilder sb = new StringBuilder();
@@ -137,13 +190,14 @@ public class TimelineChunk {
         sb.append("{chunkId=").append(chunkId);
         sb.append(", sourceId=").append(sourceId);
         sb.append(", metricId=").append(metricId);
-        sb.append(", startTime=").append(startTime);
-        sb.append(", endTime=").append(endTime);
+        sb.append(", startTime=").append(getStartTime());
+        sb.append(", endTime=").append(getEndTime());
         sb.append(", timeBytesAndSampleBytes=").append(timeBytesAndSampleBytes);
         sb.append(", sampleCount=").append(sampleCount);
         sb.append(", aggregationLevel=").append(aggregationLevel);
         sb.append(", notValid=").append(notValid);
         sb.append(", dontAggregate=").append(dontAggregate);
+        sb.append(", skipIndex=").append(skipIndex);
         sb.append('}');
         return sb.toString();
     }
@@ -180,10 +234,10 @@ public class TimelineChunk {
         if (sourceId != that.sourceId) {
             return false;
         }
-        if (endTime != null ? !endTime.equals(that.endTime) : that.endTime != null) {
+        if (!getEndTime().equals(that.getEndTime())) {
             return false;
         }
-        if (startTime != null ? !startTime.equals(that.startTime) : that.startTime != null) {
+        if (!getStartTime().equals(that.getStartTime())) {
             return false;
         }
         if (timeBytesAndSampleBytes != null ? !timeBytesAndSampleBytes.equals(that.timeBytesAndSampleBytes) : that.timeBytesAndSampleBytes != null) {
@@ -198,8 +252,8 @@ public class TimelineChunk {
         int result = (int) (chunkId ^ (chunkId >>> 32));
         result = 31 * result + sourceId;
         result = 31 * result + metricId;
-        result = 31 * result + (startTime != null ? startTime.hashCode() : 0);
-        result = 31 * result + (endTime != null ? endTime.hashCode() : 0);
+        result = 31 * result + getStartTime().hashCode();
+        result = 31 * result + getEndTime().hashCode();
         result = 31 * result + (timeBytesAndSampleBytes != null ? timeBytesAndSampleBytes.hashCode() : 0);
         result = 31 * result + sampleCount;
         result = 31 * result + aggregationLevel;
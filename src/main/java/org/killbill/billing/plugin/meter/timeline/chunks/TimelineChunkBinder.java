@@ -26,7 +26,6 @@ import java.sql.Types;
 
 import org.killbill.billing.plugin.meter.timeline.chunks.TimelineChunkBinder.TimelineChunkBinderFactory;
 import org.killbill.billing.plugin.meter.timeline.codec.TimesAndSamplesCoder;
-import org.killbill.billing.plugin.meter.timeline.util.DateTimeUtils;
 import org.skife.jdbi.v2.SQLStatement;
 import org.skife.jdbi.v2.sqlobject.Binder;
 import org.skife.jdbi.v2.sqlobject.BinderFactory;
@@ -46,21 +45,28 @@ public @interface TimelineChunkBinder {
         // Past this threshold, data is stored as a BLOB.
         private static final int MAX_IN_ROW_BLOB_SIZE = 400;
 
+        // Statement attribute (see TimelineSqlDao): size in bytes past which timesAndSamples are compressed, 0 to disable
+        public static final String COMPRESSION_THRESHOLD = "compressionThreshold";
+
         public Binder build(final Annotation annotation) {
             return new Binder<TimelineChunkBinder, TimelineChunk>() {
                 public void bind(final SQLStatement query, final TimelineChunkBinder binder, final TimelineChunk timelineChunk) {
                     query.bind("sourceRecordId", timelineChunk.getSourceId())
                          .bind("metricRecordId", timelineChunk.getMetricId())
                          .bind("sampleCount", timelineChunk.getSampleCount())
-                         .bind("startTime", DateTimeUtils.unixSeconds(timelineChunk.getStartTime()))
-                         .bind("endTime", DateTimeUtils.unixSeconds(timelineChunk.getEndTime()))
+                         .bind("startTime", timelineChunk.getStartTimeSeconds())
+                         .bind("endTime", timelineChunk.getEndTimeSeconds())
                          .bind("aggregationLevel", timelineChunk.getAggregationLevel())
                          .bind("notValid", timelineChunk.getNotValid() ? 1 : 0)
                          .bind("dontAggregate", timelineChunk.getDontAggregate() ? 1 : 0);
 
                     final byte[] times = timelineChunk.getTimeBytesAndSampleBytes().getTimeBytes();
                     final byte[] samples = timelineChunk.getTimeBytesAndSampleBytes().getSampleBytes();
-                    final byte[] timesAndSamples = TimesAndSamplesCoder.combineTimesAndSamples(times, samples);
+                    byte[] timesAndSamples = TimesAndSamplesCoder.combineTimesAndSamples(times, samples);
+                    final Object compressionThreshold = query.getContext().getAttribute(COMPRESSION_THRESHOLD);
+                    if (compressionThreshold != null && (Integer) compressionThreshold > 0 && timesAndSamples.length > (Integer) compressionThreshold) {
+                        timesAndSamples = TimesAndSamplesCoder.compress(timesAndSamples);
+                    }
                     if (timelineChunk.getChunkId() == 0) {
                         query.bindNull("chunkId", Types.BIGINT);
                     } else {
@@ -74,6 +80,13 @@ public @interface TimelineChunkBinder {
                         query.bind("inRowSamples", timesAndSamples)
                              .bindNull("blobSamples", Types.BLOB);
                     }
+
+                    final TimelineSkipIndex skipIndex = timelineChunk.getSkipIndex();
+                    if (skipIndex == null) {
+                        query.bindNull("skipIndex", Types.BLOB);
+                    } else {
+                        query.bind("skipIndex", skipIndex.toBytes());
+                    }
                 }
             };
         }
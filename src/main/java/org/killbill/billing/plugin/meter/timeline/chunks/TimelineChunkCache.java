@@ -0,0 +1,113 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.timeline.chunks;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+import org.killbill.billing.plugin.meter.MeterConfig;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.Weigher;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+/**
+ * Weight-bounded cache of the TimelineChunks read from the database, keyed by chunk record id.
+ * <p/>
+ * Stored chunks are immutable: the aggregator replaces them with new chunks (new record ids), so entries never
+ * need to be refreshed. The aggregator still invalidates the chunks it deletes or invalidates, to free their space.
+ */
+@Singleton
+public class TimelineChunkCache {
+
+    // Rough size of a TimelineChunk and of the cache entry, without the bytes
+    private static final int ENTRY_OVERHEAD_BYTES = 200;
+
+    private final Cache<Long, TimelineChunk> cache;
+
+    @Inject
+    public TimelineChunkCache(final MeterConfig config) {
+        this(config.getChunkCacheMaxBytes());
+    }
+
+    /**
+     * @param maxBytes max size of the cached chunks, 0 to disable the cache
+     */
+    public TimelineChunkCache(final long maxBytes) {
+        if (maxBytes <= 0) {
+            this.cache = null;
+        } else {
+            this.cache = CacheBuilder.newBuilder()
+                                     .maximumWeight(maxBytes)
+                                     .weigher(new Weigher<Long, TimelineChunk>() {
+                                         @Override
+                                         public int weigh(final Long chunkId, final TimelineChunk chunk) {
+                                             final TimeBytesAndSampleBytes bytes = chunk.getTimeBytesAndSampleBytes();
+                                             final int skipIndexBytes = chunk.getSkipIndex() == null ? 0 : chunk.getSkipIndex().getSizeInBytes();
+                                             return bytes.getTimeBytesLength() + bytes.getSampleBytesLength() + skipIndexBytes + ENTRY_OVERHEAD_BYTES;
+                                         }
+                                     })
+                                     .recordStats()
+                                     .build();
+        }
+    }
+
+    public boolean isEnabled() {
+        return cache != null;
+    }
+
+    @Nullable
+    public TimelineChunk getIfPresent(final long chunkId) {
+        return cache == null ? null : cache.getIfPresent(chunkId);
+    }
+
+    public void put(final TimelineChunk chunk) {
+        if (cache != null) {
+            cache.put(chunk.getChunkId(), chunk);
+        }
+    }
+
+    public void invalidate(final Iterable<Long> chunkIds) {
+        if (cache != null) {
+            cache.invalidateAll(chunkIds);
+        }
+    }
+
+    public void invalidateAll() {
+        if (cache != null) {
+            cache.invalidateAll();
+        }
+    }
+
+    public Map<String, Object> getStats() {
+        final Map<String, Object> stats = new LinkedHashMap<String, Object>();
+        final CacheStats cacheStats = cache == null ? new CacheStats(0, 0, 0, 0, 0, 0) : cache.stats();
+        stats.put("enabled", isEnabled());
+        stats.put("hitCount", cacheStats.hitCount());
+        stats.put("missCount", cacheStats.missCount());
+        stats.put("hitRate", cacheStats.hitRate());
+        stats.put("evictionCount", cacheStats.evictionCount());
+        stats.put("entries", cache == null ? 0L : cache.size());
+        return stats;
+    }
+}
@@ -17,45 +17,48 @@
 
 package org.killbill.billing.plugin.meter.timeline.chunks;
 
-import java.sql.Blob;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 
-import org.joda.time.DateTime;
 import org.killbill.billing.plugin.meter.timeline.codec.TimesAndSamplesCoder;
-import org.killbill.billing.plugin.meter.timeline.util.DateTimeUtils;
 import org.skife.jdbi.v2.StatementContext;
 import org.skife.jdbi.v2.tweak.ResultSetMapper;
 
 /**
  * jdbi mapper for TimelineChunk
+ * <p/>
+ * The times and samples are read as a single array, the TimelineChunk only holds views over it.
  */
 public class TimelineChunkMapper implements ResultSetMapper<TimelineChunk> {
 
+    private static final byte[] EMPTY_TIMES_AND_SAMPLES = new byte[4];
+
     @Override
     public TimelineChunk map(final int index, final ResultSet rs, final StatementContext ctx) throws SQLException {
         final int chunkId = rs.getInt("record_id");
         final int sourceId = rs.getInt("source_record_id");
         final int metricId = rs.getInt("metric_record_id");
         final int sampleCount = rs.getInt("sample_count");
-        final DateTime startTime = DateTimeUtils.dateTimeFromUnixSeconds(rs.getInt("start_time"));
-        final DateTime endTime = DateTimeUtils.dateTimeFromUnixSeconds(rs.getInt("end_time"));
+        final int startTime = rs.getInt("start_time");
+        final int endTime = rs.getInt("end_time");
         final int aggregationLevel = rs.getInt("aggregation_level");
         final boolean notValid = rs.getInt("not_valid") == 0 ? false : true;
         final boolean dontAggregate = rs.getInt("dont_aggregate") == 0 ? false : true;
 
         byte[] samplesAndTimes = rs.getBytes("in_row_samples");
         if (rs.wasNull()) {
-            final Blob blobSamples = rs.getBlob("blob_samples");
+            // Avoid the Blob locator: the drivers materialize the column in a single array
+            samplesAndTimes = rs.getBytes("blob_samples");
             if (rs.wasNull()) {
-                samplesAndTimes = new byte[4];
-            } else {
-                samplesAndTimes = blobSamples.getBytes(1, (int) blobSamples.length());
+                samplesAndTimes = EMPTY_TIMES_AND_SAMPLES;
             }
         }
 
-        final TimeBytesAndSampleBytes bytesPair = TimesAndSamplesCoder.getTimesBytesAndSampleBytes(samplesAndTimes);
+        final byte[] skipIndexBytes = rs.getBytes("skip_index");
+        final TimelineSkipIndex skipIndex = rs.wasNull() ? null : TimelineSkipIndex.fromBytes(skipIndexBytes);
+
+        final TimeBytesAndSampleBytes bytesPair = TimeBytesAndSampleBytes.fromTimesAndSamples(TimesAndSamplesCoder.decompress(samplesAndTimes));
         return new TimelineChunk(chunkId, sourceId, metricId, startTime, endTime, bytesPair, sampleCount,
-                                 aggregationLevel, notValid, dontAggregate);
+                                 aggregationLevel, notValid, dontAggregate, skipIndex);
     }
 }
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.timeline.chunks;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+
+/**
+ * Client side decoder for streams produced by TimelineChunksFrameWriter (see the format there).
+ * <p/>
+ * Usage:
+ * <pre>
+ * final TimelineChunksFrameReader reader = new TimelineChunksFrameReader(inputStream);
+ * TimelineChunk chunk;
+ * while ((chunk = reader.readChunk()) != null) {
+ *     sampleCoder.scan(chunk, processor);
+ * }
+ * </pre>
+ */
+public class TimelineChunksFrameReader {
+
+    private final DataInputStream input;
+
+    private boolean headerRead = false;
+    private boolean endOfStream = false;
+
+    public TimelineChunksFrameReader(final InputStream input) {
+        this.input = new DataInputStream(input);
+    }
+
+    /**
+     * @return the next chunk, or null once the trailer has been read
+     * @throws IOException if the stream is malformed or truncated
+     */
+    public TimelineChunk readChunk() throws IOException {
+        if (!headerRead) {
+            readHeader();
+        }
+        if (endOfStream) {
+            return null;
+        }
+
+        final byte marker = input.readByte();
+        if (marker == TimelineChunksFrameWriter.END_OF_STREAM) {
+            endOfStream = true;
+            return null;
+        } else if (marker != TimelineChunksFrameWriter.CHUNK_FRAME) {
+            throw new IOException(String.format("Unexpected frame marker %d", marker));
+        }
+
+        final long chunkId = input.readLong();
+        final int sourceId = input.readInt();
+        final int metricId = input.readInt();
+        final DateTime startTime = new DateTime(input.readLong(), DateTimeZone.UTC);
+        final DateTime endTime = new DateTime(input.readLong(), DateTimeZone.UTC);
+        final int sampleCount = input.readInt();
+        final int aggregationLevel = input.readInt();
+        final byte flags = input.readByte();
+        final byte[] timeBytes = readBytes();
+        final byte[] sampleBytes = readBytes();
+
+        return new TimelineChunk(chunkId, sourceId, metricId, startTime, endTime, new TimeBytesAndSampleBytes(timeBytes, sampleBytes), sampleCount, aggregationLevel,
+                                 (flags & TimelineChunksFrameWriter.FLAG_NOT_VALID) != 0, (flags & TimelineChunksFrameWriter.FLAG_DONT_AGGREGATE) != 0);
+    }
+
+    private void readHeader() throws IOException {
+        final byte[] magic = new byte[TimelineChunksFrameWriter.MAGIC.length];
+        input.readFully(magic);
+        if (!Arrays.equals(magic, TimelineChunksFrameWriter.MAGIC)) {
+            throw new IOException("Not a timeline chunks stream");
+        }
+        final byte version = input.readByte();
+        if (version != TimelineChunksFrameWriter.VERSION) {
+            throw new IOException(String.format("Unsupported timeline chunks stream version %d", version));
+        }
+        headerRead = true;
+    }
+
+    private byte[] readBytes() throws IOException {
+        final int length = input.readInt();
+        if (length < 0) {
+            throw new IOException(String.format("Invalid length %d", length));
+        }
+        final byte[] bytes = new byte[length];
+        input.readFully(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.timeline.chunks;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Writes TimelineChunks as they are stored, without decoding them (see TimelineChunksFrameReader for the client side).
+ * <p/>
+ * All numbers are big-endian (java.io.DataOutput). The stream is:
+ * <ul>
+ * <li>header: the 4 bytes "KBMC", then the format version (1 byte, currently 1)</li>
+ * <li>zero or more chunk frames, each starting with the byte 1:
+ * <ul>
+ * <li>chunk id (long, 0 for chunks not yet persisted)</li>
+ * <li>source id (int), metric id (int)</li>
+ * <li>start time and end time (long each, milliseconds since the epoch, UTC)</li>
+ * <li>sample count (int), aggregation level (int)</li>
+ * <li>flags (byte): 0x01 if not valid, 0x02 if it shouldn't be aggregated</li>
+ * <li>time bytes length (int) followed by the time bytes</li>
+ * <li>sample bytes length (int) followed by the sample bytes</li>
+ * </ul>
+ * </li>
+ * <li>trailer: the byte 0</li>
+ * </ul>
+ * Time and sample bytes can be decoded with DefaultSampleCoder#scan.
+ */
+public class TimelineChunksFrameWriter {
+
+    static final byte[] MAGIC = new byte[]{'K', 'B', 'M', 'C'};
+    static final byte VERSION = 1;
+    static final byte CHUNK_FRAME = 1;
+    static final byte END_OF_STREAM = 0;
+    static final byte FLAG_NOT_VALID = 0x01;
+    static final byte FLAG_DONT_AGGREGATE = 0x02;
+
+    private final DataOutputStream output;
+
+    public TimelineChunksFrameWriter(final OutputStream output) {
+        this.output = new DataOutputStream(output);
+    }
+
+    public void writeHeader() throws IOException {
+        output.write(MAGIC);
+        output.writeByte(VERSION);
+    }
+
+    public void writeChunk(final TimelineChunk chunk) throws IOException {
+        output.writeByte(CHUNK_FRAME);
+        output.writeLong(chunk.getChunkId());
+        output.writeInt(chunk.getSourceId());
+        output.writeInt(chunk.getMetricId());
+        output.writeLong(chunk.getStartTime().getMillis());
+        output.writeLong(chunk.getEndTime().getMillis());
+        output.writeInt(chunk.getSampleCount());
+        output.writeInt(chunk.getAggregationLevel());
+        output.writeByte((chunk.getNotValid() ? FLAG_NOT_VALID : 0) | (chunk.getDontAggregate() ? FLAG_DONT_AGGREGATE : 0));
+        writeBytes(chunk.getTimeBytesAndSampleBytes().getTimeBuffer());
+        writeBytes(chunk.getTimeBytesAndSampleBytes().getSampleBuffer());
+    }
+
+    public void writeTrailer() throws IOException {
+        output.writeByte(END_OF_STREAM);
+        output.flush();
+    }
+
+    private void writeBytes(final ByteBuffer bytes) throws IOException {
+        output.writeInt(bytes.remaining());
+        output.write(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining());
+    }
+}
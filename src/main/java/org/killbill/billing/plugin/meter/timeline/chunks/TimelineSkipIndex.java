@@ -0,0 +1,173 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.timeline.chunks;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Sparse index over the times and samples of a (large, aggregated) timeline chunk, used to
+ * seek close to the start of a time range instead of decoding the chunk from its first sample.
+ * <p/>
+ * Each entry is taken at a sample opcode boundary and holds the number of samples before it, the offset
+ * of that opcode in the sample bytes and the state of the time cursor at that point: the offset in the
+ * time bytes, the time of the previous sample and the remainder of the repeated delta run being decoded, if any.
+ * Times in a timeline are non-decreasing, so all samples before an entry are at or before its time.
+ */
+public class TimelineSkipIndex {
+
+    private static final int ENTRY_INTS = 6;
+    private static final int SAMPLE_NUMBER = 0;
+    private static final int SAMPLE_BYTE_OFFSET = 1;
+    private static final int TIME_BYTE_OFFSET = 2;
+    private static final int LAST_TIME = 3;
+    private static final int DELTA = 4;
+    private static final int REPEAT_COUNT = 5;
+
+    private final int[] entries;
+
+    public static TimelineSkipIndex fromBytes(final byte[] bytes) {
+        if (bytes.length % (ENTRY_INTS * 4) != 0) {
+            throw new IllegalStateException(String.format("Invalid skip index of %d bytes", bytes.length));
+        }
+        final int[] entries = new int[bytes.length / 4];
+        ByteBuffer.wrap(bytes).asIntBuffer().get(entries);
+        return new TimelineSkipIndex(entries);
+    }
+
+    public TimelineSkipIndex(final int[] entries) {
+        if (entries.length % ENTRY_INTS != 0) {
+            throw new IllegalArgumentException(String.format("Invalid skip index of %d ints", entries.length));
+        }
+        this.entries = entries;
+    }
+
+    public static class Builder {
+
+        private int[] entries = new int[ENTRY_INTS * 16];
+        private int size = 0;
+
+        public Builder addEntry(final int sampleNumber, final int sampleByteOffset, final int timeByteOffset,
+                                final int lastTime, final int delta, final int repeatCount) {
+            if (size + ENTRY_INTS > entries.length) {
+                entries = Arrays.copyOf(entries, entries.length * 2);
+            }
+            entries[size + SAMPLE_NUMBER] = sampleNumber;
+            entries[size + SAMPLE_BYTE_OFFSET] = sampleByteOffset;
+            entries[size + TIME_BYTE_OFFSET] = timeByteOffset;
+            entries[size + LAST_TIME] = lastTime;
+            entries[size + DELTA] = delta;
+            entries[size + REPEAT_COUNT] = repeatCount;
+            size += ENTRY_INTS;
+            return this;
+        }
+
+        public int getEntryCount() {
+            return size / ENTRY_INTS;
+        }
+
+        public TimelineSkipIndex build() {
+            return new TimelineSkipIndex(Arrays.copyOf(entries, size));
+        }
+    }
+
+    public byte[] toBytes() {
+        final ByteBuffer buffer = ByteBuffer.allocate(entries.length * 4);
+        buffer.asIntBuffer().put(entries);
+        return buffer.array();
+    }
+
+    public int getSizeInBytes() {
+        return entries.length * 4;
+    }
+
+    public int getEntryCount() {
+        return entries.length / ENTRY_INTS;
+    }
+
+    /**
+     * @param unixSeconds start of the time range
+     * @return the last entry whose previous sample is strictly before unixSeconds, -1 if none
+     */
+    public int findEntry(final int unixSeconds) {
+        int low = 0;
+        int high = getEntryCount() - 1;
+        int found = -1;
+        while (low <= high) {
+            final int middle = (low + high) >>> 1;
+            if (getLastTime(middle) < unixSeconds) {
+                found = middle;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return found;
+    }
+
+    public int getSampleNumber(final int entry) {
+        return entries[entry * ENTRY_INTS + SAMPLE_NUMBER];
+    }
+
+    public int getSampleByteOffset(final int entry) {
+        return entries[entry * ENTRY_INTS + SAMPLE_BYTE_OFFSET];
+    }
+
+    public int getTimeByteOffset(final int entry) {
+        return entries[entry * ENTRY_INTS + TIME_BYTE_OFFSET];
+    }
+
+    public int getLastTime(final int entry) {
+        return entries[entry * ENTRY_INTS + LAST_TIME];
+    }
+
+    public int getDelta(final int entry) {
+        return entries[entry * ENTRY_INTS + DELTA];
+    }
+
+    public int getRepeatCount(final int entry) {
+        return entries[entry * ENTRY_INTS + REPEAT_COUNT];
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder();
+        sb.append("TimelineSkipIndex");
+        sb.append("{entryCount=").append(getEntryCount());
+        sb.append('}');
+        return sb.toString();
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+
+        final TimelineSkipIndex that = (TimelineSkipIndex) o;
+        return Arrays.equals(entries, that.entries);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(entries);
+    }
+}
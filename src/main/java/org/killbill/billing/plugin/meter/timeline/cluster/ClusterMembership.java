@@ -0,0 +1,219 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.timeline.cluster;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+
+import org.joda.time.DateTime;
+import org.killbill.billing.plugin.meter.MeterConfig;
+import org.killbill.billing.plugin.meter.timeline.util.DateTimeUtils;
+import org.killbill.clock.Clock;
+import org.skife.jdbi.v2.IDBI;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+/**
+ * This class keeps track of the nodes of the cluster, when config.getClusterEnabled() (or
+ * config.getAggregationLeasesEnabled(), see AggregationLeaseManager) is true.
+ * <p/>
+ * Every config.getClusterHeartbeatInterval(), each node records its heartbeat (and its address) in the
+ * meter_nodes table, and reads back the nodes whose last heartbeat is more recent than
+ * config.getClusterNodeTimeout(). The ownership of the sources is derived from that list of live nodes,
+ * by consistent hashing (see ConsistentHashRing): as all nodes read the same table, they agree on the
+ * owner of each source, except for a heartbeat interval or so after a node joins or leaves the cluster.
+ * <p/>
+ * If the table can't be read, the last known list of nodes is kept. Until the first heartbeat, the ring
+ * is empty and this node considers itself the owner of all sources.
+ */
+@Singleton
+public class ClusterMembership {
+
+    private static final Logger log = LoggerFactory.getLogger(ClusterMembership.class);
+
+    static final int VIRTUAL_NODES = 64;
+
+    private final MeterConfig config;
+    private final ClusterSqlDao clusterSqlDao;
+    private final Clock clock;
+    private final String nodeId;
+
+    private final ScheduledExecutorService heartbeatThread = Executors.newSingleThreadScheduledExecutor();
+
+    private final Map<String, AtomicLong> clusterCounters = new LinkedHashMap<String, AtomicLong>();
+
+    private final AtomicLong heartbeats = makeCounter("heartbeats");
+    private final AtomicLong heartbeatFailures = makeCounter("heartbeatFailures");
+    private final AtomicLong membershipChanges = makeCounter("membershipChanges");
+
+    private volatile ConsistentHashRing ring = new ConsistentHashRing(ImmutableList.<String>of(), VIRTUAL_NODES);
+    private volatile Map<String, String> nodeAddresses = ImmutableMap.<String, String>of();
+
+    @Inject
+    public ClusterMembership(final IDBI dbi, final MeterConfig config, final Clock clock) {
+        this(dbi.onDemand(ClusterSqlDao.class), config, clock);
+    }
+
+    @VisibleForTesting
+    ClusterMembership(final ClusterSqlDao clusterSqlDao, final MeterConfig config, final Clock clock) {
+        this.config = config;
+        this.clusterSqlDao = clusterSqlDao;
+        this.clock = clock;
+        this.nodeId = Strings.isNullOrEmpty(config.getClusterNodeId()) ? UUID.randomUUID().toString() : config.getClusterNodeId();
+    }
+
+    public boolean isEnabled() {
+        return config.getClusterEnabled();
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    /**
+     * @return the id of the node owning that source, null if the cluster membership isn't known yet
+     */
+    @Nullable
+    public String getOwner(@Nullable final UUID tenantId, final String source) {
+        return ring.getOwner(ConsistentHashRing.getKey(tenantId, source));
+    }
+
+    public boolean isOwner(@Nullable final UUID tenantId, final String source) {
+        final String owner = getOwner(tenantId, source);
+        return owner == null || nodeId.equals(owner);
+    }
+
+    /**
+     * @return the base URL of that node, null if it is not part of the cluster anymore
+     */
+    @Nullable
+    public String getNodeAddress(final String otherNodeId) {
+        return nodeAddresses.get(otherNodeId);
+    }
+
+    /**
+     * @return the number of live nodes, including this one
+     */
+    public int getLiveNodeCount() {
+        return Math.max(1, ring.getNodeIds().size());
+    }
+
+    public void heartbeat() {
+        heartbeat(clock.getUTCNow());
+    }
+
+    public void heartbeat(final DateTime now) {
+        heartbeats.incrementAndGet();
+        try {
+            final int nowSeconds = DateTimeUtils.unixSeconds(now);
+            if (clusterSqlDao.updateNodeHeartbeat(nodeId, config.getClusterNodeAddress(), nowSeconds) == 0) {
+                log.info("Node {} joining the cluster with address {}", nodeId, config.getClusterNodeAddress());
+                clusterSqlDao.addNode(nodeId, config.getClusterNodeAddress(), nowSeconds);
+            }
+
+            final Map<String, String> liveNodeAddresses = new HashMap<String, String>();
+            final int minHeartbeat = nowSeconds - (int) (config.getClusterNodeTimeout().getMillis() / 1000);
+            for (final Map<String, Object> row : clusterSqlDao.getLiveNodes(minHeartbeat)) {
+                liveNodeAddresses.put((String) row.get("node_id"), (String) row.get("address"));
+            }
+            // Our own heartbeat may be late, e.g. after a long GC pause
+            liveNodeAddresses.put(nodeId, config.getClusterNodeAddress());
+
+            if (!liveNodeAddresses.keySet().equals(ring.getNodeIds())) {
+                log.info("Cluster nodes changed from {} to {}", ring.getNodeIds(), liveNodeAddresses.keySet());
+                membershipChanges.incrementAndGet();
+                ring = new ConsistentHashRing(liveNodeAddresses.keySet(), VIRTUAL_NODES);
+            }
+            nodeAddresses = ImmutableMap.<String, String>copyOf(liveNodeAddresses);
+        } catch (RuntimeException e) {
+            // Keep the current view of the cluster, and try again next time
+            heartbeatFailures.incrementAndGet();
+            log.warn("Unable to record the heartbeat of node " + nodeId, e);
+        }
+    }
+
+    public void runHeartbeatThread() {
+        if (isEnabled()) {
+            checkClusterSecret(config);
+        }
+        // Join the cluster before accepting samples
+        heartbeat();
+        heartbeatThread.scheduleWithFixedDelay(new Runnable() {
+                                                   @Override
+                                                   public void run() {
+                                                       heartbeat();
+                                                   }
+                                               },
+                                               config.getClusterHeartbeatInterval().getMillis(),
+                                               config.getClusterHeartbeatInterval().getMillis(),
+                                               TimeUnit.MILLISECONDS
+                                              );
+    }
+
+    public void stopHeartbeatThread() {
+        heartbeatThread.shutdown();
+        try {
+            // Leave the cluster right away, instead of waiting for the other nodes to time us out
+            clusterSqlDao.removeNode(nodeId);
+        } catch (RuntimeException e) {
+            log.warn("Unable to remove node " + nodeId + " from the cluster", e);
+        }
+    }
+
+    /**
+     * The forwarded samples are recorded in the tenant they name: cluster mode can't run without a secret authenticating them.
+     *
+     * @param config the meter configuration
+     * @throws IllegalStateException if no cluster secret is configured
+     */
+    static void checkClusterSecret(final MeterConfig config) {
+        if (Strings.isNullOrEmpty(config.getClusterSecret())) {
+            throw new IllegalStateException("Cluster mode requires a secret, see org.killbill.billing.plugin.meter.timelines.clusterSecret");
+        }
+    }
+
+    private AtomicLong makeCounter(final String counterName) {
+        final AtomicLong counter = new AtomicLong();
+        clusterCounters.put(counterName, counter);
+        return counter;
+    }
+
+    public Map<String, Long> getClusterCounters() {
+        final Map<String, Long> counterValues = new LinkedHashMap<String, Long>();
+        for (final Map.Entry<String, AtomicLong> entry : clusterCounters.entrySet()) {
+            counterValues.put(entry.getKey(), entry.getValue().get());
+        }
+        counterValues.put("liveNodes", (long) ring.getNodeIds().size());
+        return counterValues;
+    }
+}
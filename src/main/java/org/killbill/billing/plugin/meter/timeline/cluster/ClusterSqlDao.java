@@ -0,0 +1,49 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.timeline.cluster;
+
+import java.util.List;
+import java.util.Map;
+
+import org.skife.jdbi.v2.DefaultMapper;
+import org.skife.jdbi.v2.sqlobject.Bind;
+import org.skife.jdbi.v2.sqlobject.SqlQuery;
+import org.skife.jdbi.v2.sqlobject.SqlUpdate;
+import org.skife.jdbi.v2.sqlobject.customizers.RegisterMapper;
+import org.skife.jdbi.v2.sqlobject.stringtemplate.UseStringTemplate3StatementLocator;
+
+@UseStringTemplate3StatementLocator()
+@RegisterMapper(DefaultMapper.class)
+public interface ClusterSqlDao {
+
+    @SqlUpdate
+    int updateNodeHeartbeat(@Bind("nodeId") final String nodeId,
+                            @Bind("address") final String address,
+                            @Bind("heartbeat") final int heartbeat);
+
+    @SqlUpdate
+    void addNode(@Bind("nodeId") final String nodeId,
+                 @Bind("address") final String address,
+                 @Bind("heartbeat") final int heartbeat);
+
+    @SqlQuery
+    List<Map<String, Object>> getLiveNodes(@Bind("minHeartbeat") final int minHeartbeat);
+
+    @SqlUpdate
+    void removeNode(@Bind("nodeId") final String nodeId);
+}
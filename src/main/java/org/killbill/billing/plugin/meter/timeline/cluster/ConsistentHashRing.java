@@ -0,0 +1,91 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.timeline.cluster;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.UUID;
+
+import javax.annotation.Nullable;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+/**
+ * Assigns keys (typically a tenant and a source, see getKey()) to nodes by consistent hashing:
+ * each node is placed at virtualNodes positions on a ring of 64 bit hashes, and a key belongs
+ * to the first node found clockwise from its own hash. When a node joins or leaves the cluster,
+ * only the keys of the ring segments it takes over (or gives back) change owner.
+ * <p/>
+ * Instances are immutable: the cluster membership builds a new ring whenever the list of live nodes changes.
+ */
+public class ConsistentHashRing {
+
+    private static final HashFunction HASH_FUNCTION = Hashing.murmur3_128();
+
+    private final Set<String> nodeIds;
+    private final TreeMap<Long, String> ring = new TreeMap<Long, String>();
+
+    public ConsistentHashRing(final Collection<String> nodeIds, final int virtualNodes) {
+        this.nodeIds = new TreeSet<String>(nodeIds);
+        // Iterate in a deterministic order, for all nodes to resolve hash collisions the same way
+        for (final String nodeId : this.nodeIds) {
+            for (int i = 0; i < virtualNodes; i++) {
+                final long position = hash(nodeId + "#" + i);
+                if (!ring.containsKey(position)) {
+                    ring.put(position, nodeId);
+                }
+            }
+        }
+    }
+
+    public static String getKey(@Nullable final UUID tenantId, final String source) {
+        return (tenantId == null ? "" : tenantId.toString()) + "/" + source;
+    }
+
+    /**
+     * @param key the key to look up
+     * @return the id of the node owning that key, null if the ring is empty
+     */
+    @Nullable
+    public String getOwner(final String key) {
+        if (ring.isEmpty()) {
+            return null;
+        }
+
+        // Wrap around the ring past the last position
+        final Map.Entry<Long, String> owner = ring.ceilingEntry(hash(key));
+        return owner == null ? ring.firstEntry().getValue() : owner.getValue();
+    }
+
+    public Set<String> getNodeIds() {
+        return nodeIds;
+    }
+
+    public boolean isEmpty() {
+        return nodeIds.isEmpty();
+    }
+
+    private static long hash(final String value) {
+        return HASH_FUNCTION.hashString(value, Charsets.UTF_8).asLong();
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.timeline.cluster;
+
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import javax.annotation.Nullable;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * Samples received by a node which doesn't own their source, on their way to the owner.
+ * <p/>
+ * Either samples (recordUsage) or incrementedMetrics (incrementUsage and incrementUsageAndAggregate)
+ * is set: increments are forwarded as such, to be pre-aggregated by the owner.
+ */
+public class ForwardedSamples {
+
+    private final UUID tenantId;
+    private final String userName;
+    private final String source;
+    private final String category;
+    private final long timestamp;
+    private final Map<String, Object> samples;
+    private final List<String> incrementedMetrics;
+
+    @JsonCreator
+    public ForwardedSamples(@JsonProperty("tenantId") @Nullable final UUID tenantId,
+                            @JsonProperty("userName") @Nullable final String userName,
+                            @JsonProperty("source") final String source,
+                            @JsonProperty("category") final String category,
+                            @JsonProperty("timestamp") final long timestamp,
+                            @JsonProperty("samples") @Nullable final Map<String, Object> samples,
+                            @JsonProperty("incrementedMetrics") @Nullable final List<String> incrementedMetrics) {
+        this.tenantId = tenantId;
+        this.userName = userName;
+        this.source = source;
+        this.category = category;
+        this.timestamp = timestamp;
+        this.samples = samples;
+        this.incrementedMetrics = incrementedMetrics;
+    }
+
+    @Nullable
+    public UUID getTenantId() {
+        return tenantId;
+    }
+
+    @Nullable
+    public String getUserName() {
+        return userName;
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    public String getCategory() {
+        return category;
+    }
+
+    // Millis since the epoch
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    @Nullable
+    public Map<String, Object> getSamples() {
+        return samples;
+    }
+
+    @Nullable
+    public List<String> getIncrementedMetrics() {
+        return incrementedMetrics;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder();
+        sb.append("ForwardedSamples");
+        sb.append("{tenantId=").append(tenantId);
+        sb.append(", source='").append(source).append('\'');
+        sb.append(", category='").append(category).append('\'');
+        sb.append(", timestamp=").append(timestamp);
+        sb.append(", samples=").append(samples);
+        sb.append(", incrementedMetrics=").append(incrementedMetrics);
+        sb.append('}');
+        return sb.toString();
+    }
+}
@@ -0,0 +1,283 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.timeline.cluster;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.killbill.billing.plugin.meter.MeterCallContext;
+import org.killbill.billing.plugin.meter.MeterConfig;
+import org.killbill.billing.plugin.meter.timeline.CounterPreAggregator;
+import org.killbill.billing.plugin.meter.timeline.TimelineEventHandler;
+import org.killbill.billing.util.callcontext.CallContext;
+import org.killbill.billing.util.callcontext.CallOrigin;
+import org.killbill.billing.util.callcontext.UserType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+/**
+ * In cluster mode, this class routes the samples received by a node to the owner of their source
+ * (see ClusterMembership), so that a single node accumulates (and writes the chunks of) each source.
+ * <p/>
+ * Samples for other nodes are queued, one bounded queue per owner, and forwarded in batches every
+ * config.getClusterForwardInterval() over HTTP, as JSON. The owner records them as if it had received
+ * them itself. If a batch can't be delivered, its samples are routed again the next time around, to a
+ * new owner if the cluster membership changed in the meantime. On shutdown, samples which can't be
+ * delivered are recorded locally rather than lost.
+ */
+@Singleton
+public class SampleForwarder {
+
+    // Relative to the meter endpoints
+    public static final String CLUSTER_SAMPLES = "cluster/samples";
+    public static final String HDR_CLUSTER_SECRET = "X-Meter-Cluster-Secret";
+
+    private static final Logger log = LoggerFactory.getLogger(SampleForwarder.class);
+
+    private static final int FORWARD_BATCH_SIZE = 1000;
+    private static final int HTTP_TIMEOUT_MILLIS = 5000;
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    private final ClusterMembership membership;
+    private final TimelineEventHandler timelineEventHandler;
+    private final CounterPreAggregator counterPreAggregator;
+    private final MeterConfig config;
+
+    // Samples waiting to be forwarded, per owner node id
+    private final ConcurrentMap<String, BlockingQueue<ForwardedSamples>> forwardQueues = new ConcurrentHashMap<String, BlockingQueue<ForwardedSamples>>();
+    private final ScheduledExecutorService forwardThread = Executors.newSingleThreadScheduledExecutor();
+
+    private final Map<String, AtomicLong> forwarderCounters = new LinkedHashMap<String, AtomicLong>();
+
+    private final AtomicLong samplesQueued = makeCounter("samplesQueued");
+    private final AtomicLong samplesDropped = makeCounter("samplesDropped");
+    private final AtomicLong samplesForwarded = makeCounter("samplesForwarded");
+    private final AtomicLong forwardRequests = makeCounter("forwardRequests");
+    private final AtomicLong forwardFailures = makeCounter("forwardFailures");
+    private final AtomicLong samplesReceived = makeCounter("samplesReceived");
+    private final AtomicLong samplesRecordedOnShutdown = makeCounter("samplesRecordedOnShutdown");
+
+    @Inject
+    public SampleForwarder(final ClusterMembership membership, final TimelineEventHandler timelineEventHandler,
+                           final CounterPreAggregator counterPreAggregator, final MeterConfig config) {
+        this.membership = membership;
+        this.timelineEventHandler = timelineEventHandler;
+        this.counterPreAggregator = counterPreAggregator;
+        this.config = config;
+    }
+
+    public boolean isEnabled() {
+        return membership.isEnabled();
+    }
+
+    /**
+     * @return true if samples for that source should be forwarded to another node, false if they should be recorded locally
+     */
+    public boolean isRemote(@Nullable final UUID tenantId, final String source) {
+        return membership.isEnabled() && !membership.isOwner(tenantId, source);
+    }
+
+    public void forward(final ForwardedSamples samples) {
+        final String owner = membership.getOwner(samples.getTenantId(), samples.getSource());
+        if (owner == null || owner.equals(membership.getNodeId())) {
+            // The ownership changed since the samples were queued
+            record(samples);
+            return;
+        }
+
+        BlockingQueue<ForwardedSamples> queue = forwardQueues.get(owner);
+        if (queue == null) {
+            final BlockingQueue<ForwardedSamples> newQueue = new LinkedBlockingQueue<ForwardedSamples>(config.getClusterForwardQueueSize());
+            queue = forwardQueues.putIfAbsent(owner, newQueue);
+            if (queue == null) {
+                queue = newQueue;
+            }
+        }
+
+        if (queue.offer(samples)) {
+            samplesQueued.incrementAndGet();
+        } else {
+            samplesDropped.incrementAndGet();
+        }
+    }
+
+    /**
+     * Record samples forwarded by another node. They are recorded even if this node doesn't consider itself
+     * the owner of their source (the nodes may briefly disagree while the membership changes), rather than
+     * bounced around the cluster.
+     *
+     * @param forwardedSamples the samples received
+     */
+    public void recordForwardedSamples(final List<ForwardedSamples> forwardedSamples) {
+        for (final ForwardedSamples samples : forwardedSamples) {
+            samplesReceived.incrementAndGet();
+            record(samples);
+        }
+    }
+
+    private void record(final ForwardedSamples samples) {
+        final CallContext context = new MeterCallContext(samples.getTenantId(), samples.getUserName(), CallOrigin.INTERNAL, UserType.SYSTEM,
+                                                         null, null, UUID.randomUUID(), new DateTime(DateTimeZone.UTC));
+        final DateTime timestamp = new DateTime(samples.getTimestamp(), DateTimeZone.UTC);
+        if (samples.getIncrementedMetrics() == null) {
+            timelineEventHandler.record(samples.getSource(), samples.getCategory(), timestamp, samples.getSamples(), context);
+        } else if (counterPreAggregator.isEnabled()) {
+            counterPreAggregator.increment(samples.getSource(), samples.getCategory(), samples.getIncrementedMetrics(), timestamp, context);
+        } else {
+            final Map<String, Object> increments = new HashMap<String, Object>();
+            for (final String metricName : samples.getIncrementedMetrics()) {
+                increments.put(metricName, (short) 1);
+            }
+            timelineEventHandler.record(samples.getSource(), samples.getCategory(), timestamp, increments, context);
+        }
+    }
+
+    @VisibleForTesting
+    void forwardQueuedSamples(final boolean shuttingDown) {
+        for (final Map.Entry<String, BlockingQueue<ForwardedSamples>> entry : forwardQueues.entrySet()) {
+            // Only what is queued now: undelivered samples may be queued again
+            final List<ForwardedSamples> queuedSamples = new ArrayList<ForwardedSamples>();
+            entry.getValue().drainTo(queuedSamples);
+
+            for (int i = 0; i < queuedSamples.size(); i += FORWARD_BATCH_SIZE) {
+                final List<ForwardedSamples> batch = queuedSamples.subList(i, Math.min(i + FORWARD_BATCH_SIZE, queuedSamples.size()));
+                if (post(entry.getKey(), batch)) {
+                    samplesForwarded.addAndGet(batch.size());
+                } else if (shuttingDown) {
+                    samplesRecordedOnShutdown.addAndGet(batch.size());
+                    for (final ForwardedSamples samples : batch) {
+                        record(samples);
+                    }
+                } else {
+                    for (final ForwardedSamples samples : batch) {
+                        forward(samples);
+                    }
+                }
+            }
+        }
+    }
+
+    private boolean post(final String nodeId, final List<ForwardedSamples> batch) {
+        final String address = membership.getNodeAddress(nodeId);
+        if (address == null) {
+            // The node left the cluster
+            return false;
+        }
+
+        forwardRequests.incrementAndGet();
+        try {
+            send(address, batch);
+            return true;
+        } catch (IOException e) {
+            forwardFailures.incrementAndGet();
+            log.warn("Unable to forward " + batch.size() + " samples to node " + nodeId + " at " + address, e);
+            return false;
+        }
+    }
+
+    @VisibleForTesting
+    void send(final String address, final List<ForwardedSamples> batch) throws IOException {
+        final HttpURLConnection connection = (HttpURLConnection) new URL(address + "/" + CLUSTER_SAMPLES).openConnection();
+        try {
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setConnectTimeout(HTTP_TIMEOUT_MILLIS);
+            connection.setReadTimeout(HTTP_TIMEOUT_MILLIS);
+            connection.setRequestProperty("Content-Type", "application/json");
+            connection.setRequestProperty(HDR_CLUSTER_SECRET, config.getClusterSecret());
+
+            final OutputStream outputStream = connection.getOutputStream();
+            try {
+                objectMapper.writeValue(outputStream, batch);
+            } finally {
+                outputStream.close();
+            }
+
+            final int status = connection.getResponseCode();
+            if (status / 100 != 2) {
+                throw new IOException("Unexpected status " + status);
+            }
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    public void runForwardThread() {
+        ClusterMembership.checkClusterSecret(config);
+        forwardThread.scheduleWithFixedDelay(new Runnable() {
+                                                 @Override
+                                                 public void run() {
+                                                     forwardQueuedSamples(false);
+                                                 }
+                                             },
+                                             config.getClusterForwardInterval().getMillis(),
+                                             config.getClusterForwardInterval().getMillis(),
+                                             TimeUnit.MILLISECONDS
+                                            );
+    }
+
+    public void stopForwardThread() {
+        forwardThread.shutdown();
+        try {
+            forwardThread.awaitTermination(HTTP_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // Deliver (or record) what is left
+        forwardQueuedSamples(true);
+    }
+
+    private AtomicLong makeCounter(final String counterName) {
+        final AtomicLong counter = new AtomicLong();
+        forwarderCounters.put(counterName, counter);
+        return counter;
+    }
+
+    public Map<String, Long> getForwarderCounters() {
+        final Map<String, Long> counterValues = new LinkedHashMap<String, Long>();
+        for (final Map.Entry<String, AtomicLong> entry : forwarderCounters.entrySet()) {
+            counterValues.put(entry.getKey(), entry.getValue().get());
+        }
+        return counterValues;
+    }
+}
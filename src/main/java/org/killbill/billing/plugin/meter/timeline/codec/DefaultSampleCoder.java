@@ -23,11 +23,15 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
+import org.joda.time.DateTime;
 import org.killbill.billing.plugin.meter.timeline.chunks.TimelineChunk;
+import org.killbill.billing.plugin.meter.timeline.chunks.TimelineSkipIndex;
 import org.killbill.billing.plugin.meter.timeline.consumer.SampleProcessor;
+import org.killbill.billing.plugin.meter.timeline.consumer.TimeRangeSampleProcessor;
 import org.killbill.billing.plugin.meter.timeline.samples.HalfFloat;
 import org.killbill.billing.plugin.meter.timeline.samples.RepeatSample;
 import org.killbill.billing.plugin.meter.timeline.samples.SampleBase;
@@ -35,6 +39,8 @@ import org.killbill.billing.plugin.meter.timeline.samples.SampleOpcode;
 import org.killbill.billing.plugin.meter.timeline.samples.ScalarSample;
 import org.killbill.billing.plugin.meter.timeline.times.DefaultTimelineCursor;
 import org.killbill.billing.plugin.meter.timeline.times.TimelineCursor;
+import org.killbill.billing.plugin.meter.timeline.util.ByteBuffers;
+import org.killbill.billing.plugin.meter.timeline.util.DateTimeUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -75,6 +81,13 @@ public class DefaultSampleCoder implements SampleCoder {
     @Override
     public List<ScalarSample> decompressSamples(final byte[] sampleBytes) throws IOException {
         final List<ScalarSample> returnedSamples = new ArrayList<ScalarSample>();
+        if (GorillaSampleCoder.isGorillaEncoded(sampleBytes)) {
+            final GorillaSampleDecoder decoder = new GorillaSampleDecoder(ByteBuffer.wrap(sampleBytes));
+            while (decoder.next()) {
+                returnedSamples.add(new ScalarSample(decoder.getOpcode(), decoder.getValue()));
+            }
+            return returnedSamples;
+        }
         final ByteArrayInputStream byteStream = new ByteArrayInputStream(sampleBytes);
         final DataInputStream inputStream = new DataInputStream(byteStream);
         while (true) {
@@ -217,29 +230,22 @@ public class DefaultSampleCoder implements SampleCoder {
     public ScalarSample compressSample(final ScalarSample sample) {
         switch (sample.getOpcode()) {
             case INT:
-                final int intValue = (Integer) sample.getSampleValue();
-                if (intValue == 0) {
-                    return INT_ZERO_SAMPLE;
-                } else if (intValue >= Byte.MIN_VALUE && intValue <= Byte.MAX_VALUE) {
-                    return new ScalarSample(SampleOpcode.BYTE, (byte) intValue);
-                } else if (intValue >= Short.MIN_VALUE && intValue <= Short.MAX_VALUE) {
-                    return new ScalarSample(SampleOpcode.SHORT, (short) intValue);
-                } else {
-                    return sample;
-                }
             case LONG:
-                final long longValue = (Long) sample.getSampleValue();
-                if (longValue == 0) {
-                    return INT_ZERO_SAMPLE;
-                } else if (longValue >= Byte.MIN_VALUE && longValue <= Byte.MAX_VALUE) {
-                    return new ScalarSample(SampleOpcode.BYTE, (byte) longValue);
-                } else if (longValue >= Short.MIN_VALUE && longValue <= Short.MAX_VALUE) {
-                    return new ScalarSample(SampleOpcode.SHORT, (short) longValue);
-                } else if (longValue >= Integer.MIN_VALUE && longValue <= Integer.MAX_VALUE) {
-                    return new ScalarSample(SampleOpcode.INT, (int) longValue);
-                } else {
+                final long longValue = ((Number) sample.getSampleValue()).longValue();
+                final SampleOpcode longOpcode = getCompressedOpcode(longValue);
+                if (longOpcode == sample.getOpcode()) {
                     return sample;
                 }
+                switch (longOpcode) {
+                    case INT_ZERO:
+                        return INT_ZERO_SAMPLE;
+                    case BYTE:
+                        return new ScalarSample(SampleOpcode.BYTE, (byte) longValue);
+                    case SHORT:
+                        return new ScalarSample(SampleOpcode.SHORT, (short) longValue);
+                    default:
+                        return new ScalarSample(SampleOpcode.INT, (int) longValue);
+                }
             case BIGINT:
                 final BigInteger bigValue = (BigInteger) sample.getSampleValue();
                 if (bigValue.compareTo(BIGINTEGER_ZERO_VALUE) == 0) {
@@ -267,28 +273,107 @@ public class DefaultSampleCoder implements SampleCoder {
     }
 
     private ScalarSample encodeFloatOrDoubleSample(final ScalarSample sample, final double value) {
+        switch (getCompressedOpcode(value)) {
+            case DOUBLE_ZERO:
+                return DOUBLE_ZERO_SAMPLE;
+            case BYTE_FOR_DOUBLE:
+                return new ScalarSample<Byte>(SampleOpcode.BYTE_FOR_DOUBLE, (byte) value);
+            case SHORT_FOR_DOUBLE:
+                return new ScalarSample<Short>(SampleOpcode.SHORT_FOR_DOUBLE, (short) value);
+            case HALF_FLOAT_FOR_DOUBLE:
+                return new ScalarSample<Short>(SampleOpcode.HALF_FLOAT_FOR_DOUBLE, (short) HalfFloat.fromFloat((float) value));
+            case FLOAT_FOR_DOUBLE:
+                return new ScalarSample<Float>(SampleOpcode.FLOAT_FOR_DOUBLE, (float) value);
+            default:
+                return sample;
+        }
+    }
+
+    @Override
+    public SampleOpcode getCompressedOpcode(final long value) {
+        if (value == 0) {
+            return SampleOpcode.INT_ZERO;
+        } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+            return SampleOpcode.BYTE;
+        } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+            return SampleOpcode.SHORT;
+        } else if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE) {
+            return SampleOpcode.INT;
+        } else {
+            return SampleOpcode.LONG;
+        }
+    }
+
+    @Override
+    public SampleOpcode getCompressedOpcode(final double value) {
         // We prefer representations in the following order: byte, HalfFloat, short, float and int
         // The criterion for using each representation is the fractional error
         if (value == 0.0) {
-            return DOUBLE_ZERO_SAMPLE;
+            return SampleOpcode.DOUBLE_ZERO;
         }
         final boolean integral = value >= MIN_SHORT_DOUBLE_VALUE && value <= MAX_SHORT_DOUBLE_VALUE && (Math.abs((value - (double) ((int) value)) / value) <= MAX_FRACTION_ERROR);
         if (integral && value >= MIN_BYTE_DOUBLE_VALUE && value <= MAX_BYTE_DOUBLE_VALUE) {
-            return new ScalarSample<Byte>(SampleOpcode.BYTE_FOR_DOUBLE, (byte) value);
+            return SampleOpcode.BYTE_FOR_DOUBLE;
         } else if (integral && value >= MIN_SHORT_DOUBLE_VALUE && value <= MAX_SHORT_DOUBLE_VALUE) {
-            return new ScalarSample<Short>(SampleOpcode.SHORT_FOR_DOUBLE, (short) value);
+            return SampleOpcode.SHORT_FOR_DOUBLE;
         } else {
             final int halfFloatValue = HalfFloat.fromFloat((float) value);
             if ((Math.abs(value - HalfFloat.toFloat(halfFloatValue)) / value) <= MAX_FRACTION_ERROR) {
-                return new ScalarSample<Short>(SampleOpcode.HALF_FLOAT_FOR_DOUBLE, (short) halfFloatValue);
+                return SampleOpcode.HALF_FLOAT_FOR_DOUBLE;
             } else if (value >= Float.MIN_VALUE && value <= Float.MAX_VALUE) {
-                return new ScalarSample<Float>(SampleOpcode.FLOAT_FOR_DOUBLE, (float) value);
+                return SampleOpcode.FLOAT_FOR_DOUBLE;
             } else {
-                return sample;
+                return SampleOpcode.DOUBLE;
             }
         }
     }
 
+    @Override
+    public long getCompressedArgument(final SampleOpcode opcode, final double value) {
+        switch (opcode) {
+            case DOUBLE_ZERO:
+                return 0;
+            case BYTE_FOR_DOUBLE:
+                return (byte) value;
+            case SHORT_FOR_DOUBLE:
+                return (short) value;
+            case HALF_FLOAT_FOR_DOUBLE:
+                return (short) HalfFloat.fromFloat((float) value);
+            case FLOAT_FOR_DOUBLE:
+                return Float.floatToIntBits((float) value);
+            case DOUBLE:
+                return Double.doubleToLongBits(value);
+            default:
+                throw new IllegalArgumentException(String.format("In getCompressedArgument(), opcode %s is not a double opcode", opcode.name()));
+        }
+    }
+
+    @Override
+    public void encodeCompressedArgument(final DataOutputStream outputStream, final SampleOpcode opcode, final long argument) throws IOException {
+        if (opcode == SampleOpcode.STRING || opcode == SampleOpcode.BIGINT || opcode.getRepeater()) {
+            throw new IllegalArgumentException(String.format("In encodeCompressedArgument(), opcode %s has no primitive argument", opcode.name()));
+        }
+        outputStream.write(opcode.getOpcodeIndex());
+        switch (opcode.getByteSize()) {
+            case 0:
+                break;
+            case 1:
+                outputStream.writeByte((int) argument);
+                break;
+            case 2:
+                outputStream.writeShort((int) argument);
+                break;
+            case 4:
+                // Float arguments are passed as their int bits, see getCompressedArgument()
+                outputStream.writeInt((int) argument);
+                break;
+            default:
+                // Double arguments are passed as their long bits
+                outputStream.writeLong(argument);
+                break;
+        }
+    }
+
     @Override
     public Object decodeScalarValue(final DataInputStream inputStream, final SampleOpcode opcode) throws IOException {
         switch (opcode) {
@@ -406,12 +491,31 @@ public class DefaultSampleCoder implements SampleCoder {
 
     @Override
     public byte[] combineSampleBytes(final List<byte[]> sampleBytesList) {
+        final List<ByteBuffer> sampleBuffersList = new ArrayList<ByteBuffer>(sampleBytesList.size());
+        for (final byte[] samples : sampleBytesList) {
+            sampleBuffersList.add(ByteBuffer.wrap(samples));
+        }
+        return combineSampleBuffers(sampleBuffersList);
+    }
+
+    @Override
+    public byte[] combineSampleBuffers(final List<ByteBuffer> sampleBuffersList) {
         final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
         final DataOutputStream dataStream = new DataOutputStream(outputStream);
         try {
+            for (final ByteBuffer samples : sampleBuffersList) {
+                if (GorillaSampleCoder.isGorillaEncoded(samples)) {
+                    // Some chunks were aggregated by the GorillaSampleCoder: re-encode all the samples
+                    final List<ScalarSample> decodedSamples = new ArrayList<ScalarSample>();
+                    for (final ByteBuffer sampleBuffer : sampleBuffersList) {
+                        decodedSamples.addAll(decompressSamples(ByteBuffers.toByteArray(sampleBuffer)));
+                    }
+                    return compressSamples(decodedSamples);
+                }
+            }
             SampleBase lastSample = null;
-            for (final byte[] samples : sampleBytesList) {
-                final ByteArrayInputStream byteStream = new ByteArrayInputStream(samples);
+            for (final ByteBuffer samples : sampleBuffersList) {
+                final ByteArrayInputStream byteStream = ByteBuffers.newInputStream(samples);
                 final DataInputStream byteDataStream = new DataInputStream(byteStream);
                 while (true) {
                     final int opcodeByte = byteDataStream.read();
@@ -491,15 +595,127 @@ public class DefaultSampleCoder implements SampleCoder {
     @Override
     public void scan(final TimelineChunk chunk, final SampleProcessor processor) throws IOException {
         //System.out.printf("Decoded: %s\n", new String(Hex.encodeHex(bytes)));
-        scan(chunk.getTimeBytesAndSampleBytes().getSampleBytes(), chunk.getTimeBytesAndSampleBytes().getTimeBytes(), chunk.getSampleCount(), processor);
+        final ByteBuffer samples = chunk.getTimeBytesAndSampleBytes().getSampleBuffer();
+        final DefaultTimelineCursor timeCursor = new DefaultTimelineCursor(chunk.getTimeBytesAndSampleBytes().getTimeBuffer(), chunk.getSampleCount());
+        final TimelineSkipIndex skipIndex = chunk.getSkipIndex();
+        final int entry = findSkipIndexEntry(skipIndex, processor);
+        if (GorillaSampleCoder.isGorillaEncoded(samples)) {
+            scanGorilla(samples, timeCursor, processor);
+        } else if (entry == -1) {
+            scan(ByteBuffers.newInputStream(samples), timeCursor, 0, processor);
+        } else {
+            timeCursor.seek(skipIndex.getTimeByteOffset(entry), skipIndex.getSampleNumber(entry), skipIndex.getLastTime(entry),
+                            skipIndex.getDelta(entry), skipIndex.getRepeatCount(entry));
+            samples.position(skipIndex.getSampleByteOffset(entry));
+            scan(ByteBuffers.newInputStream(samples), timeCursor, skipIndex.getSampleNumber(entry), processor);
+        }
+    }
+
+    private int findSkipIndexEntry(final TimelineSkipIndex skipIndex, final SampleProcessor processor) {
+        if (skipIndex == null || !(processor instanceof TimeRangeSampleProcessor)) {
+            return -1;
+        }
+        final DateTime startTime = ((TimeRangeSampleProcessor) processor).getStartTime();
+        if (startTime == null) {
+            return -1;
+        }
+        // unixSeconds() rounds down, so we never skip a sample at or after the start time
+        return skipIndex.findEntry(DateTimeUtils.unixSeconds(startTime));
     }
 
     @Override
     public void scan(final byte[] samples, final byte[] times, final int sampleCount, final SampleProcessor processor) throws IOException {
+        scan(ByteBuffer.wrap(samples), ByteBuffer.wrap(times), sampleCount, processor);
+    }
+
+    @Override
+    public void scan(final ByteBuffer samples, final ByteBuffer times, final int sampleCount, final SampleProcessor processor) throws IOException {
+        if (GorillaSampleCoder.isGorillaEncoded(samples)) {
+            scanGorilla(samples, new DefaultTimelineCursor(times, sampleCount), processor);
+        } else {
+            scan(ByteBuffers.newInputStream(samples), new DefaultTimelineCursor(times, sampleCount), 0, processor);
+        }
+    }
+
+    /**
+     * Decode the samples once, recording where the sample and time bytes of a sample start every interval samples.
+     * Gorilla encoded samples get an empty index, as they can only be decoded from their start.
+     */
+    @Override
+    public TimelineSkipIndex buildSkipIndex(final byte[] samples, final byte[] times, final int sampleCount, final int interval) throws IOException {
+        if (GorillaSampleCoder.isGorillaEncoded(samples)) {
+            // A bit stream can only be decoded from its start
+            return new TimelineSkipIndex.Builder().build();
+        }
         final ByteArrayInputStream byteStream = new ByteArrayInputStream(samples);
         final DataInputStream inputStream = new DataInputStream(byteStream);
-        final TimelineCursor timeCursor = new DefaultTimelineCursor(times, sampleCount);
+        final DefaultTimelineCursor timeCursor = new DefaultTimelineCursor(times, sampleCount);
+        final TimelineSkipIndex.Builder builder = new TimelineSkipIndex.Builder();
         int sampleNumber = 0;
+        int nextEntrySampleNumber = interval;
+        while (true) {
+            final int sampleByteOffset = samples.length - byteStream.available();
+            final int opcodeByte = inputStream.read();
+            if (opcodeByte == -1) {
+                break;
+            }
+            if (sampleNumber >= nextEntrySampleNumber) {
+                timeCursor.skipToSampleNumber(sampleNumber);
+                if (timeCursor.getSampleNumber() != sampleNumber) {
+                    log.warn("In buildSkipIndex(), the times end at sample {} but the samples at least at {}", timeCursor.getSampleNumber(), sampleNumber);
+                    break;
+                }
+                builder.addEntry(sampleNumber, sampleByteOffset, timeCursor.getTimeByteOffset(), timeCursor.getLastValue(),
+                                 timeCursor.getDelta(), timeCursor.getRepeatCount());
+                nextEntrySampleNumber = sampleNumber + interval;
+            }
+            final SampleOpcode opcode = SampleOpcode.getOpcodeFromIndex(opcodeByte);
+            switch (opcode) {
+                case REPEAT_BYTE:
+                case REPEAT_SHORT:
+                    final int repeatCount = opcode == SampleOpcode.REPEAT_BYTE ? inputStream.readUnsignedByte() : inputStream.readUnsignedShort();
+                    decodeScalarValue(inputStream, SampleOpcode.getOpcodeFromIndex(inputStream.read()));
+                    sampleNumber += repeatCount;
+                    break;
+                default:
+                    decodeScalarValue(inputStream, opcode);
+                    sampleNumber++;
+                    break;
+            }
+        }
+        return builder.build();
+    }
+
+    private void scanGorilla(final ByteBuffer samples, final TimelineCursor timeCursor, final SampleProcessor processor) throws IOException {
+        final GorillaSampleDecoder decoder = new GorillaSampleDecoder(samples);
+        int sampleNumber = 0;
+        // Runs of identical samples are passed at once, as the repeat opcodes of the default encoding
+        SampleOpcode runOpcode = null;
+        Object runValue = null;
+        int runLength = 0;
+        while (decoder.next()) {
+            if (runLength > 0 && decoder.isRepeat()) {
+                runLength++;
+                continue;
+            }
+            if (runLength > 0) {
+                processor.processSamples(timeCursor, runLength, runOpcode, runValue);
+                sampleNumber += runLength;
+                timeCursor.skipToSampleNumber(sampleNumber);
+            }
+            runOpcode = decoder.getOpcode();
+            runValue = decoder.getValue();
+            runLength = 1;
+        }
+        if (runLength > 0) {
+            processor.processSamples(timeCursor, runLength, runOpcode, runValue);
+        }
+    }
+
+    private void scan(final ByteArrayInputStream byteStream, final TimelineCursor timeCursor, final int firstSampleNumber,
+                      final SampleProcessor processor) throws IOException {
+        final DataInputStream inputStream = new DataInputStream(byteStream);
+        int sampleNumber = firstSampleNumber;
         while (true) {
             final int opcodeByte;
             opcodeByte = inputStream.read();
@@ -520,6 +736,7 @@ public class DefaultSampleCoder implements SampleCoder {
                     break;
                 default:
                     processor.processSamples(timeCursor, 1, opcode.getReplacement(), decodeScalarValue(inputStream, opcode));
+                    sampleNumber++;
                     break;
             }
         }
@@ -0,0 +1,248 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.timeline.codec;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.killbill.billing.plugin.meter.timeline.samples.HalfFloat;
+import org.killbill.billing.plugin.meter.timeline.samples.SampleOpcode;
+import org.killbill.billing.plugin.meter.timeline.samples.ScalarSample;
+import org.killbill.billing.plugin.meter.timeline.util.ByteBuffers;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sample coder packing whole sample lists in a bit stream, as done by Facebook's Gorilla:
+ * doubles are stored as the XOR with the previous double, integers as the zig-zag varint of
+ * their delta-of-delta.  Repeated values cost a bit or two instead of a repeat opcode.
+ * <p/>
+ * The stream starts with FORMAT_BYTE, which is not a valid opcode, followed by the sample count
+ * (varint).  For each sample, a 0 bit means same opcode as the previous sample, otherwise a 1 bit
+ * is followed by the 8 bits of the opcode index.  Opcodes are replaced (see SampleOpcode#getReplacement())
+ * and values kept exact: unlike the default encoding, doubles are never narrowed.
+ * <p/>
+ * Bit streams can't be appended to incrementally, so encodeSample() and friends still produce
+ * the default encoding, used by the accumulators for the raw chunks: only compressSamples() and
+ * the aggregation (combineSampleBuffers()) produce the bit stream.  The DefaultSampleCoder
+ * recognizes both, on a per chunk basis.  The raw chunks keep the doubles exact too, see compressSample().
+ */
+public class GorillaSampleCoder extends DefaultSampleCoder {
+
+    private static final Logger log = LoggerFactory.getLogger(GorillaSampleCoder.class);
+
+    public static final int FORMAT_BYTE = 0xf0;
+
+    public static boolean isGorillaEncoded(final ByteBuffer samples) {
+        return samples.remaining() > 0 && (samples.get(samples.position()) & 0xff) == FORMAT_BYTE;
+    }
+
+    public static boolean isGorillaEncoded(final byte[] samples) {
+        return samples.length > 0 && (samples[0] & 0xff) == FORMAT_BYTE;
+    }
+
+    /**
+     * Floats and doubles are kept as is, instead of being narrowed to the most compact opcode within
+     * the max fraction error: the XOR encoding stores them exactly at little cost.
+     */
+    @Override
+    public ScalarSample compressSample(final ScalarSample sample) {
+        switch (sample.getOpcode()) {
+            case FLOAT:
+            case DOUBLE:
+                return sample;
+            default:
+                return super.compressSample(sample);
+        }
+    }
+
+    @Override
+    public SampleOpcode getCompressedOpcode(final double value) {
+        return SampleOpcode.DOUBLE;
+    }
+
+    @Override
+    public byte[] compressSamples(final List<ScalarSample> samples) {
+        final BitWriter writer = new BitWriter();
+        writer.writeBits(FORMAT_BYTE, 8);
+        writer.writeVarLong(samples.size());
+
+        SampleOpcode lastOpcode = null;
+        long lastLong = 0;
+        long lastDelta = 0;
+        long lastDoubleBits = 0;
+        int lastLeadingZeros = -1;
+        int lastTrailingZeros = 0;
+        for (final ScalarSample sample : samples) {
+            final SampleOpcode opcode = sample.getOpcode().getReplacement();
+            if (opcode == lastOpcode) {
+                writer.writeBit(false);
+            } else {
+                writer.writeBit(true);
+                writer.writeBits(opcode.getOpcodeIndex(), 8);
+                lastOpcode = opcode;
+            }
+
+            switch (opcode) {
+                case NULL:
+                case DOUBLE_ZERO:
+                case INT_ZERO:
+                    break;
+                case BYTE:
+                case SHORT:
+                case INT:
+                case LONG:
+                    final long longValue = ((Number) sample.getSampleValue()).longValue();
+                    final long delta = longValue - lastLong;
+                    final long deltaOfDelta = delta - lastDelta;
+                    if (deltaOfDelta == 0) {
+                        writer.writeBit(false);
+                    } else {
+                        writer.writeBit(true);
+                        writer.writeVarLong((deltaOfDelta << 1) ^ (deltaOfDelta >> 63));
+                    }
+                    lastLong = longValue;
+                    lastDelta = delta;
+                    break;
+                case FLOAT:
+                case DOUBLE:
+                    final long doubleBits = Double.doubleToRawLongBits(toDouble(sample));
+                    final long xor = doubleBits ^ lastDoubleBits;
+                    if (xor == 0) {
+                        writer.writeBit(false);
+                    } else {
+                        writer.writeBit(true);
+                        final int leadingZeros = Math.min(Long.numberOfLeadingZeros(xor), 31);
+                        final int trailingZeros = Long.numberOfTrailingZeros(xor);
+                        if (lastLeadingZeros != -1 && leadingZeros >= lastLeadingZeros && trailingZeros >= lastTrailingZeros) {
+                            // The meaningful bits fit in the previous window
+                            writer.writeBit(false);
+                            writer.writeBits(xor >>> lastTrailingZeros, 64 - lastLeadingZeros - lastTrailingZeros);
+                        } else {
+                            final int meaningfulBits = 64 - leadingZeros - trailingZeros;
+                            writer.writeBit(true);
+                            writer.writeBits(leadingZeros, 5);
+                            writer.writeBits(meaningfulBits - 1, 6);
+                            writer.writeBits(xor >>> trailingZeros, meaningfulBits);
+                            lastLeadingZeros = leadingZeros;
+                            lastTrailingZeros = trailingZeros;
+                        }
+                    }
+                    lastDoubleBits = doubleBits;
+                    break;
+                case STRING:
+                case BIGINT:
+                    writer.writeString(sample.getSampleValue().toString());
+                    break;
+                default:
+                    final String err = String.format("In GorillaSampleCoder.compressSamples(), opcode %s is unrecognized", opcode.name());
+                    log.error(err);
+                    throw new IllegalArgumentException(err);
+            }
+        }
+        return writer.toByteArray();
+    }
+
+    private double toDouble(final ScalarSample sample) {
+        final Object value = sample.getSampleValue();
+        if (sample.getOpcode() == SampleOpcode.HALF_FLOAT_FOR_DOUBLE && value instanceof Short) {
+            // Raw opcode argument, see DefaultSampleCoder#combineSampleBuffers()
+            return HalfFloat.toFloat((Short) value);
+        }
+        return ((Number) value).doubleValue();
+    }
+
+    /**
+     * Combine chunks in either encoding into a single bit stream
+     */
+    @Override
+    public byte[] combineSampleBuffers(final List<ByteBuffer> sampleBuffersList) {
+        try {
+            final List<ScalarSample> samples = new ArrayList<ScalarSample>();
+            for (final ByteBuffer sampleBuffer : sampleBuffersList) {
+                samples.addAll(decompressSamples(ByteBuffers.toByteArray(sampleBuffer)));
+            }
+            return compressSamples(samples);
+        } catch (Exception e) {
+            log.error("In combineSampleBuffers(), exception combining sample byte arrays", e);
+            return new byte[0];
+        }
+    }
+
+    private static final class BitWriter {
+
+        private final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        private int currentByte = 0;
+        private int currentBitCount = 0;
+
+        public void writeBit(final boolean bit) {
+            writeBits(bit ? 1 : 0, 1);
+        }
+
+        /**
+         * Write the count lowest bits of value, most significant first
+         */
+        public void writeBits(final long value, final int count) {
+            int remaining = count;
+            while (remaining > 0) {
+                final int bits = Math.min(8 - currentBitCount, remaining);
+                currentByte = (currentByte << bits) | (int) ((value >>> (remaining - bits)) & ((1 << bits) - 1));
+                currentBitCount += bits;
+                remaining -= bits;
+                if (currentBitCount == 8) {
+                    outputStream.write(currentByte);
+                    currentByte = 0;
+                    currentBitCount = 0;
+                }
+            }
+        }
+
+        public void writeVarLong(final long value) {
+            long remaining = value;
+            while ((remaining & ~0x7fL) != 0) {
+                writeBits((remaining & 0x7f) | 0x80, 8);
+                remaining >>>= 7;
+            }
+            writeBits(remaining, 8);
+        }
+
+        public void writeString(final String value) {
+            final byte[] bytes;
+            try {
+                bytes = value.getBytes("UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+            writeVarLong(bytes.length);
+            for (final byte b : bytes) {
+                writeBits(b, 8);
+            }
+        }
+
+        public byte[] toByteArray() {
+            if (currentBitCount > 0) {
+                // Pad the last byte with zeros
+                writeBits(0, 8 - currentBitCount);
+            }
+            return outputStream.toByteArray();
+        }
+    }
+}
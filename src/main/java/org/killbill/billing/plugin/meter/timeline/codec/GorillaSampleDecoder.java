@@ -0,0 +1,218 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.timeline.codec;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+
+import org.killbill.billing.plugin.meter.timeline.samples.SampleOpcode;
+
+/**
+ * Iterates over the samples of a bit stream written by GorillaSampleCoder
+ */
+public class GorillaSampleDecoder {
+
+    private final byte[] bytes;
+    private final long endBitPosition;
+    private final int sampleCount;
+
+    private long bitPosition;
+    private int sampleNumber = 0;
+
+    private SampleOpcode opcode = null;
+    private Object value = null;
+    private boolean repeat = false;
+
+    private long lastLong = 0;
+    private long lastDelta = 0;
+    private long lastDoubleBits = 0;
+    private int lastLeadingZeros = 0;
+    private int lastTrailingZeros = 0;
+
+    public GorillaSampleDecoder(final ByteBuffer samples) throws IOException {
+        this.bytes = samples.array();
+        this.bitPosition = 8L * (samples.arrayOffset() + samples.position());
+        this.endBitPosition = bitPosition + 8L * samples.remaining();
+        if (readBits(8) != GorillaSampleCoder.FORMAT_BYTE) {
+            throw new IOException("In GorillaSampleDecoder, the samples don't start with the format byte");
+        }
+        this.sampleCount = (int) readVarLong();
+    }
+
+    public int getSampleCount() {
+        return sampleCount;
+    }
+
+    /**
+     * Decode the next sample
+     *
+     * @return false if all samples have been decoded
+     * @throws IOException if the stream is truncated or corrupted
+     */
+    public boolean next() throws IOException {
+        if (sampleNumber >= sampleCount) {
+            return false;
+        }
+        final SampleOpcode lastOpcode = opcode;
+        if (readBit()) {
+            try {
+                opcode = SampleOpcode.getOpcodeFromIndex((int) readBits(8));
+            } catch (IllegalArgumentException e) {
+                throw new IOException(e);
+            }
+        }
+        repeat = opcode == lastOpcode;
+
+        switch (opcode) {
+            case NULL:
+                value = null;
+                break;
+            case DOUBLE_ZERO:
+                value = 0.0;
+                break;
+            case INT_ZERO:
+                value = 0;
+                break;
+            case BYTE:
+            case SHORT:
+            case INT:
+            case LONG:
+                final long deltaOfDelta;
+                if (readBit()) {
+                    final long zigZag = readVarLong();
+                    deltaOfDelta = (zigZag >>> 1) ^ -(zigZag & 1);
+                } else {
+                    deltaOfDelta = 0;
+                }
+                lastDelta += deltaOfDelta;
+                lastLong += lastDelta;
+                repeat = repeat && lastDelta == 0;
+                value = toIntegerValue(opcode, lastLong);
+                break;
+            case FLOAT:
+            case DOUBLE:
+                if (readBit()) {
+                    if (readBit()) {
+                        lastLeadingZeros = (int) readBits(5);
+                        final int meaningfulBits = (int) readBits(6) + 1;
+                        lastTrailingZeros = 64 - lastLeadingZeros - meaningfulBits;
+                    }
+                    lastDoubleBits ^= readBits(64 - lastLeadingZeros - lastTrailingZeros) << lastTrailingZeros;
+                    repeat = false;
+                }
+                final double doubleValue = Double.longBitsToDouble(lastDoubleBits);
+                value = opcode == SampleOpcode.FLOAT ? (Object) (float) doubleValue : (Object) doubleValue;
+                break;
+            case STRING:
+                final String stringValue = readString();
+                repeat = repeat && stringValue.equals(value);
+                value = stringValue;
+                break;
+            case BIGINT:
+                final BigInteger bigValue = new BigInteger(readString(), 10);
+                repeat = repeat && bigValue.equals(value);
+                value = bigValue;
+                break;
+            default:
+                throw new IOException(String.format("In GorillaSampleDecoder, opcode %s is unexpected", opcode.name()));
+        }
+        sampleNumber++;
+        return true;
+    }
+
+    /**
+     * @return the opcode of the current sample, never a *_FOR_DOUBLE one
+     */
+    public SampleOpcode getOpcode() {
+        return opcode;
+    }
+
+    /**
+     * @return the value of the current sample, as returned by DefaultSampleCoder#decodeScalarValue()
+     */
+    public Object getValue() {
+        return value;
+    }
+
+    /**
+     * @return true if the current sample has the same opcode and value as the previous one
+     */
+    public boolean isRepeat() {
+        return repeat;
+    }
+
+    private Object toIntegerValue(final SampleOpcode opcode, final long longValue) {
+        switch (opcode) {
+            case BYTE:
+                return (byte) longValue;
+            case SHORT:
+                return (short) longValue;
+            case INT:
+                return (int) longValue;
+            default:
+                return longValue;
+        }
+    }
+
+    private boolean readBit() throws IOException {
+        return readBits(1) != 0;
+    }
+
+    private long readBits(final int count) throws IOException {
+        if (bitPosition + count > endBitPosition) {
+            throw new IOException("In GorillaSampleDecoder, the samples are truncated");
+        }
+        long result = 0;
+        int remaining = count;
+        while (remaining > 0) {
+            final int bitOffset = (int) (bitPosition & 7);
+            final int bits = Math.min(8 - bitOffset, remaining);
+            final int currentByte = bytes[(int) (bitPosition >>> 3)] & 0xff;
+            result = (result << bits) | ((currentByte >>> (8 - bitOffset - bits)) & ((1 << bits) - 1));
+            bitPosition += bits;
+            remaining -= bits;
+        }
+        return result;
+    }
+
+    private long readVarLong() throws IOException {
+        long result = 0;
+        int shift = 0;
+        while (true) {
+            final long b = readBits(8);
+            result |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+            shift += 7;
+            if (shift > 63) {
+                throw new IOException("In GorillaSampleDecoder, malformed varint");
+            }
+        }
+    }
+
+    private String readString() throws IOException {
+        final int length = (int) readVarLong();
+        final byte[] stringBytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            stringBytes[i] = (byte) readBits(8);
+        }
+        return new String(stringBytes, "UTF-8");
+    }
+}
@@ -42,6 +42,10 @@ public class SampleAccumulator {
     private DataOutputStream outputStream;
     private int sampleCount;
     private SampleBase lastSample;
+    // Last sample added by addLong() or addDouble(), kept unboxed: at most one of lastSample and lastOpcode is set
+    private SampleOpcode lastOpcode;
+    private long lastArgument;
+    private int lastRepeatCount;
     protected final SampleCoder sampleCoder;
 
     public SampleAccumulator(final SampleCoder sampleCoder) {
@@ -64,6 +68,7 @@ public class SampleAccumulator {
     }
 
     public synchronized void addSample(final ScalarSample sample) {
+        addLastPrimitiveSample();
         if (lastSample == null) {
             lastSample = sample;
         } else {
@@ -98,16 +103,84 @@ public class SampleAccumulator {
         sampleCount++;
     }
 
+    /**
+     * Same as addSample(sampleCoder.compressSample(new ScalarSample(SampleOpcode.LONG, value))),
+     * without allocating any object
+     *
+     * @param value a LONG or INT sample value
+     */
+    public synchronized void addLong(final long value) {
+        addPrimitiveSample(sampleCoder.getCompressedOpcode(value), value);
+    }
+
+    /**
+     * Same as addSample(sampleCoder.compressSample(new ScalarSample(SampleOpcode.DOUBLE, value))),
+     * without allocating any object
+     *
+     * @param value a DOUBLE sample value
+     */
+    public synchronized void addDouble(final double value) {
+        final SampleOpcode opcode = sampleCoder.getCompressedOpcode(value);
+        addPrimitiveSample(opcode, sampleCoder.getCompressedArgument(opcode, value));
+    }
+
+    private void addPrimitiveSample(final SampleOpcode opcode, final long argument) {
+        addLastSample();
+        if (lastOpcode == opcode && (opcode.getNoArgs() || lastArgument == argument) && lastRepeatCount < RepeatSample.MAX_SHORT_REPEAT_COUNT) {
+            lastRepeatCount++;
+        } else {
+            addLastPrimitiveSample();
+            lastOpcode = opcode;
+            lastArgument = argument;
+            lastRepeatCount = 1;
+        }
+        sampleCount++;
+    }
+
     public int getSampleCount() {
         return sampleCount;
     }
 
+    /**
+     * @return the size of the samples encoded so far (the pending run of repeated samples excluded)
+     */
+    public synchronized int getEncodedByteCount() {
+        return byteStream.size();
+    }
+
     protected ByteArrayOutputStream getByteStream() {
         return byteStream;
     }
 
-    protected SampleBase getLastSample() {
-        return lastSample;
+    protected synchronized SampleBase getLastSample() {
+        if (lastOpcode == null) {
+            return lastSample;
+        }
+        final ScalarSample sample = new ScalarSample(lastOpcode, getLastArgumentValue());
+        return lastRepeatCount == 1 ? sample : new RepeatSample(lastRepeatCount, sample);
+    }
+
+    // The boxed argument, as DefaultSampleCoder#decodeOpcodeArg() would return it
+    private Object getLastArgumentValue() {
+        switch (lastOpcode) {
+            case BYTE:
+            case BYTE_FOR_DOUBLE:
+                return (byte) lastArgument;
+            case SHORT:
+            case SHORT_FOR_DOUBLE:
+            case HALF_FLOAT_FOR_DOUBLE:
+                return (short) lastArgument;
+            case INT:
+                return (int) lastArgument;
+            case LONG:
+                return lastArgument;
+            case FLOAT_FOR_DOUBLE:
+                return Float.intBitsToFloat((int) lastArgument);
+            case DOUBLE:
+                return Double.longBitsToDouble(lastArgument);
+            default:
+                return null;
+        }
     }
 
     /**
@@ -117,10 +190,8 @@ public class SampleAccumulator {
      * @return an instance containing the bytes and the counts of samples
      */
     public synchronized EncodedBytesAndSampleCount getEncodedSamples() {
-        if (lastSample != null) {
-            sampleCoder.encodeSample(outputStream, lastSample);
-            lastSample = null;
-        }
+        addLastSample();
+        addLastPrimitiveSample();
         try {
             outputStream.flush();
             return new EncodedBytesAndSampleCount(byteStream.toByteArray(), sampleCount);
@@ -138,16 +209,37 @@ public class SampleAccumulator {
         }
     }
 
+    private void addLastPrimitiveSample() {
+        if (lastOpcode == null) {
+            return;
+        }
+        try {
+            if (lastRepeatCount > RepeatSample.MAX_BYTE_REPEAT_COUNT) {
+                outputStream.write(SampleOpcode.REPEAT_SHORT.getOpcodeIndex());
+                outputStream.writeShort(lastRepeatCount);
+            } else if (lastRepeatCount > 1) {
+                outputStream.write(SampleOpcode.REPEAT_BYTE.getOpcodeIndex());
+                outputStream.write(lastRepeatCount);
+            }
+            sampleCoder.encodeCompressedArgument(outputStream, lastOpcode, lastArgument);
+        } catch (IOException e) {
+            log.error(String.format("In addLastPrimitiveSample, IOException encoding opcode %s", lastOpcode.name()), e);
+        }
+        lastOpcode = null;
+    }
+
     public synchronized void reset() {
         byteStream = new ByteArrayOutputStream(DEFAULT_CHUNK_BYTE_ARRAY_SIZE);
         outputStream = new DataOutputStream(byteStream);
         lastSample = null;
+        lastOpcode = null;
         sampleCount = 0;
     }
 
     public synchronized void addPlaceholder(final int repeatCount) {
         if (repeatCount > 0) {
             addLastSample();
+            addLastPrimitiveSample();
             lastSample = new RepeatSample<Void>(repeatCount, new NullSample());
             sampleCount += repeatCount;
         }
@@ -20,9 +20,11 @@ package org.killbill.billing.plugin.meter.timeline.codec;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.List;
 
 import org.killbill.billing.plugin.meter.timeline.chunks.TimelineChunk;
+import org.killbill.billing.plugin.meter.timeline.chunks.TimelineSkipIndex;
 import org.killbill.billing.plugin.meter.timeline.consumer.SampleProcessor;
 import org.killbill.billing.plugin.meter.timeline.samples.SampleBase;
 import org.killbill.billing.plugin.meter.timeline.samples.SampleOpcode;
@@ -65,13 +67,67 @@ public interface SampleCoder {
      */
     public ScalarSample compressSample(final ScalarSample sample);
 
+    /**
+     * Primitive flavor of compressSample(), for LONG and INT samples: no ScalarSample nor boxing.
+     * The argument of the compressed sample is the value itself, narrowed by encodeCompressedArgument().
+     *
+     * @param value the sample value
+     * @return the opcode compressSample() would choose
+     */
+    public SampleOpcode getCompressedOpcode(final long value);
+
+    /**
+     * Primitive flavor of compressSample(), for DOUBLE samples: no ScalarSample nor boxing
+     *
+     * @param value the sample value
+     * @return the opcode compressSample() would choose
+     */
+    public SampleOpcode getCompressedOpcode(final double value);
+
+    /**
+     * @param opcode the opcode returned by getCompressedOpcode(double)
+     * @param value  the sample value
+     * @return the argument of the compressed sample, floats and doubles as their raw bits
+     */
+    public long getCompressedArgument(final SampleOpcode opcode, final double value);
+
+    /**
+     * Output the opcode and its primitive argument, as encodeScalarValue() would for the equivalent ScalarSample
+     *
+     * @param outputStream the stream to which bytes should be written
+     * @param opcode       a numeric opcode
+     * @param argument     the argument, see getCompressedArgument()
+     * @throws IOException generic I/O exception
+     */
+    public void encodeCompressedArgument(final DataOutputStream outputStream, final SampleOpcode opcode, final long argument) throws IOException;
+
     public Object decodeScalarValue(final DataInputStream inputStream, final SampleOpcode opcode) throws IOException;
 
     public double getMaxFractionError();
 
     public byte[] combineSampleBytes(final List<byte[]> sampleBytesList);
 
+    public byte[] combineSampleBuffers(final List<ByteBuffer> sampleBuffersList);
+
+    /**
+     * Build a TimelineSkipIndex with an entry every interval samples or so
+     *
+     * @param samples     the sample bytes
+     * @param times       the time bytes
+     * @param sampleCount the number of samples
+     * @param interval    minimum number of samples between two entries
+     * @return the skip index, possibly without any entry
+     * @throws IOException generic I/O exception
+     */
+    public TimelineSkipIndex buildSkipIndex(final byte[] samples, final byte[] times, final int sampleCount, final int interval) throws IOException;
+
+    /**
+     * Scan the chunk.  If the chunk has a skip index and the processor a start time (see TimeRangeSampleProcessor),
+     * the samples before the start time may not be passed to the processor.
+     */
     public void scan(final TimelineChunk chunk, final SampleProcessor processor) throws IOException;
 
     public void scan(final byte[] samples, final byte[] times, final int sampleCount, final SampleProcessor processor) throws IOException;
+
+    public void scan(final ByteBuffer samples, final ByteBuffer times, final int sampleCount, final SampleProcessor processor) throws IOException;
 }
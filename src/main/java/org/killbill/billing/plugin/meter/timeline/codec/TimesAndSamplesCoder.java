@@ -23,6 +23,9 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 import org.killbill.billing.plugin.meter.timeline.chunks.TimeBytesAndSampleBytes;
 import org.killbill.billing.plugin.meter.timeline.chunks.TimelineChunk;
@@ -30,6 +33,26 @@ import org.killbill.billing.plugin.meter.timeline.util.Hex;
 
 public class TimesAndSamplesCoder {
 
+    // Stored timesAndSamples start with the time bytes count, whose first byte is always 0 (chunks are
+    // much smaller than 16MB). Compressed ones start with this marker instead, followed by the uncompressed
+    // length and the raw Deflate stream.
+    public static final byte DEFLATE_MARKER = (byte) 0x80;
+    private static final int DEFLATE_HEADER_LENGTH = 5;
+
+    // Deflater and Inflater instances hold native buffers, expensive to allocate for each chunk
+    private static final ThreadLocal<Deflater> DEFLATERS = new ThreadLocal<Deflater>() {
+        @Override
+        protected Deflater initialValue() {
+            return new Deflater(Deflater.BEST_SPEED, true);
+        }
+    };
+    private static final ThreadLocal<Inflater> INFLATERS = new ThreadLocal<Inflater>() {
+        @Override
+        protected Inflater initialValue() {
+            return new Inflater(true);
+        }
+    };
+
     public static int getSizeOfTimeBytes(final byte[] timesAndSamples) {
         final DataInputStream inputStream = new DataInputStream(new ByteArrayInputStream(timesAndSamples));
         try {
@@ -41,8 +64,8 @@ public class TimesAndSamplesCoder {
     }
 
     public static int getEncodedLength(final TimelineChunk chunk) {
-        return 4 + chunk.getTimeBytesAndSampleBytes().getTimeBytes().length +
-               chunk.getTimeBytesAndSampleBytes().getSampleBytes().length;
+        return 4 + chunk.getTimeBytesAndSampleBytes().getTimeBytesLength() +
+               chunk.getTimeBytesAndSampleBytes().getSampleBytesLength();
     }
 
     public static byte[] getTimeBytes(final byte[] timesAndSamples) {
@@ -77,4 +100,67 @@ public class TimesAndSamplesCoder {
                                                           new String(Hex.encodeHex(times)), new String(Hex.encodeHex(samples))), e);
         }
     }
+
+    /**
+     * @param timesAndSamples combined times and samples
+     * @return the compressed timesAndSamples, or timesAndSamples itself if compression doesn't make it smaller
+     */
+    public static byte[] compress(final byte[] timesAndSamples) {
+        if (timesAndSamples.length <= DEFLATE_HEADER_LENGTH) {
+            return timesAndSamples;
+        }
+
+        final Deflater deflater = DEFLATERS.get();
+        deflater.reset();
+        deflater.setInput(timesAndSamples);
+        deflater.finish();
+
+        // Not worth it if it isn't smaller
+        final byte[] buffer = new byte[timesAndSamples.length];
+        buffer[0] = DEFLATE_MARKER;
+        buffer[1] = (byte) (timesAndSamples.length >>> 24);
+        buffer[2] = (byte) (timesAndSamples.length >>> 16);
+        buffer[3] = (byte) (timesAndSamples.length >>> 8);
+        buffer[4] = (byte) timesAndSamples.length;
+        int length = DEFLATE_HEADER_LENGTH;
+        while (!deflater.finished() && length < buffer.length) {
+            length += deflater.deflate(buffer, length, buffer.length - length);
+        }
+        if (!deflater.finished()) {
+            return timesAndSamples;
+        }
+        return Arrays.copyOf(buffer, length);
+    }
+
+    /**
+     * @param storedBytes timesAndSamples as stored, compressed or not
+     * @return the combined times and samples
+     */
+    public static byte[] decompress(final byte[] storedBytes) {
+        if (storedBytes.length == 0 || storedBytes[0] != DEFLATE_MARKER) {
+            return storedBytes;
+        }
+
+        final int length = ((storedBytes[1] & 0xFF) << 24) | ((storedBytes[2] & 0xFF) << 16) | ((storedBytes[3] & 0xFF) << 8) | (storedBytes[4] & 0xFF);
+        final byte[] timesAndSamples = new byte[length];
+        final Inflater inflater = INFLATERS.get();
+        inflater.reset();
+        inflater.setInput(storedBytes, DEFLATE_HEADER_LENGTH, storedBytes.length - DEFLATE_HEADER_LENGTH);
+        try {
+            int inflated = 0;
+            while (inflated < length) {
+                final int count = inflater.inflate(timesAndSamples, inflated, length - inflated);
+                if (count == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                inflated += count;
+            }
+            if (inflated != length) {
+                throw new IllegalStateException(String.format("Truncated compressed timesAndSamples, expected %d bytes but got %d", length, inflated));
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalStateException(String.format("Exception decompressing timesAndSamples %s", new String(Hex.encodeHex(storedBytes))), e);
+        }
+        return timesAndSamples;
+    }
 }
@@ -17,107 +17,190 @@
 
 package org.killbill.billing.plugin.meter.timeline.consumer;
 
-import java.util.LinkedHashMap;
-import java.util.Map;
+import javax.annotation.Nullable;
 
 import org.joda.time.DateTime;
 import org.joda.time.DateTimeZone;
+import org.killbill.billing.plugin.meter.api.AggregationFunction;
 import org.killbill.billing.plugin.meter.api.TimeAggregationMode;
 import org.killbill.billing.plugin.meter.timeline.samples.SampleOpcode;
 import org.killbill.billing.plugin.meter.timeline.samples.ScalarSample;
 
+/**
+ * Aggregates samples per time bucket (see TimeAggregationMode) and sends one sample per bucket and opcode
+ * to the underlying sample processor, when the bucket changes. Samples are summed by default,
+ * see AggregationFunction for the other functions.
+ * <p/>
+ * Buckets are computed on epoch seconds (see EpochTimeBuckets) and aggregates are kept in primitive arrays,
+ * indexed by opcode, so that no allocation is done per sample. Percentiles use one QuantileSketch
+ * per opcode, reused across buckets.
+ */
 public class AccumulatorSampleConsumer extends TimeRangeSampleProcessor {
 
-    private final StringBuilder builder = new StringBuilder();
-    // Linked HashMap to keep ordering of opcodes as they came
-    private final Map<SampleOpcode, Double> accumulators = new LinkedHashMap<SampleOpcode, Double>();
+    private static final SampleOpcode[] OPCODES = SampleOpcode.values();
 
     private final TimeAggregationMode timeAggregationMode;
+    private final AggregationFunction aggregationFunction;
+    private final EpochTimeBuckets timeBuckets;
     private final TimeRangeSampleProcessor sampleProcessor;
 
-    private DateTime lastRoundedTime = null;
-    private int aggregatedSampleNumber = 0;
+    // Aggregates for the current bucket, per opcode ordinal
+    private final double[] sums = new double[OPCODES.length];
+    private final double[] mins = new double[OPCODES.length];
+    private final double[] maxs = new double[OPCODES.length];
+    private final double[] lasts = new double[OPCODES.length];
+    private final long[] counts = new long[OPCODES.length];
+    // Only allocated for percentiles
+    private final QuantileSketch[] sketches;
+    private final boolean[] seen = new boolean[OPCODES.length];
+    // Opcode ordinals, in the order they came in the current bucket
+    private final int[] opcodesOrder = new int[OPCODES.length];
+    private int opcodesCount = 0;
+
+    private boolean inBucket = false;
+    // Current bucket: [bucketStart, bucketEnd)
+    private long bucketStart;
+    private long bucketEnd;
 
     public AccumulatorSampleConsumer(final TimeAggregationMode timeAggregationMode, final TimeRangeSampleProcessor sampleProcessor) {
-        super(null, null);
+        this(timeAggregationMode, DateTimeZone.UTC, sampleProcessor);
+    }
+
+    /**
+     * @param timeAggregationMode granularity of the buckets
+     * @param timeZone            time zone of the buckets boundaries (e.g. local days)
+     * @param sampleProcessor     processor for the aggregated samples, timestamped with the start of their bucket
+     */
+    public AccumulatorSampleConsumer(final TimeAggregationMode timeAggregationMode, final DateTimeZone timeZone, final TimeRangeSampleProcessor sampleProcessor) {
+        this(timeAggregationMode, AggregationFunction.SUM, timeZone, sampleProcessor);
+    }
+
+    /**
+     * @param timeAggregationMode granularity of the buckets
+     * @param aggregationFunction function applied to the samples of each bucket
+     * @param timeZone            time zone of the buckets boundaries (e.g. local days)
+     * @param sampleProcessor     processor for the aggregated samples, timestamped with the start of their bucket
+     */
+    public AccumulatorSampleConsumer(final TimeAggregationMode timeAggregationMode, final AggregationFunction aggregationFunction,
+                                     final DateTimeZone timeZone, final TimeRangeSampleProcessor sampleProcessor) {
+        this(timeAggregationMode, aggregationFunction, timeZone, null, null, sampleProcessor);
+    }
+
+    /**
+     * @param timeAggregationMode granularity of the buckets
+     * @param aggregationFunction function applied to the samples of each bucket
+     * @param timeZone            time zone of the buckets boundaries (e.g. local days)
+     * @param startTime           earliest sample time to aggregate (inclusive), null for no lower bound
+     * @param endTime             latest sample time to aggregate (inclusive), null for no upper bound
+     * @param sampleProcessor     processor for the aggregated samples, timestamped with the start of their bucket
+     */
+    public AccumulatorSampleConsumer(final TimeAggregationMode timeAggregationMode, final AggregationFunction aggregationFunction,
+                                     final DateTimeZone timeZone, @Nullable final DateTime startTime, @Nullable final DateTime endTime,
+                                     final TimeRangeSampleProcessor sampleProcessor) {
+        super(startTime, endTime);
         this.timeAggregationMode = timeAggregationMode;
+        this.aggregationFunction = aggregationFunction;
+        this.timeBuckets = EpochTimeBuckets.forZone(timeZone);
         this.sampleProcessor = sampleProcessor;
+        this.sketches = aggregationFunction.isPercentile() ? new QuantileSketch[OPCODES.length] : null;
     }
 
     @Override
     public void processOneSample(final DateTime time, final SampleOpcode opcode, final Object value) {
         // Round the sample timestamp according to the aggregation mode
-        final long millis = time.toDateTime(DateTimeZone.UTC).getMillis();
-        final DateTime roundedTime;
-        switch (timeAggregationMode) {
-            case SECONDS:
-                roundedTime = new DateTime((millis / 1000) * 1000L, DateTimeZone.UTC);
-                break;
-            case MINUTES:
-                roundedTime = new DateTime((millis / (60 * 1000)) * 60 * 1000L, DateTimeZone.UTC);
-                break;
-            case HOURS:
-                roundedTime = new DateTime((millis / (60 * 60 * 1000)) * 60 * 60 * 1000L, DateTimeZone.UTC);
-                break;
-            case DAYS:
-                roundedTime = new DateTime((millis / (24 * 60 * 60 * 1000)) * 24 * 60 * 60 * 1000L, DateTimeZone.UTC);
-                break;
-            case MONTHS:
-                roundedTime = new DateTime(time.getYear(), time.getMonthOfYear(), 1, 0, 0, 0, 0, DateTimeZone.UTC);
-                break;
-            case YEARS:
-                roundedTime = new DateTime(time.getYear(), 1, 1, 0, 0, 0, 0, DateTimeZone.UTC);
-                break;
-            default:
-                roundedTime = time;
-                break;
+        final long epochSeconds = time.getMillis() / 1000L;
+        if (!inBucket || epochSeconds < bucketStart || epochSeconds >= bucketEnd) {
+            // Output if it's not the first value and the bucket changed
+            outputAndResetAccumulators();
+            bucketStart = timeBuckets.bucketStart(timeAggregationMode, epochSeconds);
+            bucketEnd = timeBuckets.nextBucketStart(timeAggregationMode, bucketStart);
+            inBucket = true;
         }
 
         // Get the sample value to aggregate
         // TODO Should we ignore conversion errors (e.g. Strings)?
         final double doubleValue = ScalarSample.getDoubleValue(opcode, value);
 
-        // Output if it's not the first value and the current rounded time differ from the previous one
-        if (lastRoundedTime != null && !lastRoundedTime.equals(roundedTime)) {
-            outputAndResetAccumulators();
-        }
-
         // Perform (or restart) the aggregation
-        if (accumulators.get(opcode) == null) {
-            accumulators.put(opcode, Double.valueOf("0"));
+        final int ordinal = opcode.ordinal();
+        if (!seen[ordinal]) {
+            seen[ordinal] = true;
+            sums[ordinal] = 0;
+            mins[ordinal] = doubleValue;
+            maxs[ordinal] = doubleValue;
+            counts[ordinal] = 0;
+            opcodesOrder[opcodesCount++] = ordinal;
+            if (sketches != null) {
+                if (sketches[ordinal] == null) {
+                    sketches[ordinal] = new QuantileSketch();
+                } else {
+                    sketches[ordinal].reset();
+                }
+            }
+        }
+        sums[ordinal] += doubleValue;
+        if (doubleValue < mins[ordinal]) {
+            mins[ordinal] = doubleValue;
+        }
+        if (doubleValue > maxs[ordinal]) {
+            maxs[ordinal] = doubleValue;
+        }
+        lasts[ordinal] = doubleValue;
+        counts[ordinal]++;
+        if (sketches != null) {
+            sketches[ordinal].add(doubleValue);
         }
-        accumulators.put(opcode, accumulators.get(opcode) + doubleValue);
-
-        lastRoundedTime = roundedTime;
     }
 
     private void outputAndResetAccumulators() {
-        if (aggregatedSampleNumber != 0) {
-            // TODO Assume CSV
-            builder.append(",");
+        if (opcodesCount == 0) {
+            return;
         }
+
         // Output one opcode at a time
-        for (final SampleOpcode opcode : accumulators.keySet()) {
-            aggregatedSampleNumber++;
-            sampleProcessor.processOneSample(lastRoundedTime, opcode, accumulators.get(opcode));
+        final DateTime roundedTime = new DateTime(bucketStart * 1000L, DateTimeZone.UTC);
+        for (int i = 0; i < opcodesCount; i++) {
+            final int ordinal = opcodesOrder[i];
+            sampleProcessor.processOneSample(roundedTime, OPCODES[ordinal], aggregate(ordinal));
+            seen[ordinal] = false;
         }
-        // This will flush (clear) the sample consumer
-        builder.append(sampleProcessor.toString());
+        opcodesCount = 0;
+    }
 
-        accumulators.clear();
+    private double aggregate(final int ordinal) {
+        switch (aggregationFunction) {
+            case SUM:
+                return sums[ordinal];
+            case MIN:
+                return mins[ordinal];
+            case MAX:
+                return maxs[ordinal];
+            case COUNT:
+                return counts[ordinal];
+            case AVG:
+                return sums[ordinal] / counts[ordinal];
+            case LAST:
+                return lasts[ordinal];
+            default:
+                return sketches[ordinal].getQuantile(aggregationFunction.getQuantile());
+        }
     }
 
     @Override
-    public synchronized String toString() {
-        // Often empty
-        final String value = builder.toString();
-        // Allow for re-use
-        builder.setLength(0);
-        return value;
+    public String toString() {
+        // Often empty: this will flush (clear) the sample consumer
+        return sampleProcessor.toString();
     }
 
-    public String flush() {
+    /**
+     * Send the aggregates for the current (last) time bucket to the underlying sample processor
+     */
+    public void flushAccumulators() {
         outputAndResetAccumulators();
+    }
+
+    public String flush() {
+        flushAccumulators();
         return toString();
     }
 }
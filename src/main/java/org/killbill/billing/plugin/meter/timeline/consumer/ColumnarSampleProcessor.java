@@ -0,0 +1,135 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.timeline.consumer;
+
+import java.io.IOException;
+
+import org.joda.time.DateTime;
+import org.killbill.billing.plugin.meter.timeline.samples.SampleOpcode;
+import org.killbill.billing.plugin.meter.timeline.samples.ScalarSample;
+import org.killbill.billing.plugin.meter.timeline.times.TimelineCursor;
+import org.killbill.billing.plugin.meter.timeline.util.DateTimeUtils;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+
+/**
+ * Buffers decoded samples into primitive arrays, to be written in the columnar layout (see OutputFormat)
+ */
+public class ColumnarSampleProcessor extends TimeRangeSampleProcessor {
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private int[] times = new int[INITIAL_CAPACITY];
+    private double[] values = new double[INITIAL_CAPACITY];
+    private int sampleCount = 0;
+
+    private final long startMillis;
+    private final long endMillis;
+
+    public ColumnarSampleProcessor() {
+        this(null, null);
+    }
+
+    public ColumnarSampleProcessor(final DateTime startTime, final DateTime endTime) {
+        super(startTime, endTime);
+        this.startMillis = startTime == null ? Long.MIN_VALUE : startTime.getMillis();
+        this.endMillis = endTime == null ? Long.MAX_VALUE : endTime.getMillis();
+    }
+
+    /**
+     * Decode the times of the run straight into the times buffer, without going through DateTime instances
+     */
+    @Override
+    public void processSamples(final TimelineCursor timeCursor, final int count, final SampleOpcode opcode, final Object value) {
+        ensureCapacity(sampleCount + count);
+        final int decoded = timeCursor.nextTimes(times, sampleCount, count);
+        if (decoded < count) {
+            throw new IllegalStateException(String.format("In ColumnarSampleProcessor.processSamples(), got %d times out of %d", decoded, count));
+        }
+
+        final double doubleValue = toDouble(opcode, value);
+        int kept = sampleCount;
+        for (int i = sampleCount; i < sampleCount + decoded; i++) {
+            final long millis = times[i] * 1000L;
+            if (millis >= startMillis && millis <= endMillis) {
+                times[kept] = times[i];
+                values[kept] = doubleValue;
+                kept++;
+            }
+        }
+        sampleCount = kept;
+    }
+
+    @Override
+    public void processOneSample(final DateTime time, final SampleOpcode opcode, final Object value) {
+        ensureCapacity(sampleCount + 1);
+
+        times[sampleCount] = DateTimeUtils.unixSeconds(time);
+        values[sampleCount] = toDouble(opcode, value);
+        sampleCount++;
+    }
+
+    private double toDouble(final SampleOpcode opcode, final Object value) {
+        return opcode == SampleOpcode.STRING ? Double.NaN : ScalarSample.getDoubleValue(opcode, value);
+    }
+
+    private void ensureCapacity(final int capacity) {
+        if (capacity > times.length) {
+            final int newCapacity = Math.max(times.length * 2, capacity);
+            final int[] newTimes = new int[newCapacity];
+            System.arraycopy(times, 0, newTimes, 0, sampleCount);
+            times = newTimes;
+            final double[] newValues = new double[newCapacity];
+            System.arraycopy(values, 0, newValues, 0, sampleCount);
+            values = newValues;
+        }
+    }
+
+    public int getSampleCount() {
+        return sampleCount;
+    }
+
+    /**
+     * Write the buffered samples as two array fields, "times" (delta-encoded) and "values", and reset the buffer
+     *
+     * @param generator generator, positioned inside an object
+     * @throws IOException generic I/O exception
+     */
+    public void writeColumns(final JsonGenerator generator) throws IOException {
+        generator.writeArrayFieldStart("times");
+        int previousTime = 0;
+        for (int i = 0; i < sampleCount; i++) {
+            generator.writeNumber(times[i] - previousTime);
+            previousTime = times[i];
+        }
+        generator.writeEndArray();
+
+        generator.writeArrayFieldStart("values");
+        for (int i = 0; i < sampleCount; i++) {
+            generator.writeNumber(values[i]);
+        }
+        generator.writeEndArray();
+
+        sampleCount = 0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ColumnarSampleProcessor{sampleCount=%d}", sampleCount);
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.timeline.consumer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.joda.time.LocalDate;
+import org.killbill.billing.plugin.meter.api.TimeAggregationMode;
+
+/**
+ * Time bucket arithmetic on epoch seconds, in a given time zone, without any allocation.
+ * <p/>
+ * Buckets follow the local calendar of the zone. Each instance precomputes, for 1900-2200, the offset
+ * transitions (DST changes) of its zone and the start of each local month (Joda-Time is used outside of
+ * that range). Buckets up to days are then computed by flooring the local time and mapping it back
+ * through the transitions table, and month and year buckets are looked up in the months table.
+ * <p/>
+ * When a DST change skips over a bucket boundary (e.g. no local midnight), the bucket starts at the
+ * transition. When a change repeats local times, the repeated period gets its own bucket(s).
+ */
+public final class EpochTimeBuckets {
+
+    private static final long SECONDS_PER_MINUTE = 60L;
+    private static final long SECONDS_PER_HOUR = 60L * SECONDS_PER_MINUTE;
+    private static final long SECONDS_PER_DAY = 24L * SECONDS_PER_HOUR;
+
+    private static final int FIRST_YEAR = 1900;
+    private static final int LAST_YEAR = 2200;
+
+    public static final EpochTimeBuckets UTC = new EpochTimeBuckets(DateTimeZone.UTC);
+
+    private static final ConcurrentMap<DateTimeZone, EpochTimeBuckets> bucketsPerZone = new ConcurrentHashMap<DateTimeZone, EpochTimeBuckets>();
+
+    private final DateTimeZone zone;
+    // Start of each local month, from January FIRST_YEAR to January LAST_YEAR + 1 included
+    private final long[] monthStarts = new long[(LAST_YEAR - FIRST_YEAR + 1) * 12 + 1];
+    // offsets[i] (in seconds) applies from transitions[i] (inclusive) to transitions[i + 1] (exclusive)
+    private final long[] transitions;
+    private final int[] offsets;
+
+    public static EpochTimeBuckets forZone(final DateTimeZone zone) {
+        if (DateTimeZone.UTC.equals(zone)) {
+            return UTC;
+        }
+
+        EpochTimeBuckets buckets = bucketsPerZone.get(zone);
+        if (buckets == null) {
+            // Tables are immutable, it doesn't matter if we build them twice
+            buckets = new EpochTimeBuckets(zone);
+            bucketsPerZone.putIfAbsent(zone, buckets);
+        }
+        return buckets;
+    }
+
+    private EpochTimeBuckets(final DateTimeZone zone) {
+        this.zone = zone;
+
+        for (int i = 0; i < monthStarts.length; i++) {
+            monthStarts[i] = new LocalDate(FIRST_YEAR + i / 12, i % 12 + 1, 1).toDateTimeAtStartOfDay(zone).getMillis() / 1000L;
+        }
+
+        final long firstMillis = (monthStarts[0] - SECONDS_PER_DAY) * 1000L;
+        final long lastMillis = monthStarts[monthStarts.length - 1] * 1000L;
+        final List<Long> transitionsMillis = new ArrayList<Long>();
+        long millis = firstMillis;
+        while (true) {
+            final long nextMillis = zone.nextTransition(millis);
+            if (nextMillis == millis || nextMillis >= lastMillis) {
+                break;
+            }
+            transitionsMillis.add(nextMillis);
+            millis = nextMillis;
+        }
+
+        transitions = new long[transitionsMillis.size() + 1];
+        offsets = new int[transitionsMillis.size() + 1];
+        transitions[0] = Long.MIN_VALUE;
+        offsets[0] = zone.getOffset(firstMillis) / 1000;
+        for (int i = 1; i < transitions.length; i++) {
+            transitions[i] = transitionsMillis.get(i - 1) / 1000L;
+            offsets[i] = zone.getOffset(transitionsMillis.get(i - 1)) / 1000;
+        }
+    }
+
+    public DateTimeZone getZone() {
+        return zone;
+    }
+
+    /**
+     * @param timeAggregationMode granularity of the buckets
+     * @param epochSeconds        time, in seconds since the epoch
+     * @return the start of the bucket containing epochSeconds, in seconds since the epoch
+     */
+    public long bucketStart(final TimeAggregationMode timeAggregationMode, final long epochSeconds) {
+        switch (timeAggregationMode) {
+            case SECONDS:
+                return epochSeconds;
+            case MINUTES:
+                return localFloor(epochSeconds, SECONDS_PER_MINUTE);
+            case HOURS:
+                return localFloor(epochSeconds, SECONDS_PER_HOUR);
+            case DAYS:
+                return localFloor(epochSeconds, SECONDS_PER_DAY);
+            case MONTHS:
+                return monthStart(epochSeconds, 1, 0);
+            case YEARS:
+                return monthStart(epochSeconds, 12, 0);
+            default:
+                throw new IllegalArgumentException(String.format("Unknown time aggregation mode %s", timeAggregationMode));
+        }
+    }
+
+    /**
+     * @param timeAggregationMode granularity of the buckets
+     * @param bucketStart         start of a bucket, as returned by bucketStart
+     * @return the start of the next bucket (i.e. the exclusive end of this one), in seconds since the epoch
+     */
+    public long nextBucketStart(final TimeAggregationMode timeAggregationMode, final long bucketStart) {
+        switch (timeAggregationMode) {
+            case SECONDS:
+                return bucketStart + 1;
+            case MINUTES:
+                return nextLocalFloor(bucketStart, SECONDS_PER_MINUTE);
+            case HOURS:
+                return nextLocalFloor(bucketStart, SECONDS_PER_HOUR);
+            case DAYS:
+                return nextLocalFloor(bucketStart, SECONDS_PER_DAY);
+            case MONTHS:
+                return monthStart(bucketStart, 1, 1);
+            case YEARS:
+                return monthStart(bucketStart, 12, 1);
+            default:
+                throw new IllegalArgumentException(String.format("Unknown time aggregation mode %s", timeAggregationMode));
+        }
+    }
+
+    private long localFloor(final long epochSeconds, final long unit) {
+        final int index = transitionIndex(epochSeconds);
+        final long localBoundary = floor(epochSeconds + offsets[index], unit);
+
+        // Find the offset period in which the local boundary falls (usually, the current one)
+        for (int i = index; ; i--) {
+            final long candidate = localBoundary - offsets[i];
+            if (candidate >= transitions[i]) {
+                if (i < index && candidate >= transitions[i + 1]) {
+                    // The local boundary was skipped by the transition (gap)
+                    return transitions[i + 1];
+                }
+                return candidate;
+            }
+        }
+    }
+
+    private long nextLocalFloor(final long bucketStart, final long unit) {
+        long guess = bucketStart + unit;
+        long next = localFloor(guess, unit);
+        // Local periods longer than unit (e.g. 25 hours days): step forward by minutes
+        while (next <= bucketStart) {
+            guess += SECONDS_PER_MINUTE;
+            next = localFloor(guess, unit);
+        }
+        return next;
+    }
+
+    private int transitionIndex(final long epochSeconds) {
+        if (transitions.length == 1) {
+            return 0;
+        }
+
+        final int index = Arrays.binarySearch(transitions, epochSeconds);
+        // Insertion point - 1 if not found
+        return index >= 0 ? index : -index - 2;
+    }
+
+    // Start of the bucket of monthsPerBucket months (1 or 12) containing epochSeconds, shifted by bucketsOffset buckets
+    private long monthStart(final long epochSeconds, final int monthsPerBucket, final int bucketsOffset) {
+        if (epochSeconds >= monthStarts[0] && epochSeconds < monthStarts[monthStarts.length - 1]) {
+            int index = Arrays.binarySearch(monthStarts, epochSeconds);
+            if (index < 0) {
+                // Insertion point - 1
+                index = -index - 2;
+            }
+            index = index - index % monthsPerBucket + bucketsOffset * monthsPerBucket;
+            if (index < monthStarts.length) {
+                return monthStarts[index];
+            }
+        }
+
+        // Outside of the calendar table
+        final DateTime time = new DateTime(epochSeconds * 1000L, zone);
+        final DateTime start = monthsPerBucket == 12 ? time.year().roundFloorCopy().plusYears(bucketsOffset)
+                                                     : time.monthOfYear().roundFloorCopy().plusMonths(bucketsOffset);
+        return start.getMillis() / 1000L;
+    }
+
+    private static long floor(final long value, final long divisor) {
+        final long quotient = value / divisor;
+        // Round towards negative infinity for times before the epoch
+        return (value % divisor < 0 ? quotient - 1 : quotient) * divisor;
+    }
+}
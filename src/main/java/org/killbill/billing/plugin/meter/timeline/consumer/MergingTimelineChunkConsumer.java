@@ -0,0 +1,113 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.timeline.consumer;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.List;
+import java.util.TreeSet;
+
+import javax.annotation.Nullable;
+
+import org.killbill.billing.plugin.meter.timeline.TimelineEventHandler;
+import org.killbill.billing.plugin.meter.timeline.chunks.TimelineChunk;
+
+import com.google.common.collect.Iterators;
+import com.google.common.collect.PeekingIterator;
+
+/**
+ * Streaming merge of the chunks stored in the database and the ones still in memory.
+ * <p/>
+ * Database chunks are pushed via processTimelineChunk(), ordered by source id, metric id and start time.
+ * In-memory chunks are fetched one source at a time, sorted the same way, as the database cursor reaches
+ * that source. Both streams are merged so that the downstream consumer sees each (source, metric) series
+ * exactly once, with its chunks in time order, and only the in-memory chunks for a single source are held
+ * at any point. Call finish() once the database cursor is exhausted.
+ */
+public abstract class MergingTimelineChunkConsumer implements TimelineChunkConsumer {
+
+    private final PeekingIterator<Integer> pendingSourceIds;
+    private final TimelineSeriesConsumer seriesConsumer;
+    private final Deque<TimelineChunk> inMemoryChunks = new ArrayDeque<TimelineChunk>();
+
+    private boolean inSeries = false;
+    private int currentSourceId;
+    private int currentMetricId;
+
+    public MergingTimelineChunkConsumer(final List<Integer> sourceIds, final TimelineSeriesConsumer seriesConsumer) {
+        this.pendingSourceIds = Iterators.peekingIterator(new TreeSet<Integer>(sourceIds).iterator());
+        this.seriesConsumer = seriesConsumer;
+    }
+
+    /**
+     * @param sourceId source id
+     * @return the in-memory chunks for that source, ordered by metric id and start time
+     * @throws IOException if the chunks cannot be retrieved
+     */
+    protected abstract Collection<? extends TimelineChunk> getInMemoryTimelineChunks(int sourceId) throws IOException;
+
+    @Override
+    public void processTimelineChunk(final TimelineChunk chunk) {
+        try {
+            // Load (and flush) in-memory chunks one source at a time, up to the source of this chunk
+            while (pendingSourceIds.hasNext() && pendingSourceIds.peek() <= chunk.getSourceId()) {
+                inMemoryChunks.addAll(getInMemoryTimelineChunks(pendingSourceIds.next()));
+                emitInMemoryChunksBefore(chunk);
+            }
+            emitInMemoryChunksBefore(chunk);
+            emit(chunk);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public void finish() throws IOException {
+        // Sources past the last database chunk
+        emitInMemoryChunksBefore(null);
+        while (pendingSourceIds.hasNext()) {
+            inMemoryChunks.addAll(getInMemoryTimelineChunks(pendingSourceIds.next()));
+            emitInMemoryChunksBefore(null);
+        }
+
+        if (inSeries) {
+            seriesConsumer.endSeries();
+            inSeries = false;
+        }
+    }
+
+    private void emitInMemoryChunksBefore(@Nullable final TimelineChunk chunk) throws IOException {
+        while (!inMemoryChunks.isEmpty() && (chunk == null || TimelineEventHandler.CHUNK_COMPARATOR.compare(inMemoryChunks.peekFirst(), chunk) < 0)) {
+            emit(inMemoryChunks.pollFirst());
+        }
+    }
+
+    private void emit(final TimelineChunk chunk) throws IOException {
+        if (!inSeries || chunk.getSourceId() != currentSourceId || chunk.getMetricId() != currentMetricId) {
+            if (inSeries) {
+                seriesConsumer.endSeries();
+            }
+            currentSourceId = chunk.getSourceId();
+            currentMetricId = chunk.getMetricId();
+            seriesConsumer.startSeries(currentSourceId, currentMetricId);
+            inSeries = true;
+        }
+        seriesConsumer.processTimelineChunk(chunk);
+    }
+}
@@ -0,0 +1,286 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.timeline.consumer;
+
+import java.util.Arrays;
+
+/**
+ * Streaming, mergeable quantile sketch with bounded relative error (in the spirit of DDSketch).
+ * <p/>
+ * Values are counted in logarithmic bins: bin i holds the values in (gamma^(i-1), gamma^i], with
+ * gamma = (1 + a) / (1 - a), so that any reported quantile is within a relative error a of a value
+ * of the stream. Negative values are kept in a mirrored set of bins. Memory is bounded by the number
+ * of bins: if the values span more than maxBins bins, the bins of the smallest magnitudes are collapsed.
+ * <p/>
+ * Two sketches with the same accuracy can be merged (e.g. across chunks or sources) and the result is
+ * the same as if all values had been added to a single sketch. This class is not thread-safe.
+ */
+public class QuantileSketch {
+
+    public static final double DEFAULT_RELATIVE_ACCURACY = 0.01;
+    public static final int DEFAULT_MAX_BINS = 2048;
+
+    private final double relativeAccuracy;
+    private final double gamma;
+    private final double logGamma;
+    private final double minIndexableValue;
+    private final int maxBins;
+
+    private final Bins positiveBins = new Bins();
+    private final Bins negativeBins = new Bins();
+    private long zeroCount = 0;
+    private long count = 0;
+    private double min = Double.POSITIVE_INFINITY;
+    private double max = Double.NEGATIVE_INFINITY;
+
+    public QuantileSketch() {
+        this(DEFAULT_RELATIVE_ACCURACY, DEFAULT_MAX_BINS);
+    }
+
+    /**
+     * @param relativeAccuracy relative error of the reported quantiles, between 0 and 1 (exclusive)
+     * @param maxBins          maximum number of bins, per sign
+     */
+    public QuantileSketch(final double relativeAccuracy, final int maxBins) {
+        if (relativeAccuracy <= 0 || relativeAccuracy >= 1) {
+            throw new IllegalArgumentException("Relative accuracy must be between 0 and 1: " + relativeAccuracy);
+        }
+        if (maxBins < 1) {
+            throw new IllegalArgumentException("The maximum number of bins must be positive: " + maxBins);
+        }
+        this.relativeAccuracy = relativeAccuracy;
+        this.gamma = (1 + relativeAccuracy) / (1 - relativeAccuracy);
+        this.logGamma = Math.log(gamma);
+        this.minIndexableValue = Double.MIN_NORMAL * gamma;
+        this.maxBins = maxBins;
+    }
+
+    /**
+     * Add a value to the sketch. NaN values are ignored.
+     *
+     * @param value value to add
+     */
+    public void add(final double value) {
+        if (Double.isNaN(value)) {
+            return;
+        }
+
+        if (value >= minIndexableValue) {
+            positiveBins.add(index(value), 1);
+        } else if (value <= -minIndexableValue) {
+            negativeBins.add(index(-value), 1);
+        } else {
+            zeroCount++;
+        }
+
+        count++;
+        if (value < min) {
+            min = value;
+        }
+        if (value > max) {
+            max = value;
+        }
+    }
+
+    /**
+     * Add all the values of another sketch to this one
+     *
+     * @param other sketch to merge, with the same relative accuracy
+     */
+    public void merge(final QuantileSketch other) {
+        if (other.relativeAccuracy != relativeAccuracy) {
+            throw new IllegalArgumentException("Cannot merge sketches with different accuracies: " + relativeAccuracy + " and " + other.relativeAccuracy);
+        }
+        if (other.count == 0) {
+            return;
+        }
+
+        positiveBins.addAll(other.positiveBins);
+        negativeBins.addAll(other.negativeBins);
+        zeroCount += other.zeroCount;
+        count += other.count;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+    }
+
+    /**
+     * @param quantile quantile to compute, between 0 and 1 (e.g. 0.95 for the 95th percentile)
+     * @return estimated value at the quantile, NaN if the sketch is empty
+     */
+    public double getQuantile(final double quantile) {
+        if (quantile < 0 || quantile > 1) {
+            throw new IllegalArgumentException("Quantile must be between 0 and 1: " + quantile);
+        }
+        if (count == 0) {
+            return Double.NaN;
+        }
+        if (quantile == 0) {
+            return min;
+        }
+        if (quantile == 1) {
+            return max;
+        }
+
+        final long rank = (long) (quantile * (count - 1));
+        final double value;
+        if (rank < negativeBins.total) {
+            // Most negative values first, i.e. highest bins first
+            value = -binValue(negativeBins.indexAtReverseRank(rank));
+        } else if (rank < negativeBins.total + zeroCount) {
+            value = 0;
+        } else {
+            value = binValue(positiveBins.indexAtRank(rank - negativeBins.total - zeroCount));
+        }
+
+        // The bins estimates can't be outside of the actual values
+        return Math.max(min, Math.min(max, value));
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public double getMin() {
+        return count == 0 ? Double.NaN : min;
+    }
+
+    public double getMax() {
+        return count == 0 ? Double.NaN : max;
+    }
+
+    public double getRelativeAccuracy() {
+        return relativeAccuracy;
+    }
+
+    /**
+     * Empty the sketch, keeping the bins allocated for reuse
+     */
+    public void reset() {
+        positiveBins.reset();
+        negativeBins.reset();
+        zeroCount = 0;
+        count = 0;
+        min = Double.POSITIVE_INFINITY;
+        max = Double.NEGATIVE_INFINITY;
+    }
+
+    private int index(final double positiveValue) {
+        return (int) Math.ceil(Math.log(positiveValue) / logGamma);
+    }
+
+    private double binValue(final int index) {
+        // Value with the lowest relative error to all values of (gamma^(index-1), gamma^index]
+        return 2 * Math.pow(gamma, index) / (gamma + 1);
+    }
+
+    // Dense counts for the bins [minIndex, maxIndex]
+    private final class Bins {
+
+        private long[] counts = new long[0];
+        // Bin index of counts[0]
+        private int offset = 0;
+        private int minIndex = 0;
+        private int maxIndex = -1;
+        private long total = 0;
+
+        void add(final int index, final long binCount) {
+            if (total == 0) {
+                if (counts.length == 0) {
+                    counts = new long[Math.min(64, maxBins)];
+                }
+                offset = index - counts.length / 2;
+                minIndex = index;
+                maxIndex = index;
+            } else if (index < minIndex || index > maxIndex) {
+                extendRange(Math.min(index, minIndex), Math.max(index, maxIndex));
+            }
+
+            // The bin may have been collapsed into the lowest one
+            final int binIndex = Math.max(index, minIndex);
+            counts[binIndex - offset] += binCount;
+            total += binCount;
+        }
+
+        void addAll(final Bins other) {
+            for (int index = other.minIndex; index <= other.maxIndex; index++) {
+                final long binCount = other.counts[index - other.offset];
+                if (binCount != 0) {
+                    add(index, binCount);
+                }
+            }
+        }
+
+        private void extendRange(final int newMinIndex, final int newMaxIndex) {
+            // Keep the highest bins, collapse the lowest ones if needed
+            final int lowestIndex = Math.max(newMinIndex, newMaxIndex - maxBins + 1);
+
+            long collapsedCount = 0;
+            for (int index = minIndex; index < Math.min(lowestIndex, maxIndex + 1); index++) {
+                collapsedCount += counts[index - offset];
+                counts[index - offset] = 0;
+            }
+
+            final int span = newMaxIndex - lowestIndex + 1;
+            if (lowestIndex < offset || newMaxIndex >= offset + counts.length) {
+                final long[] newCounts = span > counts.length ? new long[Math.min(Math.max(span, 2 * counts.length), maxBins)] : new long[counts.length];
+                final int newOffset = lowestIndex - (newCounts.length - span) / 2;
+                final int copyFrom = Math.max(minIndex, lowestIndex);
+                if (copyFrom <= maxIndex) {
+                    System.arraycopy(counts, copyFrom - offset, newCounts, copyFrom - newOffset, maxIndex - copyFrom + 1);
+                }
+                counts = newCounts;
+                offset = newOffset;
+            }
+
+            minIndex = lowestIndex;
+            maxIndex = newMaxIndex;
+            counts[minIndex - offset] += collapsedCount;
+        }
+
+        int indexAtRank(final long rank) {
+            long seen = 0;
+            for (int index = minIndex; index <= maxIndex; index++) {
+                seen += counts[index - offset];
+                if (seen > rank) {
+                    return index;
+                }
+            }
+            return maxIndex;
+        }
+
+        int indexAtReverseRank(final long rank) {
+            long seen = 0;
+            for (int index = maxIndex; index >= minIndex; index--) {
+                seen += counts[index - offset];
+                if (seen > rank) {
+                    return index;
+                }
+            }
+            return minIndex;
+        }
+
+        void reset() {
+            if (total != 0) {
+                Arrays.fill(counts, 0L);
+            }
+            total = 0;
+            minIndex = 0;
+            maxIndex = -1;
+        }
+    }
+}
@@ -0,0 +1,34 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.timeline.consumer;
+
+import java.io.IOException;
+
+import org.killbill.billing.plugin.meter.timeline.chunks.TimelineChunk;
+
+/**
+ * Receives the chunks of each (source, metric) series, in time order, one series at a time
+ */
+public interface TimelineSeriesConsumer {
+
+    public void startSeries(int sourceId, int metricId) throws IOException;
+
+    public void processTimelineChunk(TimelineChunk chunk) throws IOException;
+
+    public void endSeries() throws IOException;
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.timeline.consumer.filter;
+
+import java.util.Arrays;
+
+import org.joda.time.DateTime;
+import org.killbill.billing.plugin.meter.timeline.consumer.TimeRangeSampleProcessor;
+import org.killbill.billing.plugin.meter.timeline.samples.SampleOpcode;
+import org.killbill.billing.plugin.meter.timeline.samples.ScalarSample;
+
+/**
+ * This SampleProcessor downsamples a stream of samples to at most outputCount samples,
+ * using the Largest-Triangle-Three-Buckets algorithm (Sveinn Steinarsson, 2013).
+ * <p/>
+ * The time range is split into outputCount - 2 buckets of equal duration. The first and last samples
+ * are always output, and for each other bucket, the sample forming the largest triangle with the sample
+ * previously output and the average of the next bucket is output. Unlike DecimatingSampleFilter, output
+ * samples are always scanned samples, at their own time, and the choice depends on the neighbouring
+ * buckets, which preserves the visual shape of the series (peaks, valleys and slopes).
+ * With an outputCount of 1 or 2, there is no room for buckets: only the first (and last) samples are output.
+ * <p/>
+ * Samples are streamed: only the samples of the last two buckets are kept in memory. Call flush()
+ * once the last sample of the series has been processed.
+ */
+public class LargestTriangleThreeBucketsFilter extends TimeRangeSampleProcessor {
+
+    private final int outputCount;
+    private final TimeRangeSampleProcessor sampleProcessor;
+
+    private boolean initialized = false;
+    private long startMillis;
+    private double bucketMillis;
+    private int bucketCount;
+
+    // Last sample output, first vertex of the triangles
+    private long lastOutputMillis;
+    private double lastOutputValue;
+
+    // Bucket whose sample is still to be chosen, and bucket being filled
+    private Bucket pendingBucket = new Bucket();
+    private Bucket currentBucket = new Bucket();
+    private int currentBucketIndex = -1;
+
+    /**
+     * @param startTime       The start time we're considering values, or null, meaning the time of the first sample
+     * @param endTime         The end time we're considering values, or null, meaning now
+     * @param outputCount     The maximum number of samples to generate
+     * @param sampleProcessor The implementor of the TimeRangeSampleProcessor abstract class
+     */
+    public LargestTriangleThreeBucketsFilter(final DateTime startTime, final DateTime endTime, final int outputCount, final TimeRangeSampleProcessor sampleProcessor) {
+        super(startTime, endTime);
+        if (outputCount <= 0) {
+            throw new IllegalArgumentException(String.format("In LargestTriangleThreeBucketsFilter, outputCount is %d", outputCount));
+        }
+        this.outputCount = outputCount;
+        this.sampleProcessor = sampleProcessor;
+    }
+
+    @Override
+    public void processOneSample(final DateTime time, final SampleOpcode opcode, final Object value) {
+        if (opcode == SampleOpcode.STRING) {
+            // We don't have interpolation, so just output this one
+            sampleProcessor.processOneSample(time, opcode, value);
+            return;
+        }
+
+        final long millis = time.getMillis();
+        final double doubleValue = ScalarSample.getDoubleValue(opcode, value);
+        if (!initialized) {
+            initialize(millis);
+            // The first sample is always output
+            output(millis, opcode, value, doubleValue);
+            return;
+        }
+
+        if (outputCount < 3) {
+            if (outputCount == 2) {
+                // Only keep the candidate for the last sample
+                currentBucket.reset();
+                currentBucket.add(millis, opcode, value, doubleValue);
+            }
+            return;
+        }
+
+        final int bucketIndex = (int) Math.max(0, Math.min(bucketCount - 1, (millis - startMillis) / bucketMillis));
+        if (bucketIndex != currentBucketIndex && currentBucket.size > 0) {
+            // The current bucket is complete: its average is the third vertex for the pending bucket
+            if (pendingBucket.size > 0) {
+                outputLargestTriangle(pendingBucket, currentBucket.getAverageMillis(), currentBucket.getAverageValue());
+            }
+            final Bucket bucket = pendingBucket;
+            pendingBucket = currentBucket;
+            currentBucket = bucket;
+            currentBucket.reset();
+        }
+        currentBucketIndex = bucketIndex;
+        currentBucket.add(millis, opcode, value, doubleValue);
+    }
+
+    /**
+     * Output the samples still buffered. The filter can't be reused afterwards.
+     */
+    public void flush() {
+        if (currentBucket.size == 0) {
+            return;
+        }
+
+        // The last sample is always output, and is the third vertex for the last buckets
+        final int last = currentBucket.size - 1;
+        final long lastMillis = currentBucket.millis[last];
+        final double lastValue = currentBucket.doubleValues[last];
+        final SampleOpcode lastOpcode = currentBucket.opcodes[last];
+        final Object lastRawValue = currentBucket.values[last];
+
+        if (pendingBucket.size > 0) {
+            outputLargestTriangle(pendingBucket, currentBucket.getAverageMillis(), currentBucket.getAverageValue());
+        }
+        currentBucket.size = last;
+        if (currentBucket.size > 0) {
+            outputLargestTriangle(currentBucket, lastMillis, lastValue);
+        }
+        output(lastMillis, lastOpcode, lastRawValue, lastValue);
+
+        pendingBucket.reset();
+        currentBucket.reset();
+    }
+
+    private void initialize(final long firstMillis) {
+        startMillis = getStartTime() == null ? firstMillis : getStartTime().getMillis();
+        final long now = System.currentTimeMillis();
+        final long endMillis = getEndTime() == null ? now : Math.min(getEndTime().getMillis(), now);
+        // The first and last samples are output on their own
+        bucketCount = Math.max(1, outputCount - 2);
+        bucketMillis = Math.max(1.0, (double) (endMillis - startMillis) / bucketCount);
+        initialized = true;
+    }
+
+    private void outputLargestTriangle(final Bucket bucket, final double nextMillis, final double nextValue) {
+        // Times are relative to the last sample output, to keep the precision of the doubles
+        final double nextX = nextMillis - lastOutputMillis;
+        final double nextY = nextValue - lastOutputValue;
+
+        int largestIndex = 0;
+        double largestArea = -1.0;
+        for (int i = 0; i < bucket.size; i++) {
+            // Twice the area of the triangle (last output, sample, next), the factor doesn't matter
+            final double area = Math.abs(nextX * (bucket.doubleValues[i] - lastOutputValue) - (bucket.millis[i] - lastOutputMillis) * nextY);
+            if (area > largestArea) {
+                largestArea = area;
+                largestIndex = i;
+            }
+        }
+
+        output(bucket.millis[largestIndex], bucket.opcodes[largestIndex], bucket.values[largestIndex], bucket.doubleValues[largestIndex]);
+    }
+
+    private void output(final long millis, final SampleOpcode opcode, final Object value, final double doubleValue) {
+        lastOutputMillis = millis;
+        lastOutputValue = doubleValue;
+        sampleProcessor.processOneSample(new DateTime(millis), opcode, value);
+    }
+
+    @Override
+    public String toString() {
+        return sampleProcessor.toString();
+    }
+
+    private static final class Bucket {
+
+        private long[] millis = new long[16];
+        private double[] doubleValues = new double[16];
+        private SampleOpcode[] opcodes = new SampleOpcode[16];
+        private Object[] values = new Object[16];
+        private int size = 0;
+
+        private long sumMillis = 0;
+        private double sumValues = 0.0;
+
+        private void add(final long sampleMillis, final SampleOpcode opcode, final Object value, final double doubleValue) {
+            if (size == millis.length) {
+                final int newLength = size * 2;
+                millis = Arrays.copyOf(millis, newLength);
+                doubleValues = Arrays.copyOf(doubleValues, newLength);
+                opcodes = Arrays.copyOf(opcodes, newLength);
+                values = Arrays.copyOf(values, newLength);
+            }
+            millis[size] = sampleMillis;
+            doubleValues[size] = doubleValue;
+            opcodes[size] = opcode;
+            values[size] = value;
+            size++;
+
+            sumMillis += sampleMillis;
+            sumValues += doubleValue;
+        }
+
+        private double getAverageMillis() {
+            return (double) sumMillis / size;
+        }
+
+        private double getAverageValue() {
+            return sumValues / size;
+        }
+
+        private void reset() {
+            // Release the sample values
+            Arrays.fill(values, 0, size, null);
+            size = 0;
+            sumMillis = 0;
+            sumValues = 0.0;
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.timeline.partitions;
+
+import javax.annotation.Nullable;
+
+import org.joda.time.format.DateTimeFormat;
+import org.joda.time.format.DateTimeFormatter;
+import org.killbill.billing.plugin.meter.timeline.util.DateTimeUtils;
+
+/**
+ * A range partition of the timeline_chunks table. Partitions are named after their
+ * upper bound (exclusive, as in VALUES LESS THAN), e.g. p201410200000 holds
+ * the chunks starting before 2014-10-20 00:00 UTC (and after the previous partition).
+ */
+public class TimelinePartition {
+
+    // Holds the chunk with record_id 0 (start_time 0), never dropped
+    public static final String SENTINEL_PARTITION_NAME = "p0";
+    public static final String MAX_PARTITION_NAME = "p_max";
+
+    private static final DateTimeFormatter NAME_FORMATTER = DateTimeFormat.forPattern("'p'yyyyMMddHHmm").withZoneUTC();
+
+    private final String name;
+    private final Integer endTime;
+
+    public static TimelinePartition forEndTime(final int endTime) {
+        return new TimelinePartition(NAME_FORMATTER.print(DateTimeUtils.dateTimeFromUnixSeconds(endTime)), endTime);
+    }
+
+    public TimelinePartition(final String name, @Nullable final Integer endTime) {
+        this.name = name;
+        this.endTime = endTime;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the upper bound of the partition (unix seconds, exclusive), null for MAXVALUE
+     */
+    @Nullable
+    public Integer getEndTime() {
+        return endTime;
+    }
+
+    public boolean isDroppable() {
+        return endTime != null && !SENTINEL_PARTITION_NAME.equals(name);
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder();
+        sb.append("TimelinePartition");
+        sb.append("{name='").append(name).append('\'');
+        sb.append(", endTime=").append(endTime);
+        sb.append('}');
+        return sb.toString();
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+
+        final TimelinePartition that = (TimelinePartition) o;
+
+        if (endTime != null ? !endTime.equals(that.endTime) : that.endTime != null) {
+            return false;
+        }
+        if (name != null ? !name.equals(that.name) : that.name != null) {
+            return false;
+        }
+
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = name != null ? name.hashCode() : 0;
+        result = 31 * result + (endTime != null ? endTime.hashCode() : 0);
+        return result;
+    }
+}
@@ -0,0 +1,292 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.timeline.partitions;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.joda.time.DateTime;
+import org.killbill.billing.plugin.meter.MeterConfig;
+import org.killbill.billing.plugin.meter.api.user.UsageResultCache;
+import org.killbill.billing.plugin.meter.timeline.util.DateTimeUtils;
+import org.killbill.clock.Clock;
+import org.skife.jdbi.v2.Handle;
+import org.skife.jdbi.v2.IDBI;
+import org.skife.jdbi.v2.tweak.HandleCallback;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+/**
+ * This class runs a thread that keeps the timeline_chunks table partitioned by start_time
+ * (one partition per config.getPartitionLength(), aligned on the epoch), creating
+ * config.getPartitionsAhead() partitions ahead of time, and drops the partitions
+ * which are entirely older than config.getPartitionRetention().
+ * <p/>
+ * Dropping a partition is a cheap metadata operation, unlike deleting the rows, and queries
+ * bounded on start_time only scan the relevant partitions. On databases without partitioning
+ * support (e.g. H2), expired chunks are deleted instead.
+ * <p/>
+ * MySQL requires the partitioning column to be part of every unique key, hence the
+ * (record_id, start_time) primary key on timeline_chunks (see migration/timeline_chunks_partitioning.sql
+ * to upgrade an existing database).
+ * <p/>
+ * Cached usage results are invalidated whenever chunks are dropped.
+ */
+@Singleton
+public class TimelinePartitionManager {
+
+    private static final Logger log = LoggerFactory.getLogger(TimelinePartitionManager.class);
+
+    private final IDBI dbi;
+    private final MeterConfig config;
+    private final TimelinePartitionSqlDao partitionSqlDao;
+    private final UsageResultCache usageResultCache;
+    private final Clock clock;
+
+    private final ScheduledExecutorService partitionThread = Executors.newSingleThreadScheduledExecutor();
+
+    private final Map<String, AtomicLong> partitionCounters = new LinkedHashMap<String, AtomicLong>();
+
+    private final AtomicBoolean isMaintaining = new AtomicBoolean(false);
+
+    private final AtomicLong maintenanceRuns = makeCounter("maintenanceRuns");
+    private final AtomicLong maintenanceFailures = makeCounter("maintenanceFailures");
+    private final AtomicLong partitionsCreated = makeCounter("partitionsCreated");
+    private final AtomicLong partitionsDropped = makeCounter("partitionsDropped");
+    private final AtomicLong chunksDeleted = makeCounter("chunksDeleted");
+    private final AtomicLong msSpentMaintaining = makeCounter("msSpentMaintaining");
+
+    private volatile Boolean supportsPartitioning;
+
+    @Inject
+    public TimelinePartitionManager(final IDBI dbi, final MeterConfig config, final UsageResultCache usageResultCache, final Clock clock) {
+        this.dbi = dbi;
+        this.config = config;
+        this.partitionSqlDao = dbi.onDemand(TimelinePartitionSqlDao.class);
+        this.usageResultCache = usageResultCache;
+        this.clock = clock;
+    }
+
+    public void maintainPartitions() {
+        maintainPartitions(clock.getUTCNow());
+    }
+
+    public void maintainPartitions(final DateTime now) {
+        if (!isMaintaining.compareAndSet(false, true)) {
+            log.info("Asked to maintain the timeline_chunks partitions, but we're already doing it!");
+            return;
+        }
+
+        maintenanceRuns.incrementAndGet();
+        final long startMillis = System.currentTimeMillis();
+        try {
+            final int nowSeconds = DateTimeUtils.unixSeconds(now);
+            if (supportsPartitioning()) {
+                createPartitions(nowSeconds);
+            }
+            dropExpiredPartitions(nowSeconds);
+        } catch (RuntimeException e) {
+            // Try again next time
+            maintenanceFailures.incrementAndGet();
+            log.warn("Unable to maintain the timeline_chunks partitions", e);
+        } finally {
+            msSpentMaintaining.addAndGet(System.currentTimeMillis() - startMillis);
+            isMaintaining.set(false);
+        }
+    }
+
+    private void createPartitions(final int nowSeconds) {
+        final int partitionLength = getPartitionLengthSeconds();
+        final List<TimelinePartition> partitions = getPartitions();
+        if (partitions.isEmpty()) {
+            final List<TimelinePartition> initialPartitions = getInitialPartitions(nowSeconds, partitionLength, config.getPartitionsAhead());
+            log.info("Partitioning the timeline_chunks table, this may take a while: {}", initialPartitions);
+            partitionSqlDao.partitionTimelineChunks(initialPartitions);
+            partitionsCreated.addAndGet(initialPartitions.size());
+            return;
+        }
+
+        Integer lastEndTime = null;
+        for (final TimelinePartition partition : partitions) {
+            if (partition.getEndTime() != null) {
+                lastEndTime = partition.getEndTime();
+            }
+        }
+        if (lastEndTime == null) {
+            log.warn("Unexpected timeline_chunks partitions {}, not adding any", partitions);
+            return;
+        }
+
+        final List<TimelinePartition> partitionsToAdd = getPartitionsToAdd(lastEndTime, nowSeconds, partitionLength, config.getPartitionsAhead());
+        if (!partitionsToAdd.isEmpty()) {
+            log.info("Adding timeline_chunks partitions {}", partitionsToAdd);
+            partitionSqlDao.addTimelineChunksPartitions(partitionsToAdd);
+            partitionsCreated.addAndGet(partitionsToAdd.size());
+        }
+    }
+
+    private void dropExpiredPartitions(final int nowSeconds) {
+        final long retentionMillis = config.getPartitionRetention().getMillis();
+        if (retentionMillis <= 0) {
+            // Keep everything
+            return;
+        }
+        final int cutoff = nowSeconds - (int) (retentionMillis / 1000);
+
+        if (supportsPartitioning()) {
+            for (final TimelinePartition partition : getPartitionsToDrop(getPartitions(), cutoff)) {
+                log.info("Dropping expired timeline_chunks partition {}", partition);
+                partitionSqlDao.dropTimelineChunksPartition(partition.getName());
+                partitionsDropped.incrementAndGet();
+                // Cached results may include the dropped chunks
+                usageResultCache.invalidateAll();
+            }
+        } else {
+            // Same granularity as with partitions
+            final int endTime = getPartitionStart(cutoff, getPartitionLengthSeconds());
+            final int deleted = partitionSqlDao.deleteTimelineChunksBefore(endTime);
+            chunksDeleted.addAndGet(deleted);
+            if (deleted > 0) {
+                usageResultCache.invalidateAll();
+            }
+        }
+    }
+
+    private List<TimelinePartition> getPartitions() {
+        final List<TimelinePartition> partitions = new ArrayList<TimelinePartition>();
+        for (final Map<String, Object> row : partitionSqlDao.getTimelineChunksPartitions()) {
+            final String name = (String) row.get("partition_name");
+            if (name == null) {
+                // Not partitioned
+                return new ArrayList<TimelinePartition>();
+            }
+            final String description = (String) row.get("partition_description");
+            final Integer endTime = "MAXVALUE".equalsIgnoreCase(description) ? null : Integer.valueOf(description);
+            partitions.add(new TimelinePartition(name, endTime));
+        }
+        return partitions;
+    }
+
+    @VisibleForTesting
+    boolean supportsPartitioning() {
+        if (supportsPartitioning == null) {
+            supportsPartitioning = dbi.withHandle(new HandleCallback<Boolean>() {
+                @Override
+                public Boolean withHandle(final Handle handle) throws Exception {
+                    final String productName = handle.getConnection().getMetaData().getDatabaseProductName().toLowerCase();
+                    return productName.contains("mysql") || productName.contains("mariadb");
+                }
+            });
+        }
+        return supportsPartitioning;
+    }
+
+    private int getPartitionLengthSeconds() {
+        return (int) (config.getPartitionLength().getMillis() / 1000);
+    }
+
+    @VisibleForTesting
+    static int getPartitionStart(final int time, final int partitionLength) {
+        return time - (time % partitionLength);
+    }
+
+    /**
+     * @return the partitions to create on a table which isn't partitioned yet: the sentinel partition,
+     *         one partition for all existing chunks, then the current and upcoming partitions
+     */
+    @VisibleForTesting
+    static List<TimelinePartition> getInitialPartitions(final int now, final int partitionLength, final int partitionsAhead) {
+        final List<TimelinePartition> partitions = new ArrayList<TimelinePartition>();
+        partitions.add(new TimelinePartition(TimelinePartition.SENTINEL_PARTITION_NAME, 1));
+
+        final int currentPartitionStart = getPartitionStart(now, partitionLength);
+        partitions.add(TimelinePartition.forEndTime(currentPartitionStart));
+        partitions.addAll(getPartitionsToAdd(currentPartitionStart, now, partitionLength, partitionsAhead));
+        return partitions;
+    }
+
+    /**
+     * @return the partitions following lastEndTime, up to partitionsAhead partitions after the current one
+     */
+    @VisibleForTesting
+    static List<TimelinePartition> getPartitionsToAdd(final int lastEndTime, final int now, final int partitionLength, final int partitionsAhead) {
+        final int maxEndTime = getPartitionStart(now, partitionLength) + (partitionsAhead + 1) * partitionLength;
+
+        final List<TimelinePartition> partitions = new ArrayList<TimelinePartition>();
+        for (int endTime = getPartitionStart(lastEndTime, partitionLength) + partitionLength; endTime <= maxEndTime; endTime += partitionLength) {
+            partitions.add(TimelinePartition.forEndTime(endTime));
+        }
+        return partitions;
+    }
+
+    /**
+     * @return the partitions only holding chunks starting before cutoff
+     */
+    @VisibleForTesting
+    static List<TimelinePartition> getPartitionsToDrop(final List<TimelinePartition> partitions, final int cutoff) {
+        final List<TimelinePartition> partitionsToDrop = new ArrayList<TimelinePartition>();
+        for (final TimelinePartition partition : partitions) {
+            if (partition.isDroppable() && partition.getEndTime() <= cutoff) {
+                partitionsToDrop.add(partition);
+            }
+        }
+        return partitionsToDrop;
+    }
+
+    public void runPartitionThread() {
+        partitionThread.scheduleWithFixedDelay(new Runnable() {
+                                                   @Override
+                                                   public void run() {
+                                                       maintainPartitions();
+                                                   }
+                                               },
+                                               0,
+                                               config.getPartitionMaintenanceInterval().getMillis(),
+                                               TimeUnit.MILLISECONDS
+                                              );
+    }
+
+    public void stopPartitionThread() {
+        partitionThread.shutdown();
+    }
+
+    private AtomicLong makeCounter(final String counterName) {
+        final AtomicLong counter = new AtomicLong();
+        partitionCounters.put(counterName, counter);
+        return counter;
+    }
+
+    public Map<String, Long> getPartitionCounters() {
+        final Map<String, Long> counterValues = new LinkedHashMap<String, Long>();
+        for (final Map.Entry<String, AtomicLong> entry : partitionCounters.entrySet()) {
+            counterValues.put(entry.getKey(), entry.getValue().get());
+        }
+        return counterValues;
+    }
+}
@@ -18,6 +18,9 @@
 package org.killbill.billing.plugin.meter.timeline.persistent;
 
 import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.annotation.Nullable;
 
@@ -40,9 +43,11 @@ public class CachingTimelineDao implements TimelineDao {
 
     private static final Logger log = LoggerFactory.getLogger(CachingTimelineDao.class);
 
-    private final BiMap<Integer, String> sourcesCache = HashBiMap.<Integer, String>create();
-    private final BiMap<Integer, CategoryRecordIdAndMetric> metricsCache = HashBiMap.<Integer, CategoryRecordIdAndMetric>create();
-    private final BiMap<Integer, String> eventCategoriesCache = HashBiMap.<Integer, String>create();
+    // Key for the caches of the contexts without a tenant
+    private static final UUID NO_TENANT = new UUID(0L, 0L);
+
+    // Names are only unique within a tenant, so each tenant gets its own caches
+    private final ConcurrentMap<UUID, TenantCaches> tenantCaches = new ConcurrentHashMap<UUID, TenantCaches>();
 
     private final TimelineDao delegate;
 
@@ -52,6 +57,7 @@ public class CachingTimelineDao implements TimelineDao {
 
     @Override
     public Integer getSourceId(final String source, final TenantContext context) throws UnableToObtainConnectionException, CallbackFailedException {
+        final BiMap<Integer, String> sourcesCache = getTenantCaches(context).sourcesCache;
         Integer result = sourcesCache.inverse().get(source);
         if (result == null) {
             result = delegate.getSourceId(source, context);
@@ -68,6 +74,7 @@ public class CachingTimelineDao implements TimelineDao {
 
     @Override
     public String getSource(final Integer sourceId, final TenantContext context) throws UnableToObtainConnectionException, CallbackFailedException {
+        final BiMap<Integer, String> sourcesCache = getTenantCaches(context).sourcesCache;
         String result = sourcesCache.get(sourceId);
         if (result == null) {
             result = delegate.getSource(sourceId, context);
@@ -89,6 +96,7 @@ public class CachingTimelineDao implements TimelineDao {
 
     @Override
     public int getOrAddSource(final String source, final CallContext context) throws UnableToObtainConnectionException, CallbackFailedException {
+        final BiMap<Integer, String> sourcesCache = getTenantCaches(context).sourcesCache;
         Integer sourceId = sourcesCache.inverse().get(source);
         if (sourceId == null) {
             sourceId = delegate.getOrAddSource(source, context);
@@ -103,6 +111,7 @@ public class CachingTimelineDao implements TimelineDao {
 
     @Override
     public Integer getEventCategoryId(final String eventCategory, final TenantContext context) throws UnableToObtainConnectionException, CallbackFailedException {
+        final BiMap<Integer, String> eventCategoriesCache = getTenantCaches(context).eventCategoriesCache;
         Integer result = eventCategoriesCache.inverse().get(eventCategory);
         if (result == null) {
             result = delegate.getEventCategoryId(eventCategory, context);
@@ -119,6 +128,7 @@ public class CachingTimelineDao implements TimelineDao {
 
     @Override
     public String getEventCategory(final Integer eventCategoryId, final TenantContext context) throws UnableToObtainConnectionException {
+        final BiMap<Integer, String> eventCategoriesCache = getTenantCaches(context).eventCategoriesCache;
         String result = eventCategoriesCache.get(eventCategoryId);
         if (result == null) {
             result = delegate.getEventCategory(eventCategoryId, context);
@@ -140,6 +150,7 @@ public class CachingTimelineDao implements TimelineDao {
 
     @Override
     public int getOrAddEventCategory(final String eventCategory, final CallContext context) throws UnableToObtainConnectionException, CallbackFailedException {
+        final BiMap<Integer, String> eventCategoriesCache = getTenantCaches(context).eventCategoriesCache;
         Integer eventCategoryId = eventCategoriesCache.inverse().get(eventCategory);
         if (eventCategoryId == null) {
             eventCategoryId = delegate.getOrAddEventCategory(eventCategory, context);
@@ -154,6 +165,7 @@ public class CachingTimelineDao implements TimelineDao {
 
     @Override
     public Integer getMetricId(final int eventCategoryId, final String metric, final TenantContext context) throws UnableToObtainConnectionException {
+        final BiMap<Integer, CategoryRecordIdAndMetric> metricsCache = getTenantCaches(context).metricsCache;
         Integer result = metricsCache.inverse().get(new CategoryRecordIdAndMetric(eventCategoryId, metric));
         if (result == null) {
             result = delegate.getMetricId(eventCategoryId, metric, context);
@@ -170,6 +182,7 @@ public class CachingTimelineDao implements TimelineDao {
 
     @Override
     public CategoryRecordIdAndMetric getCategoryIdAndMetric(final Integer metricId, final TenantContext context) throws UnableToObtainConnectionException {
+        final BiMap<Integer, CategoryRecordIdAndMetric> metricsCache = getTenantCaches(context).metricsCache;
         CategoryRecordIdAndMetric result = metricsCache.get(metricId);
         if (result == null) {
             result = delegate.getCategoryIdAndMetric(metricId, context);
@@ -191,6 +204,7 @@ public class CachingTimelineDao implements TimelineDao {
 
     @Override
     public int getOrAddMetric(final Integer eventCategoryId, final String metric, final CallContext context) throws UnableToObtainConnectionException, CallbackFailedException {
+        final BiMap<Integer, CategoryRecordIdAndMetric> metricsCache = getTenantCaches(context).metricsCache;
         final CategoryRecordIdAndMetric categoryRecordIdAndMetric = new CategoryRecordIdAndMetric(eventCategoryId, metric);
         Integer metricId = metricsCache.inverse().get(categoryRecordIdAndMetric);
         if (metricId == null) {
@@ -240,4 +254,24 @@ public class CachingTimelineDao implements TimelineDao {
     public void test(final TenantContext context) throws UnableToObtainConnectionException, CallbackFailedException {
         delegate.test(context);
     }
+
+    private TenantCaches getTenantCaches(final TenantContext context) {
+        final UUID tenantKey = context.getTenantId() == null ? NO_TENANT : context.getTenantId();
+        TenantCaches caches = tenantCaches.get(tenantKey);
+        if (caches == null) {
+            caches = new TenantCaches();
+            final TenantCaches existingCaches = tenantCaches.putIfAbsent(tenantKey, caches);
+            if (existingCaches != null) {
+                caches = existingCaches;
+            }
+        }
+        return caches;
+    }
+
+    private static final class TenantCaches {
+
+        private final BiMap<Integer, String> sourcesCache = HashBiMap.<Integer, String>create();
+        private final BiMap<Integer, CategoryRecordIdAndMetric> metricsCache = HashBiMap.<Integer, CategoryRecordIdAndMetric>create();
+        private final BiMap<Integer, String> eventCategoriesCache = HashBiMap.<Integer, String>create();
+    }
 }
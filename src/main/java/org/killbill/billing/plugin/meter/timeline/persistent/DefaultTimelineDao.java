@@ -17,9 +17,13 @@
 
 package org.killbill.billing.plugin.meter.timeline.persistent;
 
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.UUID;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.annotation.Nullable;
 
@@ -28,6 +32,7 @@ import org.killbill.billing.plugin.meter.timeline.MeterInternalCallContext;
 import org.killbill.billing.plugin.meter.timeline.MeterInternalTenantContext;
 import org.killbill.billing.plugin.meter.timeline.categories.CategoryRecordIdAndMetric;
 import org.killbill.billing.plugin.meter.timeline.chunks.TimelineChunk;
+import org.killbill.billing.plugin.meter.timeline.chunks.TimelineChunkCache;
 import org.killbill.billing.plugin.meter.timeline.chunks.TimelineChunkMapper;
 import org.killbill.billing.plugin.meter.timeline.consumer.TimelineChunkConsumer;
 import org.killbill.billing.plugin.meter.timeline.shutdown.StartTimes;
@@ -44,26 +49,50 @@ import org.skife.jdbi.v2.exceptions.CallbackFailedException;
 import org.skife.jdbi.v2.exceptions.UnableToObtainConnectionException;
 import org.skife.jdbi.v2.sqlobject.stringtemplate.StringTemplate3StatementLocator;
 import org.skife.jdbi.v2.tweak.HandleCallback;
+import org.skife.jdbi.v2.util.LongMapper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.base.Joiner;
 import com.google.common.collect.BiMap;
 import com.google.common.collect.HashBiMap;
+import com.google.common.collect.ImmutableList;
 import com.google.inject.Inject;
 
 public class DefaultTimelineDao implements TimelineDao {
 
     private static final Logger log = LoggerFactory.getLogger(DefaultTimelineDao.class);
     private static final Joiner JOINER = Joiner.on(",");
+    private static final int DEFAULT_QUERY_FETCH_SIZE = 1000;
 
     private final IDBI dbi;
     private final TimelineChunkMapper timelineChunkMapper;
     private final TimelineSqlDao delegate;
+    private final int queryFetchSize;
+    private final TimelineChunkCache chunkCache;
+    private final int compressionThreshold;
+    private final TimelineQueryPlanner queryPlanner;
+    private final Map<UUID, Long> tenantRecordIds = new ConcurrentHashMap<UUID, Long>();
 
     @Inject
     public DefaultTimelineDao(final IDBI dbi) {
+        this(dbi, DEFAULT_QUERY_FETCH_SIZE);
+    }
+
+    public DefaultTimelineDao(final IDBI dbi, final int queryFetchSize) {
+        this(dbi, queryFetchSize, new TimelineChunkCache(0));
+    }
+
+    public DefaultTimelineDao(final IDBI dbi, final int queryFetchSize, final TimelineChunkCache chunkCache) {
+        this(dbi, queryFetchSize, chunkCache, 0);
+    }
+
+    public DefaultTimelineDao(final IDBI dbi, final int queryFetchSize, final TimelineChunkCache chunkCache, final int compressionThreshold) {
         this.dbi = dbi;
+        this.queryFetchSize = queryFetchSize;
+        this.chunkCache = chunkCache;
+        this.compressionThreshold = compressionThreshold;
+        this.queryPlanner = new TimelineQueryPlanner();
         this.timelineChunkMapper = new TimelineChunkMapper();
         this.delegate = dbi.onDemand(TimelineSqlDao.class);
     }
@@ -90,6 +119,8 @@ public class DefaultTimelineDao implements TimelineDao {
     @Override
     public int getOrAddSource(final String source, final CallContext context) throws UnableToObtainConnectionException, CallbackFailedException {
 
+        final MeterInternalTenantContext internalTenantContext = createInternalTenantContext(context);
+        final MeterInternalCallContext internalCallContext = createInternalCallContext(context);
         final Integer result = delegate.inTransaction(new Transaction<Integer, TimelineSqlDao>() {
 
             @Override
@@ -97,8 +128,6 @@ public class DefaultTimelineDao implements TimelineDao {
                 return getOrAddWithRetry(new Callable<Integer>() {
                     @Override
                     public Integer call() throws Exception {
-                        final MeterInternalTenantContext internalTenantContext = createInternalTenantContext(context);
-                        final MeterInternalCallContext internalCallContext = createInternalCallContext(context);
                         Integer sourceId = transactional.getSourceRecordId(source, internalTenantContext);
                         if (sourceId == null) {
                             transactional.addSource(source, internalCallContext);
@@ -134,6 +163,8 @@ public class DefaultTimelineDao implements TimelineDao {
     @Override
     public int getOrAddEventCategory(final String eventCategory, final CallContext context) throws UnableToObtainConnectionException, CallbackFailedException {
 
+        final MeterInternalTenantContext internalTenantContext = createInternalTenantContext(context);
+        final MeterInternalCallContext internalCallContext = createInternalCallContext(context);
         final Integer result = delegate.inTransaction(new Transaction<Integer, TimelineSqlDao>() {
 
             @Override
@@ -141,8 +172,6 @@ public class DefaultTimelineDao implements TimelineDao {
                 return getOrAddWithRetry(new Callable<Integer>() {
                     @Override
                     public Integer call() throws Exception {
-                        final MeterInternalTenantContext internalTenantContext = createInternalTenantContext(context);
-                        final MeterInternalCallContext internalCallContext = createInternalCallContext(context);
                         Integer eventCategoryId = transactional.getCategoryRecordId(eventCategory, internalTenantContext);
                         if (eventCategoryId == null) {
                             transactional.addCategory(eventCategory, internalCallContext);
@@ -180,6 +209,8 @@ public class DefaultTimelineDao implements TimelineDao {
     @Override
     public synchronized int getOrAddMetric(final Integer eventCategoryId, final String metric, final CallContext context) throws UnableToObtainConnectionException, CallbackFailedException {
 
+        final MeterInternalTenantContext internalTenantContext = createInternalTenantContext(context);
+        final MeterInternalCallContext internalCallContext = createInternalCallContext(context);
         final Integer result = delegate.inTransaction(new Transaction<Integer, TimelineSqlDao>() {
 
             @Override
@@ -187,8 +218,6 @@ public class DefaultTimelineDao implements TimelineDao {
                 return getOrAddWithRetry(new Callable<Integer>() {
                     @Override
                     public Integer call() throws Exception {
-                        final MeterInternalTenantContext internalTenantContext = createInternalTenantContext(context);
-                        final MeterInternalCallContext internalCallContext = createInternalCallContext(context);
                         Integer metricId = transactional.getMetricRecordId(eventCategoryId, metric, internalTenantContext);
                         if (metricId == null) {
                             transactional.addMetric(eventCategoryId, metric, internalCallContext);
@@ -204,13 +233,14 @@ public class DefaultTimelineDao implements TimelineDao {
 
     @Override
     public Long insertTimelineChunk(final TimelineChunk timelineChunk, final CallContext context) throws UnableToObtainConnectionException, CallbackFailedException {
+        recordTimelineChunkSpans(ImmutableList.<TimelineChunk>of(timelineChunk));
 
         final Long result = delegate.inTransaction(new Transaction<Long, TimelineSqlDao>() {
             @Override
             public Long inTransaction(final TimelineSqlDao transactional, final TransactionStatus status) throws Exception {
                 final MeterInternalTenantContext internalTenantContext = createInternalTenantContext(context);
                 final MeterInternalCallContext internalCallContext = createInternalCallContext(context);
-                transactional.insertTimelineChunk(timelineChunk, internalCallContext);
+                transactional.insertTimelineChunk(timelineChunk, compressionThreshold, internalCallContext);
                 final long timelineChunkId = transactional.getLastInsertedRecordId(internalTenantContext);
                 return timelineChunkId;
             }
@@ -229,6 +259,11 @@ public class DefaultTimelineDao implements TimelineDao {
             return;
         }
 
+        if (chunkCache.isEnabled()) {
+            getCachedSamplesBySourceIdsAndMetricIds(sourceIdList, metricIdList, startTime, endTime, chunkCache, chunkConsumer, context);
+            return;
+        }
+
         dbi.withHandle(new HandleCallback<Void>() {
             @Override
             public Void withHandle(final Handle handle) throws Exception {
@@ -238,6 +273,8 @@ public class DefaultTimelineDao implements TimelineDao {
                 try {
                     final Query<Map<String, Object>> query = handle
                             .createQuery("getSamplesBySourceRecordIdsAndMetricRecordIds")
+                            // Stream the results: only keep a bounded number of rows in memory
+                            .setFetchSize(queryFetchSize)
                             .bind("startTime", DateTimeUtils.unixSeconds(startTime))
                             .bind("endTime", DateTimeUtils.unixSeconds(endTime))
                             .bind("tenantRecordId", createInternalTenantContext(context).getTenantRecordId())
@@ -246,6 +283,7 @@ public class DefaultTimelineDao implements TimelineDao {
                     if (metricIdList != null && !metricIdList.isEmpty()) {
                         query.define("metricIds", JOINER.join(metricIdList));
                     }
+                    defineLevelRanges(query, startTime);
 
                     iterator = query
                             .map(timelineChunkMapper)
@@ -268,6 +306,101 @@ public class DefaultTimelineDao implements TimelineDao {
         });
     }
 
+    // Only the record ids are streamed, the bytes of the chunks missing from the cache are fetched by batches
+    private void getCachedSamplesBySourceIdsAndMetricIds(final List<Integer> sourceIdList,
+                                                         @Nullable final List<Integer> metricIdList,
+                                                         final DateTime startTime,
+                                                         final DateTime endTime,
+                                                         final TimelineChunkCache chunkCache,
+                                                         final TimelineChunkConsumer chunkConsumer,
+                                                         final TenantContext context) {
+        final MeterInternalTenantContext internalTenantContext = createInternalTenantContext(context);
+        dbi.withHandle(new HandleCallback<Void>() {
+            @Override
+            public Void withHandle(final Handle handle) throws Exception {
+                handle.setStatementLocator(new StringTemplate3StatementLocator(TimelineSqlDao.class));
+
+                ResultIterator<Long> iterator = null;
+                try {
+                    final Query<Map<String, Object>> query = handle
+                            .createQuery("getChunkRecordIdsBySourceRecordIdsAndMetricRecordIds")
+                            .setFetchSize(queryFetchSize)
+                            .bind("startTime", DateTimeUtils.unixSeconds(startTime))
+                            .bind("endTime", DateTimeUtils.unixSeconds(endTime))
+                            .bind("tenantRecordId", internalTenantContext.getTenantRecordId())
+                            .define("sourceIds", JOINER.join(sourceIdList));
+
+                    if (metricIdList != null && !metricIdList.isEmpty()) {
+                        query.define("metricIds", JOINER.join(metricIdList));
+                    }
+                    defineLevelRanges(query, startTime);
+
+                    iterator = query
+                            .map(LongMapper.FIRST)
+                            .iterator();
+
+                    final List<Long> chunkIds = new ArrayList<Long>(queryFetchSize);
+                    while (iterator.hasNext()) {
+                        chunkIds.add(iterator.next());
+                        if (chunkIds.size() >= queryFetchSize) {
+                            processChunks(handle, chunkIds, chunkCache, chunkConsumer, internalTenantContext);
+                            chunkIds.clear();
+                        }
+                    }
+                    processChunks(handle, chunkIds, chunkCache, chunkConsumer, internalTenantContext);
+                    return null;
+                } finally {
+                    if (iterator != null) {
+                        try {
+                            iterator.close();
+                        } catch (Exception e) {
+                            log.error("Exception closing chunk record ids iterator for sourceIds {} and metricIds {}", sourceIdList, metricIdList);
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    private void processChunks(final Handle handle, final List<Long> chunkIds, final TimelineChunkCache chunkCache,
+                               final TimelineChunkConsumer chunkConsumer, final MeterInternalTenantContext internalTenantContext) {
+        if (chunkIds.isEmpty()) {
+            return;
+        }
+
+        final Map<Long, TimelineChunk> chunks = new HashMap<Long, TimelineChunk>(chunkIds.size());
+        final List<Long> missingChunkIds = new ArrayList<Long>();
+        for (final Long chunkId : chunkIds) {
+            final TimelineChunk chunk = chunkCache.getIfPresent(chunkId);
+            if (chunk == null) {
+                missingChunkIds.add(chunkId);
+            } else {
+                chunks.put(chunkId, chunk);
+            }
+        }
+
+        if (!missingChunkIds.isEmpty()) {
+            final List<TimelineChunk> missingChunks = handle.createQuery("getTimelineChunksByRecordIds")
+                                                            .bind("tenantRecordId", internalTenantContext.getTenantRecordId())
+                                                            .define("recordIds", JOINER.join(missingChunkIds))
+                                                            .map(timelineChunkMapper)
+                                                            .list();
+            for (final TimelineChunk chunk : missingChunks) {
+                chunkCache.put(chunk);
+                chunks.put(chunk.getChunkId(), chunk);
+            }
+        }
+
+        // Keep the order of the record ids query
+        for (final Long chunkId : chunkIds) {
+            final TimelineChunk chunk = chunks.get(chunkId);
+            // The chunk may have been aggregated (deleted) in the meantime
+            if (chunk != null) {
+                chunkConsumer.processTimelineChunk(chunk);
+            }
+        }
+    }
+
     @Override
     public Integer insertLastStartTimes(final StartTimes startTimes, final CallContext context) {
         return delegate.insertLastStartTimes(startTimes, createInternalCallContext(context));
@@ -290,15 +423,102 @@ public class DefaultTimelineDao implements TimelineDao {
 
     @Override
     public void bulkInsertTimelineChunks(final List<TimelineChunk> timelineChunkList, final CallContext context) {
-        delegate.bulkInsertTimelineChunks(timelineChunkList.iterator(), createInternalCallContext(context));
+        recordTimelineChunkSpans(timelineChunkList);
+        delegate.bulkInsertTimelineChunks(timelineChunkList.iterator(), compressionThreshold, createInternalCallContext(context));
+    }
+
+    // Must be called before the chunks are written, for the read queries to see them (see TimelineQueryPlanner)
+    private void recordTimelineChunkSpans(final List<TimelineChunk> timelineChunks) {
+        final Map<Integer, Integer> spansToRecord = queryPlanner.getSpansToRecord(timelineChunks);
+        for (final Map.Entry<Integer, Integer> entry : spansToRecord.entrySet()) {
+            final int aggregationLevel = entry.getKey();
+            final int maxSpan = entry.getValue();
+            delegate.inTransaction(new Transaction<Void, TimelineSqlDao>() {
+                @Override
+                public Void inTransaction(final TimelineSqlDao transactional, final TransactionStatus status) throws Exception {
+                    return getOrAddWithRetry(new Callable<Void>() {
+                        @Override
+                        public Void call() throws Exception {
+                            // Spans only grow: nothing to update if a larger span is already recorded
+                            if (transactional.updateTimelineChunkSpan(aggregationLevel, maxSpan) == 0 && transactional.getTimelineChunkSpan(aggregationLevel) == null) {
+                                transactional.addTimelineChunkSpan(aggregationLevel, maxSpan);
+                            }
+                            return null;
+                        }
+                    });
+                }
+            });
+        }
+        queryPlanner.markSpansRecorded(spansToRecord);
+    }
+
+    private void defineLevelRanges(final Query<Map<String, Object>> query, final DateTime startTime) {
+        final Map<Integer, Integer> maxSpans = new HashMap<Integer, Integer>();
+        for (final Map<String, Object> row : delegate.getTimelineChunkSpans()) {
+            maxSpans.put(((Number) row.get("aggregation_level")).intValue(), ((Number) row.get("max_span")).intValue());
+        }
+
+        final Map<Integer, Integer> minStartTimes = queryPlanner.getMinStartTimes(maxSpans, startTime);
+        if (minStartTimes.isEmpty()) {
+            // Nothing recorded yet: scan all levels
+            return;
+        }
+        // Levels without a recorded span (e.g. migration/timeline_chunk_spans.sql wasn't run) are still scanned, without a lower bound
+        query.define("levels", new ArrayList<Integer>(minStartTimes.keySet()));
+        for (final Map.Entry<Integer, Integer> entry : minStartTimes.entrySet()) {
+            query.bind("minStartTime" + entry.getKey(), entry.getValue());
+        }
     }
 
     private MeterInternalTenantContext createInternalTenantContext(final TenantContext context) {
-        return new MeterInternalTenantContext(/* TODO */);
+        if (context instanceof MeterInternalTenantContext) {
+            return (MeterInternalTenantContext) context;
+        } else if (context instanceof MeterInternalCallContext) {
+            final MeterInternalCallContext internalCallContext = (MeterInternalCallContext) context;
+            return new MeterInternalTenantContext(internalCallContext.getAccountRecordId(), internalCallContext.getTenantRecordId());
+        }
+        return new MeterInternalTenantContext(0L, getTenantRecordId(context));
     }
 
     private MeterInternalCallContext createInternalCallContext(final CallContext context) {
-        return new MeterInternalCallContext(context, 0L, MeterInternalTenantContext.INTERNAL_TENANT_RECORD_ID /* TODO */);
+        if (context instanceof MeterInternalCallContext) {
+            return (MeterInternalCallContext) context;
+        }
+        return new MeterInternalCallContext(context, 0L, getTenantRecordId(context));
+    }
+
+    // Kill Bill doesn't expose its tenant record ids to plugins: keep our own mapping, which never changes once created.
+    // Rows recorded before the mapping existed belong to the internal tenant, see migration/tenant_partitioning.sql
+    private long getTenantRecordId(final TenantContext context) {
+        final UUID tenantId = context == null ? null : context.getTenantId();
+        if (tenantId == null) {
+            return MeterInternalTenantContext.INTERNAL_TENANT_RECORD_ID;
+        }
+
+        final Long cachedTenantRecordId = tenantRecordIds.get(tenantId);
+        if (cachedTenantRecordId != null) {
+            return cachedTenantRecordId;
+        }
+
+        final Long tenantRecordId = delegate.inTransaction(new Transaction<Long, TimelineSqlDao>() {
+
+            @Override
+            public Long inTransaction(final TimelineSqlDao transactional, final TransactionStatus status) throws Exception {
+                return getOrAddWithRetry(new Callable<Long>() {
+                    @Override
+                    public Long call() throws Exception {
+                        Long tenantRecordId = transactional.getTenantRecordId(tenantId.toString());
+                        if (tenantRecordId == null) {
+                            transactional.addTenant(tenantId.toString(), new MeterInternalCallContext());
+                            tenantRecordId = transactional.getTenantRecordId(tenantId.toString());
+                        }
+                        return tenantRecordId;
+                    }
+                });
+            }
+        });
+        tenantRecordIds.put(tenantId, tenantRecordId);
+        return tenantRecordId;
     }
 
     private <T> T getOrAddWithRetry(final Callable<T> task) throws Exception {
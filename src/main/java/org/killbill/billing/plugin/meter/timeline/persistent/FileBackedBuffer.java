@@ -120,17 +120,23 @@ public class FileBackedBuffer {
         }
     }
 
-    //@MonitorableManaged(description = "Return the approximate size of bytes on disk for samples not yet in the database", monitored = true, monitoringType = {MonitoringType.VALUE})
+    /**
+     * @return the approximate size of bytes on disk for samples not yet in the database
+     */
     public long getBytesOnDisk() {
         return out.getBytesOnDisk();
     }
 
-    //@MonitorableManaged(description = "Return the approximate size of bytes in memory for samples not yet in the database", monitored = true, monitoringType = {MonitoringType.VALUE})
+    /**
+     * @return the approximate size of bytes in memory for samples not yet in the database
+     */
     public long getBytesInMemory() {
         return out.getBytesInMemory();
     }
 
-    //@MonitorableManaged(description = "Return the approximate size of bytes available in memory (before spilling over to disk) for samples not yet in the database", monitored = true, monitoringType = {MonitoringType.VALUE})
+    /**
+     * @return the approximate size of bytes available in memory (before spilling over to disk) for samples not yet in the database
+     */
     public long getInMemoryAvailableSpace() {
         return out.getInMemoryAvailableSpace();
     }
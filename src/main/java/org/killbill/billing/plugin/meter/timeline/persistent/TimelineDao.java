@@ -69,6 +69,10 @@ public interface TimelineDao {
 
     Long insertTimelineChunk(TimelineChunk timelineChunk, CallContext context) throws UnableToObtainConnectionException, CallbackFailedException;
 
+    /**
+     * Stream the valid chunks overlapping [startTime, endTime] for the given sources and metrics.
+     * Chunks are passed to the consumer ordered by source id, metric id and start time.
+     */
     void getSamplesBySourceIdsAndMetricIds(List<Integer> sourceIds,
                                            @Nullable List<Integer> metricIds,
                                            DateTime startTime,
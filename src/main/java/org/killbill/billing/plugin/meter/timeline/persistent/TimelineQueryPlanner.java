@@ -0,0 +1,112 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.timeline.persistent;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.joda.time.DateTime;
+import org.killbill.billing.plugin.meter.timeline.chunks.TimelineChunk;
+import org.killbill.billing.plugin.meter.timeline.util.DateTimeUtils;
+
+/**
+ * Plans the queries reading the timeline chunks of a time range, level by level.
+ * <p/>
+ * A chunk overlaps [startTime, endTime] if end_time >= startTime and start_time <= endTime. Only the start_time
+ * bound can use the indexes, so every older chunk of the series would be scanned. The timeline_chunk_spans table
+ * records the largest span (end_time - start_time) of the chunks of each aggregation level, which bounds start_time
+ * from below too: chunks of level N start at or after startTime minus the largest span of level N.
+ * <p/>
+ * The query then reads one index range per aggregation level on valid_agg_host_start_time
+ * (not_valid, aggregation_level, source_record_id, metric_record_id, start_time). Old ranges are covered by a few large,
+ * highly aggregated chunks and recent ones by the smaller chunks of the lower levels.
+ * <p/>
+ * Spans are recorded before the chunks are written, so the bounds never exclude a chunk visible to a query.
+ * Levels without a recorded span are read without a lower bound, scanning all older chunks (and, on a partitioned
+ * table, all partitions). When upgrading an existing database, the table must be created and populated with the
+ * spans of the existing chunks, see migration/timeline_chunk_spans.sql.
+ */
+public class TimelineQueryPlanner {
+
+    // Largest spans known to be recorded in the database, per aggregation level
+    private final Map<Integer, Integer> recordedMaxSpans = new ConcurrentHashMap<Integer, Integer>();
+
+    /**
+     * @param maxSpans  largest span of the chunks of each aggregation level (seconds), from the timeline_chunk_spans table
+     * @param startTime start of the queried time range
+     * @return the earliest start_time (unix seconds) to read for each aggregation level with a recorded span, highest
+     *         level first, or an empty map if no span has been recorded (the query can't be bounded). Other levels
+     *         must be read without a lower bound
+     */
+    public Map<Integer, Integer> getMinStartTimes(final Map<Integer, Integer> maxSpans, final DateTime startTime) {
+        if (maxSpans.isEmpty()) {
+            return Collections.<Integer, Integer>emptyMap();
+        }
+
+        final int startTimeSeconds = DateTimeUtils.unixSeconds(startTime);
+        final SortedMap<Integer, Integer> levels = new TreeMap<Integer, Integer>(Collections.<Integer>reverseOrder());
+        levels.putAll(maxSpans);
+
+        final Map<Integer, Integer> minStartTimes = new LinkedHashMap<Integer, Integer>();
+        for (final Map.Entry<Integer, Integer> entry : levels.entrySet()) {
+            minStartTimes.put(entry.getKey(), startTimeSeconds - entry.getValue());
+        }
+        return minStartTimes;
+    }
+
+    /**
+     * @param chunks chunks about to be written
+     * @return the spans to record before writing the chunks, per aggregation level (empty if they are all known)
+     */
+    public Map<Integer, Integer> getSpansToRecord(final Iterable<TimelineChunk> chunks) {
+        final Map<Integer, Integer> spansToRecord = new HashMap<Integer, Integer>();
+        for (final TimelineChunk chunk : chunks) {
+            final int level = chunk.getAggregationLevel();
+            final int span = chunk.getEndTimeSeconds() - chunk.getStartTimeSeconds();
+
+            final Integer recordedMaxSpan = recordedMaxSpans.get(level);
+            if (recordedMaxSpan != null && recordedMaxSpan >= span) {
+                continue;
+            }
+            final Integer spanToRecord = spansToRecord.get(level);
+            if (spanToRecord == null || spanToRecord < span) {
+                spansToRecord.put(level, span);
+            }
+        }
+        return spansToRecord;
+    }
+
+    /**
+     * Mark spans as recorded in the database. Recorded spans only grow, so they don't need to be recorded again.
+     *
+     * @param spans spans recorded, per aggregation level
+     */
+    public void markSpansRecorded(final Map<Integer, Integer> spans) {
+        for (final Map.Entry<Integer, Integer> entry : spans.entrySet()) {
+            final Integer recordedMaxSpan = recordedMaxSpans.get(entry.getKey());
+            if (recordedMaxSpan == null || recordedMaxSpan < entry.getValue()) {
+                recordedMaxSpans.put(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+}
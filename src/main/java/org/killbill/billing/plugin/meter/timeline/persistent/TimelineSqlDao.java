@@ -27,6 +27,7 @@ import org.killbill.billing.plugin.meter.timeline.categories.CategoryIdAndMetric
 import org.killbill.billing.plugin.meter.timeline.categories.CategoryRecordIdAndMetric;
 import org.killbill.billing.plugin.meter.timeline.chunks.TimelineChunk;
 import org.killbill.billing.plugin.meter.timeline.chunks.TimelineChunkBinder;
+import org.killbill.billing.plugin.meter.timeline.chunks.TimelineChunkBinder.TimelineChunkBinderFactory;
 import org.killbill.billing.plugin.meter.timeline.shutdown.StartTimes;
 import org.killbill.billing.plugin.meter.timeline.shutdown.StartTimesBinder;
 import org.killbill.billing.plugin.meter.timeline.shutdown.StartTimesMapper;
@@ -38,6 +39,7 @@ import org.skife.jdbi.v2.sqlobject.SqlBatch;
 import org.skife.jdbi.v2.sqlobject.SqlQuery;
 import org.skife.jdbi.v2.sqlobject.SqlUpdate;
 import org.skife.jdbi.v2.sqlobject.customizers.BatchChunkSize;
+import org.skife.jdbi.v2.sqlobject.customizers.Define;
 import org.skife.jdbi.v2.sqlobject.customizers.RegisterMapper;
 import org.skife.jdbi.v2.sqlobject.mixins.Transactional;
 import org.skife.jdbi.v2.sqlobject.stringtemplate.UseStringTemplate3StatementLocator;
@@ -46,6 +48,13 @@ import org.skife.jdbi.v2.sqlobject.stringtemplate.UseStringTemplate3StatementLoc
 @RegisterMapper({CategoryIdAndMetricMapper.class, StartTimesMapper.class, SourceIdAndMetricIdMapper.class, DefaultMapper.class})
 public interface TimelineSqlDao extends Transactional<TimelineSqlDao> {
 
+    @SqlQuery
+    Long getTenantRecordId(@Bind("tenantId") final String tenantId);
+
+    @SqlUpdate
+    void addTenant(@Bind("tenantId") final String tenantId,
+                   @BindBean final MeterInternalCallContext context);
+
     @SqlQuery
     Integer getSourceRecordId(@Bind("source") final String source,
                               @BindBean final MeterInternalTenantContext context);
@@ -106,13 +115,29 @@ public interface TimelineSqlDao extends Transactional<TimelineSqlDao> {
 
     @SqlUpdate
     void insertTimelineChunk(@TimelineChunkBinder final TimelineChunk timelineChunk,
+                             @Define(TimelineChunkBinderFactory.COMPRESSION_THRESHOLD) final int compressionThreshold,
                              @BindBean final MeterInternalCallContext context);
 
     @SqlBatch
     @BatchChunkSize(1000)
     void bulkInsertTimelineChunks(@TimelineChunkBinder Iterator<TimelineChunk> chunkIterator,
+                                  @Define(TimelineChunkBinderFactory.COMPRESSION_THRESHOLD) final int compressionThreshold,
                                   @BindBean final MeterInternalCallContext context);
 
+    @SqlQuery
+    List<Map<String, Object>> getTimelineChunkSpans();
+
+    @SqlQuery
+    Integer getTimelineChunkSpan(@Bind("aggregationLevel") final int aggregationLevel);
+
+    @SqlUpdate
+    int updateTimelineChunkSpan(@Bind("aggregationLevel") final int aggregationLevel,
+                                @Bind("maxSpan") final int maxSpan);
+
+    @SqlUpdate
+    void addTimelineChunkSpan(@Bind("aggregationLevel") final int aggregationLevel,
+                              @Bind("maxSpan") final int maxSpan);
+
     @SqlUpdate
     Integer insertLastStartTimes(@StartTimesBinder final StartTimes startTimes,
                                  @BindBean final MeterInternalCallContext context);
@@ -0,0 +1,163 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.timeline.retention;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.annotation.Nullable;
+
+import org.skife.config.TimeSpan;
+
+/**
+ * Retention of the timeline chunks, per category and aggregation level, e.g. *:0:7d,*:1:90d,JVM:0:1d,JVM:1:forever.
+ * <p/>
+ * A rule for a given category takes precedence over the * rule for the same aggregation level.
+ * Chunks not matched by any rule are kept forever.
+ */
+public class RetentionPolicy {
+
+    public static final String ANY_CATEGORY = "*";
+    public static final String FOREVER = "forever";
+
+    private final List<Rule> rules = new ArrayList<Rule>();
+
+    public static RetentionPolicy parse(final String spec) {
+        final RetentionPolicy policy = new RetentionPolicy();
+        for (final String ruleSpec : spec.split(",")) {
+            if (ruleSpec.trim().isEmpty()) {
+                continue;
+            }
+
+            // Parse from the end, category names may contain colons
+            final int retentionIndex = ruleSpec.lastIndexOf(':');
+            final int levelIndex = retentionIndex <= 0 ? -1 : ruleSpec.lastIndexOf(':', retentionIndex - 1);
+            if (levelIndex <= 0) {
+                throw new IllegalArgumentException("Invalid retention rule " + ruleSpec + ", expected category:aggregationLevel:retention");
+            }
+
+            final String category = ruleSpec.substring(0, levelIndex).trim();
+            final int aggregationLevel;
+            try {
+                aggregationLevel = Integer.parseInt(ruleSpec.substring(levelIndex + 1, retentionIndex).trim());
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid aggregation level in retention rule " + ruleSpec, e);
+            }
+            final String retentionSpec = ruleSpec.substring(retentionIndex + 1).trim();
+            final TimeSpan retention = FOREVER.equals(retentionSpec) ? null : new TimeSpan(retentionSpec);
+
+            policy.addRule(new Rule(ANY_CATEGORY.equals(category) ? null : category, aggregationLevel, retention));
+        }
+        return policy;
+    }
+
+    private void addRule(final Rule rule) {
+        for (final Rule existingRule : rules) {
+            if (existingRule.getAggregationLevel() == rule.getAggregationLevel() &&
+                (existingRule.getCategory() == null ? rule.getCategory() == null : existingRule.getCategory().equals(rule.getCategory()))) {
+                throw new IllegalArgumentException("Duplicate retention rule for category " + rule.getCategory() + " and aggregation level " + rule.getAggregationLevel());
+            }
+        }
+        rules.add(rule);
+    }
+
+    public boolean isEmpty() {
+        return rules.isEmpty();
+    }
+
+    public List<Rule> getRules() {
+        return rules;
+    }
+
+    /**
+     * @return the retention of the chunks of that category and aggregation level, null to keep them forever
+     */
+    @Nullable
+    public TimeSpan getRetention(final String category, final int aggregationLevel) {
+        TimeSpan defaultRetention = null;
+        for (final Rule rule : rules) {
+            if (rule.getAggregationLevel() != aggregationLevel) {
+                continue;
+            }
+            if (rule.getCategory() == null) {
+                defaultRetention = rule.getRetention();
+            } else if (rule.getCategory().equals(category)) {
+                return rule.getRetention();
+            }
+        }
+        return defaultRetention;
+    }
+
+    /**
+     * @return the categories with their own rule for that aggregation level, which the * rule doesn't apply to
+     */
+    public Set<String> getOverridingCategories(final int aggregationLevel) {
+        final Set<String> categories = new LinkedHashSet<String>();
+        for (final Rule rule : rules) {
+            if (rule.getAggregationLevel() == aggregationLevel && rule.getCategory() != null) {
+                categories.add(rule.getCategory());
+            }
+        }
+        return categories;
+    }
+
+    @Override
+    public String toString() {
+        return rules.toString();
+    }
+
+    public static class Rule {
+
+        private final String category;
+        private final int aggregationLevel;
+        private final TimeSpan retention;
+
+        public Rule(@Nullable final String category, final int aggregationLevel, @Nullable final TimeSpan retention) {
+            this.category = category;
+            this.aggregationLevel = aggregationLevel;
+            this.retention = retention;
+        }
+
+        /**
+         * @return the category, null for any category
+         */
+        @Nullable
+        public String getCategory() {
+            return category;
+        }
+
+        public int getAggregationLevel() {
+            return aggregationLevel;
+        }
+
+        /**
+         * @return the retention, null for forever
+         */
+        @Nullable
+        public TimeSpan getRetention() {
+            return retention;
+        }
+
+        @Override
+        public String toString() {
+            return (category == null ? ANY_CATEGORY : category) + ":" + aggregationLevel + ":" + (retention == null ? FOREVER : retention);
+        }
+    }
+}
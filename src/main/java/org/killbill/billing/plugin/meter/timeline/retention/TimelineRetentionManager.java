@@ -0,0 +1,219 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.timeline.retention;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+
+import org.joda.time.DateTime;
+import org.killbill.billing.plugin.meter.MeterConfig;
+import org.killbill.billing.plugin.meter.api.user.UsageResultCache;
+import org.killbill.billing.plugin.meter.timeline.util.DateTimeUtils;
+import org.killbill.clock.Clock;
+import org.skife.jdbi.v2.IDBI;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+/**
+ * This class runs a thread that periodically deletes the timeline chunks past their retention,
+ * as configured per category and aggregation level by config.getRetentionPolicy().
+ * <p/>
+ * To avoid holding long locks on timeline_chunks, the table is walked in record_id ranges of
+ * config.getRetentionBatchSize() (one short delete statement per rule and range, using the
+ * primary key), pausing config.getRetentionBatchDelay() between ranges. Cached usage results are
+ * invalidated once chunks have been deleted.
+ */
+@Singleton
+public class TimelineRetentionManager {
+
+    private static final Logger log = LoggerFactory.getLogger(TimelineRetentionManager.class);
+
+    private final MeterConfig config;
+    private final RetentionPolicy retentionPolicy;
+    private final TimelineRetentionSqlDao retentionSqlDao;
+    private final UsageResultCache usageResultCache;
+    private final Clock clock;
+
+    private final ScheduledExecutorService retentionThread = Executors.newSingleThreadScheduledExecutor();
+
+    private final Map<String, AtomicLong> retentionCounters = new LinkedHashMap<String, AtomicLong>();
+
+    private final AtomicBoolean isPurging = new AtomicBoolean(false);
+    private final AtomicBoolean shuttingDown = new AtomicBoolean(false);
+
+    private final AtomicLong retentionRuns = makeCounter("retentionRuns");
+    private final AtomicLong retentionFailures = makeCounter("retentionFailures");
+    private final AtomicLong batchesProcessed = makeCounter("batchesProcessed");
+    private final AtomicLong chunksDeleted = makeCounter("chunksDeleted");
+    private final AtomicLong msSpentDeleting = makeCounter("msSpentDeleting");
+
+    @Inject
+    public TimelineRetentionManager(final IDBI dbi, final MeterConfig config, final UsageResultCache usageResultCache, final Clock clock) {
+        this.config = config;
+        this.retentionPolicy = RetentionPolicy.parse(config.getRetentionPolicy());
+        this.retentionSqlDao = dbi.onDemand(TimelineRetentionSqlDao.class);
+        this.usageResultCache = usageResultCache;
+        this.clock = clock;
+    }
+
+    public boolean isEnabled() {
+        return !retentionPolicy.isEmpty();
+    }
+
+    public void deleteExpiredTimelineChunks() {
+        deleteExpiredTimelineChunks(clock.getUTCNow());
+    }
+
+    public void deleteExpiredTimelineChunks(final DateTime now) {
+        if (!isPurging.compareAndSet(false, true)) {
+            log.info("Asked to delete expired timeline chunks, but we're already doing it!");
+            return;
+        }
+
+        retentionRuns.incrementAndGet();
+        long deleted = 0;
+        try {
+            final List<Deletion> deletions = getDeletions(DateTimeUtils.unixSeconds(now));
+            if (deletions.isEmpty()) {
+                return;
+            }
+
+            final Map<String, Object> recordIdRange = retentionSqlDao.getTimelineChunkRecordIdRange();
+            if (recordIdRange == null || recordIdRange.get("min_record_id") == null) {
+                return;
+            }
+            final long minRecordId = ((Number) recordIdRange.get("min_record_id")).longValue();
+            final long maxRecordId = ((Number) recordIdRange.get("max_record_id")).longValue();
+            final int batchSize = config.getRetentionBatchSize();
+            final long batchDelayMillis = config.getRetentionBatchDelay().getMillis();
+
+            for (long fromRecordId = minRecordId; fromRecordId <= maxRecordId && !shuttingDown.get(); fromRecordId += batchSize) {
+                final long startMillis = System.currentTimeMillis();
+                for (final Deletion deletion : deletions) {
+                    final int deletedInBatch = retentionSqlDao.deleteExpiredTimelineChunks(fromRecordId, fromRecordId + batchSize, deletion.aggregationLevel,
+                                                                                           deletion.endTime, deletion.categoryIds, deletion.excludedCategoryIds);
+                    chunksDeleted.addAndGet(deletedInBatch);
+                    deleted += deletedInBatch;
+                }
+                batchesProcessed.incrementAndGet();
+                msSpentDeleting.addAndGet(System.currentTimeMillis() - startMillis);
+
+                if (batchDelayMillis > 0) {
+                    Thread.sleep(batchDelayMillis);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            // Try again next time
+            retentionFailures.incrementAndGet();
+            log.warn("Unable to delete expired timeline chunks", e);
+        } finally {
+            if (deleted > 0) {
+                // Cached results may include the deleted chunks
+                usageResultCache.invalidateAll();
+            }
+            isPurging.set(false);
+        }
+    }
+
+    // Resolve the rules against the categories known so far, in all tenants
+    private List<Deletion> getDeletions(final int nowSeconds) {
+        final List<Deletion> deletions = new ArrayList<Deletion>();
+        for (final RetentionPolicy.Rule rule : retentionPolicy.getRules()) {
+            if (rule.getRetention() == null) {
+                continue;
+            }
+            final int endTime = nowSeconds - (int) (rule.getRetention().getMillis() / 1000);
+
+            if (rule.getCategory() != null) {
+                final List<Integer> categoryIds = retentionSqlDao.getCategoryRecordIds(rule.getCategory());
+                if (!categoryIds.isEmpty()) {
+                    deletions.add(new Deletion(rule.getAggregationLevel(), endTime, categoryIds, null));
+                }
+            } else {
+                final List<Integer> excludedCategoryIds = new ArrayList<Integer>();
+                for (final String category : retentionPolicy.getOverridingCategories(rule.getAggregationLevel())) {
+                    excludedCategoryIds.addAll(retentionSqlDao.getCategoryRecordIds(category));
+                }
+                deletions.add(new Deletion(rule.getAggregationLevel(), endTime, null, excludedCategoryIds.isEmpty() ? null : excludedCategoryIds));
+            }
+        }
+        return deletions;
+    }
+
+    public void runRetentionThread() {
+        retentionThread.scheduleWithFixedDelay(new Runnable() {
+                                                   @Override
+                                                   public void run() {
+                                                       deleteExpiredTimelineChunks();
+                                                   }
+                                               },
+                                               config.getRetentionInterval().getMillis(),
+                                               config.getRetentionInterval().getMillis(),
+                                               TimeUnit.MILLISECONDS
+                                              );
+    }
+
+    public void stopRetentionThread() {
+        shuttingDown.set(true);
+        retentionThread.shutdown();
+    }
+
+    private AtomicLong makeCounter(final String counterName) {
+        final AtomicLong counter = new AtomicLong();
+        retentionCounters.put(counterName, counter);
+        return counter;
+    }
+
+    public Map<String, Long> getRetentionCounters() {
+        final Map<String, Long> counterValues = new LinkedHashMap<String, Long>();
+        for (final Map.Entry<String, AtomicLong> entry : retentionCounters.entrySet()) {
+            counterValues.put(entry.getKey(), entry.getValue().get());
+        }
+        return counterValues;
+    }
+
+    private static final class Deletion {
+
+        private final int aggregationLevel;
+        private final int endTime;
+        private final List<Integer> categoryIds;
+        private final List<Integer> excludedCategoryIds;
+
+        private Deletion(final int aggregationLevel, final int endTime,
+                         @Nullable final List<Integer> categoryIds, @Nullable final List<Integer> excludedCategoryIds) {
+            this.aggregationLevel = aggregationLevel;
+            this.endTime = endTime;
+            this.categoryIds = categoryIds;
+            this.excludedCategoryIds = excludedCategoryIds;
+        }
+    }
+}
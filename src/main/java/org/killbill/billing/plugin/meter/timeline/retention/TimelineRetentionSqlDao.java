@@ -0,0 +1,53 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.timeline.retention;
+
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+import org.skife.jdbi.v2.DefaultMapper;
+import org.skife.jdbi.v2.sqlobject.Bind;
+import org.skife.jdbi.v2.sqlobject.SqlQuery;
+import org.skife.jdbi.v2.sqlobject.SqlUpdate;
+import org.skife.jdbi.v2.sqlobject.customizers.Define;
+import org.skife.jdbi.v2.sqlobject.customizers.Mapper;
+import org.skife.jdbi.v2.sqlobject.customizers.RegisterMapper;
+import org.skife.jdbi.v2.sqlobject.stringtemplate.UseStringTemplate3StatementLocator;
+import org.skife.jdbi.v2.util.IntegerMapper;
+
+@UseStringTemplate3StatementLocator()
+@RegisterMapper(DefaultMapper.class)
+public interface TimelineRetentionSqlDao {
+
+    @SqlQuery
+    Map<String, Object> getTimelineChunkRecordIdRange();
+
+    @SqlQuery
+    @Mapper(IntegerMapper.class)
+    List<Integer> getCategoryRecordIds(@Bind("category") final String category);
+
+    @SqlUpdate
+    int deleteExpiredTimelineChunks(@Bind("fromRecordId") final long fromRecordId,
+                                    @Bind("toRecordId") final long toRecordId,
+                                    @Bind("aggregationLevel") final int aggregationLevel,
+                                    @Bind("endTime") final int endTime,
+                                    @Nullable @Define("categoryIds") final List<Integer> categoryIds,
+                                    @Nullable @Define("excludedCategoryIds") final List<Integer> excludedCategoryIds);
+}
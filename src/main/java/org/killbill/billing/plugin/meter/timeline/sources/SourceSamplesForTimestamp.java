@@ -19,6 +19,9 @@ package org.killbill.billing.plugin.meter.timeline.sources;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.UUID;
+
+import javax.annotation.Nullable;
 
 import org.joda.time.DateTime;
 import org.killbill.billing.plugin.meter.timeline.samples.ScalarSample;
@@ -39,24 +42,33 @@ public class SourceSamplesForTimestamp {
     private static final String KEY_CATEGORY = "V";
     private static final String KEY_TIMESTAMP = "T";
     private static final String KEY_SAMPLES = "S";
+    private static final String KEY_TENANT = "N";
 
     private final Integer sourceId;
     private final String category;
     private final DateTime timestamp;
     // A map from sample id to sample value for that timestamp
     private final Map<Integer, ScalarSample> samples;
+    // Null for the internal tenant (and for samples spooled before tenants were recorded)
+    private final UUID tenantId;
 
     public SourceSamplesForTimestamp(final int sourceId, final String category, final DateTime timestamp) {
         this(sourceId, category, timestamp, new HashMap<Integer, ScalarSample>());
     }
 
+    public SourceSamplesForTimestamp(final Integer sourceId, final String category, final DateTime timestamp, final Map<Integer, ScalarSample> samples) {
+        this(sourceId, category, timestamp, samples, null);
+    }
+
     @JsonCreator
     public SourceSamplesForTimestamp(@JsonProperty(KEY_SOURCE) final Integer sourceId, @JsonProperty(KEY_CATEGORY) final String category,
-                                     @JsonProperty(KEY_TIMESTAMP) final DateTime timestamp, @JsonProperty(KEY_SAMPLES) final Map<Integer, ScalarSample> samples) {
+                                     @JsonProperty(KEY_TIMESTAMP) final DateTime timestamp, @JsonProperty(KEY_SAMPLES) final Map<Integer, ScalarSample> samples,
+                                     @JsonProperty(KEY_TENANT) @Nullable final UUID tenantId) {
         this.sourceId = sourceId;
         this.category = category;
         this.timestamp = timestamp;
         this.samples = samples;
+        this.tenantId = tenantId;
     }
 
     public int getSourceId() {
@@ -75,6 +87,11 @@ public class SourceSamplesForTimestamp {
         return samples;
     }
 
+    @Nullable
+    public UUID getTenantId() {
+        return tenantId;
+    }
+
     @Override
     public String toString() {
         final StringBuilder sb = new StringBuilder();
@@ -83,6 +100,7 @@ public class SourceSamplesForTimestamp {
         sb.append(", sourceId=").append(sourceId);
         sb.append(", timestamp=").append(timestamp);
         sb.append(", samples=").append(samples);
+        sb.append(", tenantId=").append(tenantId);
         sb.append('}');
 
         return sb.toString();
@@ -111,6 +129,9 @@ public class SourceSamplesForTimestamp {
         if (timestamp != null ? !timestamp.equals(that.timestamp) : that.timestamp != null) {
             return false;
         }
+        if (tenantId != null ? !tenantId.equals(that.tenantId) : that.tenantId != null) {
+            return false;
+        }
 
         return true;
     }
@@ -121,11 +142,16 @@ public class SourceSamplesForTimestamp {
         result = 31 * result + (category != null ? category.hashCode() : 0);
         result = 31 * result + (timestamp != null ? timestamp.hashCode() : 0);
         result = 31 * result + (samples != null ? samples.hashCode() : 0);
+        result = 31 * result + (tenantId != null ? tenantId.hashCode() : 0);
         return result;
     }
 
     @JsonValue
     public Map<String, Object> toMap() {
-        return ImmutableMap.of(KEY_SOURCE, sourceId, KEY_CATEGORY, category, KEY_TIMESTAMP, timestamp, KEY_SAMPLES, samples);
+        if (tenantId == null) {
+            return ImmutableMap.of(KEY_SOURCE, sourceId, KEY_CATEGORY, category, KEY_TIMESTAMP, timestamp, KEY_SAMPLES, samples);
+        } else {
+            return ImmutableMap.of(KEY_SOURCE, sourceId, KEY_CATEGORY, category, KEY_TIMESTAMP, timestamp, KEY_SAMPLES, samples, KEY_TENANT, tenantId);
+        }
     }
 }
@@ -22,10 +22,12 @@ import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
 import org.joda.time.DateTime;
+import org.killbill.billing.plugin.meter.timeline.util.ByteBuffers;
 import org.killbill.billing.plugin.meter.timeline.util.DateTimeUtils;
 import org.killbill.billing.plugin.meter.timeline.util.Hex;
 import org.slf4j.Logger;
@@ -102,6 +104,15 @@ public class DefaultTimelineCoder implements TimelineCoder {
 
     @Override
     public byte[] combineTimelines(final List<byte[]> timesList, final Integer sampleCount) {
+        final List<ByteBuffer> timeBuffersList = new ArrayList<ByteBuffer>(timesList.size());
+        for (final byte[] times : timesList) {
+            timeBuffersList.add(ByteBuffer.wrap(times));
+        }
+        return combineTimeBuffers(timeBuffersList, sampleCount);
+    }
+
+    @Override
+    public byte[] combineTimeBuffers(final List<ByteBuffer> timesList, final Integer sampleCount) {
         final byte[] timeBytes = combineTimelines(timesList);
         final int combinedSampleCount = countTimeBytesSamples(timeBytes);
         if (sampleCount != null && sampleCount != combinedSampleCount) {
@@ -115,7 +126,7 @@ public class DefaultTimelineCoder implements TimelineCoder {
                    .append(", ")
                    .append(timesList.size())
                    .append(" chunks");
-            for (final byte[] bytes : timesList) {
+            for (final ByteBuffer bytes : timesList) {
                 builder.append(", ")
                        .append(Hex.encodeHex(bytes));
             }
@@ -124,7 +135,7 @@ public class DefaultTimelineCoder implements TimelineCoder {
         return timeBytes;
     }
 
-    private byte[] combineTimelines(final List<byte[]> timesList) {
+    private byte[] combineTimelines(final List<ByteBuffer> timesList) {
         final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
         final DataOutputStream dataStream = new DataOutputStream(outputStream);
         try {
@@ -132,8 +143,8 @@ public class DefaultTimelineCoder implements TimelineCoder {
             int lastDelta = 0;
             int repeatCount = 0;
             int chunkCounter = 0;
-            for (byte[] times : timesList) {
-                final ByteArrayInputStream byteStream = new ByteArrayInputStream(times);
+            for (final ByteBuffer times : timesList) {
+                final ByteArrayInputStream byteStream = ByteBuffers.newInputStream(times);
                 final DataInputStream byteDataStream = new DataInputStream(byteStream);
                 int byteCursor = 0;
                 while (true) {
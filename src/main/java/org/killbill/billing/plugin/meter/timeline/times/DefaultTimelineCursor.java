@@ -17,121 +17,167 @@
 
 package org.killbill.billing.plugin.meter.timeline.times;
 
-import java.io.ByteArrayInputStream;
-import java.io.DataInputStream;
-import java.io.IOException;
+import java.nio.ByteBuffer;
 
 import org.joda.time.DateTime;
 import org.killbill.billing.plugin.meter.timeline.util.DateTimeUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Decodes the times directly from the timeline bytes.  Repeated deltas are expanded lazily:
+ * skipping over (part of) a REPEATED_DELTA_TIME_BYTE or REPEATED_DELTA_TIME_SHORT run is O(1).
+ */
 public class DefaultTimelineCursor implements TimelineCursor {
 
     private static final Logger log = LoggerFactory.getLogger(DefaultTimelineCursor.class);
 
-    private final DataInputStream timelineDataStream;
-    private int sampleCount;
-    private int sampleNumber;
+    private static final int FULL_TIME = TimelineOpcode.FULL_TIME.getOpcodeIndex();
+    private static final int REPEATED_DELTA_TIME_BYTE = TimelineOpcode.REPEATED_DELTA_TIME_BYTE.getOpcodeIndex();
+    private static final int REPEATED_DELTA_TIME_SHORT = TimelineOpcode.REPEATED_DELTA_TIME_SHORT.getOpcodeIndex();
+
+    private final byte[] times;
+    private final int startOffset;
+    private final int endOffset;
+    private final int sampleCount;
     private int byteCursor;
+    private int sampleNumber;
     private int lastValue;
     private int delta;
     private int repeatCount;
 
     public DefaultTimelineCursor(final byte[] times, final int sampleCount) {
-        this.timelineDataStream = new DataInputStream(new ByteArrayInputStream(times));
+        this(times, 0, times.length, sampleCount);
+    }
+
+    public DefaultTimelineCursor(final ByteBuffer times, final int sampleCount) {
+        this(times.array(), times.arrayOffset() + times.position(), times.remaining(), sampleCount);
+    }
+
+    public DefaultTimelineCursor(final byte[] times, final int offset, final int length, final int sampleCount) {
+        this.times = times;
+        this.startOffset = offset;
+        this.endOffset = offset + length;
         this.sampleCount = sampleCount;
+        this.byteCursor = offset;
         this.sampleNumber = 0;
-        this.byteCursor = 0;
         this.lastValue = 0;
         this.delta = 0;
         this.repeatCount = 0;
     }
 
+    /**
+     * Restore the state saved in a TimelineSkipIndex entry
+     *
+     * @param timeByteOffset offset of the next opcode in the time bytes
+     * @param sampleNumber   number of samples before that point
+     * @param lastValue      time of the previous sample
+     * @param delta          delta of the repeated delta run being decoded
+     * @param repeatCount    number of samples left in that run
+     */
+    public void seek(final int timeByteOffset, final int sampleNumber, final int lastValue, final int delta, final int repeatCount) {
+        if (timeByteOffset < 0 || startOffset + timeByteOffset > endOffset) {
+            throw new IllegalStateException(String.format("In DefaultTimelineCursor.seek(), invalid offset %d", timeByteOffset));
+        }
+        this.byteCursor = startOffset + timeByteOffset;
+        this.sampleNumber = sampleNumber;
+        this.lastValue = lastValue;
+        this.delta = delta;
+        this.repeatCount = repeatCount;
+    }
+
+    public int getTimeByteOffset() {
+        return byteCursor - startOffset;
+    }
+
+    public int getSampleNumber() {
+        return sampleNumber;
+    }
+
+    public int getLastValue() {
+        return lastValue;
+    }
+
+    public int getDelta() {
+        return delta;
+    }
+
+    public int getRepeatCount() {
+        return repeatCount;
+    }
+
+    /**
+     * Decode the next opcode, leaving lastValue on the first time it encodes and, for repeated deltas,
+     * repeatCount on the number of times left in the run
+     *
+     * @return false if we're at the end of the timeline
+     */
+    private boolean readOpcode() {
+        if (byteCursor >= endOffset) {
+            return false;
+        }
+        final int opcode = times[byteCursor] & 0xFF;
+        if (opcode <= TimelineOpcode.MAX_DELTA_TIME) {
+            lastValue += opcode;
+            byteCursor++;
+        } else if (opcode == FULL_TIME) {
+            checkAvailable(opcode, 5);
+            lastValue = ((times[byteCursor + 1] & 0xFF) << 24) | ((times[byteCursor + 2] & 0xFF) << 16) |
+                        ((times[byteCursor + 3] & 0xFF) << 8) | (times[byteCursor + 4] & 0xFF);
+            byteCursor += 5;
+        } else if (opcode == REPEATED_DELTA_TIME_BYTE) {
+            checkAvailable(opcode, 3);
+            repeatCount = (times[byteCursor + 1] & 0xFF) - 1;
+            delta = times[byteCursor + 2] & 0xFF;
+            lastValue += delta;
+            byteCursor += 3;
+        } else if (opcode == REPEATED_DELTA_TIME_SHORT) {
+            checkAvailable(opcode, 4);
+            repeatCount = (((times[byteCursor + 1] & 0xFF) << 8) | (times[byteCursor + 2] & 0xFF)) - 1;
+            delta = times[byteCursor + 3] & 0xFF;
+            lastValue += delta;
+            byteCursor += 4;
+        } else {
+            throw new IllegalStateException(String.format("In DefaultTimelineCursor, unknown opcode %x at offset %d", opcode, byteCursor - startOffset));
+        }
+        return true;
+    }
+
+    private void checkAvailable(final int opcode, final int length) {
+        if (byteCursor + length > endOffset) {
+            throw new IllegalStateException(String.format("In DefaultTimelineCursor, truncated opcode %x at offset %d", opcode, byteCursor - startOffset));
+        }
+    }
+
     private int getNextTimeInternal() {
-        try {
-            if (repeatCount > 0) {
-                repeatCount--;
-                lastValue += delta;
-            } else {
-                final int nextOpcode = timelineDataStream.read();
-                byteCursor++;
-                if (nextOpcode == -1) {
-                    return nextOpcode;
-                }
-                if (nextOpcode == TimelineOpcode.FULL_TIME.getOpcodeIndex()) {
-                    lastValue = timelineDataStream.readInt();
-                    byteCursor += 4;
-                } else if (nextOpcode == TimelineOpcode.REPEATED_DELTA_TIME_BYTE.getOpcodeIndex()) {
-                    repeatCount = timelineDataStream.readUnsignedByte() - 1;
-                    delta = timelineDataStream.read();
-                    byteCursor += 2;
-                    lastValue += delta;
-                } else if (nextOpcode == TimelineOpcode.REPEATED_DELTA_TIME_SHORT.getOpcodeIndex()) {
-                    repeatCount = timelineDataStream.readUnsignedShort() - 1;
-                    delta = timelineDataStream.read();
-                    byteCursor += 3;
-                    lastValue += delta;
-                } else if (nextOpcode <= TimelineOpcode.MAX_DELTA_TIME) {
-                    lastValue += nextOpcode;
-                } else {
-                    throw new IllegalStateException(String.format("In TimeIterator.getNextTime(), unknown opcode %x at offset %d", nextOpcode, byteCursor));
-                }
-            }
-            sampleNumber++;
-            if (sampleNumber > sampleCount) {
-                log.error("In TimeIterator.getNextTime(), after update, sampleNumber %d > sampleCount %d", sampleNumber, sampleCount);
-            }
-            return lastValue;
-        } catch (IOException e) {
-            log.error("IOException in TimeIterator.getNextTime()", e);
+        if (repeatCount > 0) {
+            repeatCount--;
+            lastValue += delta;
+        } else if (!readOpcode()) {
             return -1;
         }
+        sampleNumber++;
+        if (sampleNumber > sampleCount) {
+            log.error("In DefaultTimelineCursor.getNextTime(), after update, sampleNumber {} > sampleCount {}", sampleNumber, sampleCount);
+        }
+        return lastValue;
     }
 
     @Override
     public void skipToSampleNumber(final int finalSampleNumber) {
         if (finalSampleNumber > sampleCount) {
-            log.error("In TimeIterator.skipToSampleNumber(), finalSampleCount {} > sampleCount {}", finalSampleNumber, sampleCount);
+            log.error("In DefaultTimelineCursor.skipToSampleNumber(), finalSampleCount {} > sampleCount {}", finalSampleNumber, sampleCount);
         }
         while (sampleNumber < finalSampleNumber) {
-            try {
-                if (repeatCount > 0) {
-                    final int countToSkipInRepeat = Math.min(finalSampleNumber - sampleNumber, repeatCount);
-                    sampleNumber += countToSkipInRepeat;
-                    repeatCount -= countToSkipInRepeat;
-                    lastValue += countToSkipInRepeat * delta;
-                } else {
-                    final int nextOpcode = timelineDataStream.read();
-                    if (nextOpcode == -1) {
-                        return;
-                    }
-                    byteCursor++;
-                    if (nextOpcode == TimelineOpcode.FULL_TIME.getOpcodeIndex()) {
-                        lastValue = timelineDataStream.readInt();
-                        byteCursor += 4;
-                        sampleNumber++;
-                    } else if (nextOpcode == TimelineOpcode.REPEATED_DELTA_TIME_BYTE.getOpcodeIndex()) {
-                        repeatCount = timelineDataStream.readUnsignedByte() - 1;
-                        delta = timelineDataStream.read();
-                        byteCursor += 2;
-                        lastValue += delta;
-                        sampleNumber++;
-                    } else if (nextOpcode == TimelineOpcode.REPEATED_DELTA_TIME_SHORT.getOpcodeIndex()) {
-                        repeatCount = timelineDataStream.readUnsignedShort() - 1;
-                        delta = timelineDataStream.read();
-                        byteCursor += 3;
-                        lastValue += delta;
-                        sampleNumber++;
-                    } else if (nextOpcode <= TimelineOpcode.MAX_DELTA_TIME) {
-                        lastValue += nextOpcode;
-                        sampleNumber++;
-                    } else {
-                        throw new IllegalStateException(String.format("In TimeIterator.skipToSampleNumber(), unknown opcode %x at offset %d", nextOpcode, byteCursor));
-                    }
-                }
-            } catch (IOException e) {
-                log.error("IOException in TimeIterator.getNextTime()", e);
+            if (repeatCount > 0) {
+                final int countToSkipInRepeat = Math.min(finalSampleNumber - sampleNumber, repeatCount);
+                sampleNumber += countToSkipInRepeat;
+                repeatCount -= countToSkipInRepeat;
+                lastValue += countToSkipInRepeat * delta;
+            } else if (readOpcode()) {
+                sampleNumber++;
+            } else {
+                return;
             }
         }
     }
@@ -145,4 +191,39 @@ public class DefaultTimelineCursor implements TimelineCursor {
             return DateTimeUtils.dateTimeFromUnixSeconds(nextTime);
         }
     }
+
+    @Override
+    public int nextTimes(final int[] out, final int n) {
+        return nextTimes(out, 0, n);
+    }
+
+    @Override
+    public int nextTimes(final int[] out, final int offset, final int n) {
+        int count = 0;
+        while (count < n) {
+            if (repeatCount > 0) {
+                // Expand the run in a tight loop
+                final int runLength = Math.min(n - count, repeatCount);
+                int value = lastValue;
+                for (int i = 0; i < runLength; i++) {
+                    value += delta;
+                    out[offset + count + i] = value;
+                }
+                lastValue = value;
+                repeatCount -= runLength;
+                sampleNumber += runLength;
+                count += runLength;
+            } else if (readOpcode()) {
+                out[offset + count] = lastValue;
+                sampleNumber++;
+                count++;
+            } else {
+                break;
+            }
+        }
+        if (sampleNumber > sampleCount) {
+            log.error("In DefaultTimelineCursor.nextTimes(), after update, sampleNumber {} > sampleCount {}", sampleNumber, sampleCount);
+        }
+        return count;
+    }
 }
@@ -17,6 +17,7 @@
 
 package org.killbill.billing.plugin.meter.timeline.times;
 
+import java.nio.ByteBuffer;
 import java.util.List;
 
 import org.joda.time.DateTime;
@@ -51,6 +52,15 @@ public interface TimelineCoder {
      */
     public byte[] combineTimelines(final List<byte[]> timesList, final Integer sampleCount);
 
+    /**
+     * Same as combineTimelines, for views over the timeline bytes, e.g. the ones of timeline chunks read from the db
+     *
+     * @param timesList   list of heap buffers over timeline bytes
+     * @param sampleCount the number of samples the combined timeline should hold, or null if unknown
+     * @return the combined timeline
+     */
+    public byte[] combineTimeBuffers(final List<ByteBuffer> timesList, final Integer sampleCount);
+
     /**
      * Return a count of the time samples in the timeline provided
      *
@@ -34,4 +34,23 @@ public interface TimelineCursor {
      * @return the DateTime for the next sample.  If we've run out of samples, return null
      */
     public DateTime getNextTime();
+
+    /**
+     * Decode the unix times, in seconds, of the next samples
+     *
+     * @param out the array to which the times are written, from index 0
+     * @param n   the number of times to decode
+     * @return the number of times decoded, less than n if we've run out of samples
+     */
+    public int nextTimes(final int[] out, final int n);
+
+    /**
+     * Decode the unix times, in seconds, of the next samples
+     *
+     * @param out    the array to which the times are written
+     * @param offset the index in out of the first time
+     * @param n      the number of times to decode
+     * @return the number of times decoded, less than n if we've run out of samples
+     */
+    public int nextTimes(final int[] out, final int offset, final int n);
 }
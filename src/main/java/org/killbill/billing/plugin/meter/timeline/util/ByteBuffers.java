@@ -0,0 +1,52 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.timeline.util;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Helpers for the heap ByteBuffer views over times and samples
+ */
+public class ByteBuffers {
+
+    private ByteBuffers() {
+    }
+
+    /**
+     * @param buffer a heap buffer
+     * @return a stream over the remaining bytes of the buffer, sharing its backing array
+     */
+    public static ByteArrayInputStream newInputStream(final ByteBuffer buffer) {
+        return new ByteArrayInputStream(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+    }
+
+    /**
+     * @param buffer a heap buffer
+     * @return the remaining bytes of the buffer, the backing array itself if the buffer spans all of it
+     */
+    public static byte[] toByteArray(final ByteBuffer buffer) {
+        final byte[] array = buffer.array();
+        if (buffer.arrayOffset() == 0 && buffer.position() == 0 && buffer.remaining() == array.length) {
+            return array;
+        }
+        final byte[] bytes = new byte[buffer.remaining()];
+        System.arraycopy(array, buffer.arrayOffset() + buffer.position(), bytes, 0, bytes.length);
+        return bytes;
+    }
+}
@@ -17,6 +17,8 @@
 
 package org.killbill.billing.plugin.meter.timeline.util;
 
+import java.nio.ByteBuffer;
+
 /**
  * Hex utilities from commons-codec
  */
@@ -83,6 +85,17 @@ public class Hex {
         return out;
     }
 
+    /**
+     * Converts the remaining bytes of a heap byte buffer into an array of characters representing the hexadecimal values of
+     * each byte in order. The buffer position is left untouched.
+     *
+     * @param data a heap byte buffer to convert to Hex characters
+     * @return A char[] containing hexadecimal characters
+     */
+    public static char[] encodeHex(final ByteBuffer data) {
+        return encodeHex(ByteBuffers.toByteArray(data), DIGITS_LOWER);
+    }
+
     /**
      * Converts an array of characters representing hexadecimal values into an array of bytes of those same values. The
      * returned array will be half the length of the passed array, as it takes two characters to represent any given
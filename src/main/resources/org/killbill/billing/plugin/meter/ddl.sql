@@ -1,5 +1,15 @@
 /*! SET storage_engine=INNODB */;
 
+-- To upgrade a database created before meter_tenants, see migration/tenant_partitioning.sql
+DROP TABLE IF EXISTS meter_tenants;
+CREATE TABLE meter_tenants (
+  record_id int(11) unsigned not null auto_increment
+, tenant_id char(36) not null
+, created_date datetime default null
+, primary key(record_id)
+);
+CREATE UNIQUE INDEX meter_tenants_tenant_id_unq on meter_tenants(tenant_id);
+
 DROP TABLE IF EXISTS sources;
 CREATE TABLE sources (
   record_id int(11) unsigned not null auto_increment
@@ -12,7 +22,7 @@ CREATE TABLE sources (
 , tenant_record_id int(11) unsigned default null
 , primary key(record_id)
 );
-CREATE UNIQUE INDEX source_unq on sources(source);
+CREATE UNIQUE INDEX source_unq on sources(tenant_record_id, source);
 CREATE INDEX created_date_record_id_dx on sources(created_date, record_id);
 CREATE INDEX sources_tenant_account_record_id on sources(tenant_record_id, account_record_id);
 
@@ -27,7 +37,7 @@ CREATE TABLE categories (
 , tenant_record_id int(11) unsigned default null
 , primary key(record_id)
 );
-CREATE UNIQUE INDEX event_category_unq on categories(category);
+CREATE UNIQUE INDEX event_category_unq on categories(tenant_record_id, category);
 CREATE INDEX categories_tenant_record_id on categories(tenant_record_id);
 
 DROP TABLE IF EXISTS metrics;
@@ -45,6 +55,8 @@ CREATE TABLE metrics (
 CREATE UNIQUE INDEX metric_unq on metrics(category_record_id, metric);
 CREATE INDEX metrics_tenant_record_id on metrics(tenant_record_id);
 
+-- To upgrade a database created before the (record_id, start_time) primary key, see migration/timeline_chunks_partitioning.sql
+-- To upgrade a database created before the skip_index column, see migration/timeline_chunks_skip_index.sql
 DROP TABLE IF EXISTS timeline_chunks;
 CREATE TABLE timeline_chunks (
   record_id bigint not null auto_increment
@@ -58,13 +70,38 @@ CREATE TABLE timeline_chunks (
 , dont_aggregate tinyint default 0
 , in_row_samples varbinary(400) default null
 , blob_samples mediumblob default null
+, skip_index blob default null
 , account_record_id int(11) unsigned default null
 , tenant_record_id int(11) unsigned default null
-, primary key(record_id)
+, primary key(record_id, start_time)
 );
 CREATE UNIQUE INDEX source_record_id_timeline_chunk_metric_record_idx on timeline_chunks(source_record_id, metric_record_id, start_time, aggregation_level);
 CREATE INDEX valid_agg_host_start_time on timeline_chunks(not_valid, aggregation_level, source_record_id, metric_record_id, start_time);
 
+DROP TABLE IF EXISTS meter_nodes;
+CREATE TABLE meter_nodes (
+  node_id varchar(64) not null
+, address varchar(255) not null
+, last_heartbeat integer not null
+, primary key(node_id)
+);
+
+DROP TABLE IF EXISTS aggregation_leases;
+CREATE TABLE aggregation_leases (
+  shard integer not null
+, node_id varchar(64) default null
+, lease_expiration integer not null default 0
+, primary key(shard)
+);
+
+-- To upgrade a database created before timeline_chunk_spans, see migration/timeline_chunk_spans.sql
+DROP TABLE IF EXISTS timeline_chunk_spans;
+CREATE TABLE timeline_chunk_spans (
+  aggregation_level tinyint not null
+, max_span integer not null
+, primary key(aggregation_level)
+);
+
 DROP TABLE IF EXISTS last_start_times;
 CREATE TABLE last_start_times (
   time_inserted int not null primary key
@@ -0,0 +1,32 @@
+/*! SET storage_engine=INNODB */;
+
+-- Upgrade of a database created before the timelines were partitioned per tenant.
+--
+-- Before, sources, categories, metrics and chunks were all recorded under the internal tenant (tenant_record_id 0),
+-- whatever the tenant of the caller. Now, callers with a tenant only see the rows of their own tenant, so the
+-- existing rows are invisible to them until they are assigned to a tenant. This script assigns them to one tenant,
+-- typically the only tenant of the installation. Without it, they stay visible to callers without a tenant only.
+--
+-- Stop the plugin first (the spooled samples of the old version don't carry a tenant), then run:
+--   SET @tenant_id = '<Kill Bill tenant id>';
+--   SOURCE tenant_partitioning.sql;
+
+CREATE TABLE IF NOT EXISTS meter_tenants (
+  record_id int(11) unsigned not null auto_increment
+, tenant_id char(36) not null
+, created_date datetime default null
+, primary key(record_id)
+, unique key meter_tenants_tenant_id_unq(tenant_id)
+);
+
+INSERT IGNORE INTO meter_tenants (tenant_id, created_date) VALUES (@tenant_id, NOW());
+SELECT record_id INTO @tenant_record_id FROM meter_tenants WHERE tenant_id = @tenant_id;
+
+ALTER TABLE sources DROP INDEX source_unq, ADD UNIQUE INDEX source_unq(tenant_record_id, source);
+ALTER TABLE categories DROP INDEX event_category_unq, ADD UNIQUE INDEX event_category_unq(tenant_record_id, category);
+
+UPDATE sources SET tenant_record_id = @tenant_record_id WHERE tenant_record_id = 0 OR tenant_record_id IS NULL;
+UPDATE categories SET tenant_record_id = @tenant_record_id WHERE tenant_record_id = 0 OR tenant_record_id IS NULL;
+UPDATE metrics SET tenant_record_id = @tenant_record_id WHERE tenant_record_id = 0 OR tenant_record_id IS NULL;
+-- Record 0 is the placeholder chunk inserted by ddl.sql
+UPDATE timeline_chunks SET tenant_record_id = @tenant_record_id WHERE (tenant_record_id = 0 OR tenant_record_id IS NULL) AND record_id != 0;
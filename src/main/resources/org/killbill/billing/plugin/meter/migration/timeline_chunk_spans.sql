@@ -0,0 +1,20 @@
+/*! SET storage_engine=INNODB */;
+
+-- Upgrade of a database created before the chunk read queries were bounded per aggregation level.
+--
+-- The read queries bound start_time of each aggregation level by the largest span (end_time - start_time) of its
+-- chunks, recorded in timeline_chunk_spans. Levels without a recorded span are read without a lower bound, i.e.
+-- all older chunks of the series are scanned, and all the partitions of timeline_chunks too. This script creates
+-- the table and records the spans of the existing chunks. Run it before starting the new version of the plugin:
+--   SOURCE timeline_chunk_spans.sql;
+
+CREATE TABLE IF NOT EXISTS timeline_chunk_spans (
+  aggregation_level tinyint not null
+, max_span integer not null
+, primary key(aggregation_level)
+);
+
+-- Spans only grow: keep a larger span already recorded by a running plugin
+INSERT INTO timeline_chunk_spans (aggregation_level, max_span)
+SELECT aggregation_level, max(end_time - start_time) FROM timeline_chunks WHERE record_id != 0 GROUP BY aggregation_level
+ON DUPLICATE KEY UPDATE max_span = greatest(max_span, values(max_span));
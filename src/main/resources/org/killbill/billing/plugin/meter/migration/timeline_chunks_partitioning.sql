@@ -0,0 +1,28 @@
+/*! SET storage_engine=INNODB */;
+
+-- Upgrade of a database created before timeline_chunks could be partitioned by start_time (MySQL only).
+--
+-- MySQL requires the partitioning column to be part of every unique key: the primary key of timeline_chunks
+-- becomes (record_id, start_time). This is required before enabling org.killbill.billing.plugin.meter.timelines.partitioningEnabled.
+--
+-- The plugin partitions a table which isn't partitioned yet on its first maintenance run, while running. Both statements
+-- below rebuild the table, so on a large table run them instead during a maintenance window, with the plugin stopped:
+--   SET @partition_length = <org.killbill.billing.plugin.meter.timelines.partitionLength, in seconds, e.g. 604800 for 7d>;
+--   SOURCE timeline_chunks_partitioning.sql;
+-- All existing chunks go in one partition, dropped as a whole once expired. The plugin adds the upcoming partitions.
+
+ALTER TABLE timeline_chunks DROP PRIMARY KEY, ADD PRIMARY KEY(record_id, start_time);
+
+-- Same partitions as the plugin creates (see TimelinePartitionManager): the sentinel partition holding the placeholder chunk,
+-- the existing chunks, the current partition (aligned on the epoch) and the catch-all partition
+SET time_zone = '+00:00';
+SET @current_partition_start = UNIX_TIMESTAMP() - UNIX_TIMESTAMP() % @partition_length;
+SET @current_partition_end = @current_partition_start + @partition_length;
+SET @partition_timeline_chunks = CONCAT('ALTER TABLE timeline_chunks PARTITION BY RANGE (start_time) (',
+                                        '  PARTITION p0 VALUES LESS THAN (1)',
+                                        ', PARTITION ', DATE_FORMAT(FROM_UNIXTIME(@current_partition_start), 'p%Y%m%d%H%i'), ' VALUES LESS THAN (', @current_partition_start, ')',
+                                        ', PARTITION ', DATE_FORMAT(FROM_UNIXTIME(@current_partition_end), 'p%Y%m%d%H%i'), ' VALUES LESS THAN (', @current_partition_end, ')',
+                                        ', PARTITION p_max VALUES LESS THAN MAXVALUE)');
+PREPARE partition_timeline_chunks FROM @partition_timeline_chunks;
+EXECUTE partition_timeline_chunks;
+DEALLOCATE PREPARE partition_timeline_chunks;
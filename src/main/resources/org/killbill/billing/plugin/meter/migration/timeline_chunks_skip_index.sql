@@ -0,0 +1,10 @@
+/*! SET storage_engine=INNODB */;
+
+-- Upgrade of a database created before the skip index of the timeline chunks.
+--
+-- The plugin reads and writes the skip_index column of timeline_chunks, whether skip indexes are enabled or not
+-- (see org.killbill.billing.plugin.meter.timelines.skipIndexInterval). Existing chunks don't get a skip index and
+-- are always scanned from their start. Run it before starting the new version of the plugin:
+--   SOURCE timeline_chunks_skip_index.sql;
+
+ALTER TABLE timeline_chunks ADD COLUMN skip_index blob default null;
@@ -0,0 +1,260 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.api.user;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.killbill.billing.plugin.meter.MeterConfig;
+import org.killbill.billing.plugin.meter.MeterTenantContext;
+import org.killbill.billing.plugin.meter.MeterTestSuiteNoDB;
+import org.killbill.billing.plugin.meter.api.AggregationFunction;
+import org.killbill.billing.plugin.meter.api.OutputFormat;
+import org.killbill.billing.plugin.meter.monitoring.MeterMetrics;
+import org.killbill.billing.plugin.meter.timeline.BackgroundDBChunkWriter;
+import org.killbill.billing.plugin.meter.timeline.CounterPreAggregator;
+import org.killbill.billing.plugin.meter.timeline.MockFileBackedBuffer;
+import org.killbill.billing.plugin.meter.timeline.MockTimelineDao;
+import org.killbill.billing.plugin.meter.timeline.TimelineEventHandler;
+import org.killbill.billing.plugin.meter.timeline.cluster.SampleForwarder;
+import org.killbill.billing.plugin.meter.timeline.codec.DefaultSampleCoder;
+import org.killbill.billing.plugin.meter.timeline.times.DefaultTimelineCoder;
+import org.skife.config.ConfigurationObjectFactory;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+public class TestDefaultMeterUserApi extends MeterTestSuiteNoDB {
+
+    private static final File basePath = new File(System.getProperty("java.io.tmpdir"), "TestDefaultMeterUserApi-" + System.currentTimeMillis());
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+    private static final DateTime START_TIME = new DateTime(2014, 1, 1, 0, 0, 0, DateTimeZone.UTC);
+
+    // Pre-aggregator of the last DefaultMeterUserApi created
+    private CounterPreAggregator counterPreAggregator;
+
+    @Test(groups = "fast")
+    public void testMultiSourceUsage() throws Exception {
+        final MeterConfig config = createConfig(ImmutableMap.<String, String>of());
+        final DefaultMeterUserApi meterUserApi = createMeterUserApi(config);
+
+        for (int i = 0; i < 3; i++) {
+            final DateTime timestamp = START_TIME.plusSeconds(30 * i);
+            // Values are 1xx for host-a and 2xx for host-b, the tens identify the metric
+            meterUserApi.recordUsage("host-a",
+                                     ImmutableMap.<String, Map<String, Object>>of("JVM", ImmutableMap.<String, Object>of("GC", 110 + i, "Heap", 120 + i),
+                                                                                  "Tomcat", ImmutableMap.<String, Object>of("Requests", 130 + i)),
+                                     timestamp, callContext);
+            meterUserApi.recordUsage("host-b",
+                                     ImmutableMap.<String, Map<String, Object>>of("JVM", ImmutableMap.<String, Object>of("GC", 210 + i, "Heap", 220 + i),
+                                                                                  "Tomcat", ImmutableMap.<String, Object>of("Requests", 230 + i)),
+                                     timestamp, callContext);
+        }
+        // Not queried
+        meterUserApi.recordUsage("host-c", ImmutableMap.<String, Map<String, Object>>of("JVM", ImmutableMap.<String, Object>of("GC", 310)), START_TIME, callContext);
+
+        final Map<String, Collection<String>> metricsPerCategory = ImmutableMap.<String, Collection<String>>of("JVM", ImmutableList.<String>of("GC", "Heap"),
+                                                                                                               "Tomcat", ImmutableList.<String>of("Requests"));
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        meterUserApi.getUsage(output, OutputFormat.JSON, null, AggregationFunction.SUM, DateTimeZone.UTC, ImmutableList.<String>of("host-b", "host-a"),
+                              ImmutableList.<String>of(), metricsPerCategory, START_TIME.minusHours(1), START_TIME.plusHours(1), new MeterTenantContext());
+
+        final Map<String, String> samplesPerSeries = getSamplesPerSeries(output.toByteArray());
+        Assert.assertEquals(samplesPerSeries.size(), 6);
+        for (final String source : ImmutableList.<String>of("host-a", "host-b")) {
+            final int sourceValue = "host-a".equals(source) ? 100 : 200;
+            Assert.assertEquals(samplesPerSeries.get(source + "/JVM/GC"), getExpectedSamples(sourceValue + 10));
+            Assert.assertEquals(samplesPerSeries.get(source + "/JVM/Heap"), getExpectedSamples(sourceValue + 20));
+            Assert.assertEquals(samplesPerSeries.get(source + "/Tomcat/Requests"), getExpectedSamples(sourceValue + 30));
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testColumnarUsageIsWrittenPerSeries() throws Exception {
+        // Chunks of 4 samples, written right away
+        final MeterConfig config = createConfig(ImmutableMap.<String, String>of("org.killbill.billing.plugin.meter.timelines.chunkMaxSampleCount", "4",
+                                                                                "org.killbill.billing.plugin.meter.timelines.performForegroundWrites", "true"));
+        final DefaultMeterUserApi meterUserApi = createMeterUserApi(config);
+        for (int i = 0; i < 10; i++) {
+            meterUserApi.recordUsage("host-a", ImmutableMap.<String, Map<String, Object>>of("JVM", ImmutableMap.<String, Object>of("GC", i)),
+                                     START_TIME.plusSeconds(30 * i), callContext);
+        }
+        final Map<String, Collection<String>> metricsPerCategory = ImmutableMap.<String, Collection<String>>of("JVM", ImmutableList.<String>of("GC"));
+
+        // Two stored chunks and one in memory: the row layout writes an object per chunk
+        final ByteArrayOutputStream rowOutput = new ByteArrayOutputStream();
+        meterUserApi.getUsage(rowOutput, OutputFormat.JSON, null, AggregationFunction.SUM, DateTimeZone.UTC, ImmutableList.<String>of("host-a"),
+                              ImmutableList.<String>of(), metricsPerCategory, START_TIME.minusHours(1), START_TIME.plusHours(1), new MeterTenantContext());
+        Assert.assertEquals(objectMapper.readValue(rowOutput.toByteArray(), List.class).size(), 3);
+
+        // ... and the columnar layout a single one
+        final ByteArrayOutputStream columnarOutput = new ByteArrayOutputStream();
+        meterUserApi.getUsage(columnarOutput, OutputFormat.COLUMNAR_JSON, null, AggregationFunction.SUM, DateTimeZone.UTC, ImmutableList.<String>of("host-a"),
+                              ImmutableList.<String>of(), metricsPerCategory, START_TIME.minusHours(1), START_TIME.plusHours(1), new MeterTenantContext());
+        final List<Map<String, Object>> series = objectMapper.readValue(columnarOutput.toByteArray(), new TypeReference<List<Map<String, Object>>>() {});
+        Assert.assertEquals(series.size(), 1);
+        Assert.assertEquals(series.get(0).get("sourceName"), "host-a");
+        Assert.assertEquals(series.get(0).get("metric"), "GC");
+        final List<Number> times = (List<Number>) series.get(0).get("times");
+        final List<Number> values = (List<Number>) series.get(0).get("values");
+        Assert.assertEquals(times.size(), 10);
+        Assert.assertEquals(times.get(0).longValue(), START_TIME.getMillis() / 1000);
+        for (int i = 1; i < 10; i++) {
+            Assert.assertEquals(times.get(i).intValue(), 30);
+        }
+        for (int i = 0; i < 10; i++) {
+            Assert.assertEquals(values.get(i).doubleValue(), (double) i);
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testUsageSplitBetweenCachedAndLiveRanges() throws Exception {
+        final MeterConfig config = createConfig(ImmutableMap.<String, String>of("org.killbill.billing.plugin.meter.timelines.usageCacheMaxBytes", "1048576"));
+        final UsageResultCache usageResultCache = new UsageResultCache(config);
+        final DefaultMeterUserApi meterUserApi = createMeterUserApi(config, usageResultCache);
+
+        clock.setTime(START_TIME.plusDays(1));
+        final DateTime closedRangeEnd = usageResultCache.getClosedRangeEnd(null, DateTimeZone.UTC, clock.getUTCNow());
+        // Two samples in the closed range, two in the live one
+        final DateTime firstSampleTime = closedRangeEnd.minusSeconds(60);
+        for (int i = 0; i < 4; i++) {
+            meterUserApi.recordUsage("host-a", ImmutableMap.<String, Map<String, Object>>of("JVM", ImmutableMap.<String, Object>of("GC", i)),
+                                     firstSampleTime.plusSeconds(30 * i), callContext);
+        }
+        final Map<String, Collection<String>> metricsPerCategory = ImmutableMap.<String, Collection<String>>of("JVM", ImmutableList.<String>of("GC"));
+        final long firstSampleSeconds = firstSampleTime.getMillis() / 1000;
+
+        for (int i = 0; i < 2; i++) {
+            final ByteArrayOutputStream rowOutput = new ByteArrayOutputStream();
+            meterUserApi.getUsage(rowOutput, OutputFormat.JSON, null, AggregationFunction.SUM, DateTimeZone.UTC, ImmutableList.<String>of("host-a"),
+                                  ImmutableList.<String>of(), metricsPerCategory, closedRangeEnd.minusHours(1), clock.getUTCNow(), new MeterTenantContext());
+            // The closed and live samples of the series are written as one object
+            final Map<String, String> samplesPerSeries = getSamplesPerSeries(rowOutput.toByteArray());
+            Assert.assertEquals(samplesPerSeries.size(), 1);
+            Assert.assertEquals(samplesPerSeries.get("host-a/JVM/GC"), String.format("%d,0,%d,1,%d,2,%d,3", firstSampleSeconds, firstSampleSeconds + 30,
+                                                                                      firstSampleSeconds + 60, firstSampleSeconds + 90));
+        }
+        // The closed part of the second query was served from the cache
+        Assert.assertEquals(usageResultCache.getStats().get("hitCount"), 1L);
+
+        final ByteArrayOutputStream columnarOutput = new ByteArrayOutputStream();
+        meterUserApi.getUsage(columnarOutput, OutputFormat.COLUMNAR_JSON, null, AggregationFunction.SUM, DateTimeZone.UTC, ImmutableList.<String>of("host-a"),
+                              ImmutableList.<String>of(), metricsPerCategory, closedRangeEnd.minusHours(1), clock.getUTCNow(), new MeterTenantContext());
+        final List<Map<String, Object>> series = objectMapper.readValue(columnarOutput.toByteArray(), new TypeReference<List<Map<String, Object>>>() {});
+        Assert.assertEquals(series.size(), 1);
+        final List<Number> times = (List<Number>) series.get(0).get("times");
+        final List<Number> values = (List<Number>) series.get(0).get("values");
+        Assert.assertEquals(times.size(), 4);
+        // The first live time is delta-encoded from the last closed one
+        Assert.assertEquals(times.get(0).longValue(), firstSampleSeconds);
+        for (int i = 1; i < 4; i++) {
+            Assert.assertEquals(times.get(i).intValue(), 30);
+        }
+        for (int i = 0; i < 4; i++) {
+            Assert.assertEquals(values.get(i).doubleValue(), (double) i);
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testIncrementsMixedWithRecordedSamples() throws Exception {
+        final MeterConfig config = createConfig(ImmutableMap.<String, String>of("org.killbill.billing.plugin.meter.timelines.counterTickLength", "10s"));
+        final DefaultMeterUserApi meterUserApi = createMeterUserApi(config);
+
+        for (int i = 1; i <= 3; i++) {
+            meterUserApi.incrementUsage("host-a", "Tomcat", "Requests", START_TIME.plusSeconds(i), callContext);
+        }
+        // Recorded in the same category before the tick is over
+        meterUserApi.recordUsage("host-a", ImmutableMap.<String, Map<String, Object>>of("Tomcat", ImmutableMap.<String, Object>of("Latency", 5)),
+                                 START_TIME.plusSeconds(5), callContext);
+        counterPreAggregator.recordTicks(START_TIME.plusSeconds(15));
+        Assert.assertEquals(counterPreAggregator.getTicksRecorded(), 1);
+
+        // The tick isn't ignored for being older than the recorded sample: it is stamped at the time of the latter
+        final Map<String, Collection<String>> metricsPerCategory = ImmutableMap.<String, Collection<String>>of("Tomcat", ImmutableList.<String>of("Requests", "Latency"));
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        meterUserApi.getUsage(output, OutputFormat.JSON, null, AggregationFunction.SUM, DateTimeZone.UTC, ImmutableList.<String>of("host-a"),
+                              ImmutableList.<String>of(), metricsPerCategory, START_TIME.minusHours(1), START_TIME.plusHours(1), new MeterTenantContext());
+        final Map<String, String> samplesPerSeries = getSamplesPerSeries(output.toByteArray());
+        final long sampleSeconds = START_TIME.plusSeconds(5).getMillis() / 1000;
+        Assert.assertEquals(samplesPerSeries.get("host-a/Tomcat/Latency"), sampleSeconds + ",5");
+        // The timelines of a category advance in parallel: the counter timeline starts with a zero for the recorded sample
+        Assert.assertEquals(samplesPerSeries.get("host-a/Tomcat/Requests"), sampleSeconds + ",0," + sampleSeconds + ",3");
+    }
+
+    private String getExpectedSamples(final int firstValue) {
+        final StringBuilder samples = new StringBuilder();
+        for (int i = 0; i < 3; i++) {
+            if (i > 0) {
+                samples.append(",");
+            }
+            samples.append(START_TIME.plusSeconds(30 * i).getMillis() / 1000).append(",").append(firstValue + i);
+        }
+        return samples.toString();
+    }
+
+    // Samples of each series, keyed by source/category/metric (one object per series is expected)
+    private Map<String, String> getSamplesPerSeries(final byte[] output) throws Exception {
+        final List<Map<String, String>> series = objectMapper.readValue(output, new TypeReference<List<Map<String, String>>>() {});
+        final Map<String, String> samplesPerSeries = new HashMap<String, String>();
+        for (final Map<String, String> oneSeries : series) {
+            final String key = oneSeries.get("sourceName") + "/" + oneSeries.get("eventCategory") + "/" + oneSeries.get("metric");
+            Assert.assertNull(samplesPerSeries.put(key, oneSeries.get("samples")), key);
+        }
+        return samplesPerSeries;
+    }
+
+    private MeterConfig createConfig(final Map<String, String> properties) {
+        final Properties allProperties = new Properties();
+        allProperties.setProperty("org.killbill.billing.plugin.meter.timelines.spoolDir", basePath.getAbsolutePath());
+        allProperties.setProperty("org.killbill.billing.plugin.meter.timelines.usageCacheMaxBytes", "0");
+        allProperties.putAll(properties);
+        return new ConfigurationObjectFactory(allProperties).build(MeterConfig.class);
+    }
+
+    private DefaultMeterUserApi createMeterUserApi(final MeterConfig config) throws Exception {
+        return createMeterUserApi(config, new UsageResultCache(config));
+    }
+
+    private DefaultMeterUserApi createMeterUserApi(final MeterConfig config, final UsageResultCache usageResultCache) throws Exception {
+        final MockTimelineDao dao = new MockTimelineDao();
+        final MeterMetrics metrics = new MeterMetrics();
+        final TimelineEventHandler timelineEventHandler = new TimelineEventHandler(config, dao, new DefaultTimelineCoder(), new DefaultSampleCoder(),
+                                                                                   new BackgroundDBChunkWriter(dao, config, metrics), new MockFileBackedBuffer(), metrics);
+        final SampleForwarder sampleForwarder = new SampleForwarder(null, timelineEventHandler, null, config) {
+            @Override
+            public boolean isRemote(final UUID tenantId, final String source) {
+                return false;
+            }
+        };
+        counterPreAggregator = new CounterPreAggregator(timelineEventHandler, config, clock);
+        return new DefaultMeterUserApi(timelineEventHandler, counterPreAggregator, dao, metrics,
+                                       usageResultCache, sampleForwarder, clock);
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.api.user;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.killbill.billing.plugin.meter.MeterConfig;
+import org.killbill.billing.plugin.meter.MeterTestSuiteNoDB;
+import org.killbill.billing.plugin.meter.api.AggregationFunction;
+import org.killbill.billing.plugin.meter.api.OutputFormat;
+import org.killbill.billing.plugin.meter.api.TimeAggregationMode;
+import org.skife.config.ConfigurationObjectFactory;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+public class TestUsageResultCache extends MeterTestSuiteNoDB {
+
+    private static final UUID TENANT_ID = UUID.randomUUID();
+
+    @Test(groups = "fast")
+    public void testClosedRangeEnd() throws Exception {
+        // Default delay: 60m timeline length, 1m max write delay, 1s check interval
+        final UsageResultCache cache = createCache(1024 * 1024);
+        final DateTime now = new DateTime(2014, 3, 12, 15, 30, 10, DateTimeZone.UTC);
+
+        // Aligned at least on hours
+        Assert.assertEquals(cache.getClosedRangeEnd(null, DateTimeZone.UTC, now), new DateTime(2014, 3, 12, 14, 0, DateTimeZone.UTC));
+        Assert.assertEquals(cache.getClosedRangeEnd(TimeAggregationMode.MINUTES, DateTimeZone.UTC, now), new DateTime(2014, 3, 12, 14, 0, DateTimeZone.UTC));
+        Assert.assertEquals(cache.getClosedRangeEnd(TimeAggregationMode.HOURS, DateTimeZone.UTC, now.minusMinutes(30)), new DateTime(2014, 3, 12, 13, 0, DateTimeZone.UTC));
+
+        // Aligned on the buckets of the query time zone
+        final DateTimeZone losAngeles = DateTimeZone.forID("America/Los_Angeles");
+        Assert.assertEquals(cache.getClosedRangeEnd(TimeAggregationMode.DAYS, losAngeles, now), new DateTime(2014, 3, 12, 0, 0, losAngeles).toDateTime(DateTimeZone.UTC));
+        Assert.assertEquals(cache.getClosedRangeEnd(TimeAggregationMode.MONTHS, losAngeles, now), new DateTime(2014, 3, 1, 0, 0, losAngeles).toDateTime(DateTimeZone.UTC));
+    }
+
+    @Test(groups = "fast")
+    public void testClosedRangeEndWithCounterTicks() throws Exception {
+        final Properties properties = new Properties();
+        properties.setProperty("org.killbill.billing.plugin.meter.timelines.usageCacheMaxBytes", String.valueOf(1024 * 1024));
+        properties.setProperty("org.killbill.billing.plugin.meter.timelines.counterTickLength", "30m");
+        final UsageResultCache cache = new UsageResultCache(new ConfigurationObjectFactory(properties).build(MeterConfig.class));
+        final DateTime now = new DateTime(2014, 3, 12, 15, 30, 10, DateTimeZone.UTC);
+
+        // Ticks are recorded up to a tick length after their start: 13:59:09 instead of 14:29:09
+        Assert.assertEquals(cache.getClosedRangeEnd(null, DateTimeZone.UTC, now), new DateTime(2014, 3, 12, 13, 0, DateTimeZone.UTC));
+    }
+
+    @Test(groups = "fast")
+    public void testBucketStart() throws Exception {
+        // Default query starts computed a few milliseconds apart map to the same (cacheable) start
+        final DateTime defaultFrom = new DateTime(2014, 3, 12, 15, 30, 10, DateTimeZone.UTC);
+        Assert.assertEquals(UsageResultCache.getBucketStart(null, DateTimeZone.UTC, defaultFrom), new DateTime(2014, 3, 12, 15, 0, DateTimeZone.UTC));
+        Assert.assertEquals(UsageResultCache.getBucketStart(null, DateTimeZone.UTC, defaultFrom.plusMillis(7)),
+                            UsageResultCache.getBucketStart(null, DateTimeZone.UTC, defaultFrom));
+
+        final DateTimeZone losAngeles = DateTimeZone.forID("America/Los_Angeles");
+        Assert.assertEquals(UsageResultCache.getBucketStart(TimeAggregationMode.DAYS, losAngeles, defaultFrom), new DateTime(2014, 3, 12, 0, 0, losAngeles).toDateTime(DateTimeZone.UTC));
+    }
+
+    @Test(groups = "fast")
+    public void testKeys() throws Exception {
+        final Map<String, Collection<String>> metrics = ImmutableMap.<String, Collection<String>>of("cpu", ImmutableList.<String>of("user", "system"),
+                                                                                                     "memory", ImmutableList.<String>of("rss"));
+        final Map<String, Collection<String>> sameMetrics = ImmutableMap.<String, Collection<String>>of("memory", ImmutableList.<String>of("rss"),
+                                                                                                         "cpu", ImmutableList.<String>of("system", "user"));
+        final DateTime from = new DateTime(2014, 1, 1, 0, 0, DateTimeZone.UTC);
+        final DateTime to = new DateTime(2014, 2, 1, 0, 0, DateTimeZone.UTC);
+
+        final UsageResultCache.Key key = createKey(TENANT_ID, AggregationFunction.SUM, metrics, from, to);
+        Assert.assertEquals(createKey(TENANT_ID, AggregationFunction.SUM, sameMetrics, from.toDateTime(DateTimeZone.forID("Europe/Paris")), to), key);
+        Assert.assertEquals(createKey(TENANT_ID, AggregationFunction.SUM, sameMetrics, from, to).hashCode(), key.hashCode());
+
+        Assert.assertNotEquals(createKey(UUID.randomUUID(), AggregationFunction.SUM, metrics, from, to), key);
+        Assert.assertNotEquals(createKey(null, AggregationFunction.SUM, metrics, from, to), key);
+        Assert.assertNotEquals(createKey(TENANT_ID, AggregationFunction.MAX, metrics, from, to), key);
+        Assert.assertNotEquals(createKey(TENANT_ID, AggregationFunction.SUM, metrics, from, to.plusDays(1)), key);
+    }
+
+    @Test(groups = "fast")
+    public void testGetAndPut() throws Exception {
+        final UsageResultCache cache = createCache(16 * 1024);
+        final UsageResultCache.Key key = createKey(TENANT_ID, AggregationFunction.SUM, ImmutableMap.<String, Collection<String>>of(), null, null);
+        Assert.assertNull(cache.getIfPresent(key));
+
+        cache.put(key, new byte[]{1, 2, 3});
+        Assert.assertEquals(cache.getIfPresent(key), new byte[]{1, 2, 3});
+
+        // Bigger than a sixteenth of the cache
+        final UsageResultCache.Key otherKey = createKey(TENANT_ID, AggregationFunction.MAX, ImmutableMap.<String, Collection<String>>of(), null, null);
+        cache.put(otherKey, new byte[2048]);
+        Assert.assertNull(cache.getIfPresent(otherKey));
+
+        final Map<String, Object> stats = cache.getStats();
+        Assert.assertEquals(stats.get("hitCount"), 1L);
+        Assert.assertEquals(stats.get("missCount"), 2L);
+        Assert.assertEquals(stats.get("entries"), 1L);
+
+        cache.invalidateAll();
+        Assert.assertNull(cache.getIfPresent(key));
+        Assert.assertEquals(cache.getStats().get("weightBytes"), 0L);
+    }
+
+    @Test(groups = "fast")
+    public void testDisabledCache() throws Exception {
+        final UsageResultCache cache = createCache(0);
+        Assert.assertFalse(cache.isEnabled());
+
+        final UsageResultCache.Key key = createKey(TENANT_ID, AggregationFunction.SUM, ImmutableMap.<String, Collection<String>>of(), null, null);
+        cache.put(key, new byte[]{1});
+        Assert.assertNull(cache.getIfPresent(key));
+    }
+
+    @Test(groups = "fast")
+    public void testCachingOutputStream() throws Exception {
+        final UsageResultCache cache = createCache(16 * 1024);
+
+        final ByteArrayOutputStream delegate = new ByteArrayOutputStream();
+        final UsageResultCache.CachingOutputStream smallResult = cache.createCachingOutputStream(delegate);
+        smallResult.write(new byte[]{1, 2, 3}, 0, 3);
+        smallResult.write(4);
+        Assert.assertEquals(smallResult.getBytes(), new byte[]{1, 2, 3, 4});
+        Assert.assertEquals(delegate.toByteArray(), new byte[]{1, 2, 3, 4});
+
+        // Too big to be cached, but still written through
+        final UsageResultCache.CachingOutputStream bigResult = cache.createCachingOutputStream(delegate);
+        bigResult.write(new byte[2048], 0, 2048);
+        Assert.assertNull(bigResult.getBytes());
+        Assert.assertEquals(delegate.size(), 4 + 2048);
+
+        // Too big to be buffered
+        final UsageResultCache.CachingOutputStream buffer = cache.createCachingOutputStream(null);
+        buffer.write(new byte[1024], 0, 1024);
+        try {
+            buffer.write(new byte[1024], 0, 1024);
+            Assert.fail();
+        } catch (UsageResultCache.ResultTooLargeException e) {
+            Assert.assertNull(buffer.getBytes());
+        }
+    }
+
+    private UsageResultCache createCache(final long maxBytes) {
+        final Properties properties = new Properties();
+        properties.setProperty("org.killbill.billing.plugin.meter.timelines.usageCacheMaxBytes", String.valueOf(maxBytes));
+        final MeterConfig config = new ConfigurationObjectFactory(properties).build(MeterConfig.class);
+        return new UsageResultCache(config);
+    }
+
+    private UsageResultCache.Key createKey(final UUID tenantId, final AggregationFunction aggregationFunction, final Map<String, Collection<String>> metricsPerCategory,
+                                           final DateTime from, final DateTime to) {
+        return new UsageResultCache.Key(tenantId, OutputFormat.JSON, TimeAggregationMode.DAYS, aggregationFunction, DateTimeZone.UTC,
+                                        ImmutableList.<String>of("host1", "host2"), metricsPerCategory, from, to, null);
+    }
+}
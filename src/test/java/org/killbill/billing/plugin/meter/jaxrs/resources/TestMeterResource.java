@@ -0,0 +1,156 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.jaxrs.resources;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.UUID;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+import org.killbill.billing.plugin.meter.MeterConfig;
+import org.killbill.billing.plugin.meter.MeterTestSuiteNoDB;
+import org.killbill.billing.plugin.meter.api.OutputFormat;
+import org.killbill.billing.plugin.meter.timeline.cluster.ForwardedSamples;
+import org.killbill.billing.plugin.meter.timeline.cluster.SampleForwarder;
+import org.skife.config.ConfigurationObjectFactory;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+
+public class TestMeterResource extends MeterTestSuiteNoDB {
+
+    private static final String SECRET = "s3cr3t";
+
+    private final List<ForwardedSamples> recordedSamples = new ArrayList<ForwardedSamples>();
+
+    @Test(groups = "fast")
+    public void testForwardedSamplesWithoutSecretHeader() throws Exception {
+        checkForbidden(createResource(SECRET, true), null);
+    }
+
+    @Test(groups = "fast")
+    public void testForwardedSamplesWithWrongSecret() throws Exception {
+        final MeterResource resource = createResource(SECRET, true);
+        checkForbidden(resource, "");
+        checkForbidden(resource, "secret");
+        checkForbidden(resource, SECRET + SECRET);
+    }
+
+    @Test(groups = "fast")
+    public void testForwardedSamplesWithoutConfiguredSecret() throws Exception {
+        final MeterResource resource = createResource(null, true);
+        checkForbidden(resource, null);
+        checkForbidden(resource, "");
+        checkForbidden(resource, SECRET);
+
+        final MeterResource resourceWithEmptySecret = createResource("", true);
+        checkForbidden(resourceWithEmptySecret, null);
+        checkForbidden(resourceWithEmptySecret, "");
+    }
+
+    @Test(groups = "fast")
+    public void testForwardedSamplesWithClusterDisabled() throws Exception {
+        try {
+            createResource(SECRET, false).recordForwardedSamples(SECRET, createBody());
+            Assert.fail();
+        } catch (WebApplicationException e) {
+            Assert.assertEquals(e.getResponse().getStatus(), Response.Status.NOT_FOUND.getStatusCode());
+        }
+        Assert.assertTrue(recordedSamples.isEmpty());
+    }
+
+    @Test(groups = "fast")
+    public void testForwardedSamplesWithSecret() throws Exception {
+        final Response response = createResource(SECRET, true).recordForwardedSamples(SECRET, createBody());
+        Assert.assertEquals(response.getStatus(), Response.Status.OK.getStatusCode());
+        Assert.assertEquals(recordedSamples.size(), 1);
+        Assert.assertEquals(recordedSamples.get(0).getSource(), "source");
+        Assert.assertEquals(recordedSamples.get(0).getCategory(), "JVM");
+    }
+
+    @Test(groups = "fast")
+    public void testOutputFormatNegotiation() throws Exception {
+        final MediaType smile = MeterResource.APPLICATION_SMILE_TYPE;
+        final MediaType json = MediaType.APPLICATION_JSON_TYPE;
+
+        // Json unless Smile is preferred
+        Assert.assertEquals(MeterResource.getOutputFormat(ImmutableList.<MediaType>of(), ""), OutputFormat.JSON);
+        Assert.assertEquals(MeterResource.getOutputFormat(ImmutableList.<MediaType>of(MediaType.WILDCARD_TYPE), ""), OutputFormat.JSON);
+        Assert.assertEquals(MeterResource.getOutputFormat(ImmutableList.<MediaType>of(json), ""), OutputFormat.JSON);
+        Assert.assertEquals(MeterResource.getOutputFormat(ImmutableList.<MediaType>of(json, smile), ""), OutputFormat.JSON);
+        Assert.assertEquals(MeterResource.getOutputFormat(ImmutableList.<MediaType>of(MediaType.WILDCARD_TYPE, smile), ""), OutputFormat.JSON);
+        Assert.assertEquals(MeterResource.getOutputFormat(ImmutableList.<MediaType>of(smile), ""), OutputFormat.SMILE);
+        Assert.assertEquals(MeterResource.getOutputFormat(ImmutableList.<MediaType>of(smile, json), ""), OutputFormat.SMILE);
+
+        // The layout is independent of the encoding
+        Assert.assertEquals(MeterResource.getOutputFormat(ImmutableList.<MediaType>of(json), MeterResource.LAYOUT_COLUMNAR), OutputFormat.COLUMNAR_JSON);
+        Assert.assertEquals(MeterResource.getOutputFormat(ImmutableList.<MediaType>of(smile, json), MeterResource.LAYOUT_COLUMNAR), OutputFormat.COLUMNAR_SMILE);
+        try {
+            MeterResource.getOutputFormat(ImmutableList.<MediaType>of(json), "rows");
+            Assert.fail();
+        } catch (WebApplicationException e) {
+            Assert.assertEquals(e.getResponse().getStatus(), Response.Status.BAD_REQUEST.getStatusCode());
+        }
+    }
+
+    private void checkForbidden(final MeterResource resource, final String secret) throws Exception {
+        try {
+            resource.recordForwardedSamples(secret, createBody());
+            Assert.fail();
+        } catch (WebApplicationException e) {
+            Assert.assertEquals(e.getResponse().getStatus(), Response.Status.FORBIDDEN.getStatusCode());
+        }
+        Assert.assertTrue(recordedSamples.isEmpty());
+    }
+
+    private InputStream createBody() {
+        final String body = "[{\"tenantId\":\"" + UUID.randomUUID() + "\",\"source\":\"source\",\"category\":\"JVM\"," +
+                            "\"timestamp\":1000,\"samples\":{\"GC\":12}}]";
+        return new ByteArrayInputStream(body.getBytes(Charsets.UTF_8));
+    }
+
+    private MeterResource createResource(final String clusterSecret, final boolean clusterEnabled) {
+        recordedSamples.clear();
+
+        final Properties properties = new Properties();
+        if (clusterSecret != null) {
+            properties.setProperty("org.killbill.billing.plugin.meter.timelines.clusterSecret", clusterSecret);
+        }
+        final MeterConfig config = new ConfigurationObjectFactory(properties).build(MeterConfig.class);
+        final SampleForwarder sampleForwarder = new SampleForwarder(null, null, null, config) {
+            @Override
+            public boolean isEnabled() {
+                return clusterEnabled;
+            }
+
+            @Override
+            public void recordForwardedSamples(final List<ForwardedSamples> forwardedSamples) {
+                recordedSamples.addAll(forwardedSamples);
+            }
+        };
+        return new MeterResource(null, null, sampleForwarder, config, null);
+    }
+}
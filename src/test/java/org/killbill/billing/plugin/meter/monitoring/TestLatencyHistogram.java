@@ -0,0 +1,93 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.monitoring;
+
+import org.killbill.billing.plugin.meter.MeterTestSuiteNoDB;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestLatencyHistogram extends MeterTestSuiteNoDB {
+
+    @Test(groups = "fast")
+    public void testBucketBoundaries() throws Exception {
+        // Small values are recorded exactly
+        for (int i = 0; i < 16; i++) {
+            Assert.assertEquals(LatencyHistogram.bucketIndex(i), i);
+            Assert.assertEquals(LatencyHistogram.highestEquivalentValue(i), i);
+        }
+
+        // Buckets are contiguous and the relative error is bounded
+        for (long value = 16; value < 1000000; value += 7) {
+            final int index = LatencyHistogram.bucketIndex(value);
+            final long highest = LatencyHistogram.highestEquivalentValue(index);
+            Assert.assertTrue(highest >= value);
+            Assert.assertTrue(highest - value <= value / 16);
+            Assert.assertEquals(LatencyHistogram.bucketIndex(highest), index);
+            Assert.assertEquals(LatencyHistogram.bucketIndex(highest + 1), index + 1);
+        }
+
+        // Largest values don't overflow the bucket array
+        Assert.assertEquals(LatencyHistogram.highestEquivalentValue(LatencyHistogram.bucketIndex(Long.MAX_VALUE)), Long.MAX_VALUE);
+    }
+
+    @Test(groups = "fast")
+    public void testPercentiles() throws Exception {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        Assert.assertEquals(histogram.getValueAtPercentile(50.0), 0);
+
+        for (long i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000);
+        }
+        histogram.record(-5);
+
+        Assert.assertEquals(histogram.getCount(), 1001);
+        Assert.assertEquals(histogram.getMaxNanos(), 1000000);
+        assertWithinRelativeError(histogram.getValueAtPercentile(50.0), 500000);
+        assertWithinRelativeError(histogram.getValueAtPercentile(90.0), 900000);
+        Assert.assertEquals(histogram.getValueAtPercentile(100.0), 1000000);
+
+        histogram.reset();
+        Assert.assertEquals(histogram.getCount(), 0);
+        Assert.assertEquals(histogram.getMaxNanos(), 0);
+    }
+
+    @Test(groups = "fast")
+    public void testStripedCounter() throws Exception {
+        final StripedCounter counter = new StripedCounter();
+        final Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 10000; j++) {
+                        counter.increment();
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        Assert.assertEquals(counter.get(), 40000);
+    }
+
+    private void assertWithinRelativeError(final long actual, final long expected) {
+        Assert.assertTrue(Math.abs(actual - expected) <= expected / 16, actual + " is too far from " + expected);
+    }
+}
@@ -18,9 +18,9 @@
 package org.killbill.billing.plugin.meter.timeline;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 import java.util.concurrent.atomic.AtomicReference;
 
 import javax.annotation.Nullable;
@@ -39,13 +39,13 @@ import org.skife.jdbi.v2.exceptions.UnableToObtainConnectionException;
 import com.google.common.collect.BiMap;
 import com.google.common.collect.HashBiMap;
 
-public final class MockTimelineDao implements TimelineDao {
+public class MockTimelineDao implements TimelineDao {
 
     private final BiMap<Integer, String> hosts = HashBiMap.create();
     private final BiMap<Integer, CategoryRecordIdAndMetric> sampleKinds = HashBiMap.create();
     private final BiMap<Integer, String> eventCategories = HashBiMap.create();
     private final BiMap<Integer, TimelineChunk> timelineChunks = HashBiMap.create();
-    private final Map<Integer, Map<Integer, List<TimelineChunk>>> samplesPerHostAndSampleKind = new HashMap<Integer, Map<Integer, List<TimelineChunk>>>();
+    private final Map<Integer, Map<Integer, List<TimelineChunk>>> samplesPerHostAndSampleKind = new TreeMap<Integer, Map<Integer, List<TimelineChunk>>>();
     private final AtomicReference<StartTimes> lastStartTimes = new AtomicReference<StartTimes>();
 
     @Override
@@ -156,7 +156,7 @@ public final class MockTimelineDao implements TimelineDao {
         synchronized (samplesPerHostAndSampleKind) {
             Map<Integer, List<TimelineChunk>> samplesPerSampleKind = samplesPerHostAndSampleKind.get(chunk.getSourceId());
             if (samplesPerSampleKind == null) {
-                samplesPerSampleKind = new HashMap<Integer, List<TimelineChunk>>();
+                samplesPerSampleKind = new TreeMap<Integer, List<TimelineChunk>>();
             }
 
             List<TimelineChunk> chunkAndTimes = samplesPerSampleKind.get(chunk.getMetricId());
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.killbill.billing.plugin.meter.timeline;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.killbill.billing.plugin.meter.MeterConfig;
+import org.killbill.billing.plugin.meter.MeterTestSuiteNoDB;
+import org.killbill.billing.plugin.meter.monitoring.MeterMetrics;
+import org.killbill.billing.plugin.meter.timeline.chunks.TimelineChunk;
+import org.killbill.billing.plugin.meter.timeline.codec.DefaultSampleCoder;
+import org.killbill.billing.plugin.meter.timeline.codec.SampleCoder;
+import org.killbill.billing.plugin.meter.timeline.samples.SampleOpcode;
+import org.killbill.billing.plugin.meter.timeline.samples.ScalarSample;
+import org.killbill.billing.plugin.meter.timeline.sources.SourceSamplesForTimestamp;
+import org.killbill.billing.plugin.meter.timeline.times.DefaultTimelineCoder;
+import org.killbill.billing.plugin.meter.timeline.times.TimelineCoder;
+import org.killbill.billing.util.callcontext.CallContext;
+import org.skife.config.ConfigurationObjectFactory;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableList;
+
+public class TestBackgroundDBChunkWriter extends MeterTestSuiteNoDB {
+
+    private static final int EVENT_CATEGORY_ID = 123;
+    private static final List<Integer> METRIC_IDS = ImmutableList.<Integer>of(1, 2, 3);
+    private static final TimelineCoder timelineCoder = new DefaultTimelineCoder();
+    private static final SampleCoder sampleCoder = new DefaultSampleCoder();
+
+    private final MeterMetrics metrics = new MeterMetrics();
+
+    @Test(groups = "fast")
+    public void testTenantOverQuotaWritesItsOwnChunks() throws Exception {
+        final List<UUID> writtenTenantIds = new ArrayList<UUID>();
+        final MockTimelineDao dao = new MockTimelineDao() {
+            @Override
+            public void bulkInsertTimelineChunks(final List<TimelineChunk> timelineChunkList, final CallContext context) {
+                writtenTenantIds.add(context.getTenantId());
+                super.bulkInsertTimelineChunks(timelineChunkList, context);
+            }
+        };
+
+        final Properties properties = new Properties();
+        properties.setProperty("org.killbill.billing.plugin.meter.timelines.tenantMaxPendingChunks", "4");
+        final MeterConfig config = new ConfigurationObjectFactory(properties).build(MeterConfig.class);
+        final BackgroundDBChunkWriter writer = new BackgroundDBChunkWriter(dao, config, metrics);
+
+        final UUID noisyTenantId = UUID.randomUUID();
+        final UUID quietTenantId = UUID.randomUUID();
+        final DateTime startTime = new DateTime(DateTimeZone.UTC);
+        final TimelineSourceEventAccumulator noisyAccumulator = new TimelineSourceEventAccumulator(dao, timelineCoder, sampleCoder, writer, 1, EVENT_CATEGORY_ID,
+                                                                                                   noisyTenantId, startTime, Integer.MAX_VALUE, metrics);
+        final TimelineSourceEventAccumulator quietAccumulator = new TimelineSourceEventAccumulator(dao, timelineCoder, sampleCoder, writer, 2, EVENT_CATEGORY_ID,
+                                                                                                   quietTenantId, startTime, Integer.MAX_VALUE, metrics);
+
+        // 3 chunks per map: the first map of each tenant fits in the queue
+        sendData(noisyAccumulator, 1, startTime);
+        noisyAccumulator.extractAndQueueTimelineChunks();
+        sendData(quietAccumulator, 2, startTime);
+        quietAccumulator.extractAndQueueTimelineChunks();
+        Assert.assertEquals(writer.getPendingChunkMapsAdded(), 2);
+        Assert.assertEquals(writer.getTenantThrottledChunkMapsWritten(), 0);
+        Assert.assertEquals(writtenTenantIds.size(), 0);
+
+        // The second map of the noisy tenant would exceed its quota: it is written right away, in its name
+        sendData(noisyAccumulator, 1, startTime.plusMinutes(1));
+        noisyAccumulator.extractAndQueueTimelineChunks();
+        Assert.assertEquals(writer.getPendingChunkMapsAdded(), 2);
+        Assert.assertEquals(writer.getTenantThrottledChunkMapsWritten(), 1);
+        // Throttled writes aren't foreground writes
+        Assert.assertEquals(writer.getForegroundChunkMapsWritten(), 0);
+        Assert.assertEquals(writer.getForegroundChunksWritten(), 0);
+        Assert.assertEquals(writtenTenantIds.size(), 1);
+        Assert.assertEquals(writtenTenantIds.get(0), noisyTenantId);
+
+        // The written map isn't returned from memory anymore, the queued one still is
+        int inMemoryChunksWithSamples = 0;
+        for (final TimelineChunk chunk : noisyAccumulator.getInMemoryTimelineChunks(METRIC_IDS)) {
+            if (chunk.getSampleCount() > 0) {
+                inMemoryChunksWithSamples++;
+            }
+        }
+        Assert.assertEquals(inMemoryChunksWithSamples, 3);
+    }
+
+    private void sendData(final TimelineSourceEventAccumulator accumulator, final int sourceId, final DateTime startTime) {
+        final Map<Integer, ScalarSample> samples = new HashMap<Integer, ScalarSample>();
+        for (final Integer metricId : METRIC_IDS) {
+            samples.put(metricId, new ScalarSample<Long>(SampleOpcode.LONG, 12L + metricId));
+        }
+        accumulator.addSourceSamples(new SourceSamplesForTimestamp(sourceId, "JVM", startTime, samples));
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.timeline;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.killbill.billing.plugin.meter.MeterConfig;
+import org.killbill.billing.plugin.meter.MeterTestSuiteNoDB;
+import org.killbill.billing.plugin.meter.monitoring.MeterMetrics;
+import org.killbill.billing.plugin.meter.timeline.codec.DefaultSampleCoder;
+import org.killbill.billing.plugin.meter.timeline.persistent.TimelineDao;
+import org.killbill.billing.plugin.meter.timeline.times.DefaultTimelineCoder;
+import org.killbill.billing.util.callcontext.CallContext;
+import org.skife.config.ConfigurationObjectFactory;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableList;
+
+public class TestCounterPreAggregator extends MeterTestSuiteNoDB {
+
+    private static final String SOURCE = "source";
+    private static final String CATEGORY = "category";
+
+    private final List<String> recorded = new ArrayList<String>();
+
+    private CounterPreAggregator counterPreAggregator;
+
+    @BeforeMethod(alwaysRun = true)
+    public void setUp() throws Exception {
+        recorded.clear();
+        final MeterConfig config = new ConfigurationObjectFactory(System.getProperties()).build(MeterConfig.class);
+        final MeterMetrics metrics = new MeterMetrics();
+        final TimelineDao dao = new MockTimelineDao();
+        final TimelineEventHandler timelineEventHandler = new TimelineEventHandler(config, dao, new DefaultTimelineCoder(), new DefaultSampleCoder(),
+                                                                                   new BackgroundDBChunkWriter(dao, config, metrics), new MockFileBackedBuffer(), metrics) {
+            @Override
+            public void recordPreAggregated(final String sourceName, final String eventType, final DateTime eventTimestamp, final Map<String, Object> samples, final CallContext context) {
+                recorded.add(sourceName + "/" + eventType + "@" + eventTimestamp.getMillis() / 1000 + "=" + samples.get("a") + "," + samples.get("b"));
+            }
+        };
+        counterPreAggregator = new CounterPreAggregator(timelineEventHandler, 10000, clock);
+    }
+
+    @Test(groups = "fast")
+    public void testSumsPerTick() throws Exception {
+        final DateTime start = new DateTime(2014, 1, 1, 0, 0, 0, DateTimeZone.UTC);
+        for (int i = 0; i < 1000; i++) {
+            // 100 increments per second
+            counterPreAggregator.increment(SOURCE, CATEGORY, ImmutableList.<String>of("a"), start.plusMillis(i * 10), callContext);
+        }
+        counterPreAggregator.increment(SOURCE, CATEGORY, ImmutableList.<String>of("a", "b"), start.plusSeconds(12), callContext);
+        Assert.assertEquals(counterPreAggregator.getIncrementsAggregated(), 1001);
+
+        // Nothing is over yet
+        counterPreAggregator.recordTicks(start.plusSeconds(9));
+        Assert.assertEquals(recorded.size(), 0);
+
+        counterPreAggregator.recordTicks(start.plusSeconds(15));
+        Assert.assertEquals(recorded, ImmutableList.<String>of("source/category@" + start.getMillis() / 1000 + "=1000,null"));
+
+        counterPreAggregator.recordAllTicks();
+        Assert.assertEquals(recorded.size(), 2);
+        Assert.assertEquals(recorded.get(1), "source/category@" + start.plusSeconds(10).getMillis() / 1000 + "=1,1");
+        Assert.assertEquals(counterPreAggregator.getTicksRecorded(), 2);
+    }
+
+    @Test(groups = "fast")
+    public void testLateIncrementsAreNotLost() throws Exception {
+        final DateTime start = new DateTime(2014, 1, 1, 0, 0, 0, DateTimeZone.UTC);
+        counterPreAggregator.increment(SOURCE, CATEGORY, ImmutableList.<String>of("a"), start, callContext);
+        counterPreAggregator.recordTicks(start.plusSeconds(10));
+        Assert.assertEquals(recorded.size(), 1);
+
+        // Belongs to the tick already recorded
+        counterPreAggregator.increment(SOURCE, CATEGORY, ImmutableList.<String>of("a"), start.plusSeconds(5), callContext);
+        counterPreAggregator.increment(SOURCE, CATEGORY, ImmutableList.<String>of("a"), start.plusSeconds(11), callContext);
+        Assert.assertEquals(counterPreAggregator.getLateIncrements(), 1);
+
+        counterPreAggregator.recordTicks(start.plusSeconds(20));
+        Assert.assertEquals(recorded.size(), 2);
+        Assert.assertEquals(recorded.get(1), "source/category@" + start.plusSeconds(10).getMillis() / 1000 + "=2,null");
+    }
+}
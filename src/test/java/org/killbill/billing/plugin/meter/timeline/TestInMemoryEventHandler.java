@@ -25,6 +25,7 @@ import org.joda.time.DateTime;
 import org.joda.time.DateTimeZone;
 import org.killbill.billing.plugin.meter.MeterConfig;
 import org.killbill.billing.plugin.meter.MeterTestSuiteNoDB;
+import org.killbill.billing.plugin.meter.monitoring.MeterMetrics;
 import org.killbill.billing.plugin.meter.timeline.codec.DefaultSampleCoder;
 import org.killbill.billing.plugin.meter.timeline.codec.SampleCoder;
 import org.killbill.billing.plugin.meter.timeline.persistent.FileBackedBuffer;
@@ -50,6 +51,7 @@ public class TestInMemoryEventHandler extends MeterTestSuiteNoDB {
     private static final TimelineCoder timelineCoder = new DefaultTimelineCoder();
     private static final SampleCoder sampleCoder = new DefaultSampleCoder();
 
+    private final MeterMetrics metrics = new MeterMetrics();
     private final TimelineDao dao = new MockTimelineDao();
     private TimelineEventHandler timelineEventHandler;
     private int eventTypeId = 0;
@@ -59,8 +61,8 @@ public class TestInMemoryEventHandler extends MeterTestSuiteNoDB {
         Assert.assertTrue(basePath.mkdir());
         System.setProperty("org.killbill.billing.plugin.meter.timelines.spoolDir", basePath.getAbsolutePath());
         final MeterConfig config = new ConfigurationObjectFactory(System.getProperties()).build(MeterConfig.class);
-        timelineEventHandler = new TimelineEventHandler(config, dao, timelineCoder, sampleCoder, new BackgroundDBChunkWriter(dao, config),
-                                                        new FileBackedBuffer(config.getSpoolDir(), "TimelineEventHandler", 1024 * 1024, 10));
+        timelineEventHandler = new TimelineEventHandler(config, dao, timelineCoder, sampleCoder, new BackgroundDBChunkWriter(dao, config, metrics),
+                                                        new FileBackedBuffer(config.getSpoolDir(), "TimelineEventHandler", 1024 * 1024, 10), metrics);
 
         dao.getOrAddSource(HOST_UUID.toString(), callContext);
         eventTypeId = dao.getOrAddEventCategory(EVENT_TYPE, callContext);
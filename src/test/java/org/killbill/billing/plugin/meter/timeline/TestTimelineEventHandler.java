@@ -20,11 +20,16 @@ package org.killbill.billing.plugin.meter.timeline;
 import java.io.File;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.UUID;
 
 import org.joda.time.DateTime;
+import org.killbill.billing.plugin.meter.MeterCallContext;
 import org.killbill.billing.plugin.meter.MeterConfig;
+import org.killbill.billing.plugin.meter.MeterTenantContext;
 import org.killbill.billing.plugin.meter.MeterTestSuiteNoDB;
+import org.killbill.billing.plugin.meter.monitoring.MeterMetrics;
 import org.killbill.billing.plugin.meter.timeline.codec.DefaultSampleCoder;
 import org.killbill.billing.plugin.meter.timeline.codec.SampleCoder;
 import org.killbill.billing.plugin.meter.timeline.persistent.TimelineDao;
@@ -32,10 +37,12 @@ import org.killbill.billing.plugin.meter.timeline.samples.ScalarSample;
 import org.killbill.billing.plugin.meter.timeline.sources.SourceSamplesForTimestamp;
 import org.killbill.billing.plugin.meter.timeline.times.DefaultTimelineCoder;
 import org.killbill.billing.plugin.meter.timeline.times.TimelineCoder;
+import org.killbill.billing.util.callcontext.CallContext;
 import org.skife.config.ConfigurationObjectFactory;
 import org.testng.Assert;
 import org.testng.annotations.Test;
 
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 
 public class TestTimelineEventHandler extends MeterTestSuiteNoDB {
@@ -45,6 +52,7 @@ public class TestTimelineEventHandler extends MeterTestSuiteNoDB {
     private static final TimelineCoder timelineCoder = new DefaultTimelineCoder();
     private static final SampleCoder sampleCoder = new DefaultSampleCoder();
 
+    private final MeterMetrics metrics = new MeterMetrics();
     private final TimelineDao dao = new MockTimelineDao();
 
     @Test(groups = "fast")
@@ -60,7 +68,7 @@ public class TestTimelineEventHandler extends MeterTestSuiteNoDB {
         final int long2longId = dao.getOrAddMetric(eventTypeId, "long2long", callContext);
         final int hostId = 1;
         final TimelineEventHandler handler = new TimelineEventHandler(config, dao, timelineCoder, sampleCoder,
-                                                                      new BackgroundDBChunkWriter(dao, config), new MockFileBackedBuffer());
+                                                                      new BackgroundDBChunkWriter(dao, config, metrics), new MockFileBackedBuffer(), metrics);
 
         // Test downsizing of values
         final Map<String, Object> event = ImmutableMap.<String, Object>of(
@@ -107,7 +115,7 @@ public class TestTimelineEventHandler extends MeterTestSuiteNoDB {
     public void testPurgeAccumulators() throws Exception {
         System.setProperty("org.killbill.billing.plugin.meter.timelines.spoolDir", basePath.getAbsolutePath());
         final MeterConfig config = new ConfigurationObjectFactory(System.getProperties()).build(MeterConfig.class);
-        final TimelineEventHandler handler = new TimelineEventHandler(config, dao, timelineCoder, sampleCoder, new BackgroundDBChunkWriter(dao, config), new MockFileBackedBuffer());
+        final TimelineEventHandler handler = new TimelineEventHandler(config, dao, timelineCoder, sampleCoder, new BackgroundDBChunkWriter(dao, config, metrics), new MockFileBackedBuffer(), metrics);
         Assert.assertEquals(handler.getAccumulators().size(), 0);
         processOneEvent(handler, 1, "eventType1", "sampleKind1", new DateTime());
         sleep(20);
@@ -119,4 +127,23 @@ public class TestTimelineEventHandler extends MeterTestSuiteNoDB {
         final Collection<TimelineSourceEventAccumulator> accumulators = handler.getAccumulators();
         Assert.assertEquals(accumulators.size(), 1);
     }
+
+    @Test(groups = "fast")
+    public void testInMemoryChunksOfOtherTenantsAreSkipped() throws Exception {
+        System.setProperty("org.killbill.billing.plugin.meter.timelines.spoolDir", basePath.getAbsolutePath());
+        final MeterConfig config = new ConfigurationObjectFactory(System.getProperties()).build(MeterConfig.class);
+        final TimelineEventHandler handler = new TimelineEventHandler(config, dao, timelineCoder, sampleCoder, new BackgroundDBChunkWriter(dao, config, metrics), new MockFileBackedBuffer(), metrics);
+        final UUID tenantId = UUID.randomUUID();
+        final CallContext tenantContext = new MeterCallContext(tenantId);
+
+        final int hostId = 12;
+        final Map<Integer, ScalarSample> samples = convertEventToSamples(handler, ImmutableMap.<String, Object>of("tenantSampleKind", new Integer(1)), "tenantEventType");
+        handler.processSamples(new SourceSamplesForTimestamp(hostId, "tenantEventType", new DateTime(), samples, tenantId), tenantContext);
+        final List<Integer> metricIds = ImmutableList.<Integer>copyOf(samples.keySet());
+
+        Assert.assertFalse(handler.getInMemoryTimelineChunks(hostId, metricIds, null, null, new MeterTenantContext(tenantId)).isEmpty());
+        // Source ids are per tenant: the same id in another tenant (or without tenant) is another source
+        Assert.assertTrue(handler.getInMemoryTimelineChunks(hostId, metricIds, null, null, new MeterTenantContext(UUID.randomUUID())).isEmpty());
+        Assert.assertTrue(handler.getInMemoryTimelineChunks(hostId, metricIds, null, null, new MeterTenantContext()).isEmpty());
+    }
 }
@@ -24,6 +24,8 @@ import java.util.Map;
 import org.joda.time.DateTime;
 import org.joda.time.DateTimeZone;
 import org.killbill.billing.plugin.meter.MeterTestSuiteNoDB;
+import org.killbill.billing.plugin.meter.monitoring.MeterMetrics;
+import org.killbill.billing.plugin.meter.timeline.chunks.TimelineChunk;
 import org.killbill.billing.plugin.meter.timeline.codec.DefaultSampleCoder;
 import org.killbill.billing.plugin.meter.timeline.codec.SampleCoder;
 import org.killbill.billing.plugin.meter.timeline.samples.SampleOpcode;
@@ -77,6 +79,104 @@ public class TestTimelineSourceEventAccumulator extends MeterTestSuiteNoDB {
         Assert.assertEquals(accumulator.getTimelines().get(secondSampleKindId).getMetricId(), secondSampleKindId);
     }
 
+    @Test(groups = "fast")
+    public void testChunkClosedOnMaxSampleCount() throws IOException {
+        final MockTimelineDao chunksDao = new MockTimelineDao();
+        final MeterMetrics metrics = new MeterMetrics();
+        final BackgroundDBChunkWriter writer = new BackgroundDBChunkWriter(chunksDao, null, true, metrics);
+        final ChunkLengthPolicy policy = new ChunkLengthPolicy(3600000L, 0, 0, 0, 10, 0);
+        final DateTime startTime = new DateTime(DateTimeZone.UTC);
+        // The first chunk end time is picked at random after the first sample time: make sure it isn't reached
+        final TimelineSourceEventAccumulator accumulator = new TimelineSourceEventAccumulator(chunksDao, timelineCoder, sampleCoder, writer, HOST_ID,
+                                                                                              EVENT_CATEGORY_ID, null, startTime.plusHours(1), policy, metrics);
+
+        sendData(accumulator, startTime, 25, 1);
+
+        // Two full chunks were closed well before the end of the timeline length
+        Assert.assertEquals(chunksDao.getTimelineChunks().size(), 2);
+        final TimelineChunk firstChunk = chunksDao.getTimelineChunks().get(0);
+        Assert.assertEquals(firstChunk.getSampleCount(), 10);
+        Assert.assertEquals(firstChunk.getStartTime(), startTime);
+        Assert.assertEquals(firstChunk.getEndTime(), startTime.plusSeconds(9));
+        final TimelineChunk secondChunk = chunksDao.getTimelineChunks().get(1);
+        Assert.assertEquals(secondChunk.getSampleCount(), 10);
+        Assert.assertEquals(secondChunk.getStartTime(), startTime.plusSeconds(10));
+        Assert.assertEquals(secondChunk.getEndTime(), startTime.plusSeconds(19));
+
+        // The remaining samples are in a new chunk
+        Assert.assertEquals(accumulator.getStartTime(), startTime.plusSeconds(20));
+        Assert.assertEquals(accumulator.getTimelines().get(1).getSampleCount(), 5);
+    }
+
+    @Test(groups = "fast")
+    public void testSubSecondChunksAreNotClosedEarly() throws IOException {
+        final MockTimelineDao chunksDao = new MockTimelineDao();
+        final MeterMetrics metrics = new MeterMetrics();
+        final BackgroundDBChunkWriter writer = new BackgroundDBChunkWriter(chunksDao, null, true, metrics);
+        // No min length configured: the chunks still span at least one second
+        final ChunkLengthPolicy policy = new ChunkLengthPolicy(3600000L, 0, 0, 0, 10, 0);
+        final DateTime startTime = new DateTime(DateTimeZone.UTC).withMillisOfSecond(500);
+        final TimelineSourceEventAccumulator accumulator = new TimelineSourceEventAccumulator(chunksDao, timelineCoder, sampleCoder, writer, HOST_ID,
+                                                                                              EVENT_CATEGORY_ID, null, startTime.plusHours(1), policy, metrics);
+
+        // 100 samples per second
+        for (int i = 0; i < 250; i++) {
+            sendSample(accumulator, startTime.plusMillis(10 * i), 1);
+        }
+
+        Assert.assertEquals(chunksDao.getTimelineChunks().size(), 2);
+        final TimelineChunk firstChunk = chunksDao.getTimelineChunks().get(0);
+        Assert.assertEquals(firstChunk.getSampleCount(), 101);
+        Assert.assertEquals(firstChunk.getStartTime(), startTime);
+        Assert.assertEquals(firstChunk.getEndTime(), startTime.plusSeconds(1));
+        final TimelineChunk secondChunk = chunksDao.getTimelineChunks().get(1);
+        Assert.assertEquals(secondChunk.getSampleCount(), 101);
+        Assert.assertEquals(secondChunk.getStartTime(), startTime.plusMillis(1010));
+        // The chunks are stored with second precision: they must not start in the same second
+        Assert.assertTrue(secondChunk.getStartTime().withMillisOfSecond(0).isAfter(firstChunk.getStartTime().withMillisOfSecond(0)));
+        Assert.assertEquals(accumulator.getStartTime(), startTime.plusMillis(2020));
+        Assert.assertEquals(accumulator.getTimelines().get(1).getSampleCount(), 48);
+    }
+
+    @Test(groups = "fast")
+    public void testSparseChunkExtended() throws IOException {
+        final MockTimelineDao chunksDao = new MockTimelineDao();
+        final MeterMetrics metrics = new MeterMetrics();
+        final BackgroundDBChunkWriter writer = new BackgroundDBChunkWriter(chunksDao, null, true, metrics);
+        // 1 minute chunks, extended up to 10 minutes while they have fewer than 5 samples
+        final ChunkLengthPolicy policy = new ChunkLengthPolicy(60000L, 0, 600000L, 5, 0, 0);
+        final DateTime startTime = new DateTime(DateTimeZone.UTC);
+        final TimelineSourceEventAccumulator accumulator = new TimelineSourceEventAccumulator(chunksDao, timelineCoder, sampleCoder, writer, HOST_ID,
+                                                                                              EVENT_CATEGORY_ID, null, startTime, policy, metrics);
+
+        // One sample every 2 minutes: the chunk is kept open until it has 5 samples
+        for (int i = 0; i < 5; i++) {
+            sendSample(accumulator, startTime.plusMinutes(2 * i), 1);
+        }
+        Assert.assertEquals(chunksDao.getTimelineChunks().size(), 0);
+        sendSample(accumulator, startTime.plusMinutes(10), 1);
+        Assert.assertEquals(chunksDao.getTimelineChunks().size(), 1);
+        Assert.assertEquals(chunksDao.getTimelineChunks().get(0).getSampleCount(), 5);
+        Assert.assertEquals(chunksDao.getTimelineChunks().get(0).getEndTime(), startTime.plusMinutes(8));
+
+        // One sample every 4 minutes: the chunk is closed when reaching the max length
+        for (int i = 1; i <= 2; i++) {
+            sendSample(accumulator, startTime.plusMinutes(10 + 4 * i), 1);
+        }
+        Assert.assertEquals(chunksDao.getTimelineChunks().size(), 1);
+        sendSample(accumulator, startTime.plusMinutes(22), 1);
+        Assert.assertEquals(chunksDao.getTimelineChunks().size(), 2);
+        Assert.assertEquals(chunksDao.getTimelineChunks().get(1).getSampleCount(), 3);
+        Assert.assertEquals(chunksDao.getTimelineChunks().get(1).getStartTime(), startTime.plusMinutes(10));
+        Assert.assertEquals(accumulator.getStartTime(), startTime.plusMinutes(22));
+    }
+
+    private void sendSample(final TimelineSourceEventAccumulator accumulator, final DateTime timestamp, final int sampleKindId) {
+        final Map<Integer, ScalarSample> samples = new HashMap<Integer, ScalarSample>();
+        samples.put(sampleKindId, new ScalarSample<Long>(SampleOpcode.LONG, 1242L));
+        accumulator.addSourceSamples(new SourceSamplesForTimestamp(HOST_ID, "JVM", timestamp, samples));
+    }
+
     private void sendData(final TimelineSourceEventAccumulator accumulator, final DateTime startTime, final int sampleCount, final int sampleKindId) {
         final Map<Integer, ScalarSample> samples = new HashMap<Integer, ScalarSample>();
 
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.timeline.aggregator;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.killbill.billing.plugin.meter.MeterTestSuiteNoDB;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableList;
+
+public class TestAggregationLeaseManager extends MeterTestSuiteNoDB {
+
+    private static final int SHARDS = 64;
+
+    @Test(groups = "fast")
+    public void testTargetShardCount() throws Exception {
+        Assert.assertEquals(AggregationLeaseManager.getTargetShardCount(SHARDS, 1), 64);
+        Assert.assertEquals(AggregationLeaseManager.getTargetShardCount(SHARDS, 4), 16);
+        // Rounded up, for all shards to be covered
+        Assert.assertEquals(AggregationLeaseManager.getTargetShardCount(SHARDS, 6), 11);
+        Assert.assertEquals(AggregationLeaseManager.getTargetShardCount(SHARDS, 100), 1);
+    }
+
+    @Test(groups = "fast")
+    public void testShardsToRelease() throws Exception {
+        final Set<Integer> heldShards = new TreeSet<Integer>(ImmutableList.<Integer>of(1, 5, 9, 13));
+        Assert.assertEquals(AggregationLeaseManager.getShardsToRelease(heldShards, 4).size(), 0);
+        Assert.assertEquals(AggregationLeaseManager.getShardsToRelease(heldShards, 10).size(), 0);
+        Assert.assertEquals(AggregationLeaseManager.getShardsToRelease(heldShards, 2), ImmutableList.<Integer>of(9, 13));
+    }
+
+    @Test(groups = "fast")
+    public void testShardsToAcquireAreFree() throws Exception {
+        final Map<Integer, String> holders = new HashMap<Integer, String>();
+        for (int shard = 0; shard < SHARDS; shard++) {
+            holders.put(shard, shard % 2 == 0 ? "other-node" : null);
+        }
+
+        final List<Integer> shards = AggregationLeaseManager.getShardsToAcquire(SHARDS, "node", holders, 10);
+        Assert.assertEquals(shards.size(), 10);
+        Assert.assertEquals(new HashSet<Integer>(shards).size(), 10);
+        for (final Integer shard : shards) {
+            Assert.assertTrue(shard % 2 == 1, shards.toString());
+        }
+
+        // Only 32 free shards
+        Assert.assertEquals(AggregationLeaseManager.getShardsToAcquire(SHARDS, "node", holders, 50).size(), 32);
+        Assert.assertEquals(AggregationLeaseManager.getShardsToAcquire(SHARDS, "node", holders, 0).size(), 0);
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.timeline.aggregator;
+
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.Set;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.killbill.billing.plugin.meter.MeterConfig;
+import org.killbill.billing.plugin.meter.MeterTestSuiteWithEmbeddedDB;
+import org.killbill.billing.plugin.meter.timeline.cluster.ClusterMembership;
+import org.skife.config.ConfigurationObjectFactory;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableList;
+
+public class TestAggregationLeaseManagerWithEmbeddedDB extends MeterTestSuiteWithEmbeddedDB {
+
+    private static final DateTime NOW = new DateTime(2014, 10, 23, 13, 42, DateTimeZone.UTC);
+
+    @Test(groups = "slow")
+    public void testOnlyOneNodeHoldsAShard() throws Exception {
+        clock.setTime(NOW);
+        final AggregationLeaseManager leaseManagerA = createLeaseManager("node-a", 1);
+        final AggregationLeaseManager leaseManagerB = createLeaseManager("node-b", 1);
+
+        leaseManagerA.renewLeases();
+        Assert.assertEquals(leaseManagerA.getOwnedShards(), ImmutableList.<Integer>of(0));
+        Assert.assertEquals(leaseManagerA.getLeaseCounters().get("leasesAcquired"), (Long) 1L);
+
+        // The lease of node-a is still valid
+        clock.addDeltaFromReality(60000);
+        leaseManagerB.renewLeases();
+        Assert.assertEquals(leaseManagerB.getOwnedShards(), ImmutableList.<Integer>of());
+        Assert.assertEquals(leaseManagerB.getLeaseCounters().get("leasesAcquired"), (Long) 0L);
+        Assert.assertFalse(leaseManagerB.holdsLeases(ImmutableList.<Integer>of(0)));
+
+        // Renewed by node-a
+        leaseManagerA.renewLeases();
+        Assert.assertEquals(leaseManagerA.getOwnedShards(), ImmutableList.<Integer>of(0));
+        Assert.assertEquals(leaseManagerA.getLeaseCounters().get("leasesLost"), (Long) 0L);
+        Assert.assertEquals(leaseManagerA.getLeaseCounters().get("renewalFailures"), (Long) 0L);
+    }
+
+    @Test(groups = "slow")
+    public void testExpiredLeaseIsTakenOver() throws Exception {
+        clock.setTime(NOW);
+        final AggregationLeaseManager leaseManagerA = createLeaseManager("node-a", 1);
+        final AggregationLeaseManager leaseManagerB = createLeaseManager("node-b", 1);
+        leaseManagerA.renewLeases();
+        Assert.assertTrue(leaseManagerA.holdsLeases(ImmutableList.<Integer>of(0)));
+
+        // node-a stops renewing: it stops aggregating after two thirds of the lease duration...
+        clock.addDeltaFromReality(7 * 60000);
+        Assert.assertFalse(leaseManagerA.holdsLeases(ImmutableList.<Integer>of(0)));
+        Assert.assertEquals(leaseManagerA.getOwnedShards(), ImmutableList.<Integer>of());
+        leaseManagerB.renewLeases();
+        Assert.assertEquals(leaseManagerB.getOwnedShards(), ImmutableList.<Integer>of());
+
+        // ... and node-b takes the shard over once the lease expired
+        clock.addDeltaFromReality(4 * 60000);
+        leaseManagerB.renewLeases();
+        Assert.assertEquals(leaseManagerB.getOwnedShards(), ImmutableList.<Integer>of(0));
+        Assert.assertEquals(leaseManagerB.getLeaseCounters().get("leasesAcquired"), (Long) 1L);
+
+        // node-a doesn't get it back
+        leaseManagerA.renewLeases();
+        Assert.assertEquals(leaseManagerA.getOwnedShards(), ImmutableList.<Integer>of());
+        Assert.assertFalse(leaseManagerA.holdsLeases(ImmutableList.<Integer>of(0)));
+        Assert.assertEquals(leaseManagerB.getOwnedShards(), ImmutableList.<Integer>of(0));
+    }
+
+    @Test(groups = "slow")
+    public void testShardsAreSplitBetweenLiveNodes() throws Exception {
+        clock.setTime(NOW);
+        final AggregationLeaseManager leaseManagerA = createLeaseManager("node-a", 8);
+        final AggregationLeaseManager leaseManagerB = createLeaseManager("node-b", 8);
+
+        // Alone in the cluster, node-a takes all shards
+        leaseManagerA.renewLeases();
+        Assert.assertEquals(leaseManagerA.getOwnedShards().size(), 8);
+
+        // node-b joins: node-a releases half of the shards, which node-b takes
+        leaseManagerB.renewLeases();
+        Assert.assertEquals(leaseManagerB.getOwnedShards().size(), 0);
+        clock.addDeltaFromReality(60000);
+        leaseManagerA.renewLeases();
+        Assert.assertEquals(leaseManagerA.getOwnedShards().size(), 4);
+        leaseManagerB.renewLeases();
+        Assert.assertEquals(leaseManagerB.getOwnedShards().size(), 4);
+
+        final Set<Integer> allShards = new HashSet<Integer>(leaseManagerA.getOwnedShards());
+        allShards.addAll(leaseManagerB.getOwnedShards());
+        Assert.assertEquals(allShards.size(), 8);
+    }
+
+    // Leases of 10 minutes, over a cluster whose nodes heartbeat when renewing their leases
+    private AggregationLeaseManager createLeaseManager(final String nodeId, final int shards) {
+        final Properties properties = new Properties();
+        properties.setProperty("org.killbill.billing.plugin.meter.timelines.aggregationLeasesEnabled", "true");
+        properties.setProperty("org.killbill.billing.plugin.meter.timelines.aggregationShards", String.valueOf(shards));
+        properties.setProperty("org.killbill.billing.plugin.meter.timelines.aggregationLeaseDuration", "10m");
+        properties.setProperty("org.killbill.billing.plugin.meter.timelines.clusterNodeId", nodeId);
+        properties.setProperty("org.killbill.billing.plugin.meter.timelines.clusterNodeAddress", "http://" + nodeId);
+        properties.setProperty("org.killbill.billing.plugin.meter.timelines.clusterNodeTimeout", "5m");
+        final MeterConfig config = new ConfigurationObjectFactory(properties).build(MeterConfig.class);
+
+        final ClusterMembership membership = new ClusterMembership(getDBI(), config, clock);
+        return new AggregationLeaseManager(getDBI(), config, membership, clock) {
+            @Override
+            public void renewLeases() {
+                membership.heartbeat();
+                super.renewLeases();
+            }
+        };
+    }
+}
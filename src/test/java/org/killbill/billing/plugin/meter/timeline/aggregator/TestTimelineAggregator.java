@@ -27,6 +27,7 @@ import org.joda.time.DateTime;
 import org.joda.time.DateTimeZone;
 import org.killbill.billing.plugin.meter.MeterConfig;
 import org.killbill.billing.plugin.meter.MeterTestSuiteWithEmbeddedDB;
+import org.killbill.billing.plugin.meter.monitoring.MeterMetrics;
 import org.killbill.billing.plugin.meter.timeline.TimelineSourceEventAccumulator;
 import org.killbill.billing.plugin.meter.timeline.chunks.TimelineChunk;
 import org.killbill.billing.plugin.meter.timeline.codec.DefaultSampleCoder;
@@ -72,7 +73,7 @@ public class TestTimelineAggregator extends MeterTestSuiteWithEmbeddedDB {
         final Properties properties = System.getProperties();
         properties.put("killbill.usage.timelines.chunksToAggregate", "2,2");
         final MeterConfig config = new ConfigurationObjectFactory(properties).build(MeterConfig.class);
-        aggregator = new TimelineAggregator(getDBI(), timelineDao, timelineCoder, sampleCoder, config);
+        aggregator = new TimelineAggregator(getDBI(), timelineDao, timelineCoder, sampleCoder, config, new MeterMetrics());
     }
 
     @Test(groups = "mysql")
@@ -17,7 +17,10 @@
 
 package org.killbill.billing.plugin.meter.timeline.chunks;
 
+import java.nio.ByteBuffer;
+
 import org.killbill.billing.plugin.meter.MeterTestSuiteNoDB;
+import org.killbill.billing.plugin.meter.timeline.codec.TimesAndSamplesCoder;
 import org.testng.Assert;
 import org.testng.annotations.Test;
 
@@ -47,4 +50,30 @@ public class TestTimeBytesAndSampleBytes extends MeterTestSuiteNoDB {
         final TimeBytesAndSampleBytes otherTimeBytesAndSampleBytes = new TimeBytesAndSampleBytes(sampleBytes, timeBytes);
         Assert.assertNotEquals(otherTimeBytesAndSampleBytes, timeBytesAndSampleBytes);
     }
+
+    @Test(groups = "fast")
+    public void testFromTimesAndSamples() throws Exception {
+        final byte[] timeBytes = new byte[]{0x1, 0x2, 0x3};
+        final byte[] sampleBytes = new byte[]{0xA, 0xB, 0xC, 0xD};
+        final byte[] timesAndSamples = TimesAndSamplesCoder.combineTimesAndSamples(timeBytes, sampleBytes);
+
+        final TimeBytesAndSampleBytes timeBytesAndSampleBytes = TimeBytesAndSampleBytes.fromTimesAndSamples(timesAndSamples);
+        Assert.assertEquals(timeBytesAndSampleBytes.getTimeBytesLength(), timeBytes.length);
+        Assert.assertEquals(timeBytesAndSampleBytes.getSampleBytesLength(), sampleBytes.length);
+        Assert.assertEquals(timeBytesAndSampleBytes.getTimeBuffer(), ByteBuffer.wrap(timeBytes));
+        Assert.assertEquals(timeBytesAndSampleBytes.getSampleBuffer(), ByteBuffer.wrap(sampleBytes));
+        Assert.assertEquals(timeBytesAndSampleBytes.getTimeBytes(), timeBytes);
+        Assert.assertEquals(timeBytesAndSampleBytes.getSampleBytes(), sampleBytes);
+        Assert.assertEquals(timeBytesAndSampleBytes, new TimeBytesAndSampleBytes(timeBytes, sampleBytes));
+        Assert.assertEquals(timeBytesAndSampleBytes.hashCode(), new TimeBytesAndSampleBytes(timeBytes, sampleBytes).hashCode());
+
+        // The views share the backing array
+        Assert.assertSame(timeBytesAndSampleBytes.getTimeBuffer().array(), timesAndSamples);
+        Assert.assertSame(timeBytesAndSampleBytes.getSampleBuffer().array(), timesAndSamples);
+    }
+
+    @Test(groups = "fast", expectedExceptions = IllegalStateException.class)
+    public void testFromInvalidTimesAndSamples() throws Exception {
+        TimeBytesAndSampleBytes.fromTimesAndSamples(new byte[]{0x0, 0x0, 0x0, 0x5, 0x1});
+    }
 }
@@ -19,6 +19,7 @@ package org.killbill.billing.plugin.meter.timeline.chunks;
 
 import org.joda.time.DateTime;
 import org.killbill.billing.plugin.meter.MeterTestSuiteNoDB;
+import org.killbill.billing.plugin.meter.timeline.util.DateTimeUtils;
 import org.testng.Assert;
 import org.testng.annotations.Test;
 
@@ -66,4 +67,23 @@ public class TestTimelineChunk extends MeterTestSuiteNoDB {
         final TimelineChunk otherTimelineChunk = new TimelineChunk(sourceId, sourceId, metricId, startTime, endTime, timeBytes, sampleBytes, timeBytes.length);
         Assert.assertNotEquals(otherTimelineChunk, timelineChunk);
     }
+
+    @Test(groups = "fast")
+    public void testUnixSeconds() throws Exception {
+        final DateTime startTime = DateTimeUtils.dateTimeFromUnixSeconds(DateTimeUtils.unixSeconds(clock.getUTCNow()));
+        final DateTime endTime = startTime.plusHours(2);
+        final TimeBytesAndSampleBytes bytes = new TimeBytesAndSampleBytes(new byte[]{0x1, 0x2, 0x3}, new byte[]{0xA, 0xB, 0xC});
+
+        final TimelineChunk timelineChunk = new TimelineChunk(1L, 2, 3, DateTimeUtils.unixSeconds(startTime), DateTimeUtils.unixSeconds(endTime), bytes, 3, 1, false, false);
+        Assert.assertEquals(timelineChunk.getStartTimeSeconds(), DateTimeUtils.unixSeconds(startTime));
+        Assert.assertEquals(timelineChunk.getEndTimeSeconds(), DateTimeUtils.unixSeconds(endTime));
+        Assert.assertEquals(timelineChunk.getStartTime().getMillis(), startTime.getMillis());
+        Assert.assertEquals(timelineChunk.getEndTime().getMillis(), endTime.getMillis());
+
+        final TimelineChunk sameTimelineChunk = new TimelineChunk(1L, 2, 3, startTime, endTime, bytes, 3, 1, false, false);
+        Assert.assertEquals(sameTimelineChunk.getStartTimeSeconds(), timelineChunk.getStartTimeSeconds());
+        Assert.assertEquals(sameTimelineChunk.getEndTimeSeconds(), timelineChunk.getEndTimeSeconds());
+        Assert.assertEquals(new TimelineChunk(1L, sameTimelineChunk), sameTimelineChunk);
+        Assert.assertEquals(new TimelineChunk(1L, timelineChunk), timelineChunk);
+    }
 }
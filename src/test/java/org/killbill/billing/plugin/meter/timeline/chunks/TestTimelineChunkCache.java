@@ -0,0 +1,78 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.timeline.chunks;
+
+import org.joda.time.DateTime;
+import org.killbill.billing.plugin.meter.MeterTestSuiteNoDB;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableList;
+
+public class TestTimelineChunkCache extends MeterTestSuiteNoDB {
+
+    @Test(groups = "fast")
+    public void testGetPutAndInvalidate() throws Exception {
+        final TimelineChunkCache chunkCache = new TimelineChunkCache(1024 * 1024);
+        Assert.assertTrue(chunkCache.isEnabled());
+
+        final TimelineChunk first = createChunk(1L, 10);
+        final TimelineChunk second = createChunk(2L, 10);
+        chunkCache.put(first);
+        chunkCache.put(second);
+        Assert.assertSame(chunkCache.getIfPresent(1L), first);
+        Assert.assertSame(chunkCache.getIfPresent(2L), second);
+        Assert.assertNull(chunkCache.getIfPresent(3L));
+
+        chunkCache.invalidate(ImmutableList.<Long>of(1L, 3L));
+        Assert.assertNull(chunkCache.getIfPresent(1L));
+        Assert.assertSame(chunkCache.getIfPresent(2L), second);
+
+        Assert.assertEquals(chunkCache.getStats().get("hitCount"), 3L);
+        Assert.assertEquals(chunkCache.getStats().get("missCount"), 2L);
+        Assert.assertEquals(chunkCache.getStats().get("entries"), 1L);
+    }
+
+    @Test(groups = "fast")
+    public void testWeightBound() throws Exception {
+        // Room for a few 10KB chunks only
+        final TimelineChunkCache chunkCache = new TimelineChunkCache(50 * 1024);
+        for (long chunkId = 0; chunkId < 100; chunkId++) {
+            chunkCache.put(createChunk(chunkId, 10 * 1024));
+        }
+
+        final long entries = (Long) chunkCache.getStats().get("entries");
+        Assert.assertTrue(entries > 0 && entries <= 5, "entries: " + entries);
+        // The most recent chunk is kept
+        Assert.assertNotNull(chunkCache.getIfPresent(99L));
+    }
+
+    @Test(groups = "fast")
+    public void testDisabledCache() throws Exception {
+        final TimelineChunkCache chunkCache = new TimelineChunkCache(0);
+        Assert.assertFalse(chunkCache.isEnabled());
+
+        chunkCache.put(createChunk(1L, 10));
+        Assert.assertNull(chunkCache.getIfPresent(1L));
+    }
+
+    private TimelineChunk createChunk(final long chunkId, final int size) {
+        final DateTime startTime = clock.getUTCNow();
+        return new TimelineChunk(chunkId, 1, 2, startTime, startTime.plusHours(1), new byte[size / 2], new byte[size / 2], 1);
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.timeline.chunks;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.killbill.billing.plugin.meter.MeterTestSuiteNoDB;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestTimelineChunksFrames extends MeterTestSuiteNoDB {
+
+    @Test(groups = "fast")
+    public void testRoundTrip() throws Exception {
+        final DateTime startTime = new DateTime(2012, 12, 1, 0, 0, DateTimeZone.UTC);
+        final TimelineChunk chunk1 = new TimelineChunk(12L, 1, 2, startTime, startTime.plusHours(1), new byte[]{0x1, 0x2, 0x3}, new byte[]{0xA, 0xB}, 3);
+        final TimelineChunk chunk2 = new TimelineChunk(0L, 1, 3, startTime, startTime.plusHours(2), new TimeBytesAndSampleBytes(new byte[0], new byte[]{0x7}), 1,
+                                                       2, true, true);
+
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final TimelineChunksFrameWriter writer = new TimelineChunksFrameWriter(output);
+        writer.writeHeader();
+        writer.writeChunk(chunk1);
+        writer.writeChunk(chunk2);
+        writer.writeTrailer();
+
+        final TimelineChunksFrameReader reader = new TimelineChunksFrameReader(new ByteArrayInputStream(output.toByteArray()));
+        Assert.assertEquals(reader.readChunk(), chunk1);
+        final TimelineChunk readChunk2 = reader.readChunk();
+        Assert.assertEquals(readChunk2, chunk2);
+        Assert.assertEquals(readChunk2.getAggregationLevel(), 2);
+        Assert.assertTrue(readChunk2.getNotValid());
+        Assert.assertTrue(readChunk2.getDontAggregate());
+        Assert.assertNull(reader.readChunk());
+        Assert.assertNull(reader.readChunk());
+    }
+
+    @Test(groups = "fast", expectedExceptions = IOException.class)
+    public void testInvalidHeader() throws Exception {
+        new TimelineChunksFrameReader(new ByteArrayInputStream(new byte[]{'K', 'B', 'X', 'X', 1, 0})).readChunk();
+    }
+
+    @Test(groups = "fast", expectedExceptions = IOException.class)
+    public void testTruncatedStream() throws Exception {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final TimelineChunksFrameWriter writer = new TimelineChunksFrameWriter(output);
+        writer.writeHeader();
+        writer.writeChunk(new TimelineChunk(1L, 1, 2, new DateTime(DateTimeZone.UTC), new DateTime(DateTimeZone.UTC), new byte[]{0x1}, new byte[]{0x2}, 1));
+        // No trailer, and the last byte is missing
+        final byte[] bytes = output.toByteArray();
+        final byte[] truncated = new byte[bytes.length - 1];
+        System.arraycopy(bytes, 0, truncated, 0, truncated.length);
+
+        new TimelineChunksFrameReader(new ByteArrayInputStream(truncated)).readChunk();
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.timeline.chunks;
+
+import org.killbill.billing.plugin.meter.MeterTestSuiteNoDB;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestTimelineSkipIndex extends MeterTestSuiteNoDB {
+
+    @Test(groups = "fast")
+    public void testSerialization() throws Exception {
+        final TimelineSkipIndex skipIndex = new TimelineSkipIndex.Builder().addEntry(100, 12, 7, 1000, 30, 4)
+                                                                           .addEntry(205, 30, 15, 4000, 0, 0)
+                                                                           .build();
+        Assert.assertEquals(skipIndex.getEntryCount(), 2);
+        Assert.assertEquals(skipIndex.getSizeInBytes(), 48);
+
+        final TimelineSkipIndex readSkipIndex = TimelineSkipIndex.fromBytes(skipIndex.toBytes());
+        Assert.assertEquals(readSkipIndex, skipIndex);
+        Assert.assertEquals(readSkipIndex.getSampleNumber(1), 205);
+        Assert.assertEquals(readSkipIndex.getSampleByteOffset(1), 30);
+        Assert.assertEquals(readSkipIndex.getTimeByteOffset(1), 15);
+        Assert.assertEquals(readSkipIndex.getLastTime(0), 1000);
+        Assert.assertEquals(readSkipIndex.getDelta(0), 30);
+        Assert.assertEquals(readSkipIndex.getRepeatCount(0), 4);
+    }
+
+    @Test(groups = "fast", expectedExceptions = IllegalStateException.class)
+    public void testInvalidBytes() throws Exception {
+        TimelineSkipIndex.fromBytes(new byte[10]);
+    }
+
+    @Test(groups = "fast")
+    public void testFindEntry() throws Exception {
+        final TimelineSkipIndex.Builder builder = new TimelineSkipIndex.Builder();
+        for (int i = 1; i <= 100; i++) {
+            builder.addEntry(i * 10, i, i, i * 300, 30, 0);
+        }
+        final TimelineSkipIndex skipIndex = builder.build();
+
+        Assert.assertEquals(skipIndex.findEntry(0), -1);
+        Assert.assertEquals(skipIndex.findEntry(300), -1);
+        Assert.assertEquals(skipIndex.findEntry(301), 0);
+        Assert.assertEquals(skipIndex.findEntry(600), 0);
+        Assert.assertEquals(skipIndex.findEntry(15001), 49);
+        Assert.assertEquals(skipIndex.findEntry(Integer.MAX_VALUE), 99);
+        Assert.assertEquals(new TimelineSkipIndex.Builder().build().findEntry(1000), -1);
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.timeline.cluster;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import org.killbill.billing.plugin.meter.MeterTestSuiteNoDB;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableList;
+
+public class TestConsistentHashRing extends MeterTestSuiteNoDB {
+
+    private static final int KEYS = 10000;
+
+    @Test(groups = "fast")
+    public void testEmptyRing() throws Exception {
+        final ConsistentHashRing ring = new ConsistentHashRing(ImmutableList.<String>of(), 64);
+        Assert.assertTrue(ring.isEmpty());
+        Assert.assertNull(ring.getOwner(ConsistentHashRing.getKey(null, "source")));
+    }
+
+    @Test(groups = "fast")
+    public void testOwnershipIsIndependentOfTheNodeOrder() throws Exception {
+        final ConsistentHashRing ring = new ConsistentHashRing(ImmutableList.<String>of("node-a", "node-b", "node-c"), 64);
+        final ConsistentHashRing otherRing = new ConsistentHashRing(ImmutableList.<String>of("node-c", "node-a", "node-b"), 64);
+        for (int i = 0; i < 1000; i++) {
+            final String key = ConsistentHashRing.getKey(UUID.randomUUID(), "source-" + i);
+            Assert.assertEquals(ring.getOwner(key), otherRing.getOwner(key));
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testKeysAreSpreadAcrossNodes() throws Exception {
+        final ConsistentHashRing ring = new ConsistentHashRing(ImmutableList.<String>of("node-a", "node-b", "node-c", "node-d"), 64);
+        final Map<String, Integer> keysPerNode = new HashMap<String, Integer>();
+        for (int i = 0; i < KEYS; i++) {
+            final String owner = ring.getOwner(ConsistentHashRing.getKey(null, "source-" + i));
+            keysPerNode.put(owner, (keysPerNode.get(owner) == null ? 0 : keysPerNode.get(owner)) + 1);
+        }
+
+        Assert.assertEquals(keysPerNode.size(), 4);
+        for (final Integer keys : keysPerNode.values()) {
+            // 2500 on average
+            Assert.assertTrue(keys > 1500 && keys < 3500, keysPerNode.toString());
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testOnlyTheKeysOfTheNewNodeMove() throws Exception {
+        final ConsistentHashRing ring = new ConsistentHashRing(ImmutableList.<String>of("node-a", "node-b", "node-c"), 64);
+        final ConsistentHashRing grownRing = new ConsistentHashRing(ImmutableList.<String>of("node-a", "node-b", "node-c", "node-d"), 64);
+
+        int movedKeys = 0;
+        for (int i = 0; i < KEYS; i++) {
+            final String key = ConsistentHashRing.getKey(null, "source-" + i);
+            final String owner = ring.getOwner(key);
+            final String newOwner = grownRing.getOwner(key);
+            if (!owner.equals(newOwner)) {
+                Assert.assertEquals(newOwner, "node-d");
+                movedKeys++;
+            }
+        }
+        // A quarter of the keys on average
+        Assert.assertTrue(movedKeys > KEYS / 8 && movedKeys < KEYS / 2 - KEYS / 8, String.valueOf(movedKeys));
+    }
+
+    @Test(groups = "fast")
+    public void testTenantsArePartOfTheKey() throws Exception {
+        Assert.assertNotEquals(ConsistentHashRing.getKey(UUID.randomUUID(), "source"), ConsistentHashRing.getKey(null, "source"));
+        Assert.assertEquals(ConsistentHashRing.getKey(null, "source"), "/source");
+    }
+}
@@ -0,0 +1,308 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.timeline.cluster;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.UUID;
+
+import javax.annotation.Nullable;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.killbill.billing.plugin.meter.MeterConfig;
+import org.killbill.billing.plugin.meter.MeterTestSuiteNoDB;
+import org.killbill.billing.plugin.meter.monitoring.MeterMetrics;
+import org.killbill.billing.plugin.meter.timeline.BackgroundDBChunkWriter;
+import org.killbill.billing.plugin.meter.timeline.CounterPreAggregator;
+import org.killbill.billing.plugin.meter.timeline.MockFileBackedBuffer;
+import org.killbill.billing.plugin.meter.timeline.MockTimelineDao;
+import org.killbill.billing.plugin.meter.timeline.TimelineEventHandler;
+import org.killbill.billing.plugin.meter.timeline.codec.DefaultSampleCoder;
+import org.killbill.billing.plugin.meter.timeline.persistent.TimelineDao;
+import org.killbill.billing.plugin.meter.timeline.samples.ScalarSample;
+import org.killbill.billing.plugin.meter.timeline.times.DefaultTimelineCoder;
+import org.killbill.billing.util.callcontext.CallContext;
+import org.skife.config.ConfigurationObjectFactory;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+public class TestSampleForwarder extends MeterTestSuiteNoDB {
+
+    private static final String NODE_ID = "node-a";
+    private static final String SOURCE = "source";
+    private static final String CATEGORY = "category";
+    private static final DateTime TIMESTAMP = new DateTime(2014, 1, 1, 0, 0, 0, DateTimeZone.UTC);
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    // Samples recorded by the TimelineEventHandler (pre-aggregated ones are prefixed with +)
+    private final List<String> recorded = new ArrayList<String>();
+    private final List<Map<String, Object>> recordedSamples = new ArrayList<Map<String, Object>>();
+    // Stub transport: batches sent, per node address, and addresses which can't be reached
+    private final Map<String, List<ForwardedSamples>> sent = new HashMap<String, List<ForwardedSamples>>();
+    private final Set<String> unreachableAddresses = new HashSet<String>();
+
+    private MeterConfig config;
+    private TimelineEventHandler timelineEventHandler;
+    private StubClusterMembership membership;
+    // Pre-aggregator of the last SampleForwarder created
+    private CounterPreAggregator counterPreAggregator;
+
+    @BeforeMethod(alwaysRun = true)
+    public void setUp() throws Exception {
+        recorded.clear();
+        recordedSamples.clear();
+        sent.clear();
+        unreachableAddresses.clear();
+
+        config = createConfig("s3cr3t");
+        final MeterMetrics metrics = new MeterMetrics();
+        final TimelineDao dao = new MockTimelineDao();
+        timelineEventHandler = new TimelineEventHandler(config, dao, new DefaultTimelineCoder(), new DefaultSampleCoder(),
+                                                        new BackgroundDBChunkWriter(dao, config, metrics), new MockFileBackedBuffer(), metrics) {
+            @Override
+            public void record(final String sourceName, final String eventType, final DateTime eventTimestamp, final Map<String, Object> samples, final CallContext context) {
+                recorded.add(sourceName + "/" + eventType + "@" + eventTimestamp.getMillis() / 1000 + "=" + samples);
+                recordedSamples.add(samples);
+            }
+
+            @Override
+            public void recordPreAggregated(final String sourceName, final String eventType, final DateTime eventTimestamp, final Map<String, Object> samples, final CallContext context) {
+                recorded.add("+" + sourceName + "/" + eventType + "@" + eventTimestamp.getMillis() / 1000 + "=" + samples);
+            }
+        };
+        membership = new StubClusterMembership(config);
+    }
+
+    @Test(groups = "fast")
+    public void testClusterModeRequiresASecret() throws Exception {
+        ClusterMembership.checkClusterSecret(createConfig("s3cr3t"));
+
+        try {
+            ClusterMembership.checkClusterSecret(createConfig(""));
+            Assert.fail();
+        } catch (IllegalStateException e) {
+            Assert.assertTrue(e.getMessage().contains("clusterSecret"));
+        }
+
+        final SampleForwarder sampleForwarder = new SampleForwarder(null, null, null, createConfig(""));
+        try {
+            sampleForwarder.runForwardThread();
+            Assert.fail();
+        } catch (IllegalStateException e) {
+            Assert.assertTrue(e.getMessage().contains("clusterSecret"));
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testSamplesAreQueuedAndForwardedToTheOwner() throws Exception {
+        final SampleForwarder sampleForwarder = createSampleForwarder(0);
+        membership.owner = "node-b";
+        Assert.assertTrue(sampleForwarder.isRemote(null, SOURCE));
+
+        for (int i = 0; i < 3; i++) {
+            sampleForwarder.forward(createSamples(i));
+        }
+        // Nothing is sent nor recorded until the forward thread runs
+        Assert.assertEquals(sampleForwarder.getForwarderCounters().get("samplesQueued"), (Long) 3L);
+        Assert.assertTrue(sent.isEmpty());
+
+        sampleForwarder.forwardQueuedSamples(false);
+        Assert.assertEquals(sent.get("http://node-b").size(), 3);
+        Assert.assertEquals(sampleForwarder.getForwarderCounters().get("samplesForwarded"), (Long) 3L);
+        Assert.assertEquals(sampleForwarder.getForwarderCounters().get("forwardRequests"), (Long) 1L);
+        Assert.assertTrue(recorded.isEmpty());
+
+        // The queue is empty now
+        sampleForwarder.forwardQueuedSamples(false);
+        Assert.assertEquals(sent.get("http://node-b").size(), 3);
+    }
+
+    @Test(groups = "fast")
+    public void testUndeliveredSamplesAreRoutedAgain() throws Exception {
+        final SampleForwarder sampleForwarder = createSampleForwarder(0);
+        membership.owner = "node-b";
+        unreachableAddresses.add("http://node-b");
+        sampleForwarder.forward(createSamples(0));
+        sampleForwarder.forward(createSamples(1));
+
+        // Queued again for the same owner
+        sampleForwarder.forwardQueuedSamples(false);
+        Assert.assertEquals(sampleForwarder.getForwarderCounters().get("forwardFailures"), (Long) 1L);
+        Assert.assertEquals(sampleForwarder.getForwarderCounters().get("samplesQueued"), (Long) 4L);
+        Assert.assertTrue(sent.isEmpty());
+
+        // node-b left the cluster, node-c took over its sources
+        membership.owner = "node-c";
+        membership.leftNodeIds.add("node-b");
+        // The samples are queued for node-c, then forwarded (by the same run or the next one)
+        sampleForwarder.forwardQueuedSamples(false);
+        sampleForwarder.forwardQueuedSamples(false);
+        Assert.assertEquals(sent.get("http://node-c").size(), 2);
+        Assert.assertEquals(sampleForwarder.getForwarderCounters().get("forwardFailures"), (Long) 1L);
+        Assert.assertTrue(recorded.isEmpty());
+
+        // This node took over the sources while samples were queued: they are recorded locally
+        unreachableAddresses.add("http://node-c");
+        sampleForwarder.forward(createSamples(2));
+        membership.owner = NODE_ID;
+        Assert.assertFalse(sampleForwarder.isRemote(null, SOURCE));
+        sampleForwarder.forwardQueuedSamples(false);
+        Assert.assertEquals(recorded, ImmutableList.<String>of(SOURCE + "/" + CATEGORY + "@" + (TIMESTAMP.getMillis() / 1000 + 2) + "={value=2}"));
+        Assert.assertEquals(sent.get("http://node-c").size(), 2);
+    }
+
+    @Test(groups = "fast")
+    public void testUndeliveredSamplesAreRecordedOnShutdown() throws Exception {
+        final SampleForwarder sampleForwarder = createSampleForwarder(0);
+        membership.owner = "node-b";
+        unreachableAddresses.add("http://node-b");
+        sampleForwarder.forward(createSamples(0));
+        sampleForwarder.forward(createSamples(1));
+
+        sampleForwarder.stopForwardThread();
+        Assert.assertEquals(sampleForwarder.getForwarderCounters().get("samplesRecordedOnShutdown"), (Long) 2L);
+        Assert.assertEquals(recorded.size(), 2);
+        Assert.assertTrue(sent.isEmpty());
+    }
+
+    @Test(groups = "fast")
+    public void testForwardedIncrementsAreRecordedAsIncrements() throws Exception {
+        final ForwardedSamples increments = new ForwardedSamples(null, "user", SOURCE, CATEGORY, TIMESTAMP.getMillis(), null, ImmutableList.<String>of("a", "b"));
+        final long timestampSeconds = TIMESTAMP.getMillis() / 1000;
+
+        // Without pre-aggregation, a sample of 1 per metric
+        createSampleForwarder(0).recordForwardedSamples(ImmutableList.<ForwardedSamples>of(increments));
+        Assert.assertEquals(recorded.size(), 1);
+        Assert.assertEquals(recordedSamples.get(0), ImmutableMap.<String, Object>of("a", (short) 1, "b", (short) 1));
+
+        // With pre-aggregation, summed per tick
+        recorded.clear();
+        final SampleForwarder preAggregatingSampleForwarder = createSampleForwarder(10000);
+        preAggregatingSampleForwarder.recordForwardedSamples(ImmutableList.<ForwardedSamples>of(increments, increments));
+        Assert.assertEquals(preAggregatingSampleForwarder.getForwarderCounters().get("samplesReceived"), (Long) 2L);
+        Assert.assertTrue(recorded.isEmpty());
+        counterPreAggregator.recordAllTicks();
+        Assert.assertEquals(recorded.size(), 1);
+        Assert.assertTrue(recorded.get(0).startsWith("+" + SOURCE + "/" + CATEGORY + "@" + timestampSeconds + "="));
+        Assert.assertTrue(recorded.get(0).contains("a=2"));
+        Assert.assertTrue(recorded.get(0).contains("b=2"));
+    }
+
+    @Test(groups = "fast")
+    public void testJsonRoundTrip() throws Exception {
+        final SampleForwarder sampleForwarder = createSampleForwarder(0);
+        membership.owner = "node-b";
+        final Map<String, Object> samples = new HashMap<String, Object>();
+        samples.put("short", (short) 12);
+        samples.put("smallLong", 5L);
+        samples.put("int", 70000);
+        samples.put("long", 1L << 40);
+        samples.put("double", 0.1 + 1e-9);
+        samples.put("float", 1.5f);
+        samples.put("string", "up");
+        final UUID tenantId = UUID.randomUUID();
+        sampleForwarder.forward(new ForwardedSamples(tenantId, "user", SOURCE, CATEGORY, TIMESTAMP.getMillis(), samples, null));
+        sampleForwarder.forwardQueuedSamples(false);
+
+        // Received by the owner as JSON, see MeterResource#recordForwardedSamples()
+        final List<ForwardedSamples> received = sent.get("http://node-b");
+        Assert.assertEquals(received.size(), 1);
+        Assert.assertEquals(received.get(0).getTenantId(), tenantId);
+        Assert.assertEquals(received.get(0).getUserName(), "user");
+        Assert.assertEquals(received.get(0).getTimestamp(), TIMESTAMP.getMillis());
+        Assert.assertNull(received.get(0).getIncrementedMetrics());
+        createSampleForwarder(0).recordForwardedSamples(received);
+        final Map<String, Object> receivedSamples = recordedSamples.get(0);
+        Assert.assertEquals(receivedSamples.keySet(), samples.keySet());
+
+        // The boxed types aren't kept: integral values come back as Integer or Long, floating point ones as Double...
+        Assert.assertEquals(receivedSamples.get("smallLong"), 5);
+        Assert.assertEquals(receivedSamples.get("long"), 1L << 40);
+        Assert.assertEquals(receivedSamples.get("float"), 1.5);
+        // ... but integral values are recorded as the same samples, and doubles exactly
+        for (final String metric : ImmutableList.<String>of("short", "smallLong", "int", "long", "double", "string")) {
+            Assert.assertEquals(ScalarSample.fromObject(receivedSamples.get(metric)), ScalarSample.fromObject(samples.get(metric)), metric);
+        }
+        Assert.assertEquals(Double.doubleToRawLongBits((Double) receivedSamples.get("double")), Double.doubleToRawLongBits(0.1 + 1e-9));
+    }
+
+    private SampleForwarder createSampleForwarder(final long counterTickMillis) {
+        counterPreAggregator = new CounterPreAggregator(timelineEventHandler, counterTickMillis, clock);
+        return new SampleForwarder(membership, timelineEventHandler, counterPreAggregator, config) {
+            @Override
+            void send(final String address, final List<ForwardedSamples> batch) throws IOException {
+                if (unreachableAddresses.contains(address)) {
+                    throw new IOException("Connection refused");
+                }
+                // Through JSON, as over HTTP
+                final byte[] json = objectMapper.writeValueAsBytes(batch);
+                final List<ForwardedSamples> receivedBatch = objectMapper.readValue(json, new TypeReference<List<ForwardedSamples>>() {});
+                if (sent.get(address) == null) {
+                    sent.put(address, new ArrayList<ForwardedSamples>());
+                }
+                sent.get(address).addAll(receivedBatch);
+            }
+        };
+    }
+
+    private ForwardedSamples createSamples(final int i) {
+        return new ForwardedSamples(null, "user", SOURCE, CATEGORY, TIMESTAMP.plusSeconds(i).getMillis(), ImmutableMap.<String, Object>of("value", i), null);
+    }
+
+    private MeterConfig createConfig(final String clusterSecret) {
+        final Properties properties = new Properties();
+        properties.setProperty("org.killbill.billing.plugin.meter.timelines.clusterEnabled", "true");
+        properties.setProperty("org.killbill.billing.plugin.meter.timelines.clusterSecret", clusterSecret);
+        properties.setProperty("org.killbill.billing.plugin.meter.timelines.clusterNodeId", NODE_ID);
+        return new ConfigurationObjectFactory(properties).build(MeterConfig.class);
+    }
+
+    // All sources are owned by a single node, the addresses are http://<node id>
+    private final class StubClusterMembership extends ClusterMembership {
+
+        private final Set<String> leftNodeIds = new HashSet<String>();
+        private volatile String owner;
+
+        private StubClusterMembership(final MeterConfig config) {
+            super((ClusterSqlDao) null, config, clock);
+        }
+
+        @Override
+        public String getOwner(@Nullable final UUID tenantId, final String source) {
+            return owner;
+        }
+
+        @Override
+        public String getNodeAddress(final String otherNodeId) {
+            return leftNodeIds.contains(otherNodeId) ? null : "http://" + otherNodeId;
+        }
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.timeline.codec;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.killbill.billing.plugin.meter.timeline.codec.SyntheticSeriesGenerator.Kind;
+import org.killbill.billing.plugin.meter.timeline.consumer.SampleProcessor;
+import org.killbill.billing.plugin.meter.timeline.samples.SampleOpcode;
+import org.killbill.billing.plugin.meter.timeline.times.DefaultTimelineCoder;
+import org.killbill.billing.plugin.meter.timeline.times.TimelineCoder;
+import org.killbill.billing.plugin.meter.timeline.times.TimelineCursor;
+
+/**
+ * Compares the size and the encoding and decoding costs of the default and Gorilla sample encodings,
+ * on the chunk shape of TimelineLoadGenerator (hourly raw chunks of 120 samples, i.e. 30s polling)
+ * aggregated 12 at a time as TimelineAggregator does.  TimelineLoadGenerator itself writes random
+ * sample bytes to a database, so the values here are synthetic gauges, counters and mostly flat series
+ * (see SyntheticSeriesGenerator).
+ * <p/>
+ * Run with: java -cp ... org.killbill.billing.plugin.meter.timeline.codec.GorillaSampleCoderBenchmark [chunkCount]
+ */
+public class GorillaSampleCoderBenchmark {
+
+    private static final int DEFAULT_CHUNK_COUNT = 200;
+    private static final int WARMUP_ROUNDS = 3;
+    private static final int SAMPLES_PER_RAW_CHUNK = 120;
+    private static final int CHUNKS_TO_AGGREGATE = 12;
+
+    private static final TimelineCoder timelineCoder = new DefaultTimelineCoder();
+    private static final SampleCoder defaultSampleCoder = new DefaultSampleCoder();
+    private static final SampleCoder gorillaSampleCoder = new GorillaSampleCoder();
+
+    public static void main(final String[] args) throws IOException {
+        final int chunkCount = args.length > 0 ? Integer.valueOf(args[0]) : DEFAULT_CHUNK_COUNT;
+        final byte[] times = createTimes();
+
+        for (final Kind kind : Kind.values()) {
+            final List<List<ByteBuffer>> rawChunks = createRawChunks(kind, chunkCount);
+            final Result defaultResult = measure(defaultSampleCoder, rawChunks, times);
+            final Result gorillaResult = measure(gorillaSampleCoder, rawChunks, times);
+            System.out.println(String.format("%-14s %,5d chunks of %,d samples: %,6d -> %,6d bytes/chunk (%.1f%%), " +
+                                             "aggregate %,7.1f -> %,7.1f us/chunk, scan %,6.1f -> %,6.1f us/chunk",
+                                             kind, chunkCount, SAMPLES_PER_RAW_CHUNK * CHUNKS_TO_AGGREGATE,
+                                             defaultResult.bytes / chunkCount, gorillaResult.bytes / chunkCount,
+                                             100.0 * gorillaResult.bytes / defaultResult.bytes,
+                                             defaultResult.aggregateNanos / 1e3 / chunkCount, gorillaResult.aggregateNanos / 1e3 / chunkCount,
+                                             defaultResult.scanNanos / 1e3 / chunkCount, gorillaResult.scanNanos / 1e3 / chunkCount));
+        }
+    }
+
+    private static Result measure(final SampleCoder sampleCoder, final List<List<ByteBuffer>> rawChunks, final byte[] times) throws IOException {
+        final Result result = new Result();
+        final List<byte[]> aggregatedChunks = new ArrayList<byte[]>(rawChunks.size());
+        for (int round = 0; round <= WARMUP_ROUNDS; round++) {
+            aggregatedChunks.clear();
+            result.bytes = 0;
+            final long startNanos = System.nanoTime();
+            for (final List<ByteBuffer> sampleParts : rawChunks) {
+                final byte[] samples = sampleCoder.combineSampleBuffers(sampleParts);
+                aggregatedChunks.add(samples);
+                result.bytes += samples.length;
+            }
+            result.aggregateNanos = System.nanoTime() - startNanos;
+        }
+
+        final CountingSampleProcessor processor = new CountingSampleProcessor();
+        final int sampleCount = SAMPLES_PER_RAW_CHUNK * CHUNKS_TO_AGGREGATE;
+        for (int round = 0; round <= WARMUP_ROUNDS; round++) {
+            final long startNanos = System.nanoTime();
+            for (final byte[] samples : aggregatedChunks) {
+                sampleCoder.scan(samples, times, sampleCount, processor);
+            }
+            result.scanNanos = System.nanoTime() - startNanos;
+        }
+        if (processor.count != (WARMUP_ROUNDS + 1L) * sampleCount * aggregatedChunks.size()) {
+            throw new IllegalStateException("Scanned " + processor.count + " samples");
+        }
+        return result;
+    }
+
+    private static byte[] createTimes() {
+        final List<DateTime> dateTimes = new ArrayList<DateTime>();
+        final DateTime startTime = new DateTime(2014, 1, 1, 0, 0, DateTimeZone.UTC);
+        for (int i = 0; i < SAMPLES_PER_RAW_CHUNK * CHUNKS_TO_AGGREGATE; i++) {
+            dateTimes.add(startTime.plusSeconds(i * 30));
+        }
+        return timelineCoder.compressDateTimes(dateTimes);
+    }
+
+    private static List<List<ByteBuffer>> createRawChunks(final Kind kind, final int chunkCount) {
+        final List<List<ByteBuffer>> chunks = new ArrayList<List<ByteBuffer>>(chunkCount);
+        final SyntheticSeriesGenerator series = new SyntheticSeriesGenerator(kind);
+        for (int i = 0; i < chunkCount; i++) {
+            final List<ByteBuffer> sampleParts = new ArrayList<ByteBuffer>(CHUNKS_TO_AGGREGATE);
+            for (int j = 0; j < CHUNKS_TO_AGGREGATE; j++) {
+                sampleParts.add(ByteBuffer.wrap(series.nextRawChunk(SAMPLES_PER_RAW_CHUNK).getSampleBytes()));
+            }
+            chunks.add(sampleParts);
+        }
+        return chunks;
+    }
+
+    private static final class Result {
+
+        private long bytes;
+        private long aggregateNanos;
+        private long scanNanos;
+    }
+
+    private static final class CountingSampleProcessor implements SampleProcessor {
+
+        private long count = 0;
+
+        @Override
+        public void processSamples(final TimelineCursor timeCursor, final int sampleCount, final SampleOpcode opcode, final Object value) {
+            count += sampleCount;
+        }
+    }
+}
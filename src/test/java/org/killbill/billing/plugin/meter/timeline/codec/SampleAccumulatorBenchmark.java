@@ -0,0 +1,90 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.timeline.codec;
+
+import java.util.Random;
+
+import org.killbill.billing.plugin.meter.timeline.samples.SampleOpcode;
+import org.killbill.billing.plugin.meter.timeline.samples.ScalarSample;
+
+/**
+ * Compares the cost of adding samples to a SampleAccumulator with compressSample() and addSample(),
+ * as done before, and with the primitive addLong() and addDouble().
+ * <p/>
+ * Run with: java -cp ... org.killbill.billing.plugin.meter.timeline.codec.SampleAccumulatorBenchmark [sampleCount]
+ */
+public class SampleAccumulatorBenchmark {
+
+    private static final int DEFAULT_SAMPLE_COUNT = 10000000;
+    private static final int WARMUP_ROUNDS = 3;
+    // Samples per chunk, i.e. between two resets of the accumulator
+    private static final int CHUNK_SAMPLE_COUNT = 120;
+
+    private static final SampleCoder sampleCoder = new DefaultSampleCoder();
+
+    public static void main(final String[] args) {
+        final int sampleCount = args.length > 0 ? Integer.valueOf(args[0]) : DEFAULT_SAMPLE_COUNT;
+
+        // Samples as TimelineEventHandler gets them: already boxed
+        final Random random = new Random(0);
+        final ScalarSample[] longSamples = new ScalarSample[sampleCount];
+        final ScalarSample[] doubleSamples = new ScalarSample[sampleCount];
+        long counter = 0;
+        double gauge = 512.0;
+        for (int i = 0; i < sampleCount; i++) {
+            counter += random.nextInt(500);
+            longSamples[i] = new ScalarSample<Long>(SampleOpcode.LONG, counter);
+            gauge = Math.max(0, gauge + random.nextGaussian() * 8);
+            doubleSamples[i] = new ScalarSample<Double>(SampleOpcode.DOUBLE, gauge);
+        }
+
+        run("long", longSamples, sampleCount);
+        run("double", doubleSamples, sampleCount);
+    }
+
+    private static void run(final String kind, final ScalarSample[] samples, final int sampleCount) {
+        for (final boolean primitive : new boolean[]{false, true}) {
+            for (int round = 0; round <= WARMUP_ROUNDS; round++) {
+                final SampleAccumulator accumulator = new SampleAccumulator(sampleCoder);
+                long bytes = 0;
+                final long startNanos = System.nanoTime();
+                for (int i = 0; i < sampleCount; i++) {
+                    final ScalarSample sample = samples[i];
+                    if (!primitive) {
+                        accumulator.addSample(sampleCoder.compressSample(sample));
+                    } else if (sample.getOpcode() == SampleOpcode.LONG) {
+                        accumulator.addLong(((Number) sample.getSampleValue()).longValue());
+                    } else {
+                        accumulator.addDouble((Double) sample.getSampleValue());
+                    }
+                    if (accumulator.getSampleCount() == CHUNK_SAMPLE_COUNT) {
+                        bytes += accumulator.getEncodedSamples().getEncodedBytes().length;
+                        accumulator.reset();
+                    }
+                }
+                final long elapsedNanos = System.nanoTime() - startNanos;
+
+                if (round == WARMUP_ROUNDS) {
+                    System.out.println(String.format("%-6s %-9s %,d samples in %,d ms (%,.0f samples/s, %,d bytes)",
+                                                     kind, primitive ? "primitive" : "scalar", sampleCount, elapsedNanos / 1000000,
+                                                     sampleCount / (elapsedNanos / 1e9), bytes));
+                }
+            }
+        }
+    }
+}
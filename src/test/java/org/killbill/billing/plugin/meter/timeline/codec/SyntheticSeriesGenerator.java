@@ -0,0 +1,99 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.timeline.codec;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.killbill.billing.plugin.meter.timeline.chunks.TimeBytesAndSampleBytes;
+import org.killbill.billing.plugin.meter.timeline.samples.SampleOpcode;
+import org.killbill.billing.plugin.meter.timeline.samples.ScalarSample;
+import org.killbill.billing.plugin.meter.timeline.times.DefaultTimelineCoder;
+import org.killbill.billing.plugin.meter.timeline.times.TimelineCoder;
+
+/**
+ * Generates the raw chunks of a synthetic series, for the codec benchmarks: 30s polling (with some jitter),
+ * samples encoded the way the accumulators do (default encoding, compressed samples).
+ * <p/>
+ * The series is deterministic for a given kind.
+ */
+public class SyntheticSeriesGenerator {
+
+    public enum Kind {
+        // Random walk, e.g. heap usage
+        GAUGE,
+        // Monotonic, e.g. requests served
+        COUNTER,
+        // Monotonic at a steady rate, e.g. uptime
+        STEADY_COUNTER,
+        // Mostly constant, e.g. error count
+        FLAT
+    }
+
+    private static final TimelineCoder timelineCoder = new DefaultTimelineCoder();
+    private static final SampleCoder sampleCoder = new DefaultSampleCoder();
+
+    private final Kind kind;
+    private final Random random;
+    private final TimelineChunkAccumulator accumulator = new TimelineChunkAccumulator(1, 1, sampleCoder);
+
+    private long time = new DateTime(2014, 1, 1, 0, 0, DateTimeZone.UTC).getMillis();
+    private double gauge = 512.0;
+    private long counter = 0;
+
+    public SyntheticSeriesGenerator(final Kind kind) {
+        this.kind = kind;
+        this.random = new Random(kind.ordinal());
+    }
+
+    /**
+     * @param sampleCount number of samples of the chunk
+     * @return the times and samples of the next chunk of the series
+     */
+    public TimeBytesAndSampleBytes nextRawChunk(final int sampleCount) {
+        final List<DateTime> dateTimes = new ArrayList<DateTime>(sampleCount);
+        for (int i = 0; i < sampleCount; i++) {
+            // Polling is not exactly periodic
+            time += 30000 + (random.nextInt(10) == 0 ? random.nextInt(3) - 1 : 0) * 1000;
+            dateTimes.add(new DateTime(time, DateTimeZone.UTC));
+            accumulator.addSample(sampleCoder.compressSample(nextSample()));
+        }
+        final byte[] timeBytes = timelineCoder.compressDateTimes(dateTimes);
+        return accumulator.extractTimelineChunkAndReset(dateTimes.get(0), dateTimes.get(dateTimes.size() - 1), timeBytes)
+                          .getTimeBytesAndSampleBytes();
+    }
+
+    private ScalarSample nextSample() {
+        switch (kind) {
+            case GAUGE:
+                gauge = Math.max(0, gauge + random.nextGaussian() * 8);
+                return new ScalarSample<Double>(SampleOpcode.DOUBLE, gauge);
+            case COUNTER:
+                counter += random.nextInt(500);
+                return new ScalarSample<Long>(SampleOpcode.LONG, counter);
+            case STEADY_COUNTER:
+                counter += 30;
+                return new ScalarSample<Long>(SampleOpcode.LONG, counter);
+            default:
+                return new ScalarSample<Integer>(SampleOpcode.INT, random.nextInt(200) == 0 ? 1 : 0);
+        }
+    }
+}
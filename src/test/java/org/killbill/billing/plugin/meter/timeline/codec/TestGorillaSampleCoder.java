@@ -0,0 +1,179 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.timeline.codec;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.killbill.billing.plugin.meter.MeterTestSuiteNoDB;
+import org.killbill.billing.plugin.meter.timeline.consumer.SampleProcessor;
+import org.killbill.billing.plugin.meter.timeline.samples.SampleOpcode;
+import org.killbill.billing.plugin.meter.timeline.samples.ScalarSample;
+import org.killbill.billing.plugin.meter.timeline.times.DefaultTimelineCoder;
+import org.killbill.billing.plugin.meter.timeline.times.TimelineCoder;
+import org.killbill.billing.plugin.meter.timeline.times.TimelineCursor;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestGorillaSampleCoder extends MeterTestSuiteNoDB {
+
+    private static final TimelineCoder timelineCoder = new DefaultTimelineCoder();
+    private static final SampleCoder defaultSampleCoder = new DefaultSampleCoder();
+    private static final SampleCoder gorillaSampleCoder = new GorillaSampleCoder();
+
+    @Test(groups = "fast")
+    public void testRoundTrip() throws Exception {
+        final List<ScalarSample> samples = new ArrayList<ScalarSample>();
+        samples.add(new ScalarSample(SampleOpcode.INT_ZERO, 0));
+        samples.add(new ScalarSample(SampleOpcode.LONG, Long.MAX_VALUE));
+        samples.add(new ScalarSample(SampleOpcode.LONG, Long.MIN_VALUE));
+        samples.add(new ScalarSample(SampleOpcode.BYTE, (byte) -3));
+        samples.add(new ScalarSample(SampleOpcode.SHORT, (short) 1200));
+        samples.add(new ScalarSample(SampleOpcode.DOUBLE, 12.34));
+        samples.add(new ScalarSample(SampleOpcode.DOUBLE, -0.0));
+        samples.add(new ScalarSample(SampleOpcode.DOUBLE, Double.NaN));
+        samples.add(new ScalarSample(SampleOpcode.FLOAT, 1.5f));
+        samples.add(new ScalarSample(SampleOpcode.DOUBLE_ZERO, null));
+        samples.add(new ScalarSample(SampleOpcode.NULL, null));
+        samples.add(new ScalarSample(SampleOpcode.STRING, "r\u00e9sum\u00e9"));
+        samples.add(new ScalarSample(SampleOpcode.BIGINT, new BigInteger("123456789012345678901234567890")));
+        for (int i = 0; i < 100; i++) {
+            samples.add(new ScalarSample(SampleOpcode.INT, 1000 + i * 7));
+        }
+
+        final byte[] sampleBytes = gorillaSampleCoder.compressSamples(samples);
+        Assert.assertTrue(GorillaSampleCoder.isGorillaEncoded(sampleBytes));
+
+        // Both coders decode the bit stream
+        for (final SampleCoder sampleCoder : new SampleCoder[]{gorillaSampleCoder, defaultSampleCoder}) {
+            final List<ScalarSample> decodedSamples = sampleCoder.decompressSamples(sampleBytes);
+            Assert.assertEquals(decodedSamples.size(), samples.size());
+            for (int i = 0; i < samples.size(); i++) {
+                Assert.assertEquals(decodedSamples.get(i).getOpcode(), samples.get(i).getOpcode());
+                if (samples.get(i).getOpcode() == SampleOpcode.DOUBLE_ZERO) {
+                    Assert.assertEquals(decodedSamples.get(i).getSampleValue(), 0.0);
+                } else if (samples.get(i).getSampleValue() != null) {
+                    Assert.assertEquals(decodedSamples.get(i).getSampleValue(), samples.get(i).getSampleValue());
+                }
+            }
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testDoublesAreNotNarrowed() throws Exception {
+        final List<ScalarSample> samples = new ArrayList<ScalarSample>();
+        final Random random = new Random(0);
+        for (int i = 0; i < 500; i++) {
+            samples.add(new ScalarSample(SampleOpcode.DOUBLE, random.nextGaussian() * 1000));
+        }
+        final List<ScalarSample> decodedSamples = gorillaSampleCoder.decompressSamples(gorillaSampleCoder.compressSamples(samples));
+        for (int i = 0; i < samples.size(); i++) {
+            Assert.assertEquals(decodedSamples.get(i).getSampleValue(), samples.get(i).getSampleValue());
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testRawDoublesAreNotNarrowed() throws Exception {
+        // Within the max fraction error of the default encoding, which would store it as a half float
+        final double value = 0.1 + 1e-9;
+        Assert.assertEquals(defaultSampleCoder.getCompressedOpcode(value), SampleOpcode.HALF_FLOAT_FOR_DOUBLE);
+        Assert.assertEquals(gorillaSampleCoder.getCompressedOpcode(value), SampleOpcode.DOUBLE);
+        Assert.assertEquals(gorillaSampleCoder.compressSample(new ScalarSample(SampleOpcode.DOUBLE, value)).getOpcode(), SampleOpcode.DOUBLE);
+
+        // Raw chunk, as accumulated from the samples (boxed or not), then aggregated
+        final SampleAccumulator accumulator = new SampleAccumulator(gorillaSampleCoder);
+        accumulator.addSample(gorillaSampleCoder.compressSample(new ScalarSample(SampleOpcode.DOUBLE, value)));
+        accumulator.addDouble(value);
+        accumulator.addDouble(-value);
+        final List<ByteBuffer> sampleBuffers = new ArrayList<ByteBuffer>();
+        sampleBuffers.add(ByteBuffer.wrap(accumulator.getEncodedSamples().getEncodedBytes()));
+        final byte[] aggregated = gorillaSampleCoder.combineSampleBuffers(sampleBuffers);
+
+        final List<ScalarSample> decodedSamples = gorillaSampleCoder.decompressSamples(aggregated);
+        Assert.assertEquals(decodedSamples.size(), 3);
+        final double[] expectedValues = new double[]{value, value, -value};
+        for (int i = 0; i < expectedValues.length; i++) {
+            Assert.assertEquals(decodedSamples.get(i).getOpcode(), SampleOpcode.DOUBLE);
+            Assert.assertEquals(Double.doubleToRawLongBits((Double) decodedSamples.get(i).getSampleValue()), Double.doubleToRawLongBits(expectedValues[i]));
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testSteadyCounterIsSmall() throws Exception {
+        final List<ScalarSample> samples = new ArrayList<ScalarSample>();
+        for (int i = 0; i < 1000; i++) {
+            samples.add(new ScalarSample(SampleOpcode.LONG, 1000000L + i * 25));
+        }
+        final byte[] sampleBytes = gorillaSampleCoder.compressSamples(samples);
+        // Two bits per sample once the delta is known
+        Assert.assertTrue(sampleBytes.length < 300, "Got " + sampleBytes.length + " bytes");
+        Assert.assertTrue(sampleBytes.length < defaultSampleCoder.compressSamples(samples).length);
+    }
+
+    @Test(groups = "fast")
+    public void testScanPassesRepeats() throws Exception {
+        final DateTime startTime = new DateTime(DateTimeZone.UTC).withMillisOfSecond(0);
+        final List<ScalarSample> samples = new ArrayList<ScalarSample>();
+        final List<DateTime> dateTimes = new ArrayList<DateTime>();
+        for (int i = 0; i < 30; i++) {
+            samples.add(new ScalarSample(SampleOpcode.DOUBLE, i < 10 ? 2.5 : 3.5));
+            dateTimes.add(startTime.plusSeconds(i * 30));
+        }
+        final byte[] times = timelineCoder.compressDateTimes(dateTimes);
+        final byte[] sampleBytes = gorillaSampleCoder.compressSamples(samples);
+
+        final List<String> scanned = new ArrayList<String>();
+        defaultSampleCoder.scan(sampleBytes, times, samples.size(), new SampleProcessor() {
+            @Override
+            public void processSamples(final TimelineCursor timeCursor, final int sampleCount, final SampleOpcode opcode, final Object value) {
+                scanned.add(sampleCount + "x" + value + "@" + timeCursor.getNextTime().getMillis() / 1000);
+            }
+        });
+        Assert.assertEquals(scanned.size(), 2);
+        Assert.assertEquals(scanned.get(0), "10x2.5@" + startTime.getMillis() / 1000);
+        Assert.assertEquals(scanned.get(1), "20x3.5@" + startTime.plusSeconds(300).getMillis() / 1000);
+    }
+
+    @Test(groups = "fast")
+    public void testCombineMixedEncodings() throws Exception {
+        final List<ScalarSample> firstSamples = new ArrayList<ScalarSample>();
+        final List<ScalarSample> secondSamples = new ArrayList<ScalarSample>();
+        for (int i = 0; i < 50; i++) {
+            firstSamples.add(new ScalarSample(SampleOpcode.INT, i));
+            secondSamples.add(new ScalarSample(SampleOpcode.INT, 50 + i));
+        }
+        final List<ByteBuffer> sampleBuffers = new ArrayList<ByteBuffer>();
+        sampleBuffers.add(ByteBuffer.wrap(defaultSampleCoder.compressSamples(firstSamples)));
+        sampleBuffers.add(ByteBuffer.wrap(gorillaSampleCoder.compressSamples(secondSamples)));
+
+        for (final SampleCoder sampleCoder : new SampleCoder[]{gorillaSampleCoder, defaultSampleCoder}) {
+            final byte[] combined = sampleCoder.combineSampleBuffers(sampleBuffers);
+            Assert.assertEquals(GorillaSampleCoder.isGorillaEncoded(combined), sampleCoder == gorillaSampleCoder);
+            final List<ScalarSample> decodedSamples = sampleCoder.decompressSamples(combined);
+            Assert.assertEquals(decodedSamples.size(), 100);
+            for (int i = 0; i < 100; i++) {
+                Assert.assertEquals(((Number) decodedSamples.get(i).getSampleValue()).intValue(), i);
+            }
+        }
+    }
+}
@@ -29,6 +29,9 @@ import org.joda.time.DateTimeZone;
 import org.joda.time.format.DateTimeFormatter;
 import org.joda.time.format.ISODateTimeFormat;
 import org.killbill.billing.plugin.meter.MeterTestSuiteNoDB;
+import org.killbill.billing.plugin.meter.timeline.chunks.TimeBytesAndSampleBytes;
+import org.killbill.billing.plugin.meter.timeline.chunks.TimelineChunk;
+import org.killbill.billing.plugin.meter.timeline.chunks.TimelineSkipIndex;
 import org.killbill.billing.plugin.meter.timeline.consumer.TimeRangeSampleProcessor;
 import org.killbill.billing.plugin.meter.timeline.samples.RepeatSample;
 import org.killbill.billing.plugin.meter.timeline.samples.SampleOpcode;
@@ -105,6 +108,65 @@ public class TestSampleCoder extends MeterTestSuiteNoDB {
     }
 
     @SuppressWarnings("unchecked")
+    @Test(groups = "fast")
+    public void testScanWithSkipIndex() throws Exception {
+        // Mix of regular and irregular times, single and repeated samples
+        final DateTime firstTime = new DateTime(2012, 12, 1, 0, 0, DateTimeZone.UTC);
+        final Random random = new Random(42);
+        final List<DateTime> dateTimes = new ArrayList<DateTime>();
+        final List<ScalarSample> samples = new ArrayList<ScalarSample>();
+        DateTime time = firstTime;
+        for (int i = 0; i < 5000; i++) {
+            time = time.plusSeconds(random.nextInt(10) == 0 ? 300 + random.nextInt(3) : 30);
+            dateTimes.add(time);
+            samples.add(new ScalarSample<Long>(SampleOpcode.LONG, random.nextInt(4) == 0 ? (long) random.nextInt(3) : 1000L));
+        }
+        final byte[] times = timelineCoder.compressDateTimes(dateTimes);
+        final byte[] sampleBytes = sampleCoder.compressSamples(samples);
+
+        final TimelineSkipIndex skipIndex = sampleCoder.buildSkipIndex(sampleBytes, times, dateTimes.size(), 100);
+        Assert.assertTrue(skipIndex.getEntryCount() > 20);
+        final TimeBytesAndSampleBytes bytes = new TimeBytesAndSampleBytes(times, sampleBytes);
+        final TimelineChunk chunk = new TimelineChunk(0, 1, 2, 0, 0, bytes, dateTimes.size(), 1, false, false);
+        final TimelineChunk indexedChunk = new TimelineChunk(0, 1, 2, 0, 0, bytes, dateTimes.size(), 1, false, false, skipIndex);
+
+        for (final int rangeStart : new int[]{0, 1, 99, 100, 101, 2500, 4990, 4999}) {
+            final DateTime rangeStartTime = dateTimes.get(rangeStart);
+            final DateTime rangeEndTime = dateTimes.get(Math.min(rangeStart + 120, dateTimes.size() - 1));
+            final List<String> expected = scanToStrings(chunk, rangeStartTime, rangeEndTime);
+            Assert.assertEquals(scanToStrings(indexedChunk, rangeStartTime, rangeEndTime), expected);
+            Assert.assertEquals(expected.size(), Math.min(rangeStart + 120, dateTimes.size() - 1) - rangeStart + 1);
+            // Start time between two samples
+            Assert.assertEquals(scanToStrings(indexedChunk, rangeStartTime.minusSeconds(1), rangeEndTime), scanToStrings(chunk, rangeStartTime.minusSeconds(1), rangeEndTime));
+        }
+
+        // Only the samples from the closest entry on are decoded
+        final AtomicInteger decodedSamples = new AtomicInteger();
+        sampleCoder.scan(indexedChunk, new TimeRangeSampleProcessor(dateTimes.get(4000), null) {
+            @Override
+            public void processOneSample(final DateTime time, final SampleOpcode opcode, final Object value) {
+            }
+
+            @Override
+            public void processSamples(final TimelineCursor timeCursor, final int sampleCount, final SampleOpcode opcode, final Object value) {
+                decodedSamples.addAndGet(sampleCount);
+                super.processSamples(timeCursor, sampleCount, opcode, value);
+            }
+        });
+        Assert.assertTrue(decodedSamples.get() <= 1000 + 100 + 255, "Decoded " + decodedSamples.get() + " samples");
+    }
+
+    private List<String> scanToStrings(final TimelineChunk chunk, final DateTime startTime, final DateTime endTime) throws Exception {
+        final List<String> result = new ArrayList<String>();
+        sampleCoder.scan(chunk, new TimeRangeSampleProcessor(startTime, endTime) {
+            @Override
+            public void processOneSample(final DateTime time, final SampleOpcode opcode, final Object value) {
+                result.add(DateTimeUtils.unixSeconds(time) + "=" + value);
+            }
+        });
+        return result;
+    }
+
     @Test(groups = "fast")
     public void testCombineSampleBytes() throws Exception {
         final ScalarSample[] samplesToChoose = new ScalarSample[]{new ScalarSample(SampleOpcode.DOUBLE, 2.0),
@@ -19,6 +19,7 @@ package org.killbill.billing.plugin.meter.timeline.codec;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Random;
 
 import org.joda.time.DateTime;
 import org.killbill.billing.plugin.meter.MeterTestSuiteNoDB;
@@ -160,4 +161,40 @@ public class TestTimelineChunkAccumulator extends MeterTestSuiteNoDB {
             }
         });
     }
+
+    @Test(groups = "fast")
+    public void testPrimitiveSamples() throws Exception {
+        final TimelineChunkAccumulator primitiveAccum = new TimelineChunkAccumulator(1, 2, sampleCoder);
+        final TimelineChunkAccumulator scalarAccum = new TimelineChunkAccumulator(1, 2, sampleCoder);
+        final double[] doubles = {0.0, 1.0, -3.0, 12.25, 1000.0, 100000.5, 1.0E300, -1.0E-300, Double.NaN, 0.001};
+        final long[] longs = {0, 1, -1, 127, -129, 32767, 70000, -3000000000L, Long.MAX_VALUE};
+        final Random random = new Random(0);
+        TimelineChunkAccumulator copy = null;
+        for (int i = 0; i < 2000; i++) {
+            // Runs of repeated values, long enough to need REPEAT_SHORT
+            final int repeat = random.nextInt(10) == 0 ? 300 : 1 + random.nextInt(3);
+            final int kind = random.nextInt(3);
+            final double doubleValue = doubles[random.nextInt(doubles.length)];
+            final long longValue = longs[random.nextInt(longs.length)];
+            for (int r = 0; r < repeat; r++) {
+                if (kind == 0) {
+                    primitiveAccum.addDouble(doubleValue);
+                    scalarAccum.addSample(sampleCoder.compressSample(new ScalarSample<Double>(SampleOpcode.DOUBLE, doubleValue)));
+                } else if (kind == 1) {
+                    primitiveAccum.addLong(longValue);
+                    scalarAccum.addSample(sampleCoder.compressSample(new ScalarSample<Long>(SampleOpcode.LONG, longValue)));
+                } else {
+                    primitiveAccum.addSample(new ScalarSample<Void>(SampleOpcode.NULL, null));
+                    scalarAccum.addSample(new ScalarSample<Void>(SampleOpcode.NULL, null));
+                }
+            }
+            if (i == 1000) {
+                copy = primitiveAccum.deepCopy();
+                Assert.assertEquals(copy.getEncodedSamples().getEncodedBytes(), scalarAccum.deepCopy().getEncodedSamples().getEncodedBytes());
+            }
+        }
+        Assert.assertEquals(primitiveAccum.getSampleCount(), scalarAccum.getSampleCount());
+        Assert.assertEquals(primitiveAccum.getEncodedSamples().getEncodedBytes(), scalarAccum.getEncodedSamples().getEncodedBytes());
+        Assert.assertNotNull(copy);
+    }
 }
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.timeline.codec;
+
+import java.util.Random;
+
+import org.killbill.billing.plugin.meter.MeterTestSuiteNoDB;
+import org.killbill.billing.plugin.meter.timeline.chunks.TimeBytesAndSampleBytes;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestTimesAndSamplesCoder extends MeterTestSuiteNoDB {
+
+    @Test(groups = "fast")
+    public void testCompressionRoundTrip() throws Exception {
+        final byte[] times = new byte[3000];
+        final byte[] samples = new byte[5000];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = (byte) (i % 7);
+        }
+        final byte[] timesAndSamples = TimesAndSamplesCoder.combineTimesAndSamples(times, samples);
+
+        final byte[] compressed = TimesAndSamplesCoder.compress(timesAndSamples);
+        Assert.assertEquals(compressed[0], TimesAndSamplesCoder.DEFLATE_MARKER);
+        Assert.assertTrue(compressed.length < timesAndSamples.length / 10);
+
+        final TimeBytesAndSampleBytes decoded = TimesAndSamplesCoder.getTimesBytesAndSampleBytes(TimesAndSamplesCoder.decompress(compressed));
+        Assert.assertEquals(decoded.getTimeBytes(), times);
+        Assert.assertEquals(decoded.getSampleBytes(), samples);
+    }
+
+    @Test(groups = "fast")
+    public void testIncompressiblePayload() throws Exception {
+        final byte[] samples = new byte[1000];
+        new Random(42).nextBytes(samples);
+        final byte[] timesAndSamples = TimesAndSamplesCoder.combineTimesAndSamples(new byte[0], samples);
+
+        // Kept as is
+        Assert.assertSame(TimesAndSamplesCoder.compress(timesAndSamples), timesAndSamples);
+        Assert.assertEquals(TimesAndSamplesCoder.compress(new byte[4]).length, 4);
+    }
+
+    @Test(groups = "fast")
+    public void testUncompressedPayloadsAreReadAsIs() throws Exception {
+        final byte[] timesAndSamples = TimesAndSamplesCoder.combineTimesAndSamples(new byte[]{1, 2}, new byte[]{3, 4, 5});
+        Assert.assertSame(TimesAndSamplesCoder.decompress(timesAndSamples), timesAndSamples);
+        Assert.assertEquals(TimesAndSamplesCoder.decompress(new byte[0]).length, 0);
+    }
+}
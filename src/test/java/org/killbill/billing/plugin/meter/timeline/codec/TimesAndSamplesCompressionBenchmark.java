@@ -0,0 +1,167 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.timeline.codec;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.killbill.billing.plugin.meter.timeline.chunks.TimeBytesAndSampleBytes;
+import org.killbill.billing.plugin.meter.timeline.codec.SyntheticSeriesGenerator.Kind;
+import org.killbill.billing.plugin.meter.timeline.consumer.SampleProcessor;
+import org.killbill.billing.plugin.meter.timeline.samples.SampleOpcode;
+import org.killbill.billing.plugin.meter.timeline.times.DefaultTimelineCoder;
+import org.killbill.billing.plugin.meter.timeline.times.TimelineCoder;
+import org.killbill.billing.plugin.meter.timeline.times.TimelineCursor;
+
+/**
+ * Measures the bytes stored and the decoding cost of compressed timesAndSamples (see TimesAndSamplesCoder),
+ * on chunks aggregated the way TimelineAggregator does: hourly raw chunks (30s polling, with some jitter),
+ * combined 12 at a time (level 1), then 4 at a time (level 2). The series come from SyntheticSeriesGenerator.
+ * <p/>
+ * Run with: java -cp ... org.killbill.billing.plugin.meter.timeline.codec.TimesAndSamplesCompressionBenchmark [chunkCount]
+ */
+public class TimesAndSamplesCompressionBenchmark {
+
+    private static final int DEFAULT_CHUNK_COUNT = 200;
+    private static final int WARMUP_ROUNDS = 3;
+    private static final int SAMPLES_PER_RAW_CHUNK = 120;
+    private static final int[] CHUNKS_TO_AGGREGATE = {12, 4};
+
+    private static final TimelineCoder timelineCoder = new DefaultTimelineCoder();
+    private static final SampleCoder sampleCoder = new DefaultSampleCoder();
+
+    public static void main(final String[] args) throws IOException {
+        final int chunkCount = args.length > 0 ? Integer.valueOf(args[0]) : DEFAULT_CHUNK_COUNT;
+
+        for (final Kind kind : Kind.values()) {
+            List<byte[]> chunks = createRawChunks(kind, chunkCount * CHUNKS_TO_AGGREGATE[0] * CHUNKS_TO_AGGREGATE[1]);
+            for (int level = 1; level <= CHUNKS_TO_AGGREGATE.length; level++) {
+                chunks = aggregate(chunks, CHUNKS_TO_AGGREGATE[level - 1]);
+                measure(kind, level, chunks);
+            }
+        }
+    }
+
+    private static void measure(final Kind kind, final int level, final List<byte[]> chunks) throws IOException {
+        final List<byte[]> compressedChunks = new ArrayList<byte[]>(chunks.size());
+        long bytes = 0;
+        long compressedBytes = 0;
+        long compressNanos = 0;
+        for (int round = 0; round <= WARMUP_ROUNDS; round++) {
+            compressedChunks.clear();
+            bytes = 0;
+            compressedBytes = 0;
+            final long startNanos = System.nanoTime();
+            for (final byte[] chunk : chunks) {
+                final byte[] compressed = TimesAndSamplesCoder.compress(chunk);
+                compressedChunks.add(compressed);
+                bytes += chunk.length;
+                compressedBytes += compressed.length;
+            }
+            compressNanos = System.nanoTime() - startNanos;
+        }
+
+        final long plainDecodeNanos = decode(chunks);
+        final long compressedDecodeNanos = decode(compressedChunks);
+        final long plainScanNanos = scan(chunks);
+        final long compressedScanNanos = scan(compressedChunks);
+
+        System.out.println(String.format("%-14s level %d: %,6d chunks, %,7d -> %,7d bytes/chunk (%.1f%%), compress %,6.1f us/chunk, " +
+                                         "decode %,6.1f -> %,6.1f us/chunk, decode and scan %,7.1f -> %,7.1f us/chunk",
+                                         kind, level, chunks.size(), bytes / chunks.size(), compressedBytes / chunks.size(), 100.0 * compressedBytes / bytes,
+                                         compressNanos / 1e3 / chunks.size(),
+                                         plainDecodeNanos / 1e3 / chunks.size(), compressedDecodeNanos / 1e3 / chunks.size(),
+                                         plainScanNanos / 1e3 / chunks.size(), compressedScanNanos / 1e3 / chunks.size()));
+    }
+
+    // What TimelineChunkMapper does
+    private static long decode(final List<byte[]> storedChunks) {
+        long elapsedNanos = 0;
+        long checksum = 0;
+        for (int round = 0; round <= WARMUP_ROUNDS; round++) {
+            final long startNanos = System.nanoTime();
+            for (final byte[] storedChunk : storedChunks) {
+                final TimeBytesAndSampleBytes bytesPair = TimesAndSamplesCoder.getTimesBytesAndSampleBytes(TimesAndSamplesCoder.decompress(storedChunk));
+                checksum += bytesPair.getSampleBytes().length;
+            }
+            elapsedNanos = System.nanoTime() - startNanos;
+        }
+        if (checksum == 42) {
+            System.out.println();
+        }
+        return elapsedNanos;
+    }
+
+    private static long scan(final List<byte[]> storedChunks) throws IOException {
+        long elapsedNanos = 0;
+        final CountingSampleProcessor processor = new CountingSampleProcessor();
+        for (int round = 0; round <= WARMUP_ROUNDS; round++) {
+            final long startNanos = System.nanoTime();
+            for (final byte[] storedChunk : storedChunks) {
+                final TimeBytesAndSampleBytes bytesPair = TimesAndSamplesCoder.getTimesBytesAndSampleBytes(TimesAndSamplesCoder.decompress(storedChunk));
+                final int sampleCount = timelineCoder.countTimeBytesSamples(bytesPair.getTimeBytes());
+                sampleCoder.scan(bytesPair.getSampleBytes(), bytesPair.getTimeBytes(), sampleCount, processor);
+            }
+            elapsedNanos = System.nanoTime() - startNanos;
+        }
+        if (processor.count == 42) {
+            System.out.println();
+        }
+        return elapsedNanos;
+    }
+
+    private static List<byte[]> createRawChunks(final Kind kind, final int chunkCount) {
+        final List<byte[]> chunks = new ArrayList<byte[]>(chunkCount);
+        final SyntheticSeriesGenerator series = new SyntheticSeriesGenerator(kind);
+        for (int i = 0; i < chunkCount; i++) {
+            final TimeBytesAndSampleBytes bytesPair = series.nextRawChunk(SAMPLES_PER_RAW_CHUNK);
+            chunks.add(TimesAndSamplesCoder.combineTimesAndSamples(bytesPair.getTimeBytes(), bytesPair.getSampleBytes()));
+        }
+        return chunks;
+    }
+
+    // What TimelineAggregator does
+    private static List<byte[]> aggregate(final List<byte[]> chunks, final int chunksToAggregate) {
+        final List<byte[]> aggregatedChunks = new ArrayList<byte[]>();
+        for (int i = 0; i + chunksToAggregate <= chunks.size(); i += chunksToAggregate) {
+            final List<byte[]> timeParts = new ArrayList<byte[]>(chunksToAggregate);
+            final List<byte[]> sampleParts = new ArrayList<byte[]>(chunksToAggregate);
+            int sampleCount = 0;
+            for (final byte[] chunk : chunks.subList(i, i + chunksToAggregate)) {
+                final TimeBytesAndSampleBytes bytesPair = TimesAndSamplesCoder.getTimesBytesAndSampleBytes(chunk);
+                timeParts.add(bytesPair.getTimeBytes());
+                sampleParts.add(bytesPair.getSampleBytes());
+                sampleCount += timelineCoder.countTimeBytesSamples(bytesPair.getTimeBytes());
+            }
+            aggregatedChunks.add(TimesAndSamplesCoder.combineTimesAndSamples(timelineCoder.combineTimelines(timeParts, sampleCount),
+                                                                            sampleCoder.combineSampleBytes(sampleParts)));
+        }
+        return aggregatedChunks;
+    }
+
+    private static final class CountingSampleProcessor implements SampleProcessor {
+
+        private long count = 0;
+
+        @Override
+        public void processSamples(final TimelineCursor timeCursor, final int sampleCount, final SampleOpcode opcode, final Object value) {
+            count += sampleCount;
+        }
+    }
+}
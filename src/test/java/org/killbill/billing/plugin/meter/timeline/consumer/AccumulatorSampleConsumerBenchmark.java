@@ -0,0 +1,78 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.timeline.consumer;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.killbill.billing.plugin.meter.api.TimeAggregationMode;
+import org.killbill.billing.plugin.meter.timeline.samples.SampleOpcode;
+
+/**
+ * Measures the throughput of AccumulatorSampleConsumer, for each aggregation mode.
+ * <p/>
+ * Run with: java -cp ... org.killbill.billing.plugin.meter.timeline.consumer.AccumulatorSampleConsumerBenchmark [sampleCount]
+ */
+public class AccumulatorSampleConsumerBenchmark {
+
+    private static final int DEFAULT_SAMPLE_COUNT = 10000000;
+    private static final int WARMUP_ROUNDS = 3;
+
+    public static void main(final String[] args) {
+        final int sampleCount = args.length > 0 ? Integer.valueOf(args[0]) : DEFAULT_SAMPLE_COUNT;
+
+        // Decoded samples are one second apart, as DateTime instances (see TimelineCursor)
+        final DateTime start = new DateTime(2012, 1, 1, 0, 0, DateTimeZone.UTC);
+        final DateTime[] times = new DateTime[sampleCount];
+        for (int i = 0; i < sampleCount; i++) {
+            times[i] = new DateTime(start.getMillis() + i * 1000L, DateTimeZone.UTC);
+        }
+        final Integer value = 12;
+
+        for (final TimeAggregationMode timeAggregationMode : TimeAggregationMode.values()) {
+            for (int round = 0; round <= WARMUP_ROUNDS; round++) {
+                final CountingSampleProcessor counter = new CountingSampleProcessor();
+                final AccumulatorSampleConsumer accumulator = new AccumulatorSampleConsumer(timeAggregationMode, counter);
+
+                final long startNanos = System.nanoTime();
+                for (int i = 0; i < sampleCount; i++) {
+                    accumulator.processOneSample(times[i], SampleOpcode.INT, value);
+                }
+                accumulator.flushAccumulators();
+                final long elapsedNanos = System.nanoTime() - startNanos;
+
+                if (round == WARMUP_ROUNDS) {
+                    System.out.println(String.format("%-8s %,d samples -> %,d buckets in %,d ms (%,.0f samples/s, checksum %.0f)",
+                                                     timeAggregationMode, sampleCount, counter.count, elapsedNanos / 1000000,
+                                                     sampleCount / (elapsedNanos / 1e9), counter.sum));
+                }
+            }
+        }
+    }
+
+    private static final class CountingSampleProcessor extends TimeRangeSampleProcessor {
+
+        private long count = 0;
+        private double sum = 0;
+
+        @Override
+        public void processOneSample(final DateTime time, final SampleOpcode opcode, final Object value) {
+            count++;
+            sum += (Double) value;
+        }
+    }
+}
@@ -17,9 +17,13 @@
 
 package org.killbill.billing.plugin.meter.timeline.consumer;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import org.joda.time.DateTime;
 import org.joda.time.DateTimeZone;
 import org.killbill.billing.plugin.meter.MeterTestSuiteNoDB;
+import org.killbill.billing.plugin.meter.api.AggregationFunction;
 import org.killbill.billing.plugin.meter.api.TimeAggregationMode;
 import org.killbill.billing.plugin.meter.timeline.samples.SampleOpcode;
 import org.testng.Assert;
@@ -45,4 +49,53 @@ public class TestAccumulatorSampleConsumer extends MeterTestSuiteNoDB {
 
         Assert.assertEquals(sampleConsumer.flush(), "1354320000,5.0,1354406400,1.0,1354492800,10.0,1354492800,20.0");
     }
+
+    @Test(groups = "fast")
+    public void testAggregationFunctions() throws Exception {
+        checkAggregation(AggregationFunction.SUM, "1354320000,15.0,1354406400,7.0");
+        checkAggregation(AggregationFunction.MIN, "1354320000,1.0,1354406400,7.0");
+        checkAggregation(AggregationFunction.MAX, "1354320000,10.0,1354406400,7.0");
+        checkAggregation(AggregationFunction.COUNT, "1354320000,3.0,1354406400,1.0");
+        checkAggregation(AggregationFunction.AVG, "1354320000,5.0,1354406400,7.0");
+        checkAggregation(AggregationFunction.LAST, "1354320000,4.0,1354406400,7.0");
+    }
+
+    @Test(groups = "fast")
+    public void testPercentilesPerBucket() throws Exception {
+        final DateTime start = new DateTime(2012, 12, 1, 0, 0, DateTimeZone.UTC);
+        final List<DateTime> times = new ArrayList<DateTime>();
+        final List<Double> values = new ArrayList<Double>();
+        final TimeRangeSampleProcessor processor = new TimeRangeSampleProcessor(null, null) {
+            @Override
+            public void processOneSample(final DateTime time, final SampleOpcode opcode, final Object value) {
+                times.add(time);
+                values.add((Double) value);
+            }
+        };
+        final AccumulatorSampleConsumer sampleConsumer = new AccumulatorSampleConsumer(TimeAggregationMode.HOURS, AggregationFunction.P95, DateTimeZone.UTC, processor);
+
+        // 1..1000 during the first hour, 1001..2000 during the second one
+        for (int i = 0; i < 2000; i++) {
+            sampleConsumer.processOneSample(start.plusSeconds(i * 3600 / 1000), SampleOpcode.INT, i + 1);
+        }
+        sampleConsumer.flushAccumulators();
+
+        Assert.assertEquals(times.size(), 2);
+        Assert.assertEquals(times.get(0), start);
+        Assert.assertEquals(values.get(0), 950.0, 950 * 0.01);
+        Assert.assertEquals(times.get(1), start.plusHours(1));
+        Assert.assertEquals(values.get(1), 1950.0, 1950 * 0.01);
+    }
+
+    private void checkAggregation(final AggregationFunction aggregationFunction, final String expected) {
+        final DateTime start = new DateTime(2012, 12, 1, 12, 40, DateTimeZone.UTC);
+        final AccumulatorSampleConsumer sampleConsumer = new AccumulatorSampleConsumer(TimeAggregationMode.DAYS, aggregationFunction, DateTimeZone.UTC, new CSVSampleProcessor());
+
+        sampleConsumer.processOneSample(start, SampleOpcode.DOUBLE, (double) 1);
+        sampleConsumer.processOneSample(start.plusHours(1), SampleOpcode.DOUBLE, (double) 10);
+        sampleConsumer.processOneSample(start.plusHours(4), SampleOpcode.DOUBLE, (double) 4);
+        sampleConsumer.processOneSample(start.plusDays(1), SampleOpcode.DOUBLE, (double) 7);
+
+        Assert.assertEquals(sampleConsumer.flush(), expected, aggregationFunction.toString());
+    }
 }
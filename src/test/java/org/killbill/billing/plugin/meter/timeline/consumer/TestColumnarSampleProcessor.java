@@ -0,0 +1,108 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.timeline.consumer;
+
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.killbill.billing.plugin.meter.MeterTestSuiteNoDB;
+import org.killbill.billing.plugin.meter.timeline.codec.DefaultSampleCoder;
+import org.killbill.billing.plugin.meter.timeline.codec.SampleCoder;
+import org.killbill.billing.plugin.meter.timeline.samples.SampleOpcode;
+import org.killbill.billing.plugin.meter.timeline.samples.ScalarSample;
+import org.killbill.billing.plugin.meter.timeline.times.DefaultTimelineCoder;
+import org.killbill.billing.plugin.meter.timeline.times.TimelineCoder;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+public class TestColumnarSampleProcessor extends MeterTestSuiteNoDB {
+
+    private static final TimelineCoder timelineCoder = new DefaultTimelineCoder();
+    private static final SampleCoder sampleCoder = new DefaultSampleCoder();
+
+    @Test(groups = "fast")
+    public void testDeltaEncodedColumns() throws Exception {
+        final DateTime start = new DateTime(2012, 12, 1, 0, 0, DateTimeZone.UTC);
+        final ColumnarSampleProcessor processor = new ColumnarSampleProcessor();
+        // Enough samples to grow the buffers
+        for (int i = 0; i < 100; i++) {
+            processor.processOneSample(start.plusSeconds(i * 30), SampleOpcode.INT, i);
+        }
+        processor.processOneSample(start.plusSeconds(3001), SampleOpcode.DOUBLE, 1.5);
+        Assert.assertEquals(processor.getSampleCount(), 101);
+
+        final StringWriter writer = new StringWriter();
+        final JsonGenerator generator = new JsonFactory().createJsonGenerator(writer);
+        generator.writeStartObject();
+        processor.writeColumns(generator);
+        generator.writeEndObject();
+        generator.close();
+
+        final StringBuilder times = new StringBuilder("1354320000");
+        final StringBuilder values = new StringBuilder("0.0");
+        for (int i = 1; i < 100; i++) {
+            times.append(",30");
+            values.append(",").append((double) i);
+        }
+        times.append(",31");
+        values.append(",1.5");
+        Assert.assertEquals(writer.toString(), "{\"times\":[" + times + "],\"values\":[" + values + "]}");
+
+        // The buffer is reset after each write
+        Assert.assertEquals(processor.getSampleCount(), 0);
+    }
+
+    @Test(groups = "fast")
+    public void testScanRepeatedSamplesInTimeRange() throws Exception {
+        final DateTime start = new DateTime(2012, 12, 1, 0, 0, DateTimeZone.UTC);
+        final List<DateTime> dateTimes = new ArrayList<DateTime>();
+        final List<ScalarSample> samples = new ArrayList<ScalarSample>();
+        for (int i = 0; i < 1000; i++) {
+            dateTimes.add(start.plusSeconds(i * 30));
+            samples.add(new ScalarSample<Long>(SampleOpcode.LONG, i < 500 ? 10L : 20L));
+        }
+        final byte[] times = timelineCoder.compressDateTimes(dateTimes);
+        final byte[] sampleBytes = sampleCoder.compressSamples(samples);
+
+        // Range bounds are inclusive
+        final ColumnarSampleProcessor processor = new ColumnarSampleProcessor(dateTimes.get(400), dateTimes.get(599));
+        sampleCoder.scan(sampleBytes, times, dateTimes.size(), processor);
+        Assert.assertEquals(processor.getSampleCount(), 200);
+
+        final StringWriter writer = new StringWriter();
+        final JsonGenerator generator = new JsonFactory().createJsonGenerator(writer);
+        generator.writeStartObject();
+        processor.writeColumns(generator);
+        generator.writeEndObject();
+        generator.close();
+
+        final StringBuilder expectedTimes = new StringBuilder(String.valueOf(start.plusSeconds(400 * 30).getMillis() / 1000));
+        final StringBuilder expectedValues = new StringBuilder("10.0");
+        for (int i = 401; i < 600; i++) {
+            expectedTimes.append(",30");
+            expectedValues.append(",").append(i < 500 ? "10.0" : "20.0");
+        }
+        Assert.assertEquals(writer.toString(), "{\"times\":[" + expectedTimes + "],\"values\":[" + expectedValues + "]}");
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.timeline.consumer;
+
+import java.util.Random;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.killbill.billing.plugin.meter.MeterTestSuiteNoDB;
+import org.killbill.billing.plugin.meter.api.TimeAggregationMode;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestEpochTimeBuckets extends MeterTestSuiteNoDB {
+
+    @Test(groups = "fast")
+    public void testMonthAndYearBoundaries() throws Exception {
+        // Leap day
+        final long leapDay = new DateTime(2012, 2, 29, 23, 59, 59, DateTimeZone.UTC).getMillis() / 1000;
+        Assert.assertEquals(EpochTimeBuckets.UTC.bucketStart(TimeAggregationMode.MONTHS, leapDay), seconds(new DateTime(2012, 2, 1, 0, 0, DateTimeZone.UTC)));
+        Assert.assertEquals(EpochTimeBuckets.UTC.nextBucketStart(TimeAggregationMode.MONTHS, EpochTimeBuckets.UTC.bucketStart(TimeAggregationMode.MONTHS, leapDay)),
+                            seconds(new DateTime(2012, 3, 1, 0, 0, DateTimeZone.UTC)));
+        // First second of a month
+        final long newYear = seconds(new DateTime(2013, 1, 1, 0, 0, DateTimeZone.UTC));
+        Assert.assertEquals(EpochTimeBuckets.UTC.bucketStart(TimeAggregationMode.MONTHS, newYear), newYear);
+        Assert.assertEquals(EpochTimeBuckets.UTC.bucketStart(TimeAggregationMode.YEARS, newYear), newYear);
+        Assert.assertEquals(EpochTimeBuckets.UTC.bucketStart(TimeAggregationMode.YEARS, newYear - 1), seconds(new DateTime(2012, 1, 1, 0, 0, DateTimeZone.UTC)));
+        Assert.assertEquals(EpochTimeBuckets.UTC.nextBucketStart(TimeAggregationMode.YEARS, newYear), seconds(new DateTime(2014, 1, 1, 0, 0, DateTimeZone.UTC)));
+        // Outside of the calendar table
+        final long farFuture = seconds(new DateTime(2250, 7, 14, 3, 0, DateTimeZone.UTC));
+        Assert.assertEquals(EpochTimeBuckets.UTC.bucketStart(TimeAggregationMode.MONTHS, farFuture), seconds(new DateTime(2250, 7, 1, 0, 0, DateTimeZone.UTC)));
+        Assert.assertEquals(EpochTimeBuckets.UTC.nextBucketStart(TimeAggregationMode.YEARS, seconds(new DateTime(2200, 1, 1, 0, 0, DateTimeZone.UTC))),
+                            seconds(new DateTime(2201, 1, 1, 0, 0, DateTimeZone.UTC)));
+    }
+
+    @Test(groups = "fast")
+    public void testAgainstJoda() throws Exception {
+        final Random random = new Random(42);
+        final long min = seconds(new DateTime(1950, 1, 1, 0, 0, DateTimeZone.UTC));
+        final long max = seconds(new DateTime(2150, 1, 1, 0, 0, DateTimeZone.UTC));
+        for (int i = 0; i < 10000; i++) {
+            final long epochSeconds = min + (long) (random.nextDouble() * (max - min));
+            final DateTime time = new DateTime(epochSeconds * 1000L, DateTimeZone.UTC);
+
+            Assert.assertEquals(EpochTimeBuckets.UTC.bucketStart(TimeAggregationMode.SECONDS, epochSeconds), seconds(time));
+            Assert.assertEquals(EpochTimeBuckets.UTC.bucketStart(TimeAggregationMode.MINUTES, epochSeconds), seconds(time.minuteOfHour().roundFloorCopy()));
+            Assert.assertEquals(EpochTimeBuckets.UTC.bucketStart(TimeAggregationMode.HOURS, epochSeconds), seconds(time.hourOfDay().roundFloorCopy()));
+            Assert.assertEquals(EpochTimeBuckets.UTC.bucketStart(TimeAggregationMode.DAYS, epochSeconds), seconds(time.dayOfMonth().roundFloorCopy()));
+            Assert.assertEquals(EpochTimeBuckets.UTC.bucketStart(TimeAggregationMode.MONTHS, epochSeconds), seconds(time.monthOfYear().roundFloorCopy()));
+            Assert.assertEquals(EpochTimeBuckets.UTC.bucketStart(TimeAggregationMode.YEARS, epochSeconds), seconds(time.year().roundFloorCopy()));
+            Assert.assertEquals(EpochTimeBuckets.UTC.nextBucketStart(TimeAggregationMode.MONTHS, EpochTimeBuckets.UTC.bucketStart(TimeAggregationMode.MONTHS, epochSeconds)),
+                                seconds(time.monthOfYear().roundFloorCopy().plusMonths(1)));
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testDstAgainstJoda() throws Exception {
+        // Paris and New-York DST, Santiago DST changes at midnight, Kolkata fixed +05:30
+        for (final String zoneId : new String[]{"Europe/Paris", "America/New_York", "America/Santiago", "Asia/Kolkata"}) {
+            final DateTimeZone zone = DateTimeZone.forID(zoneId);
+            final EpochTimeBuckets buckets = EpochTimeBuckets.forZone(zone);
+            Assert.assertSame(EpochTimeBuckets.forZone(zone), buckets);
+
+            // Every 10 minutes over a few years, which covers all transitions
+            final long start = seconds(new DateTime(2011, 12, 25, 0, 0, zone));
+            final long end = seconds(new DateTime(2015, 1, 5, 0, 0, zone));
+            for (long epochSeconds = start; epochSeconds < end; epochSeconds += 600) {
+                final DateTime time = new DateTime(epochSeconds * 1000L, zone);
+
+                checkBucket(buckets, TimeAggregationMode.HOURS, epochSeconds, time.hourOfDay().roundFloorCopy(), zoneId);
+                checkBucket(buckets, TimeAggregationMode.DAYS, epochSeconds, time.dayOfMonth().roundFloorCopy(), zoneId);
+                checkBucket(buckets, TimeAggregationMode.MONTHS, epochSeconds, time.monthOfYear().roundFloorCopy(), zoneId);
+                checkBucket(buckets, TimeAggregationMode.YEARS, epochSeconds, time.year().roundFloorCopy(), zoneId);
+            }
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testLocalDaysAcrossDst() throws Exception {
+        final EpochTimeBuckets buckets = EpochTimeBuckets.forZone(DateTimeZone.forID("America/New_York"));
+
+        // 23 hours day
+        final long springForward = seconds(new DateTime(2013, 3, 10, 0, 0, DateTimeZone.forID("America/New_York")));
+        Assert.assertEquals(buckets.nextBucketStart(TimeAggregationMode.DAYS, springForward) - springForward, 23 * 3600);
+        // 25 hours day
+        final long fallBack = seconds(new DateTime(2013, 11, 3, 0, 0, DateTimeZone.forID("America/New_York")));
+        Assert.assertEquals(buckets.nextBucketStart(TimeAggregationMode.DAYS, fallBack) - fallBack, 25 * 3600);
+        // The repeated hour is its own bucket
+        final long firstOneAm = fallBack + 3600;
+        Assert.assertEquals(buckets.bucketStart(TimeAggregationMode.HOURS, firstOneAm + 1800), firstOneAm);
+        Assert.assertEquals(buckets.nextBucketStart(TimeAggregationMode.HOURS, firstOneAm), firstOneAm + 3600);
+        Assert.assertEquals(buckets.bucketStart(TimeAggregationMode.HOURS, firstOneAm + 3600 + 1800), firstOneAm + 3600);
+    }
+
+    private void checkBucket(final EpochTimeBuckets buckets, final TimeAggregationMode mode, final long epochSeconds, final DateTime expectedStart, final String zoneId) {
+        final long bucketStart = buckets.bucketStart(mode, epochSeconds);
+        Assert.assertEquals(bucketStart, seconds(expectedStart), String.format("%s %s %s", zoneId, mode, new DateTime(epochSeconds * 1000L, buckets.getZone())));
+        Assert.assertTrue(buckets.nextBucketStart(mode, bucketStart) > epochSeconds, String.format("%s %s %s", zoneId, mode, expectedStart));
+    }
+
+    private long seconds(final DateTime time) {
+        return time.getMillis() / 1000L;
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.timeline.consumer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.killbill.billing.plugin.meter.MeterTestSuiteNoDB;
+import org.killbill.billing.plugin.meter.timeline.chunks.TimelineChunk;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+public class TestMergingTimelineChunkConsumer extends MeterTestSuiteNoDB {
+
+    private static final DateTime START_TIME = new DateTime(2012, 12, 1, 0, 0, DateTimeZone.UTC);
+
+    @Test(groups = "fast")
+    public void testInterleaveStoredAndInMemoryChunks() throws Exception {
+        final List<String> events = new ArrayList<String>();
+        final MergingTimelineChunkConsumer consumer = createConsumer(ImmutableList.<Integer>of(3, 1, 2),
+                                                                     ImmutableMap.<Integer, List<TimelineChunk>>of(1, ImmutableList.<TimelineChunk>of(createChunk(1, 10, 2), createChunk(1, 11, 0)),
+                                                                                                                   2, ImmutableList.<TimelineChunk>of(createChunk(2, 10, 0)),
+                                                                                                                   3, ImmutableList.<TimelineChunk>of(createChunk(3, 12, 5))),
+                                                                     events);
+
+        // Database chunks, ordered by source, metric and start time
+        consumer.processTimelineChunk(createChunk(1, 10, 0));
+        consumer.processTimelineChunk(createChunk(1, 10, 1));
+        consumer.processTimelineChunk(createChunk(1, 12, 0));
+        consumer.processTimelineChunk(createChunk(3, 12, 3));
+        consumer.finish();
+
+        Assert.assertEquals(events, ImmutableList.<String>of("start 1/10", "1/10@0", "1/10@1", "1/10@2", "end",
+                                                             "start 1/11", "1/11@0", "end",
+                                                             "start 1/12", "1/12@0", "end",
+                                                             "start 2/10", "2/10@0", "end",
+                                                             "start 3/12", "3/12@3", "3/12@5", "end"));
+    }
+
+    @Test(groups = "fast")
+    public void testInMemoryChunksOnly() throws Exception {
+        final List<String> events = new ArrayList<String>();
+        final MergingTimelineChunkConsumer consumer = createConsumer(ImmutableList.<Integer>of(1, 2),
+                                                                     ImmutableMap.<Integer, List<TimelineChunk>>of(2, ImmutableList.<TimelineChunk>of(createChunk(2, 10, 0), createChunk(2, 10, 1))),
+                                                                     events);
+        consumer.finish();
+
+        Assert.assertEquals(events, ImmutableList.<String>of("start 2/10", "2/10@0", "2/10@1", "end"));
+    }
+
+    private MergingTimelineChunkConsumer createConsumer(final List<Integer> sourceIds, final ImmutableMap<Integer, List<TimelineChunk>> inMemoryChunks, final List<String> events) {
+        final TimelineSeriesConsumer seriesConsumer = new TimelineSeriesConsumer() {
+            @Override
+            public void startSeries(final int sourceId, final int metricId) throws IOException {
+                events.add("start " + sourceId + "/" + metricId);
+            }
+
+            @Override
+            public void processTimelineChunk(final TimelineChunk chunk) throws IOException {
+                events.add(chunk.getSourceId() + "/" + chunk.getMetricId() + "@" + chunk.getStartTime().getHourOfDay());
+            }
+
+            @Override
+            public void endSeries() throws IOException {
+                events.add("end");
+            }
+        };
+
+        return new MergingTimelineChunkConsumer(sourceIds, seriesConsumer) {
+            @Override
+            protected Collection<? extends TimelineChunk> getInMemoryTimelineChunks(final int sourceId) throws IOException {
+                final List<TimelineChunk> chunks = inMemoryChunks.get(sourceId);
+                return chunks == null ? ImmutableList.<TimelineChunk>of() : chunks;
+            }
+        };
+    }
+
+    private TimelineChunk createChunk(final int sourceId, final int metricId, final int hour) {
+        final DateTime startTime = START_TIME.plusHours(hour);
+        return new TimelineChunk(0, sourceId, metricId, startTime, startTime.plusMinutes(30), new byte[0], new byte[0], 0);
+    }
+}
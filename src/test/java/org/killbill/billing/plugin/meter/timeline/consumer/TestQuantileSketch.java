@@ -0,0 +1,133 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.timeline.consumer;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.killbill.billing.plugin.meter.MeterTestSuiteNoDB;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestQuantileSketch extends MeterTestSuiteNoDB {
+
+    private static final double[] QUANTILES = {0.01, 0.1, 0.25, 0.5, 0.75, 0.9, 0.95, 0.99, 0.999};
+
+    @Test(groups = "fast")
+    public void testEmptySketch() throws Exception {
+        final QuantileSketch sketch = new QuantileSketch();
+        Assert.assertEquals(sketch.getCount(), 0);
+        Assert.assertTrue(Double.isNaN(sketch.getQuantile(0.5)));
+        Assert.assertTrue(Double.isNaN(sketch.getMin()));
+        Assert.assertTrue(Double.isNaN(sketch.getMax()));
+    }
+
+    @Test(groups = "fast")
+    public void testSingleValue() throws Exception {
+        final QuantileSketch sketch = new QuantileSketch();
+        sketch.add(42.0);
+        for (final double quantile : QUANTILES) {
+            Assert.assertEquals(sketch.getQuantile(quantile), 42.0);
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testRelativeAccuracy() throws Exception {
+        final Random random = new Random(12);
+        final double[] values = new double[100000];
+        final QuantileSketch sketch = new QuantileSketch();
+        for (int i = 0; i < values.length; i++) {
+            // Heavy tail, with negative values and zeros
+            values[i] = i % 100 == 0 ? 0 : Math.exp(random.nextGaussian() * 3) * (random.nextInt(10) == 0 ? -1 : 1);
+            sketch.add(values[i]);
+        }
+
+        checkQuantiles(sketch, values);
+        Assert.assertEquals(sketch.getCount(), values.length);
+    }
+
+    @Test(groups = "fast")
+    public void testMerge() throws Exception {
+        final Random random = new Random(25);
+        final double[] values = new double[20000];
+        final QuantileSketch sketch = new QuantileSketch();
+        final QuantileSketch[] partialSketches = {new QuantileSketch(), new QuantileSketch(), new QuantileSketch()};
+        for (int i = 0; i < values.length; i++) {
+            values[i] = random.nextDouble() * 1000 * (i % 3 + 1);
+            sketch.add(values[i]);
+            partialSketches[i % 3].add(values[i]);
+        }
+
+        final QuantileSketch mergedSketch = new QuantileSketch();
+        for (final QuantileSketch partialSketch : partialSketches) {
+            mergedSketch.merge(partialSketch);
+        }
+
+        Assert.assertEquals(mergedSketch.getCount(), sketch.getCount());
+        for (final double quantile : QUANTILES) {
+            Assert.assertEquals(mergedSketch.getQuantile(quantile), sketch.getQuantile(quantile));
+        }
+        checkQuantiles(mergedSketch, values);
+    }
+
+    @Test(groups = "fast")
+    public void testReset() throws Exception {
+        final QuantileSketch sketch = new QuantileSketch();
+        for (int i = 1; i <= 100; i++) {
+            sketch.add(i * 1000.0);
+        }
+        sketch.reset();
+        Assert.assertEquals(sketch.getCount(), 0);
+
+        for (int i = 1; i <= 100; i++) {
+            sketch.add(i);
+        }
+        Assert.assertEquals(sketch.getQuantile(0.5), 50.0, 0.5);
+        Assert.assertEquals(sketch.getMax(), 100.0);
+    }
+
+    @Test(groups = "fast")
+    public void testBoundedBins() throws Exception {
+        // Values spanning more bins than allowed: the smallest ones are collapsed, the highest quantiles are still accurate
+        final QuantileSketch sketch = new QuantileSketch(0.01, 128);
+        final double[] values = new double[1000];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = Math.pow(1.05, i);
+            sketch.add(values[i]);
+        }
+
+        final double expected = exactQuantile(values, 0.99);
+        Assert.assertEquals(sketch.getQuantile(0.99), expected, expected * 0.01);
+        Assert.assertEquals(sketch.getCount(), values.length);
+        // Collapsed values are reported as the lowest remaining bin
+        Assert.assertTrue(sketch.getQuantile(0.01) >= exactQuantile(values, 0.01));
+    }
+
+    private void checkQuantiles(final QuantileSketch sketch, final double[] values) {
+        for (final double quantile : QUANTILES) {
+            final double expected = exactQuantile(values, quantile);
+            Assert.assertEquals(sketch.getQuantile(quantile), expected, Math.abs(expected) * sketch.getRelativeAccuracy() + 1e-12, "quantile " + quantile);
+        }
+    }
+
+    private double exactQuantile(final double[] values, final double quantile) {
+        final double[] sortedValues = Arrays.copyOf(values, values.length);
+        Arrays.sort(sortedValues);
+        return sortedValues[(int) (quantile * (sortedValues.length - 1))];
+    }
+}
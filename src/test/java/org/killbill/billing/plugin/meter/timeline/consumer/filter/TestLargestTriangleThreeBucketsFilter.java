@@ -0,0 +1,141 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.timeline.consumer.filter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.joda.time.DateTime;
+import org.killbill.billing.plugin.meter.MeterTestSuiteNoDB;
+import org.killbill.billing.plugin.meter.timeline.consumer.TimeRangeSampleProcessor;
+import org.killbill.billing.plugin.meter.timeline.samples.SampleOpcode;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestLargestTriangleThreeBucketsFilter extends MeterTestSuiteNoDB {
+
+    private final long millisStart = 1400000000000L;
+
+    @Test(groups = "fast")
+    public void testKeepsPeaksAndEnds() throws Exception {
+        final List<DateTime> times = new ArrayList<DateTime>();
+        final List<Double> outputs = new ArrayList<Double>();
+        // 1000 samples, 10 buckets of 100 samples (12 outputs)
+        final LargestTriangleThreeBucketsFilter filter = createFilter(1000, 12, times, outputs);
+        for (int i = 0; i < 1000; i++) {
+            // Flat line, with a single spike and a single dip
+            final double value = i == 537 ? 100.0 : (i == 212 ? -50.0 : 1.0);
+            filter.processOneSample(new DateTime(millisStart + 1000L * i), SampleOpcode.DOUBLE, value);
+        }
+        filter.flush();
+
+        Assert.assertEquals(outputs.size(), 12);
+        // First and last samples are always output
+        Assert.assertEquals(times.get(0), new DateTime(millisStart));
+        Assert.assertEquals((double) outputs.get(0), 1.0);
+        Assert.assertEquals(times.get(11), new DateTime(millisStart + 1000L * 999));
+        Assert.assertEquals((double) outputs.get(11), 1.0);
+        // The spike and the dip are preserved, at their own time
+        Assert.assertTrue(times.contains(new DateTime(millisStart + 1000L * 537)));
+        Assert.assertTrue(outputs.contains(100.0));
+        Assert.assertTrue(times.contains(new DateTime(millisStart + 1000L * 212)));
+        Assert.assertTrue(outputs.contains(-50.0));
+    }
+
+    @Test(groups = "fast")
+    public void testOutputsScannedSamplesInTimeOrder() throws Exception {
+        final List<DateTime> times = new ArrayList<DateTime>();
+        final List<Double> outputs = new ArrayList<Double>();
+        final List<Double> inputs = new ArrayList<Double>();
+        final LargestTriangleThreeBucketsFilter filter = createFilter(5000, 100, times, outputs);
+        for (int i = 0; i < 5000; i++) {
+            final double value = Math.sin(i / 50.0) * 100 + (i % 7);
+            inputs.add(value);
+            filter.processOneSample(new DateTime(millisStart + 1000L * i), SampleOpcode.DOUBLE, value);
+        }
+        filter.flush();
+
+        Assert.assertTrue(outputs.size() <= 100);
+        Assert.assertTrue(outputs.size() >= 98);
+        for (int i = 0; i < outputs.size(); i++) {
+            final int sampleIndex = (int) ((times.get(i).getMillis() - millisStart) / 1000);
+            Assert.assertEquals((double) outputs.get(i), (double) inputs.get(sampleIndex));
+            if (i > 0) {
+                Assert.assertTrue(times.get(i).isAfter(times.get(i - 1)));
+            }
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testFewerSamplesThanOutputs() throws Exception {
+        final List<DateTime> times = new ArrayList<DateTime>();
+        final List<Double> outputs = new ArrayList<Double>();
+        final LargestTriangleThreeBucketsFilter filter = createFilter(10, 100, times, outputs);
+        for (int i = 0; i < 10; i++) {
+            filter.processOneSample(new DateTime(millisStart + 1000L * i), SampleOpcode.DOUBLE, (double) i);
+        }
+        filter.flush();
+
+        Assert.assertEquals(outputs.size(), 10);
+        for (int i = 0; i < 10; i++) {
+            Assert.assertEquals((double) outputs.get(i), (double) i);
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testOutputCountSmallerThanThree() throws Exception {
+        final List<DateTime> times = new ArrayList<DateTime>();
+        final List<Double> outputs = new ArrayList<Double>();
+        final LargestTriangleThreeBucketsFilter singleOutputFilter = createFilter(100, 1, times, outputs);
+        for (int i = 0; i < 100; i++) {
+            singleOutputFilter.processOneSample(new DateTime(millisStart + 1000L * i), SampleOpcode.DOUBLE, (double) i);
+        }
+        singleOutputFilter.flush();
+
+        // Only the first sample
+        Assert.assertEquals(outputs.size(), 1);
+        Assert.assertEquals(times.get(0), new DateTime(millisStart));
+
+        times.clear();
+        outputs.clear();
+        final LargestTriangleThreeBucketsFilter twoOutputsFilter = createFilter(100, 2, times, outputs);
+        for (int i = 0; i < 100; i++) {
+            twoOutputsFilter.processOneSample(new DateTime(millisStart + 1000L * i), SampleOpcode.DOUBLE, i == 50 ? 1000.0 : (double) i);
+        }
+        twoOutputsFilter.flush();
+
+        // The first and last samples, even with a spike in between
+        Assert.assertEquals(outputs.size(), 2);
+        Assert.assertEquals((double) outputs.get(0), 0.0);
+        Assert.assertEquals(times.get(1), new DateTime(millisStart + 1000L * 99));
+        Assert.assertEquals((double) outputs.get(1), 99.0);
+    }
+
+    private LargestTriangleThreeBucketsFilter createFilter(final int sampleCount, final int outputCount, final List<DateTime> times, final List<Double> outputs) {
+        return new LargestTriangleThreeBucketsFilter(new DateTime(millisStart), new DateTime(millisStart + 1000L * (sampleCount - 1)), outputCount,
+                                                     new TimeRangeSampleProcessor() {
+
+                                                         @Override
+                                                         public void processOneSample(final DateTime time, final SampleOpcode opcode, final Object value) {
+                                                             times.add(time);
+                                                             outputs.add((Double) value);
+                                                         }
+                                                     }
+        );
+    }
+}
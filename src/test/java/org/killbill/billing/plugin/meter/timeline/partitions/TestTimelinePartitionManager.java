@@ -0,0 +1,97 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.timeline.partitions;
+
+import java.util.List;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.killbill.billing.plugin.meter.MeterTestSuiteNoDB;
+import org.killbill.billing.plugin.meter.timeline.util.DateTimeUtils;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableList;
+
+public class TestTimelinePartitionManager extends MeterTestSuiteNoDB {
+
+    private static final int DAY = 24 * 3600;
+    private static final int WEEK = 7 * DAY;
+
+    // Thursday, as is the epoch
+    private static final int NOW = DateTimeUtils.unixSeconds(new DateTime(2014, 10, 23, 13, 42, DateTimeZone.UTC));
+    private static final int WEEK_START = DateTimeUtils.unixSeconds(new DateTime(2014, 10, 23, 0, 0, DateTimeZone.UTC));
+
+    @Test(groups = "fast")
+    public void testPartitionNames() throws Exception {
+        Assert.assertEquals(TimelinePartition.forEndTime(WEEK_START).getName(), "p201410230000");
+        Assert.assertEquals(TimelinePartition.forEndTime(WEEK_START + 3600 + 60).getName(), "p201410230101");
+        Assert.assertEquals(TimelinePartitionManager.getPartitionStart(NOW, WEEK), WEEK_START);
+        Assert.assertEquals(TimelinePartitionManager.getPartitionStart(WEEK_START, WEEK), WEEK_START);
+    }
+
+    @Test(groups = "fast")
+    public void testInitialPartitions() throws Exception {
+        final List<TimelinePartition> partitions = TimelinePartitionManager.getInitialPartitions(NOW, WEEK, 2);
+
+        Assert.assertEquals(partitions.size(), 5);
+        Assert.assertEquals(partitions.get(0), new TimelinePartition(TimelinePartition.SENTINEL_PARTITION_NAME, 1));
+        // All existing chunks
+        Assert.assertEquals(partitions.get(1), TimelinePartition.forEndTime(WEEK_START));
+        // Current week
+        Assert.assertEquals(partitions.get(2), TimelinePartition.forEndTime(WEEK_START + WEEK));
+        // Partitions ahead
+        Assert.assertEquals(partitions.get(3), TimelinePartition.forEndTime(WEEK_START + 2 * WEEK));
+        Assert.assertEquals(partitions.get(4), TimelinePartition.forEndTime(WEEK_START + 3 * WEEK));
+    }
+
+    @Test(groups = "fast")
+    public void testPartitionsToAdd() throws Exception {
+        // Up to date
+        Assert.assertEquals(TimelinePartitionManager.getPartitionsToAdd(WEEK_START + 3 * WEEK, NOW, WEEK, 2).size(), 0);
+        Assert.assertEquals(TimelinePartitionManager.getPartitionsToAdd(WEEK_START + 4 * WEEK, NOW, WEEK, 2).size(), 0);
+
+        // A week later
+        Assert.assertEquals(TimelinePartitionManager.getPartitionsToAdd(WEEK_START + 3 * WEEK, NOW + WEEK, WEEK, 2),
+                            ImmutableList.<TimelinePartition>of(TimelinePartition.forEndTime(WEEK_START + 4 * WEEK)));
+
+        // After a long downtime
+        final List<TimelinePartition> partitions = TimelinePartitionManager.getPartitionsToAdd(WEEK_START, NOW + 10 * WEEK, WEEK, 0);
+        Assert.assertEquals(partitions.size(), 11);
+        Assert.assertEquals(partitions.get(0), TimelinePartition.forEndTime(WEEK_START + WEEK));
+        Assert.assertEquals(partitions.get(10), TimelinePartition.forEndTime(WEEK_START + 11 * WEEK));
+    }
+
+    @Test(groups = "fast")
+    public void testPartitionsToDrop() throws Exception {
+        final List<TimelinePartition> partitions = ImmutableList.<TimelinePartition>of(new TimelinePartition(TimelinePartition.SENTINEL_PARTITION_NAME, 1),
+                                                                                       TimelinePartition.forEndTime(WEEK_START),
+                                                                                       TimelinePartition.forEndTime(WEEK_START + WEEK),
+                                                                                       TimelinePartition.forEndTime(WEEK_START + 2 * WEEK),
+                                                                                       new TimelinePartition(TimelinePartition.MAX_PARTITION_NAME, null));
+
+        // The sentinel and max partitions are never dropped
+        Assert.assertEquals(TimelinePartitionManager.getPartitionsToDrop(partitions, WEEK_START - 1).size(), 0);
+        Assert.assertEquals(TimelinePartitionManager.getPartitionsToDrop(partitions, WEEK_START),
+                            ImmutableList.<TimelinePartition>of(TimelinePartition.forEndTime(WEEK_START)));
+        // The current partition still holds recent chunks
+        Assert.assertEquals(TimelinePartitionManager.getPartitionsToDrop(partitions, WEEK_START + WEEK + DAY),
+                            ImmutableList.<TimelinePartition>of(TimelinePartition.forEndTime(WEEK_START), TimelinePartition.forEndTime(WEEK_START + WEEK)));
+        Assert.assertEquals(TimelinePartitionManager.getPartitionsToDrop(partitions, Integer.MAX_VALUE).size(), 3);
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.timeline.partitions;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Properties;
+import java.util.UUID;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.killbill.billing.plugin.meter.MeterConfig;
+import org.killbill.billing.plugin.meter.MeterTestSuiteWithEmbeddedDB;
+import org.killbill.billing.plugin.meter.api.AggregationFunction;
+import org.killbill.billing.plugin.meter.api.OutputFormat;
+import org.killbill.billing.plugin.meter.api.user.UsageResultCache;
+import org.killbill.billing.plugin.meter.timeline.chunks.TimelineChunk;
+import org.killbill.billing.plugin.meter.timeline.consumer.TimelineChunkConsumer;
+import org.killbill.billing.plugin.meter.timeline.persistent.DefaultTimelineDao;
+import org.killbill.billing.plugin.meter.timeline.persistent.TimelineDao;
+import org.skife.config.ConfigurationObjectFactory;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+public class TestTimelinePartitionManagerWithoutPartitioning extends MeterTestSuiteWithEmbeddedDB {
+
+    @Test(groups = "slow")
+    public void testDeleteExpiredChunksWithoutPartitioning() throws Exception {
+        final TimelineDao dao = new DefaultTimelineDao(getDBI());
+        final DateTime now = new DateTime(2014, 10, 23, 13, 42, DateTimeZone.UTC);
+        clock.setTime(now);
+
+        final Integer hostId = dao.getOrAddSource(UUID.randomUUID().toString(), callContext);
+        final Integer categoryId = dao.getOrAddEventCategory("JVM", callContext);
+        final Integer metricId = dao.getOrAddMetric(categoryId, "GC", callContext);
+        insertChunk(dao, hostId, metricId, now.minusDays(60));
+        insertChunk(dao, hostId, metricId, now.minusDays(40));
+        insertChunk(dao, hostId, metricId, now.minusDays(1));
+
+        final Properties properties = new Properties();
+        properties.setProperty("org.killbill.billing.plugin.meter.timelines.partitionLength", "7d");
+        properties.setProperty("org.killbill.billing.plugin.meter.timelines.partitionRetention", "30d");
+        final MeterConfig config = new ConfigurationObjectFactory(properties).build(MeterConfig.class);
+
+        final UsageResultCache usageResultCache = new UsageResultCache(config);
+        final UsageResultCache.Key key = new UsageResultCache.Key(null, OutputFormat.JSON, null, AggregationFunction.SUM, DateTimeZone.UTC,
+                                                                  ImmutableList.<String>of("host"), ImmutableMap.<String, Collection<String>>of(),
+                                                                  null, null, null);
+        usageResultCache.put(key, new byte[]{'[', ']'});
+
+        // Same behavior as on H2, whatever the embedded database
+        final TimelinePartitionManager partitionManager = new TimelinePartitionManager(getDBI(), config, usageResultCache, clock) {
+            @Override
+            boolean supportsPartitioning() {
+                return false;
+            }
+        };
+        partitionManager.maintainPartitions();
+
+        Assert.assertEquals(partitionManager.getPartitionCounters().get("maintenanceFailures"), (Long) 0L);
+        Assert.assertEquals(partitionManager.getPartitionCounters().get("partitionsCreated"), (Long) 0L);
+        // Chunks starting before the partition containing the cutoff (now - 30 days) are deleted
+        Assert.assertEquals(partitionManager.getPartitionCounters().get("chunksDeleted"), (Long) 2L);
+        final List<TimelineChunk> chunks = getChunks(dao, hostId, metricId, now.minusDays(90), now);
+        Assert.assertEquals(chunks.size(), 1);
+        Assert.assertEquals(chunks.get(0).getStartTime().getMillis() / 1000, now.minusDays(1).getMillis() / 1000);
+
+        // Cached results may have included the deleted chunks
+        Assert.assertNull(usageResultCache.getIfPresent(key));
+    }
+
+    private void insertChunk(final TimelineDao dao, final Integer hostId, final Integer metricId, final DateTime startTime) {
+        dao.insertTimelineChunk(new TimelineChunk(0, hostId, metricId, startTime, startTime.plusMinutes(5), new byte[0], new byte[0], 0, 0, false, false), callContext);
+    }
+
+    private List<TimelineChunk> getChunks(final TimelineDao dao, final Integer hostId, final Integer metricId, final DateTime startTime, final DateTime endTime) {
+        final List<TimelineChunk> chunks = new ArrayList<TimelineChunk>();
+        dao.getSamplesBySourceIdsAndMetricIds(ImmutableList.<Integer>of(hostId), ImmutableList.<Integer>of(metricId), startTime, endTime, new TimelineChunkConsumer() {
+            @Override
+            public void processTimelineChunk(final TimelineChunk chunk) {
+                chunks.add(chunk);
+            }
+        }, callContext);
+        return chunks;
+    }
+}
@@ -17,15 +17,34 @@
 
 package org.killbill.billing.plugin.meter.timeline.persistent;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
 import java.util.UUID;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import org.joda.time.DateTime;
 import org.joda.time.DateTimeZone;
+import org.killbill.billing.plugin.meter.MeterCallContext;
 import org.killbill.billing.plugin.meter.MeterTestSuiteWithEmbeddedDB;
 import org.killbill.billing.plugin.meter.timeline.categories.CategoryRecordIdAndMetric;
+import org.killbill.billing.plugin.meter.timeline.chunks.TimeBytesAndSampleBytes;
 import org.killbill.billing.plugin.meter.timeline.chunks.TimelineChunk;
+import org.killbill.billing.plugin.meter.timeline.chunks.TimelineChunkCache;
+import org.killbill.billing.plugin.meter.timeline.chunks.TimelineSkipIndex;
+import org.killbill.billing.plugin.meter.timeline.codec.DefaultSampleCoder;
+import org.killbill.billing.plugin.meter.timeline.codec.SampleCoder;
 import org.killbill.billing.plugin.meter.timeline.consumer.TimelineChunkConsumer;
+import org.killbill.billing.plugin.meter.timeline.samples.SampleOpcode;
+import org.killbill.billing.plugin.meter.timeline.samples.ScalarSample;
+import org.killbill.billing.plugin.meter.timeline.times.DefaultTimelineCoder;
+import org.killbill.billing.plugin.meter.timeline.times.TimelineCoder;
+import org.killbill.billing.plugin.meter.timeline.util.DateTimeUtils;
+import org.killbill.billing.util.callcontext.CallContext;
+import org.killbill.billing.util.callcontext.TenantContext;
+import org.skife.jdbi.v2.Handle;
+import org.skife.jdbi.v2.tweak.HandleCallback;
+import org.skife.jdbi.v2.util.IntegerMapper;
 import org.testng.Assert;
 import org.testng.annotations.Test;
 
@@ -98,4 +117,239 @@ public class TestDefaultTimelineDao extends MeterTestSuiteWithEmbeddedDB {
         dao.getSamplesBySourceIdsAndMetricIds(ImmutableList.<Integer>of(hostId), ImmutableList.<Integer>of(Integer.MAX_VALUE), startTime, startTime.plusDays(1), FAIL_CONSUMER, callContext);
         dao.getSamplesBySourceIdsAndMetricIds(ImmutableList.<Integer>of(hostId), ImmutableList.<Integer>of(sampleOneId, sampleTwoId), startTime.plusDays(1), startTime.plusDays(2), FAIL_CONSUMER, callContext);
     }
+
+    @Test(groups = "slow")
+    public void testGetSamplesWithChunkCache() throws Exception {
+        final TimelineChunkCache chunkCache = new TimelineChunkCache(1024 * 1024);
+        // Small fetch size, to fetch the chunks missing from the cache in several batches
+        final TimelineDao dao = new DefaultTimelineDao(getDBI(), 2, chunkCache);
+        final DateTime startTime = new DateTime(DateTimeZone.UTC);
+
+        final Integer hostId = dao.getOrAddSource(UUID.randomUUID().toString(), callContext);
+        final Integer sampleId = dao.getOrAddMetric(123, UUID.randomUUID().toString(), callContext);
+        for (int i = 0; i < 5; i++) {
+            dao.insertTimelineChunk(new TimelineChunk(0, hostId, sampleId, startTime.plusMinutes(i), startTime.plusMinutes(i + 1), new byte[]{(byte) i}, new byte[]{(byte) i}, 1), callContext);
+        }
+
+        final List<TimelineChunk> firstRead = getChunks(dao, hostId, sampleId, startTime);
+        Assert.assertEquals(chunkCache.getStats().get("missCount"), 5L);
+        Assert.assertEquals(chunkCache.getStats().get("entries"), 5L);
+
+        final List<TimelineChunk> secondRead = getChunks(dao, hostId, sampleId, startTime);
+        Assert.assertEquals(chunkCache.getStats().get("hitCount"), 5L);
+        Assert.assertEquals(secondRead, firstRead);
+
+        // Chunks are returned in time order
+        Assert.assertEquals(firstRead.size(), 5);
+        for (int i = 0; i < 5; i++) {
+            Assert.assertEquals(firstRead.get(i).getStartTime().getMillis() / 1000, startTime.plusMinutes(i).getMillis() / 1000);
+            Assert.assertEquals(firstRead.get(i).getTimeBytesAndSampleBytes().getSampleBytes(), new byte[]{(byte) i});
+        }
+    }
+
+    @Test(groups = "slow")
+    public void testGetSamplesAcrossAggregationLevels() throws Exception {
+        final TimelineDao dao = new DefaultTimelineDao(getDBI());
+        final DateTime startTime = new DateTime(DateTimeZone.UTC).minusDays(1);
+
+        final Integer hostId = dao.getOrAddSource(UUID.randomUUID().toString(), callContext);
+        final Integer sampleId = dao.getOrAddMetric(123, UUID.randomUUID().toString(), callContext);
+        // 8 hours at level 2, then 2 hours at level 1, then 15 minutes chunks at level 0
+        dao.insertTimelineChunk(new TimelineChunk(0, hostId, sampleId, startTime, startTime.plusHours(8), new byte[0], new byte[0], 0, 2, false, false), callContext);
+        dao.insertTimelineChunk(new TimelineChunk(0, hostId, sampleId, startTime.plusHours(8), startTime.plusHours(10), new byte[0], new byte[0], 0, 1, false, false), callContext);
+        for (int i = 0; i < 4; i++) {
+            dao.insertTimelineChunk(new TimelineChunk(0, hostId, sampleId, startTime.plusHours(10).plusMinutes(15 * i), startTime.plusHours(10).plusMinutes(15 * (i + 1)),
+                                                      new byte[0], new byte[0], 0), callContext);
+        }
+
+        // The large chunk starts long before the queried range
+        Assert.assertEquals(getAggregationLevels(dao, hostId, sampleId, startTime.plusHours(7), startTime.plusHours(7).plusMinutes(1)), ImmutableList.<Integer>of(2));
+        Assert.assertEquals(getAggregationLevels(dao, hostId, sampleId, startTime.plusHours(7), startTime.plusHours(9)), ImmutableList.<Integer>of(2, 1));
+        Assert.assertEquals(getAggregationLevels(dao, hostId, sampleId, startTime.plusHours(9), startTime.plusHours(10).plusMinutes(20)), ImmutableList.<Integer>of(1, 0, 0));
+        Assert.assertEquals(getAggregationLevels(dao, hostId, sampleId, startTime.plusHours(10).plusMinutes(50), startTime.plusHours(12)), ImmutableList.<Integer>of(0));
+        Assert.assertEquals(getAggregationLevels(dao, hostId, sampleId, startTime.minusHours(1), startTime.plusHours(12)), ImmutableList.<Integer>of(2, 1, 0, 0, 0, 0));
+        Assert.assertEquals(getAggregationLevels(dao, hostId, sampleId, startTime.plusHours(11).plusMinutes(1), startTime.plusHours(12)), ImmutableList.<Integer>of());
+    }
+
+    @Test(groups = "slow")
+    public void testGetSamplesOfLevelWithoutRecordedSpan() throws Exception {
+        final TimelineDao dao = new DefaultTimelineDao(getDBI());
+        final DateTime startTime = new DateTime(DateTimeZone.UTC).minusDays(1);
+
+        final Integer hostId = dao.getOrAddSource(UUID.randomUUID().toString(), callContext);
+        final Integer sampleId = dao.getOrAddMetric(123, UUID.randomUUID().toString(), callContext);
+        // Aggregated chunk written before the upgrade: its span isn't recorded
+        dao.insertTimelineChunk(new TimelineChunk(0, hostId, sampleId, startTime, startTime.plusHours(8), new byte[0], new byte[0], 0, 3, false, false), callContext);
+        getDBI().withHandle(new HandleCallback<Integer>() {
+            @Override
+            public Integer withHandle(final Handle handle) throws Exception {
+                return handle.execute("delete from timeline_chunk_spans where aggregation_level = 3");
+            }
+        });
+        // New chunks of another level record their span
+        dao.insertTimelineChunk(new TimelineChunk(0, hostId, sampleId, startTime.plusHours(8), startTime.plusHours(8).plusMinutes(15), new byte[0], new byte[0], 0), callContext);
+
+        // The level without a recorded span isn't bounded
+        Assert.assertEquals(getAggregationLevels(dao, hostId, sampleId, startTime.plusHours(7), startTime.plusHours(9)), ImmutableList.<Integer>of(3, 0));
+    }
+
+    @Test(groups = "slow")
+    public void testTenantIsolation() throws Exception {
+        final TimelineDao dao = new DefaultTimelineDao(getDBI());
+        final DateTime startTime = new DateTime(DateTimeZone.UTC);
+        final CallContext firstTenantContext = new MeterCallContext(UUID.randomUUID());
+        final CallContext secondTenantContext = new MeterCallContext(UUID.randomUUID());
+
+        // Same names, different ids
+        final String sourceName = UUID.randomUUID().toString();
+        final Integer firstSourceId = dao.getOrAddSource(sourceName, firstTenantContext);
+        final Integer secondSourceId = dao.getOrAddSource(sourceName, secondTenantContext);
+        Assert.assertNotEquals(firstSourceId, secondSourceId);
+        Assert.assertEquals(dao.getSourceId(sourceName, firstTenantContext), firstSourceId);
+        Assert.assertEquals(dao.getSourceId(sourceName, secondTenantContext), secondSourceId);
+        Assert.assertNull(dao.getSourceId(sourceName, callContext));
+        Assert.assertFalse(dao.getSources(secondTenantContext).containsKey(firstSourceId));
+
+        final String categoryName = UUID.randomUUID().toString();
+        final Integer firstCategoryId = dao.getOrAddEventCategory(categoryName, firstTenantContext);
+        final Integer secondCategoryId = dao.getOrAddEventCategory(categoryName, secondTenantContext);
+        Assert.assertNotEquals(firstCategoryId, secondCategoryId);
+        Assert.assertNull(dao.getEventCategoryId(categoryName, callContext));
+        Assert.assertFalse(dao.getEventCategories(secondTenantContext).containsKey(firstCategoryId));
+
+        final Integer metricId = dao.getOrAddMetric(firstCategoryId, UUID.randomUUID().toString(), firstTenantContext);
+        Assert.assertFalse(dao.getMetrics(secondTenantContext).containsKey(metricId));
+
+        // Chunks are only returned to their tenant, even when querying by id
+        dao.insertTimelineChunk(new TimelineChunk(0, firstSourceId, metricId, startTime, startTime.plusMinutes(1), new byte[0], new byte[0], 0), firstTenantContext);
+        Assert.assertEquals(getChunks(dao, firstSourceId, metricId, startTime, firstTenantContext).size(), 1);
+        Assert.assertEquals(getChunks(dao, firstSourceId, metricId, startTime, secondTenantContext).size(), 0);
+        Assert.assertEquals(getChunks(dao, firstSourceId, metricId, startTime, callContext).size(), 0);
+    }
+
+    private List<Integer> getAggregationLevels(final TimelineDao dao, final Integer hostId, final Integer sampleId, final DateTime startTime, final DateTime endTime) {
+        final List<Integer> aggregationLevels = new ArrayList<Integer>();
+        dao.getSamplesBySourceIdsAndMetricIds(ImmutableList.<Integer>of(hostId), ImmutableList.<Integer>of(sampleId), startTime, endTime, new TimelineChunkConsumer() {
+            @Override
+            public void processTimelineChunk(final TimelineChunk chunk) {
+                aggregationLevels.add(chunk.getAggregationLevel());
+            }
+        }, callContext);
+        return aggregationLevels;
+    }
+
+    @Test(groups = "slow")
+    public void testGetCompressedSamples() throws Exception {
+        final TimelineDao dao = new DefaultTimelineDao(getDBI(), 1000, new TimelineChunkCache(0), 100);
+        final DateTime startTime = new DateTime(DateTimeZone.UTC);
+
+        final Integer hostId = dao.getOrAddSource(UUID.randomUUID().toString(), callContext);
+        final Integer sampleId = dao.getOrAddMetric(123, UUID.randomUUID().toString(), callContext);
+        // Compressed, not worth compressing (stored as is, as a blob) and too small to be compressed
+        final byte[] randomBytes = new byte[1000];
+        new Random(42).nextBytes(randomBytes);
+        final byte[][] sampleBytes = new byte[][]{new byte[1000], randomBytes, new byte[10]};
+        for (int i = 0; i < sampleBytes.length; i++) {
+            dao.insertTimelineChunk(new TimelineChunk(0, hostId, sampleId, startTime.plusMinutes(i), startTime.plusMinutes(i + 1), new byte[]{(byte) i}, sampleBytes[i], 1), callContext);
+        }
+
+        final List<TimelineChunk> chunks = getChunks(dao, hostId, sampleId, startTime);
+        Assert.assertEquals(chunks.size(), sampleBytes.length);
+        for (int i = 0; i < sampleBytes.length; i++) {
+            Assert.assertEquals(chunks.get(i).getTimeBytesAndSampleBytes().getTimeBytes(), new byte[]{(byte) i});
+            Assert.assertEquals(chunks.get(i).getTimeBytesAndSampleBytes().getSampleBytes(), sampleBytes[i]);
+        }
+    }
+
+    @Test(groups = "slow")
+    public void testBulkInsertCompressedSamples() throws Exception {
+        final TimelineDao dao = new DefaultTimelineDao(getDBI(), 1000, new TimelineChunkCache(0), 100);
+        final DateTime startTime = new DateTime(DateTimeZone.UTC).withMillisOfSecond(0);
+        final TimelineCoder timelineCoder = new DefaultTimelineCoder();
+        final SampleCoder sampleCoder = new DefaultSampleCoder();
+
+        final Integer hostId = dao.getOrAddSource(UUID.randomUUID().toString(), callContext);
+        final Integer sampleId = dao.getOrAddMetric(123, UUID.randomUUID().toString(), callContext);
+        // A batch of hourly chunks, polled every 30 seconds, as written by the aggregator. The periodic values compress well
+        final List<TimelineChunk> batch = new ArrayList<TimelineChunk>();
+        for (int i = 0; i < 3; i++) {
+            final List<DateTime> dateTimes = new ArrayList<DateTime>();
+            final List<ScalarSample> samples = new ArrayList<ScalarSample>();
+            for (int j = 0; j < 120; j++) {
+                dateTimes.add(startTime.plusHours(i).plusSeconds(30 * j));
+                samples.add(new ScalarSample<Long>(SampleOpcode.LONG, 1000L + (j % 10) * 100L));
+            }
+            batch.add(new TimelineChunk(0, hostId, sampleId, dateTimes.get(0), dateTimes.get(dateTimes.size() - 1), timelineCoder.compressDateTimes(dateTimes),
+                                        sampleCoder.compressSamples(samples), samples.size(), 1, false, false));
+        }
+        dao.bulkInsertTimelineChunks(batch, callContext);
+
+        final List<TimelineChunk> chunks = getChunks(dao, hostId, sampleId, startTime, startTime.plusHours(3), callContext);
+        Assert.assertEquals(chunks.size(), batch.size());
+        for (int i = 0; i < batch.size(); i++) {
+            final TimeBytesAndSampleBytes written = batch.get(i).getTimeBytesAndSampleBytes();
+            final TimeBytesAndSampleBytes read = chunks.get(i).getTimeBytesAndSampleBytes();
+            Assert.assertEquals(read.getTimeBytes(), written.getTimeBytes());
+            Assert.assertEquals(read.getSampleBytes(), written.getSampleBytes());
+            Assert.assertEquals(chunks.get(i).getSampleCount(), batch.get(i).getSampleCount());
+            Assert.assertEquals(timelineCoder.decompressDateTimes(read.getTimeBytes()), timelineCoder.decompressDateTimes(written.getTimeBytes()));
+            Assert.assertEquals(sampleCoder.decompressSamples(read.getSampleBytes()), sampleCoder.decompressSamples(written.getSampleBytes()));
+        }
+
+        // The batch was stored compressed
+        final int storedBytes = getDBI().withHandle(new HandleCallback<Integer>() {
+            @Override
+            public Integer withHandle(final Handle handle) throws Exception {
+                return handle.createQuery("select sum(coalesce(length(in_row_samples), 0) + coalesce(length(blob_samples), 0)) from timeline_chunks where source_record_id = :sourceId")
+                             .bind("sourceId", hostId)
+                             .map(IntegerMapper.FIRST)
+                             .first();
+            }
+        });
+        int uncompressedBytes = 0;
+        for (final TimelineChunk chunk : batch) {
+            uncompressedBytes += chunk.getTimeBytesAndSampleBytes().getTimeBytes().length + chunk.getTimeBytesAndSampleBytes().getSampleBytes().length;
+        }
+        Assert.assertTrue(storedBytes < uncompressedBytes, storedBytes + " >= " + uncompressedBytes);
+    }
+
+    @Test(groups = "slow")
+    public void testGetSamplesWithSkipIndex() throws Exception {
+        final TimelineDao dao = new DefaultTimelineDao(getDBI());
+        final DateTime startTime = new DateTime(DateTimeZone.UTC);
+
+        final Integer hostId = dao.getOrAddSource(UUID.randomUUID().toString(), callContext);
+        final Integer sampleId = dao.getOrAddMetric(123, UUID.randomUUID().toString(), callContext);
+        final TimelineSkipIndex skipIndex = new TimelineSkipIndex.Builder().addEntry(100, 12, 7, 1000, 30, 4).build();
+        final TimeBytesAndSampleBytes bytes = new TimeBytesAndSampleBytes(new byte[]{0x1}, new byte[]{0x2});
+        dao.insertTimelineChunk(new TimelineChunk(0, hostId, sampleId, DateTimeUtils.unixSeconds(startTime), DateTimeUtils.unixSeconds(startTime.plusMinutes(1)),
+                                                  bytes, 1, 0, false, false, skipIndex), callContext);
+        dao.insertTimelineChunk(new TimelineChunk(0, hostId, sampleId, DateTimeUtils.unixSeconds(startTime.plusMinutes(1)), DateTimeUtils.unixSeconds(startTime.plusMinutes(2)),
+                                                  bytes, 1, 0, false, false), callContext);
+
+        final List<TimelineChunk> chunks = getChunks(dao, hostId, sampleId, startTime);
+        Assert.assertEquals(chunks.size(), 2);
+        Assert.assertEquals(chunks.get(0).getSkipIndex(), skipIndex);
+        Assert.assertNull(chunks.get(1).getSkipIndex());
+    }
+
+    private List<TimelineChunk> getChunks(final TimelineDao dao, final Integer hostId, final Integer sampleId, final DateTime startTime) {
+        return getChunks(dao, hostId, sampleId, startTime, callContext);
+    }
+
+    private List<TimelineChunk> getChunks(final TimelineDao dao, final Integer hostId, final Integer sampleId, final DateTime startTime, final TenantContext context) {
+        return getChunks(dao, hostId, sampleId, startTime, startTime.plusHours(1), context);
+    }
+
+    private List<TimelineChunk> getChunks(final TimelineDao dao, final Integer hostId, final Integer sampleId, final DateTime startTime, final DateTime endTime,
+                                          final TenantContext context) {
+        final List<TimelineChunk> chunks = new ArrayList<TimelineChunk>();
+        dao.getSamplesBySourceIdsAndMetricIds(ImmutableList.<Integer>of(hostId), ImmutableList.<Integer>of(sampleId), startTime, endTime, new TimelineChunkConsumer() {
+            @Override
+            public void processTimelineChunk(final TimelineChunk chunk) {
+                chunks.add(chunk);
+            }
+        }, context);
+        return chunks;
+    }
 }
@@ -29,6 +29,7 @@ import org.joda.time.DateTime;
 import org.joda.time.DateTimeZone;
 import org.killbill.billing.plugin.meter.MeterConfig;
 import org.killbill.billing.plugin.meter.MeterTestSuiteNoDB;
+import org.killbill.billing.plugin.meter.monitoring.MeterMetrics;
 import org.killbill.billing.plugin.meter.timeline.BackgroundDBChunkWriter;
 import org.killbill.billing.plugin.meter.timeline.MockTimelineDao;
 import org.killbill.billing.plugin.meter.timeline.TimelineEventHandler;
@@ -60,6 +61,7 @@ public class TestFileBackedBuffer extends MeterTestSuiteNoDB {
     private static final TimelineCoder timelineCoder = new DefaultTimelineCoder();
     private static final SampleCoder sampleCoder = new DefaultSampleCoder();
 
+    private final MeterMetrics metrics = new MeterMetrics();
     private final TimelineDao dao = new MockTimelineDao();
     private TimelineEventHandler timelineEventHandler;
 
@@ -69,8 +71,8 @@ public class TestFileBackedBuffer extends MeterTestSuiteNoDB {
         System.setProperty("org.killbill.billing.plugin.meter.timelines.spoolDir", basePath.getAbsolutePath());
         System.setProperty("org.killbill.billing.plugin.meter.timelines.length", "60s");
         final MeterConfig config = new ConfigurationObjectFactory(System.getProperties()).build(MeterConfig.class);
-        timelineEventHandler = new TimelineEventHandler(config, dao, timelineCoder, sampleCoder, new BackgroundDBChunkWriter(dao, config),
-                                                        new FileBackedBuffer(config.getSpoolDir(), "TimelineEventHandler", 1024 * 1024, 10));
+        timelineEventHandler = new TimelineEventHandler(config, dao, timelineCoder, sampleCoder, new BackgroundDBChunkWriter(dao, config, metrics),
+                                                        new FileBackedBuffer(config.getSpoolDir(), "TimelineEventHandler", 1024 * 1024, 10), metrics);
 
         dao.getOrAddSource(HOST_UUID.toString(), callContext);
     }
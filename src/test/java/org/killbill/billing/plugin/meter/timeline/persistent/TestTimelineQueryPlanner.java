@@ -0,0 +1,77 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.timeline.persistent;
+
+import java.util.ArrayList;
+import java.util.Map;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.killbill.billing.plugin.meter.MeterTestSuiteNoDB;
+import org.killbill.billing.plugin.meter.timeline.chunks.TimelineChunk;
+import org.killbill.billing.plugin.meter.timeline.util.DateTimeUtils;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+public class TestTimelineQueryPlanner extends MeterTestSuiteNoDB {
+
+    private final DateTime startTime = new DateTime(2014, 3, 1, 12, 0, 0, 0, DateTimeZone.UTC);
+
+    @Test(groups = "fast")
+    public void testMinStartTimes() throws Exception {
+        final TimelineQueryPlanner planner = new TimelineQueryPlanner();
+        final int startTimeSeconds = DateTimeUtils.unixSeconds(startTime);
+
+        // Nothing recorded: the query can't be bounded
+        Assert.assertTrue(planner.getMinStartTimes(ImmutableMap.<Integer, Integer>of(), startTime).isEmpty());
+
+        final Map<Integer, Integer> minStartTimes = planner.getMinStartTimes(ImmutableMap.<Integer, Integer>of(0, 3600, 2, 57600, 1, 14400), startTime);
+        // Highest level first
+        Assert.assertEquals(new ArrayList<Integer>(minStartTimes.keySet()), ImmutableList.<Integer>of(2, 1, 0));
+        Assert.assertEquals((int) minStartTimes.get(0), startTimeSeconds - 3600);
+        Assert.assertEquals((int) minStartTimes.get(1), startTimeSeconds - 14400);
+        Assert.assertEquals((int) minStartTimes.get(2), startTimeSeconds - 57600);
+    }
+
+    @Test(groups = "fast")
+    public void testSpansToRecord() throws Exception {
+        final TimelineQueryPlanner planner = new TimelineQueryPlanner();
+
+        final Map<Integer, Integer> spansToRecord = planner.getSpansToRecord(ImmutableList.<TimelineChunk>of(createChunk(0, 600),
+                                                                                                              createChunk(0, 900),
+                                                                                                              createChunk(1, 3600)));
+        Assert.assertEquals(spansToRecord, ImmutableMap.<Integer, Integer>of(0, 900, 1, 3600));
+        planner.markSpansRecorded(spansToRecord);
+
+        // Spans already recorded are skipped
+        Assert.assertTrue(planner.getSpansToRecord(ImmutableList.<TimelineChunk>of(createChunk(0, 900), createChunk(1, 60))).isEmpty());
+        Assert.assertEquals(planner.getSpansToRecord(ImmutableList.<TimelineChunk>of(createChunk(0, 901), createChunk(2, 14400))),
+                            ImmutableMap.<Integer, Integer>of(0, 901, 2, 14400));
+
+        // Recorded spans never shrink
+        planner.markSpansRecorded(ImmutableMap.<Integer, Integer>of(0, 60));
+        Assert.assertTrue(planner.getSpansToRecord(ImmutableList.<TimelineChunk>of(createChunk(0, 900))).isEmpty());
+    }
+
+    private TimelineChunk createChunk(final int aggregationLevel, final int spanSeconds) {
+        return new TimelineChunk(0, 1, 2, startTime, startTime.plusSeconds(spanSeconds), new byte[0], new byte[0], 0, aggregationLevel, false, false);
+    }
+}
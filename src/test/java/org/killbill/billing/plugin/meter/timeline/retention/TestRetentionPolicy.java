@@ -0,0 +1,72 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.timeline.retention;
+
+import org.killbill.billing.plugin.meter.MeterTestSuiteNoDB;
+import org.skife.config.TimeSpan;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableSet;
+
+public class TestRetentionPolicy extends MeterTestSuiteNoDB {
+
+    @Test(groups = "fast")
+    public void testEmptyPolicy() throws Exception {
+        final RetentionPolicy policy = RetentionPolicy.parse("");
+        Assert.assertTrue(policy.isEmpty());
+        Assert.assertNull(policy.getRetention("JVM", 0));
+    }
+
+    @Test(groups = "fast")
+    public void testRulePrecedence() throws Exception {
+        final RetentionPolicy policy = RetentionPolicy.parse("*:0:7d, *:1:90d,JVM:0:1d,JVM:1:forever,a:b:2:3h");
+        Assert.assertEquals(policy.getRules().size(), 5);
+
+        Assert.assertEquals(policy.getRetention("Memory", 0).getMillis(), new TimeSpan("7d").getMillis());
+        Assert.assertEquals(policy.getRetention("Memory", 1).getMillis(), new TimeSpan("90d").getMillis());
+        Assert.assertNull(policy.getRetention("Memory", 5));
+
+        Assert.assertEquals(policy.getRetention("JVM", 0).getMillis(), new TimeSpan("1d").getMillis());
+        Assert.assertNull(policy.getRetention("JVM", 1));
+
+        // Category names may contain colons
+        Assert.assertEquals(policy.getRetention("a:b", 2).getMillis(), new TimeSpan("3h").getMillis());
+        Assert.assertEquals(policy.getRetention("a:b", 0).getMillis(), new TimeSpan("7d").getMillis());
+
+        Assert.assertEquals(policy.getOverridingCategories(0), ImmutableSet.<String>of("JVM"));
+        Assert.assertEquals(policy.getOverridingCategories(1), ImmutableSet.<String>of("JVM"));
+        Assert.assertEquals(policy.getOverridingCategories(2), ImmutableSet.<String>of("a:b"));
+        Assert.assertEquals(policy.getOverridingCategories(3).size(), 0);
+    }
+
+    @Test(groups = "fast", expectedExceptions = IllegalArgumentException.class)
+    public void testMissingLevel() throws Exception {
+        RetentionPolicy.parse("JVM:7d");
+    }
+
+    @Test(groups = "fast", expectedExceptions = IllegalArgumentException.class)
+    public void testInvalidLevel() throws Exception {
+        RetentionPolicy.parse("JVM:raw:7d");
+    }
+
+    @Test(groups = "fast", expectedExceptions = IllegalArgumentException.class)
+    public void testDuplicateRule() throws Exception {
+        RetentionPolicy.parse("*:0:7d,*:0:1d");
+    }
+}
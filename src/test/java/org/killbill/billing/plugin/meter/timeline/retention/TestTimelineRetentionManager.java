@@ -0,0 +1,114 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.meter.timeline.retention;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Properties;
+import java.util.UUID;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.killbill.billing.plugin.meter.MeterConfig;
+import org.killbill.billing.plugin.meter.MeterTestSuiteWithEmbeddedDB;
+import org.killbill.billing.plugin.meter.api.AggregationFunction;
+import org.killbill.billing.plugin.meter.api.OutputFormat;
+import org.killbill.billing.plugin.meter.api.user.UsageResultCache;
+import org.killbill.billing.plugin.meter.timeline.chunks.TimelineChunk;
+import org.killbill.billing.plugin.meter.timeline.consumer.TimelineChunkConsumer;
+import org.killbill.billing.plugin.meter.timeline.persistent.DefaultTimelineDao;
+import org.killbill.billing.plugin.meter.timeline.persistent.TimelineDao;
+import org.skife.config.ConfigurationObjectFactory;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+public class TestTimelineRetentionManager extends MeterTestSuiteWithEmbeddedDB {
+
+    @Test(groups = "slow")
+    public void testDeleteExpiredTimelineChunks() throws Exception {
+        final TimelineDao dao = new DefaultTimelineDao(getDBI());
+        final DateTime now = new DateTime(DateTimeZone.UTC);
+        clock.setTime(now);
+
+        final Integer hostId = dao.getOrAddSource(UUID.randomUUID().toString(), callContext);
+        final Integer jvmCategoryId = dao.getOrAddEventCategory("JVM", callContext);
+        final Integer jvmMetricId = dao.getOrAddMetric(jvmCategoryId, "GC", callContext);
+        final Integer memoryCategoryId = dao.getOrAddEventCategory("Memory", callContext);
+        final Integer memoryMetricId = dao.getOrAddMetric(memoryCategoryId, "Heap", callContext);
+
+        for (final Integer metricId : ImmutableList.<Integer>of(jvmMetricId, memoryMetricId)) {
+            // Old raw chunk, recent raw chunk and old aggregated chunk
+            insertChunk(dao, hostId, metricId, now.minusDays(10), 0);
+            insertChunk(dao, hostId, metricId, now.minusHours(1), 0);
+            insertChunk(dao, hostId, metricId, now.minusDays(10).plusMinutes(30), 1);
+        }
+
+        // Small batches, to walk the table in several record_id ranges
+        final Properties properties = new Properties();
+        properties.setProperty("org.killbill.billing.plugin.meter.timelines.retentionPolicy", "*:0:7d,JVM:0:forever,*:1:9d");
+        properties.setProperty("org.killbill.billing.plugin.meter.timelines.retentionBatchSize", "2");
+        properties.setProperty("org.killbill.billing.plugin.meter.timelines.retentionBatchDelay", "0ms");
+        final MeterConfig config = new ConfigurationObjectFactory(properties).build(MeterConfig.class);
+
+        final UsageResultCache usageResultCache = new UsageResultCache(config);
+        final UsageResultCache.Key key = new UsageResultCache.Key(null, OutputFormat.JSON, null, AggregationFunction.SUM, DateTimeZone.UTC,
+                                                                  ImmutableList.<String>of("host"), ImmutableMap.<String, Collection<String>>of(),
+                                                                  null, null, null);
+        usageResultCache.put(key, new byte[]{'[', ']'});
+
+        final TimelineRetentionManager retentionManager = new TimelineRetentionManager(getDBI(), config, usageResultCache, clock);
+        Assert.assertTrue(retentionManager.isEnabled());
+        retentionManager.deleteExpiredTimelineChunks();
+
+        Assert.assertEquals(retentionManager.getRetentionCounters().get("chunksDeleted"), (Long) 3L);
+        Assert.assertTrue(retentionManager.getRetentionCounters().get("batchesProcessed") >= 3L);
+
+        // The old raw JVM chunk is kept forever
+        final List<TimelineChunk> jvmChunks = getChunks(dao, hostId, jvmMetricId, now.minusDays(11), now);
+        Assert.assertEquals(jvmChunks.size(), 2);
+        Assert.assertEquals(jvmChunks.get(0).getAggregationLevel(), 0);
+        Assert.assertEquals(jvmChunks.get(0).getStartTime().getMillis() / 1000, now.minusDays(10).getMillis() / 1000);
+        Assert.assertEquals(jvmChunks.get(1).getAggregationLevel(), 0);
+
+        final List<TimelineChunk> memoryChunks = getChunks(dao, hostId, memoryMetricId, now.minusDays(11), now);
+        Assert.assertEquals(memoryChunks.size(), 1);
+        Assert.assertEquals(memoryChunks.get(0).getStartTime().getMillis() / 1000, now.minusHours(1).getMillis() / 1000);
+
+        // Cached results may have included the deleted chunks
+        Assert.assertNull(usageResultCache.getIfPresent(key));
+    }
+
+    private void insertChunk(final TimelineDao dao, final Integer hostId, final Integer metricId, final DateTime startTime, final int aggregationLevel) {
+        dao.insertTimelineChunk(new TimelineChunk(0, hostId, metricId, startTime, startTime.plusMinutes(5), new byte[0], new byte[0], 0, aggregationLevel, false, false), callContext);
+    }
+
+    private List<TimelineChunk> getChunks(final TimelineDao dao, final Integer hostId, final Integer metricId, final DateTime startTime, final DateTime endTime) {
+        final List<TimelineChunk> chunks = new ArrayList<TimelineChunk>();
+        dao.getSamplesBySourceIdsAndMetricIds(ImmutableList.<Integer>of(hostId), ImmutableList.<Integer>of(metricId), startTime, endTime, new TimelineChunkConsumer() {
+            @Override
+            public void processTimelineChunk(final TimelineChunk chunk) {
+                chunks.add(chunk);
+            }
+        }, callContext);
+        return chunks;
+    }
+}
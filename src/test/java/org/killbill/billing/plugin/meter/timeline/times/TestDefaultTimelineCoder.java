@@ -302,6 +302,51 @@ public class TestDefaultTimelineCoder extends MeterTestSuiteNoDB {
         }
     }
 
+    @Test(groups = "fast")
+    public void testTimeCursorNextTimes() throws Exception {
+        // FF 4F 91 D5 BC: absolute time, FE 02 1E: 2 x 30s, 00: delta 0, FE 02 1E: 2 x 30s, FF 79 0B 44 22: absolute time
+        final int sampleCount = 7;
+        final byte[] times = Hex.decodeHex("FF4F91D5BCFE021E00FE021EFF790B4422".toCharArray());
+        final int firstTime = 0x4F91D5BC;
+        final int[] expectedTimes = new int[]{firstTime, firstTime + 30, firstTime + 60, firstTime + 60, firstTime + 90, firstTime + 120, 0x790B4422};
+
+        final DefaultTimelineCursor cursor = new DefaultTimelineCursor(times, sampleCount);
+        final int[] decodedTimes = new int[sampleCount + 1];
+        Assert.assertEquals(cursor.nextTimes(decodedTimes, 2), 2);
+        Assert.assertEquals(cursor.nextTimes(decodedTimes, 2, 4), 4);
+        Assert.assertEquals(cursor.nextTimes(decodedTimes, 6, 2), 1);
+        for (int i = 0; i < sampleCount; i++) {
+            Assert.assertEquals(decodedTimes[i], expectedTimes[i]);
+        }
+
+        // Mixed with the DateTime API
+        final DefaultTimelineCursor otherCursor = new DefaultTimelineCursor(times, sampleCount);
+        Assert.assertEquals(DateTimeUtils.unixSeconds(otherCursor.getNextTime()), expectedTimes[0]);
+        Assert.assertEquals(otherCursor.nextTimes(decodedTimes, 1), 1);
+        Assert.assertEquals(decodedTimes[0], expectedTimes[1]);
+        otherCursor.skipToSampleNumber(5);
+        Assert.assertEquals(DateTimeUtils.unixSeconds(otherCursor.getNextTime()), expectedTimes[5]);
+    }
+
+    @Test(groups = "fast")
+    public void testTimeCursorSkipsLongRepeats() throws Exception {
+        final DateTime firstTime = DateTimeUtils.dateTimeFromUnixSeconds(1000000);
+        final List<DateTime> dateTimes = new ArrayList<DateTime>();
+        for (int i = 0; i < 200000; i++) {
+            dateTimes.add(firstTime.plusSeconds(i * 30));
+        }
+        final byte[] times = timelineCoder.compressDateTimes(dateTimes);
+
+        final DefaultTimelineCursor cursor = new DefaultTimelineCursor(times, dateTimes.size());
+        cursor.skipToSampleNumber(150000);
+        Assert.assertEquals(cursor.getNextTime(), dateTimes.get(150000));
+        cursor.skipToSampleNumber(199998);
+        final int[] lastTimes = new int[3];
+        Assert.assertEquals(cursor.nextTimes(lastTimes, 3), 2);
+        Assert.assertEquals(lastTimes[0], DateTimeUtils.unixSeconds(dateTimes.get(199998)));
+        Assert.assertEquals(lastTimes[1], DateTimeUtils.unixSeconds(dateTimes.get(199999)));
+    }
+
     @Test(groups = "fast")
     public void testTimeCursorThatShowedError() throws Exception {
         // 39 bytes are: ff4f90f67afd03ce1e1ffe1a1e1d01fe771e1d01fd01df1e1d1ffe761e1d01fe771e1d01fe571e